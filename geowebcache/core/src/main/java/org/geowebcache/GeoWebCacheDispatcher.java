@@ -489,8 +489,8 @@ public class GeoWebCacheDispatcher extends AbstractController {
 
         final CacheResult cacheResult = tile.getCacheResult();
         int httpCode = HttpServletResponse.SC_OK;
-        String mimeType = tile.getMimeType().getMimeType();
         Resource blob = tile.getBlob();
+        String mimeType = tile.getMimeType().getMimeType(blob);
 
         servletResp.setHeader("geowebcache-cache-result", String.valueOf(cacheResult));
         servletResp.setHeader("geowebcache-tile-index", Arrays.toString(tile.getTileIndex()));
@@ -532,6 +532,13 @@ public class GeoWebCacheDispatcher extends AbstractController {
             }
         }
 
+        if (httpCode == HttpServletResponse.SC_OK
+                && tile.getStatus() == HttpServletResponse.SC_NO_CONTENT) {
+            // the backend has nothing to draw there
+            httpCode = HttpServletResponse.SC_NO_CONTENT;
+            blob = null;
+        }
+
         if (httpCode == HttpServletResponse.SC_OK && tile.getLayer().useETags()) {
             String ifNoneMatch = servletReq.getHeader("If-None-Match");
             String hexTag = Long.toHexString(tileTimeStamp);
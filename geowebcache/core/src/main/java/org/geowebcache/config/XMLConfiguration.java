@@ -39,6 +39,10 @@ import java.util.List;
 import java.util.Map;
 import java.util.NoSuchElementException;
 import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 import javax.xml.parsers.DocumentBuilder;
 import javax.xml.parsers.DocumentBuilderFactory;
@@ -76,6 +80,7 @@ import org.geowebcache.layer.TileLayer;
 import org.geowebcache.layer.meta.ContactInformation;
 import org.geowebcache.layer.meta.LayerMetaInformation;
 import org.geowebcache.layer.updatesource.GeoRSSFeedDefinition;
+import org.geowebcache.layer.wms.EmptyTileCache;
 import org.geowebcache.layer.wms.WMSHttpHelper;
 import org.geowebcache.layer.wms.WMSLayer;
 import org.geowebcache.mime.FormatModifier;
@@ -83,6 +88,7 @@ import org.geowebcache.seed.SeedRequest;
 import org.geowebcache.seed.TruncateLayerRequest;
 import org.geowebcache.storage.DefaultStorageFinder;
 import org.geowebcache.util.ApplicationContextProvider;
+import org.geowebcache.util.GWCVars;
 import org.springframework.util.Assert;
 import org.springframework.web.context.WebApplicationContext;
 import org.w3c.dom.Document;
@@ -106,6 +112,13 @@ public class XMLConfiguration implements Configuration {
 
     private static final String DEFAULT_CONFIGURATION_FILE_NAME = "geowebcache.xml";
 
+    /**
+     * Environment variable, system property or servlet context parameter setting how many threads
+     * are used to initialize the layers at startup. Defaults to the number of available
+     * processors, use {@code 1} to initialize the layers serially.
+     */
+    static final String GWC_LAYER_INIT_THREADS = "GWC_LAYER_INIT_THREADS";
+
     /**
      * Web app context, used to look up {@link XMLConfigurationProvider}s. Will be null if used the
      * {@link #XMLConfiguration(File)} constructor
@@ -130,6 +143,13 @@ public class XMLConfiguration implements Configuration {
 
     private GridSetBroker gridSetBroker;
 
+    private EmptyTileCache emptyTileCache;
+
+    /**
+     * Whether the last configuration loaded had to go through the XSL upgrade transforms
+     */
+    private boolean upgradedOnLoad;
+
     /**
      * @deprecated use {@link #XMLConfiguration(ApplicationContextProvider, DefaultStorageFinder)}
      */
@@ -239,6 +259,13 @@ public class XMLConfiguration implements Configuration {
         this.templateLocation = templateLocation;
     }
 
+    /**
+     * Sets the cache of the tiles known to be empty for the WMS layers to share, none by default
+     */
+    public void setEmptyTileCache(EmptyTileCache emptyTileCache) {
+        this.emptyTileCache = emptyTileCache;
+    }
+
     private File findConfigFile() throws ConfigurationException {
         if (null == configDirectory) {
             // used the InputStream constructor
@@ -367,6 +394,7 @@ public class XMLConfiguration implements Configuration {
 
             wl.setSourceHelper(sourceHelper);
             wl.setLockProvider(gwcConfig.getLockProvider());
+            wl.setEmptyTileCache(emptyTileCache);
         }
     }
 
@@ -394,7 +422,12 @@ public class XMLConfiguration implements Configuration {
 
     private GeoWebCacheConfiguration loadConfiguration(InputStream xmlFile) throws IOException,
             ConfigurationException {
-        Node rootNode = loadDocument(xmlFile);
+        Document doc = parseDocument(xmlFile);
+        final String originalName = doc.getDocumentElement().getNodeName();
+        final String originalNamespace = doc.getDocumentElement().getNamespaceURI();
+        Node rootNode = checkAndTransform(doc);
+        this.upgradedOnLoad = !originalName.equals(rootNode.getNodeName())
+                || !String.valueOf(originalNamespace).equals(rootNode.getNamespaceURI());
         XStream xs = getConfiguredXStreamWithContext(new XStream(), Context.PERSIST);
 
         GeoWebCacheConfiguration config;
@@ -704,17 +737,18 @@ public class XMLConfiguration implements Configuration {
      * @return W3C DOM Document
      */
     static Node loadDocument(InputStream xmlFile) throws ConfigurationException, IOException {
-        Node topNode = null;
+        return checkAndTransform(parseDocument(xmlFile));
+    }
+
+    private static Document parseDocument(InputStream xmlFile) throws IOException {
         try {
             DocumentBuilderFactory docBuilderFactory = DocumentBuilderFactory.newInstance();
             docBuilderFactory.setNamespaceAware(true);
             DocumentBuilder docBuilder = docBuilderFactory.newDocumentBuilder();
-            topNode = checkAndTransform(docBuilder.parse(xmlFile));
+            return docBuilder.parse(xmlFile);
         } catch (Exception e) {
             throw (IOException) new IOException(e.getMessage()).initCause(e);
         }
-
-        return topNode;
     }
 
     private static Node checkAndTransform(Document doc) throws ConfigurationException {
@@ -891,6 +925,17 @@ public class XMLConfiguration implements Configuration {
 
         if (this.configFileName != null) {
             this.gwcConfig = loadConfiguration();
+            if (upgradedOnLoad) {
+                // persist the upgraded configuration so that the XSL transforms won't need to run
+                // again on the next startup. The original file is backed up by save()
+                log.info("Saving the upgraded configuration to " + getIdentifier());
+                try {
+                    save();
+                } catch (IOException e) {
+                    log.warn("Could not save the upgraded configuration, the upgrade will be "
+                            + "performed again on the next startup", e);
+                }
+            }
         }
 
         log.info("Initializing GridSets from " + getIdentifier());
@@ -904,14 +949,79 @@ public class XMLConfiguration implements Configuration {
             if (layer == null) {
                 throw new IllegalStateException(getIdentifier() + " contains a null layer");
             }
-            initialize(layer);
         }
+        initialize(gwcConfig.getLayers());
 
         updateLayers();
 
         return getTileLayerCount();
     }
 
+    /**
+     * Initializes the given layers, in parallel if more than one thread is allowed by
+     * {@link #GWC_LAYER_INIT_THREADS}. Default values are set serially as they are cheap and
+     * share the global configuration
+     */
+    private void initialize(final List<TileLayer> layers) throws GeoWebCacheException {
+        for (TileLayer layer : layers) {
+            setDefaultValues(layer);
+        }
+
+        final int threads = Math.min(getLayerInitThreads(), layers.size());
+        if (threads <= 1) {
+            for (TileLayer layer : layers) {
+                initializeLayer(layer);
+            }
+            return;
+        }
+
+        log.info("Initializing " + layers.size() + " layers using " + threads + " threads");
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        try {
+            List<Future<?>> futures = new ArrayList<Future<?>>(layers.size());
+            for (final TileLayer layer : layers) {
+                futures.add(executor.submit(new Runnable() {
+                    public void run() {
+                        initializeLayer(layer);
+                    }
+                }));
+            }
+            for (Future<?> future : futures) {
+                try {
+                    future.get();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new GeoWebCacheException("Interrupted while initializing layers");
+                } catch (ExecutionException e) {
+                    Throwable cause = e.getCause();
+                    if (cause instanceof RuntimeException) {
+                        throw (RuntimeException) cause;
+                    } else if (cause instanceof Error) {
+                        throw (Error) cause;
+                    }
+                    throw new GeoWebCacheException(cause);
+                }
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    private int getLayerInitThreads() {
+        final int defaultThreads = Runtime.getRuntime().availableProcessors();
+        String value = GWCVars.findEnvVar(context, GWC_LAYER_INIT_THREADS);
+        if (value == null) {
+            return defaultThreads;
+        }
+        try {
+            return Integer.parseInt(value.trim());
+        } catch (NumberFormatException e) {
+            log.warn("Invalid environment parameter for " + GWC_LAYER_INIT_THREADS + ": '"
+                    + value + "'. Using default value: " + defaultThreads);
+            return defaultThreads;
+        }
+    }
+
     private void updateLayers() {
         Map<String, TileLayer> buff = new HashMap<String, TileLayer>();
         for (TileLayer layer : gwcConfig.getLayers()) {
@@ -940,8 +1050,12 @@ public class XMLConfiguration implements Configuration {
     }
 
     private void initialize(final TileLayer layer) {
-        log.info("Initializing TileLayer '" + layer.getName() + "'");
         setDefaultValues(layer);
+        initializeLayer(layer);
+    }
+
+    private void initializeLayer(final TileLayer layer) {
+        log.info("Initializing TileLayer '" + layer.getName() + "'");
         layer.initialize(gridSetBroker);
     }
 
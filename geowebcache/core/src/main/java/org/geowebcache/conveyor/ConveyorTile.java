@@ -19,6 +19,7 @@ package org.geowebcache.conveyor;
 
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.nio.channels.Channels;
 import java.util.Collections;
 import java.util.Map;
@@ -26,6 +27,7 @@ import java.util.Map;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 
+import org.apache.commons.io.IOUtils;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import org.geowebcache.GeoWebCacheException;
@@ -61,6 +63,10 @@ public class ConveyorTile extends Conveyor implements TileResponseReceiver {
 
     private boolean isMetaTileCacheOnly;
 
+    private boolean stale;
+
+    private boolean skipUnchanged;
+
     public ConveyorTile(StorageBroker sb, String layerId, HttpServletRequest servletReq,
             HttpServletResponse servletResp) {
         super(layerId, sb, servletReq, servletResp);
@@ -216,14 +222,69 @@ public class ConveyorTile extends Conveyor implements TileResponseReceiver {
     }
 
     public boolean persist() throws GeoWebCacheException {
+        return persist(stObj);
+    }
+
+    /**
+     * Stores a tile rendered for this request, unless {@link #isSkipUnchanged()} is set and the
+     * stored copy has the very same contents
+     * 
+     * @return whether the tile was written
+     */
+    public boolean persist(TileObject tile) throws GeoWebCacheException {
         try {
-            return storageBroker.put((TileObject) stObj);
+            if (skipUnchanged && isUnchanged(tile)) {
+                return false;
+            }
+            return storageBroker.put(tile);
         } catch (StorageException e) {
             throw new GeoWebCacheException(e);
         }
     }
 
+    private boolean isUnchanged(TileObject tile) throws StorageException {
+        TileObject stored = TileObject.createQueryTileObject(tile.getLayerName(),
+                tile.getXYZ(), tile.getGridSetId(), tile.getBlobFormat(), tile.getParameters());
+        if (!storageBroker.get(stored)) {
+            return false;
+        }
+        // the size is known without reading the tile, most changed tiles stop here
+        Resource storedBlob = stored.getBlob();
+        Resource blob = tile.getBlob();
+        if (storedBlob.getSize() != blob.getSize()) {
+            return false;
+        }
+        InputStream storedIn = null;
+        InputStream in = null;
+        try {
+            storedIn = storedBlob.getInputStream();
+            in = blob.getInputStream();
+            return IOUtils.contentEquals(storedIn, in);
+        } catch (IOException e) {
+            log.debug("Unable to compare " + tile + " with the stored one", e);
+            return false;
+        } finally {
+            IOUtils.closeQuietly(storedIn);
+            IOUtils.closeQuietly(in);
+        }
+    }
+
     public boolean retrieve(long maxAge) throws GeoWebCacheException {
+        return retrieve(maxAge, 0);
+    }
+
+    /**
+     * Retrieves the tile from the cache, accepting expired ones within a grace period
+     * 
+     * @param maxAge
+     *            how old the tile may be, in milliseconds, {@code 0} for no limit
+     * @param staleMaxAge
+     *            for how long after {@code maxAge} the tile may still be returned, in
+     *            milliseconds. Such tiles are flagged as {@link #isStale() stale}
+     * @return whether a usable tile was found
+     */
+    public boolean retrieve(long maxAge, long staleMaxAge) throws GeoWebCacheException {
+        stale = false;
         try {
             if (isMetaTileCacheOnly) {
                 boolean cached = storageBroker.getTransient((TileObject) stObj);
@@ -233,8 +294,12 @@ public class ConveyorTile extends Conveyor implements TileResponseReceiver {
             boolean ret = storageBroker.get((TileObject) stObj);
 
             // Do we use expiration, and if so, is the tile recent enough ?
-            if (ret && maxAge > 0 && stObj.getCreated() + maxAge < System.currentTimeMillis()) {
-                ret = false;
+            if (ret && maxAge > 0) {
+                final long age = System.currentTimeMillis() - stObj.getCreated();
+                if (age > maxAge) {
+                    stale = age <= maxAge + staleMaxAge;
+                    ret = stale;
+                }
             }
 
             if (ret) {
@@ -251,6 +316,15 @@ public class ConveyorTile extends Conveyor implements TileResponseReceiver {
         }
     }
 
+    /**
+     * Whether the tile was retrieved past its expiration, and needs to be refreshed
+     * 
+     * @see #retrieve(long, long)
+     */
+    public boolean isStale() {
+        return stale;
+    }
+
     public String toString() {
         StringBuilder str = new StringBuilder();
         str.append("ConveyorTile[");
@@ -286,4 +360,16 @@ public class ConveyorTile extends Conveyor implements TileResponseReceiver {
     public boolean isMetaTileCacheOnly() {
         return isMetaTileCacheOnly;
     }
+
+    /**
+     * Sets whether the tiles rendered for this request are left alone when the stored ones have
+     * the same contents, keeping their creation time. Used by differential reseeding
+     */
+    public void setSkipUnchanged(boolean skipUnchanged) {
+        this.skipUnchanged = skipUnchanged;
+    }
+
+    public boolean isSkipUnchanged() {
+        return skipUnchanged;
+    }
 }
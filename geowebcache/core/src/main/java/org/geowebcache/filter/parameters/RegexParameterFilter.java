@@ -34,18 +34,19 @@ public class RegexParameterFilter extends ParameterFilter {
 
     private String regex = DEFAULT_EXPRESSION;
 
-    private transient Pattern pat = Pattern.compile(regex);
+    private transient volatile Pattern pat = Pattern.compile(regex);
 
     public RegexParameterFilter() {
         super();
     }
     
     /**
-     * Get a {@link Matcher} for this filter's regexp against the given string.
+     * Get a {@link Matcher} for this filter's regexp against the given string. Patterns are
+     * immutable, so no locking is needed to get a new matcher out of them.
      * @param value
      * @return
      */
-    public synchronized Matcher getMatcher(String value) {
+    public Matcher getMatcher(String value) {
         return pat.matcher(value);
     }
 
@@ -109,7 +110,7 @@ public class RegexParameterFilter extends ParameterFilter {
         RegexParameterFilter clone = new RegexParameterFilter();
         clone.setDefaultValue(getDefaultValue());
         clone.setKey(getKey());
-        clone.regex = regex;
+        clone.setRegex(regex);
         return clone;
     }
 }
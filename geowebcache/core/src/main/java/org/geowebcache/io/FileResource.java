@@ -15,14 +15,36 @@ public class FileResource implements Resource {
 
     private final File file;
 
+    private final long size;
+
+    private final long lastModified;
+
     public FileResource(File file) {
+        this(file, -1, -1);
+    }
+
+    /**
+     * Creates a resource whose size and last modification time are already known, saving the
+     * file system calls to look them up again
+     * 
+     * @param size
+     *            the file size, or {@code -1} to look it up on demand
+     * @param lastModified
+     *            the file last modification time, or {@code -1} to look it up on demand
+     */
+    public FileResource(File file, long size, long lastModified) {
         this.file = file;
+        this.size = size;
+        this.lastModified = lastModified;
     }
 
     /**
      * @see org.geowebcache.io.Resource#getLastModified()
      */
     public long getLastModified() {
+        if (lastModified >= 0) {
+            return lastModified;
+        }
         return file.lastModified();
     }
 
@@ -30,6 +52,9 @@ public class FileResource implements Resource {
      * @see org.geowebcache.io.Resource#getSize()
      */
     public long getSize() {
+        if (size > 0) {
+            return size;
+        }
         // avoid a (relatively expensive) call to File.exists(), file.length() returns 0 if the file
         // doesn't exist anyway
         long size = file.length();
@@ -42,8 +67,9 @@ public class FileResource implements Resource {
         try {
             final long size = in.size();
             long written = 0;
-            while ((written += in.transferTo(written, size, target)) < size) {
-                ;
+            while (written < size) {
+                // transferTo may write less than asked, e.g. into non blocking channels
+                written += in.transferTo(written, size - written, target);
             }
             return size;
         } finally {
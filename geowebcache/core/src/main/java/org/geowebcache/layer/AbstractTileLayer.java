@@ -88,6 +88,8 @@ public abstract class AbstractTileLayer extends TileLayer {
 
     protected ArrayList<ExpirationRule> expireClientsList;
 
+    protected Integer staleWhileRevalidate;
+
     protected Integer backendTimeout;
 
     protected Boolean cacheBypassAllowed;
@@ -436,6 +438,15 @@ public abstract class AbstractTileLayer extends TileLayer {
         return getExpiration(this.expireCacheList, zoomLevel);
     }
 
+    @Override
+    public int getStaleWhileRevalidate() {
+        return staleWhileRevalidate == null ? 0 : staleWhileRevalidate.intValue();
+    }
+
+    public void setStaleWhileRevalidate(int seconds) {
+        staleWhileRevalidate = Integer.valueOf(seconds);
+    }
+
     private int getExpiration(ArrayList<ExpirationRule> list, int zoomLevel) {
         int retVal;
 
@@ -0,0 +1,236 @@
+/**
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package org.geowebcache.layer;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.ColorModel;
+import java.awt.image.DataBufferByte;
+import java.awt.image.IndexColorModel;
+import java.awt.image.RenderedImage;
+import java.awt.image.WritableRaster;
+import java.util.Arrays;
+
+/**
+ * Reduces true color images to 8 bit paletted ones, for the {@code image/png8} tiles.
+ * <p>
+ * Median cut over a histogram of the colors reduced to 5 bits per color component and 3 bits of
+ * alpha. Each histogram cell ends up in exactly one box of the cut, so the box is the palette
+ * index of the cell, and mapping the pixels takes a single lookup instead of a nearest color
+ * search. Fully transparent pixels get a palette entry of their own.
+ * </p>
+ * <p>
+ * {@link MetaTile} quantizes the whole metatile at once, so the palette is built a single time
+ * and shared by the tiles cut out of it.
+ * </p>
+ */
+public final class ColorQuantizer {
+
+    private static final int MAX_COLORS = 256;
+
+    private static final int CELLS = 1 << 18;
+
+    private static final int CELL_MASK = CELLS - 1;
+
+    private ColorQuantizer() {
+        // static helper
+    }
+
+    /**
+     * @return the image reduced to at most 256 colors, with an {@link IndexColorModel}
+     */
+    public static BufferedImage quantize(RenderedImage image) {
+        final BufferedImage source;
+        if (image instanceof BufferedImage) {
+            source = (BufferedImage) image;
+        } else {
+            ColorModel colorModel = image.getColorModel();
+            WritableRaster raster = colorModel.createCompatibleWritableRaster(image.getWidth(),
+                    image.getHeight());
+            image.copyData(raster.createWritableTranslatedChild(image.getMinX(), image.getMinY()));
+            source = new BufferedImage(colorModel, raster, colorModel.isAlphaPremultiplied(), null);
+        }
+        final int width = source.getWidth();
+        final int height = source.getHeight();
+        final int[] row = new int[width];
+
+        // pixel count by cell
+        final int[] histogram = new int[CELLS];
+        boolean transparent = false;
+        for (int y = 0; y < height; y++) {
+            source.getRGB(0, y, width, 1, row, 0, width);
+            for (int x = 0; x < width; x++) {
+                if (row[x] >>> 24 == 0) {
+                    transparent = true;
+                } else {
+                    histogram[cell(row[x])]++;
+                }
+            }
+        }
+        int used = 0;
+        for (int i = 0; i < CELLS; i++) {
+            if (histogram[i] > 0) {
+                used++;
+            }
+        }
+        final int[] cells = new int[used];
+        used = 0;
+        for (int i = 0; i < CELLS; i++) {
+            if (histogram[i] > 0) {
+                cells[used++] = i;
+            }
+        }
+
+        // the boxes are ranges of the cells array
+        final int maxBoxes = transparent ? MAX_COLORS - 1 : MAX_COLORS;
+        final int[] starts = new int[maxBoxes];
+        final int[] ends = new int[maxBoxes];
+        // the component each box spans the widest range on, and the range
+        final int[] components = new int[maxBoxes];
+        final int[] ranges = new int[maxBoxes];
+        int boxes = 0;
+        if (used > 0) {
+            ends[0] = used;
+            measure(cells, 0, used, 0, components, ranges);
+            boxes = 1;
+        }
+        while (boxes < maxBoxes) {
+            int widest = -1;
+            for (int i = 0; i < boxes; i++) {
+                if (ranges[i] > 0 && (widest == -1 || ranges[i] > ranges[widest])) {
+                    widest = i;
+                }
+            }
+            if (widest == -1) {
+                break;
+            }
+            final int widestComponent = components[widest];
+            final int start = starts[widest];
+            final int end = ends[widest];
+            for (int j = start; j < end; j++) {
+                cells[j] |= component(cells[j], widestComponent) << 18;
+            }
+            Arrays.sort(cells, start, end);
+            long population = 0;
+            for (int j = start; j < end; j++) {
+                cells[j] &= CELL_MASK;
+                population += histogram[cells[j]];
+            }
+            // split at the median pixel, leaving at least one cell on each side
+            int split = start + 1;
+            long count = histogram[cells[start]];
+            while (split < end - 1 && count + histogram[cells[split]] <= population / 2) {
+                count += histogram[cells[split]];
+                split++;
+            }
+            ends[widest] = split;
+            measure(cells, start, split, widest, components, ranges);
+            starts[boxes] = split;
+            ends[boxes] = end;
+            measure(cells, split, end, boxes, components, ranges);
+            boxes++;
+        }
+
+        // the palette, with the average color of each box
+        final int offset = transparent ? 1 : 0;
+        final int size = Math.max(1, boxes + offset);
+        final byte[] a = new byte[size];
+        final byte[] r = new byte[size];
+        final byte[] g = new byte[size];
+        final byte[] b = new byte[size];
+        for (int i = 0; i < boxes; i++) {
+            long population = 0;
+            long[] sums = new long[4];
+            for (int j = starts[i]; j < ends[i]; j++) {
+                int pixels = histogram[cells[j]];
+                population += pixels;
+                for (int c = 0; c < 4; c++) {
+                    sums[c] += (long) pixels * component(cells[j], c);
+                }
+            }
+            a[i + offset] = scale(sums[0], population, 7);
+            r[i + offset] = scale(sums[1], population, 31);
+            g[i + offset] = scale(sums[2], population, 31);
+            b[i + offset] = scale(sums[3], population, 31);
+            // from now on the histogram maps the cells to the palette
+            for (int j = starts[i]; j < ends[i]; j++) {
+                histogram[cells[j]] = i + offset;
+            }
+        }
+
+        final IndexColorModel colorModel = new IndexColorModel(8, size, r, g, b, a);
+        final BufferedImage quantized = new BufferedImage(width, height,
+                BufferedImage.TYPE_BYTE_INDEXED, colorModel);
+        final byte[] pixels = ((DataBufferByte) quantized.getRaster().getDataBuffer()).getData();
+        for (int y = 0; y < height; y++) {
+            source.getRGB(0, y, width, 1, row, 0, width);
+            final int base = y * width;
+            for (int x = 0; x < width; x++) {
+                pixels[base + x] = row[x] >>> 24 == 0 ? 0 : (byte) histogram[cell(row[x])];
+            }
+        }
+        return quantized;
+    }
+
+    /**
+     * Finds the component the cells of a box span the widest range on
+     */
+    private static void measure(int[] cells, int start, int end, int box, int[] components,
+            int[] ranges) {
+        components[box] = 0;
+        ranges[box] = 0;
+        for (int c = 0; c < 4; c++) {
+            int min = Integer.MAX_VALUE;
+            int max = Integer.MIN_VALUE;
+            for (int j = start; j < end; j++) {
+                int value = component(cells[j], c);
+                min = Math.min(min, value);
+                max = Math.max(max, value);
+            }
+            // alpha has 3 bits, the colors 5
+            int range = c == 0 ? (max - min) << 2 : max - min;
+            if (range > ranges[box]) {
+                components[box] = c;
+                ranges[box] = range;
+            }
+        }
+    }
+
+    private static int cell(int argb) {
+        return ((argb >>> 29) << 15) | (((argb >> 19) & 31) << 10) | (((argb >> 11) & 31) << 5)
+                | ((argb >> 3) & 31);
+    }
+
+    /**
+     * @param component
+     *            0 for alpha, 1 to 3 for red, green and blue
+     */
+    private static int component(int cell, int component) {
+        switch (component) {
+        case 0:
+            return cell >> 15;
+        case 1:
+            return (cell >> 10) & 31;
+        case 2:
+            return (cell >> 5) & 31;
+        default:
+            return cell & 31;
+        }
+    }
+
+    private static byte scale(long sum, long population, int max) {
+        return (byte) ((sum * 255 + population * max / 2) / (population * max));
+    }
+}
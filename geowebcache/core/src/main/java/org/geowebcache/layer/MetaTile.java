@@ -16,9 +16,15 @@
  */
 package org.geowebcache.layer;
 
+import java.awt.Color;
+import java.awt.Graphics2D;
 import java.awt.Rectangle;
 import java.awt.RenderingHints;
+import java.awt.geom.AffineTransform;
 import java.awt.image.BufferedImage;
+import java.awt.image.ColorModel;
+import java.awt.image.IndexColorModel;
+import java.awt.image.Raster;
 import java.awt.image.RenderedImage;
 import java.io.IOException;
 import java.io.OutputStream;
@@ -50,9 +56,13 @@ import org.geowebcache.grid.SRS;
 import org.geowebcache.io.ByteArrayResource;
 import org.geowebcache.io.Resource;
 import org.geowebcache.mime.FormatModifier;
+import org.geowebcache.mime.ImageMime;
 import org.geowebcache.mime.MimeType;
 import org.springframework.util.Assert;
 
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+
 public class MetaTile implements TileResponseReceiver {
 
     private static Log log = LogFactory.getLog(MetaTile.class);
@@ -76,6 +86,13 @@ public class MetaTile implements TileResponseReceiver {
         }
     }
 
+    /**
+     * Encoded single color tiles, by format, size, encoding parameters and color, reused instead
+     * of encoding the same tile over and over
+     */
+    private static final Cache<String, byte[]> UNIFORM_TILES = CacheBuilder.newBuilder()
+            .maximumSize(1000).build();
+
     // buffer for storing the metatile, if it is an image
     protected RenderedImage metaTileImage = null;
 
@@ -273,6 +290,61 @@ public class MetaTile implements TileResponseReceiver {
         this.metaTileImage = metaTiledImage;
     }
 
+    /**
+     * @return whether every pixel of the metatile image is fully transparent, stopping at the
+     *         first one that isn't
+     */
+    public boolean isTransparent() {
+        if (metaTileImage == null) {
+            return false;
+        }
+        return hasUniformAlpha(new Rectangle(metaTileImage.getMinX(), metaTileImage.getMinY(),
+                metaTileImage.getWidth(), metaTileImage.getHeight()), false);
+    }
+
+    /**
+     * Checks whether all the pixels of a region of the metatile image are fully opaque, or fully
+     * transparent, stopping at the first one that isn't
+     */
+    private boolean hasUniformAlpha(final Rectangle region, final boolean opaque) {
+        final ColorModel colorModel = metaTileImage.getColorModel();
+        if (colorModel == null || !colorModel.hasAlpha()) {
+            return opaque;
+        }
+        final Raster raster;
+        if (metaTileImage instanceof BufferedImage) {
+            raster = ((BufferedImage) metaTileImage).getRaster();
+        } else {
+            raster = metaTileImage.getData(region);
+        }
+        final Rectangle bounds = region.intersection(raster.getBounds());
+        final int[] row = new int[bounds.width];
+        if (colorModel instanceof IndexColorModel) {
+            final IndexColorModel icm = (IndexColorModel) colorModel;
+            final int alpha = opaque ? 255 : 0;
+            for (int y = bounds.y; y < bounds.y + bounds.height; y++) {
+                raster.getSamples(bounds.x, y, bounds.width, 1, 0, row);
+                for (int i = 0; i < row.length; i++) {
+                    if (icm.getAlpha(row[i]) != alpha) {
+                        return false;
+                    }
+                }
+            }
+        } else {
+            final int alphaBand = raster.getNumBands() - 1;
+            final int alpha = opaque ? (1 << colorModel.getComponentSize(alphaBand)) - 1 : 0;
+            for (int y = bounds.y; y < bounds.y + bounds.height; y++) {
+                raster.getSamples(bounds.x, y, bounds.width, 1, alphaBand, row);
+                for (int i = 0; i < row.length; i++) {
+                    if (row[i] != alpha) {
+                        return false;
+                    }
+                }
+            }
+        }
+        return true;
+    }
+
     /**
      * Cuts the metaTile into the specified number of tiles, the actual number of tiles is
      * determined by metaX and metaY, not the width and height provided here.
@@ -355,20 +427,61 @@ public class MetaTile implements TileResponseReceiver {
             log.debug("Thread: " + Thread.currentThread().getName() + " writing: " + tileIdx);
         }
         
+        if (responseFormat == ImageMime.png8 && metaTileImage != null
+                && !(metaTileImage.getColorModel() instanceof IndexColorModel)) {
+            // build the palette once, the tiles cut out of the metatile share it
+            RenderedImage trueColor = metaTileImage;
+            metaTileImage = ColorQuantizer.quantize(trueColor);
+            disposeLater(trueColor);
+        }
+
+        final Rectangle tileRegion = tiles[tileIdx];
+        final boolean mixed = responseFormat == ImageMime.jpeg_png;
+        if (mixed) {
+            // JPEG for the opaque tiles, PNG for the ones with any transparency
+            format = hasUniformAlpha(tileRegion, true) ? ImageMime.jpeg.getInternalName()
+                    : ImageMime.png.getInternalName();
+        }
+        final String uniformKey = uniformTileKey(tileRegion, format);
+        if (uniformKey != null) {
+            byte[] encoded = UNIFORM_TILES.getIfPresent(uniformKey);
+            if (encoded != null) {
+                target.getOutputStream().write(encoded);
+                return true;
+            }
+        }
+
         // TODO should we recycle the writers ?
         // GR: it'd be only a 2% perf gain according to profiler
         Iterator<ImageWriter> it = javax.imageio.ImageIO.getImageWritersByFormatName(format);
         ImageWriter writer = it.next();
         ImageWriteParam param = writer.getDefaultWriteParam();
 
-        if (this.formatModifier != null) {
+        // the modifier keeps the parameters of a single writer, no use with two formats
+        if (this.formatModifier != null && !mixed) {
             param = formatModifier.adjustImageWriteParam(param);
         }
 
-        Rectangle tileRegion = tiles[tileIdx];
         RenderedImage tile = createTile(tileRegion.x, tileRegion.y, tileRegion.width,
                 tileRegion.height);
         disposeLater(tile);
+        if ("jpeg".equals(format) && tile.getColorModel().hasAlpha()) {
+            // the JPEG writer doesn't take an alpha channel, even a fully opaque one. The
+            // transparent pixels end up white, the default WMS background
+            BufferedImage rgb = new BufferedImage(tile.getWidth(), tile.getHeight(),
+                    BufferedImage.TYPE_3BYTE_BGR);
+            Graphics2D graphics = rgb.createGraphics();
+            try {
+                graphics.setColor(Color.WHITE);
+                graphics.fillRect(0, 0, rgb.getWidth(), rgb.getHeight());
+                graphics.drawRenderedImage(tile,
+                        AffineTransform.getTranslateInstance(-tile.getMinX(), -tile.getMinY()));
+            } finally {
+                graphics.dispose();
+            }
+            tile = rgb;
+            disposeLater(tile);
+        }
         OutputStream outputStream = target.getOutputStream();
         ImageOutputStream imgOut = new MemoryCacheImageOutputStream(outputStream);
         writer.setOutput(imgOut);
@@ -380,9 +493,59 @@ public class MetaTile implements TileResponseReceiver {
             writer.dispose();
         }
 
+        if (uniformKey != null && target instanceof ByteArrayResource && target.getSize() > 0) {
+            // the target might be a reused buffer, keep a copy
+            UNIFORM_TILES.put(uniformKey, ((ByteArrayResource) target).getContents().clone());
+        }
         return true;
     }
 
+    /**
+     * Checks whether a tile has a single color, stopping at the first pixel that differs
+     * 
+     * @return the key of the encoded tile in the uniform tiles cache, or {@code null} if the tile
+     *         isn't uniform
+     */
+    private String uniformTileKey(final Rectangle region, final String format) {
+        final Raster raster;
+        if (metaTileImage instanceof BufferedImage) {
+            raster = ((BufferedImage) metaTileImage).getRaster();
+        } else {
+            raster = metaTileImage.getData(region);
+        }
+        if (!raster.getBounds().contains(region)) {
+            return null;
+        }
+        final int[] color = raster.getPixel(region.x, region.y, (int[]) null);
+        final int[] row = new int[region.width];
+        for (int band = 0; band < color.length; band++) {
+            for (int y = region.y; y < region.y + region.height; y++) {
+                raster.getSamples(region.x, y, region.width, 1, band, row);
+                for (int i = 0; i < row.length; i++) {
+                    if (row[i] != color[band]) {
+                        return null;
+                    }
+                }
+            }
+        }
+
+        // the encoding depends on the color model type, not on the actual palette
+        final ColorModel colorModel = metaTileImage.getColorModel();
+        StringBuilder key = new StringBuilder(format);
+        key.append('_').append(region.width).append('x').append(region.height);
+        if (formatModifier != null && formatModifier.getCompressionQuality() != null) {
+            key.append("_q").append(formatModifier.getCompressionQuality());
+        }
+        key.append('_').append(colorModel.getClass().getName());
+        key.append('_').append(colorModel.getPixelSize()).append('_');
+        if (colorModel instanceof IndexColorModel) {
+            key.append(Integer.toHexString(((IndexColorModel) colorModel).getRGB(color[0])));
+        } else {
+            key.append(Arrays.toString(color));
+        }
+        return key.toString();
+    }
+
     protected void disposeLater(RenderedImage tile) {
         if (disposableImages == null) {
             disposableImages = new ArrayList<RenderedImage>(tiles.length);
@@ -475,6 +638,10 @@ public class MetaTile implements TileResponseReceiver {
 
     public MimeType getRequestFormat() {
         if (formatModifier == null) {
+            if (responseFormat == ImageMime.jpeg_png) {
+                // the tiles are encoded here, the backend has to keep the transparency
+                return ImageMime.png;
+            }
             return this.responseFormat;
         } else {
             return this.formatModifier.getRequestFormat();
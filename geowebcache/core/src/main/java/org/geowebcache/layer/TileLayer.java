@@ -50,11 +50,13 @@ import org.geowebcache.layer.meta.MetadataURL;
 import org.geowebcache.layer.updatesource.UpdateSourceDefinition;
 import org.geowebcache.mime.FormatModifier;
 import org.geowebcache.mime.MimeType;
-import org.geowebcache.storage.StorageException;
 import org.geowebcache.storage.TileObject;
 import org.geowebcache.util.GWCVars;
 import org.geowebcache.util.ServletUtils;
 
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+
 /**
  * "Pure virtual" base class for Layers.
  * <p>
@@ -70,9 +72,17 @@ public abstract class TileLayer {
 
     protected static final ThreadLocal<ByteArrayResource> WMS_BUFFER2 = new ThreadLocal<ByteArrayResource>();
 
+    /**
+     * Max number of request parameter combinations whose filtered values are cached by each layer
+     */
+    static final int PARAMETERS_CACHE_SIZE = 1000;
+
     // cached default parameter filter values
     protected transient Map<String, String> defaultParameterFilterValues;
 
+    // the parameter filters, ready to be applied to a request
+    private transient volatile ParameterFilterChain parameterFilterChain;
+
     /**
      * Registers a layer listener to be notified of layer events
      * 
@@ -258,6 +268,16 @@ public abstract class TileLayer {
      */
     public abstract int getExpireCache(int zoomLevel);
 
+    /**
+     * Gets for how long tiles older than {@link #getExpireCache(int) the cache expiration} may
+     * still be served while they are refreshed in the background.
+     * 
+     * @return duration in seconds, {@code 0} to refresh expired tiles before serving them
+     */
+    public int getStaleWhileRevalidate() {
+        return 0;
+    }
+
     public abstract List<ParameterFilter> getParameterFilters();
 
     public abstract List<RequestFilter> getRequestFilters();
@@ -492,7 +512,8 @@ public abstract class TileLayer {
      *            keys are parameter names, values are either a single string or an array of strings
      *            as they come form httpservletrequest
      * @return Set of parameter filter keys and values, with keys normalized to upper case, or empty
-     *         map if they match the layer's parameter filters default values
+     *         map if they match the layer's parameter filters default values. The returned map is
+     *         cached and shared among requests, and thus unmodifiable
      * @throws GeoWebCacheException
      *             if {@link ParameterFilter#apply(String)} does
      */
@@ -503,37 +524,104 @@ public abstract class TileLayer {
             return Collections.emptyMap();
         }
 
-        Map<String, String> fullParameters = new HashMap<String, String>();
-
-        final String[] keys = new String[parameterFilters.size()];
-        for (int i = 0; i < parameterFilters.size(); i++) {
-            ParameterFilter parameterFilter = parameterFilters.get(i);
-            keys[i] = parameterFilter.getKey();
+        ParameterFilterChain chain = parameterFilterChain;
+        if (chain == null || !chain.isBuiltFrom(parameterFilters)) {
+            // the filters changed, and so might have their default values
+            defaultParameterFilterValues = null;
+            chain = new ParameterFilterChain(parameterFilters, getDefaultParameterFilters());
+            parameterFilterChain = chain;
         }
 
         final Map<String, String> requestValues;
-        requestValues = ServletUtils.selectedStringsFromMap(map, encoding, keys);
+        requestValues = ServletUtils.selectedStringsFromMap(map, encoding, chain.keys);
 
-        final Map<String, String> defaultValues = getDefaultParameterFilters();
+        final String[] values = new String[chain.keys.length];
+        for (int i = 0; i < values.length; i++) {
+            values[i] = decodeDimensionValue(requestValues.get(chain.upperKeys[i]));
+        }
+        final List<String> valuesKey = Arrays.asList(values);
 
-        for (ParameterFilter parameterFilter : parameterFilters) {
-            String key = parameterFilter.getKey().toUpperCase();
-            String value = requestValues.get(key);
-            value = decodeDimensionValue(value);
+        Map<String, String> fullParameters = chain.cache.getIfPresent(valuesKey);
+        if (fullParameters == null) {
+            fullParameters = chain.apply(values);
+            chain.cache.put(valuesKey, fullParameters);
+        }
+        return fullParameters;
+    }
 
-            String defaultValue = defaultValues.get(key);
-            if (value == null || value.length() == 0
-                    || (defaultValue != null && defaultValue.equals(value))) {
-                fullParameters.put(key, defaultValue);
-            } else {
-                String appliedValue = parameterFilter.apply(value);
-                fullParameters.put(key, appliedValue);
+    /**
+     * The parameter filters of a layer, along with the keys to look up in the requests and a
+     * cache of the most recently used values, so that the filters are run only once for each
+     * parameter values combination. Thread safe, the chain works on copies of the filters and a
+     * new one is built as soon as the layer filters differ from them, whether the list or the
+     * filters themselves were modified
+     */
+    private static class ParameterFilterChain {
+
+        final ParameterFilter[] filters;
+
+        final String[] keys;
+
+        final String[] upperKeys;
+
+        final Map<String, String> defaultValues;
+
+        final Cache<List<String>, Map<String, String>> cache;
+
+        ParameterFilterChain(List<ParameterFilter> parameterFilters,
+                Map<String, String> defaultValues) {
+            this.filters = new ParameterFilter[parameterFilters.size()];
+            for (int i = 0; i < filters.length; i++) {
+                filters[i] = parameterFilters.get(i).clone();
+            }
+            this.keys = new String[filters.length];
+            this.upperKeys = new String[filters.length];
+            for (int i = 0; i < filters.length; i++) {
+                keys[i] = filters[i].getKey();
+                upperKeys[i] = keys[i].toUpperCase();
             }
+            this.defaultValues = defaultValues;
+            this.cache = CacheBuilder.newBuilder().maximumSize(PARAMETERS_CACHE_SIZE).build();
         }
-        if (defaultValues.equals(fullParameters)) {
-            return Collections.emptyMap();
+
+        /**
+         * @return whether the filters are equal, in the same order, to the ones the chain was
+         *         built from
+         */
+        boolean isBuiltFrom(List<ParameterFilter> parameterFilters) {
+            if (filters.length != parameterFilters.size()) {
+                return false;
+            }
+            for (int i = 0; i < filters.length; i++) {
+                if (!filters[i].equals(parameterFilters.get(i))) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        /**
+         * Applies the filters to the decoded request values, in filter order
+         */
+        Map<String, String> apply(String[] values) throws GeoWebCacheException {
+            Map<String, String> fullParameters = new HashMap<String, String>();
+            for (int i = 0; i < filters.length; i++) {
+                String key = upperKeys[i];
+                String value = values[i];
+                String defaultValue = defaultValues.get(key);
+                if (value == null || value.length() == 0
+                        || (defaultValue != null && defaultValue.equals(value))) {
+                    fullParameters.put(key, defaultValue);
+                } else {
+                    String appliedValue = filters[i].apply(value);
+                    fullParameters.put(key, appliedValue);
+                }
+            }
+            if (defaultValues.equals(fullParameters)) {
+                return Collections.emptyMap();
+            }
+            return Collections.unmodifiableMap(fullParameters);
         }
-        return fullParameters;
     }
 
     protected static String decodeDimensionValue(String value) {
@@ -631,16 +719,12 @@ public abstract class TileLayer {
                                 tileProto.getParameters(), resource);
                         tile.setCreated(requestTime);
 
-                        try {
-                            if (tileProto.isMetaTileCacheOnly()) {
-                                tileProto.getStorageBroker().putTransient(tile);
-                            } else {
-                                tileProto.getStorageBroker().put(tile);
-                            }
-                            tileProto.getStorageObject().setCreated(tile.getCreated());
-                        } catch (StorageException e) {
-                            throw new GeoWebCacheException(e);
+                        if (tileProto.isMetaTileCacheOnly()) {
+                            tileProto.getStorageBroker().putTransient(tile);
+                        } else {
+                            tileProto.persist(tile);
                         }
+                        tileProto.getStorageObject().setCreated(tile.getCreated());
                     }
                 } catch (IOException ioe) {
                     log.error("Unable to write image tile to " + "ByteArrayOutputStream: "
@@ -0,0 +1,442 @@
+/**
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package org.geowebcache.layer.wms;
+
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import org.geowebcache.io.ByteArrayResource;
+import org.geowebcache.io.Resource;
+import org.geowebcache.storage.BlobStore;
+import org.geowebcache.storage.BlobStoreListener;
+import org.geowebcache.storage.TileRange;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+
+/**
+ * Remembers the tiles the WMS backend had nothing for, either answering with a {@code 204 No
+ * Content} or with a fully transparent image, so that {@link WMSLayer} serves them without
+ * asking the backend, or the blob store, again.
+ * <p>
+ * Entries are kept per layer, grid set, format, parameters and metatile, each one holding a
+ * bitmap of the empty tiles of the metatile and the time they were found empty, so that the layer
+ * expiration rules still apply. At most {@code maxMetaTiles} entries are kept, the least recently
+ * used ones being dropped first. The blank image is kept once per layer, parameters, format and
+ * tile size, as the layer format options may change its encoding.
+ * Entries are dropped as the blob store reports tiles, grid subsets and layers being deleted,
+ * that is, on truncation, and replaced whenever seeding renders the tiles again. They are kept in
+ * memory only, after a restart each empty metatile is requested once more.
+ * </p>
+ */
+public class EmptyTileCache implements BlobStoreListener {
+
+    /**
+     * Default number of metatiles to remember
+     */
+    public static final int DEFAULT_MAX_META_TILES = 100000;
+
+    private final Cache<MetaTileKey, Entry> metaTiles;
+
+    /**
+     * The metatiling factors last recorded for each layer, to find the entries of the tiles the
+     * blob store reports deleted
+     */
+    private final ConcurrentMap<String, int[]> layerMetaTilingFactors = new ConcurrentHashMap<String, int[]>();
+
+    private final ConcurrentMap<List<Object>, byte[]> blankTiles = new ConcurrentHashMap<List<Object>, byte[]>();
+
+    private static final class LevelKey {
+
+        final String layerName;
+
+        final String gridSetId;
+
+        final String format;
+
+        final String parametersId;
+
+        final long z;
+
+        final int metaX;
+
+        final int metaY;
+
+        LevelKey(String layerName, String gridSetId, String format, String parametersId, long z,
+                int metaX, int metaY) {
+            this.layerName = layerName;
+            this.gridSetId = gridSetId;
+            this.format = format;
+            this.parametersId = parametersId;
+            this.z = z;
+            this.metaX = metaX;
+            this.metaY = metaY;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof LevelKey)) {
+                return false;
+            }
+            LevelKey k = (LevelKey) o;
+            return z == k.z && metaX == k.metaX && metaY == k.metaY
+                    && layerName.equals(k.layerName) && gridSetId.equals(k.gridSetId)
+                    && format.equals(k.format) && equal(parametersId, k.parametersId);
+        }
+
+        @Override
+        public int hashCode() {
+            int h = layerName.hashCode();
+            h = 31 * h + gridSetId.hashCode();
+            h = 31 * h + format.hashCode();
+            h = 31 * h + (parametersId == null ? 0 : parametersId.hashCode());
+            h = 31 * h + metaX;
+            h = 31 * h + metaY;
+            return 31 * h + (int) (z ^ (z >>> 32));
+        }
+    }
+
+    private static final class MetaTileKey {
+
+        final LevelKey level;
+
+        /**
+         * Metatile column and row, packed in a single value
+         */
+        final long position;
+
+        MetaTileKey(LevelKey level, long position) {
+            this.level = level;
+            this.position = position;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof MetaTileKey)) {
+                return false;
+            }
+            MetaTileKey k = (MetaTileKey) o;
+            return position == k.position && level.equals(k.level);
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * level.hashCode() + (int) (position ^ (position >>> 32));
+        }
+    }
+
+    /**
+     * The empty tiles of a metatile, one bit per tile, row by row. Never modified once created
+     */
+    private static final class Entry {
+
+        final long time;
+
+        final long[] bits;
+
+        Entry(long time, long[] bits) {
+            this.time = time;
+            this.bits = bits;
+        }
+
+        boolean get(int bit) {
+            return (bits[bit >>> 6] & (1L << bit)) != 0;
+        }
+
+        Entry with(int bit, boolean set) {
+            long[] newBits = bits.clone();
+            if (set) {
+                newBits[bit >>> 6] |= 1L << bit;
+            } else {
+                newBits[bit >>> 6] &= ~(1L << bit);
+            }
+            return new Entry(time, newBits);
+        }
+
+        int count() {
+            int count = 0;
+            for (long word : bits) {
+                count += Long.bitCount(word);
+            }
+            return count;
+        }
+    }
+
+    public EmptyTileCache() {
+        this(DEFAULT_MAX_META_TILES);
+    }
+
+    /**
+     * @param maxMetaTiles
+     *            number of metatiles to remember at most
+     */
+    public EmptyTileCache(int maxMetaTiles) {
+        this.metaTiles = CacheBuilder.newBuilder().maximumSize(maxMetaTiles).build();
+    }
+
+    /**
+     * Creates the cache, listening to the blob store to forget about deleted tiles
+     */
+    public EmptyTileCache(BlobStore blobStore) {
+        this(blobStore, DEFAULT_MAX_META_TILES);
+    }
+
+    /**
+     * Creates the cache, listening to the blob store to forget about deleted tiles
+     * 
+     * @param maxMetaTiles
+     *            number of metatiles to remember at most
+     */
+    public EmptyTileCache(BlobStore blobStore, int maxMetaTiles) {
+        this(maxMetaTiles);
+        blobStore.addListener(this);
+    }
+
+    /**
+     * @param metaTilingFactors
+     *            the layer metatiling factors, the tiles of a metatile share an entry
+     * @param maxAge
+     *            how long ago the tile may have been found empty, in milliseconds, {@code 0} for
+     *            no limit
+     * @return when the tile was found empty, or {@code -1} if it is not known to be empty
+     */
+    public long getEmptyTime(String layerName, String gridSetId, String format,
+            String parametersId, long[] xyz, int[] metaTilingFactors, long maxAge) {
+        LevelKey level = new LevelKey(layerName, gridSetId, format, parametersId, xyz[2],
+                metaTilingFactors[0], metaTilingFactors[1]);
+        Entry entry = metaTiles.getIfPresent(metaTileKey(level, xyz[0], xyz[1]));
+        if (entry == null || !entry.get(bit(level, xyz[0], xyz[1]))) {
+            return -1;
+        }
+        if (maxAge > 0 && System.currentTimeMillis() - entry.time > maxAge) {
+            return -1;
+        }
+        return entry.time;
+    }
+
+    /**
+     * @return whether the tile is known to be empty
+     * @see #getEmptyTime
+     */
+    public boolean isEmpty(String layerName, String gridSetId, String format,
+            String parametersId, long[] xyz, int[] metaTilingFactors, long maxAge) {
+        return getEmptyTime(layerName, gridSetId, format, parametersId, xyz, metaTilingFactors,
+                maxAge) != -1;
+    }
+
+    /**
+     * Records whether a tile is empty. Recording an empty tile at a different time than the other
+     * tiles of its metatile forgets about them, the entry only keeps the latest time
+     * 
+     * @param metaTilingFactors
+     *            the layer metatiling factors, the tiles of a metatile share an entry
+     * @param time
+     *            when the tile was found empty
+     */
+    public void setEmpty(String layerName, String gridSetId, String format, String parametersId,
+            long[] xyz, int[] metaTilingFactors, boolean empty, long time) {
+        final LevelKey level = new LevelKey(layerName, gridSetId, format, parametersId, xyz[2],
+                metaTilingFactors[0], metaTilingFactors[1]);
+        final MetaTileKey key = metaTileKey(level, xyz[0], xyz[1]);
+        final int bit = bit(level, xyz[0], xyz[1]);
+        final ConcurrentMap<MetaTileKey, Entry> map = metaTiles.asMap();
+        if (empty) {
+            int[] known = layerMetaTilingFactors.get(layerName);
+            if (known == null || known[0] != level.metaX || known[1] != level.metaY) {
+                layerMetaTilingFactors.put(layerName, new int[] { level.metaX, level.metaY });
+            }
+        }
+        while (true) {
+            Entry entry = map.get(key);
+            if (!empty) {
+                if (entry == null || !entry.get(bit)) {
+                    return;
+                }
+                if (replace(map, key, entry, entry.with(bit, false))) {
+                    return;
+                }
+            } else if (entry == null) {
+                Entry created = new Entry(time, new long[(level.metaX * level.metaY + 63) >>> 6])
+                        .with(bit, true);
+                if (map.putIfAbsent(key, created) == null) {
+                    return;
+                }
+            } else if (entry.time > time) {
+                // recorded again meanwhile
+                return;
+            } else if (entry.time == time) {
+                if (entry.get(bit) || map.replace(key, entry, entry.with(bit, true))) {
+                    return;
+                }
+            } else {
+                Entry created = new Entry(time, new long[entry.bits.length]).with(bit, true);
+                if (map.replace(key, entry, created)) {
+                    return;
+                }
+            }
+        }
+    }
+
+    /**
+     * Replaces an entry, removing it once no tile is left
+     */
+    private static boolean replace(ConcurrentMap<MetaTileKey, Entry> map, MetaTileKey key,
+            Entry entry, Entry newEntry) {
+        if (newEntry.count() == 0) {
+            return map.remove(key, entry);
+        }
+        return map.replace(key, entry, newEntry);
+    }
+
+    /**
+     * @return the encoded blank tile, or {@code null} if none was recorded, in which case the
+     *         backend answered {@code 204 No Content}
+     */
+    public Resource getBlankTile(String layerName, String parametersId, String format, int width,
+            int height) {
+        byte[] contents = blankTiles.get(blankTileKey(layerName, parametersId, format, width,
+                height));
+        return contents == null ? null : new ByteArrayResource(contents);
+    }
+
+    /**
+     * Records the encoded blank tile for a layer, parameters, format and tile size, the first one
+     * is kept
+     */
+    public void setBlankTile(String layerName, String parametersId, String format, int width,
+            int height, byte[] contents) {
+        blankTiles.putIfAbsent(blankTileKey(layerName, parametersId, format, width, height),
+                contents);
+    }
+
+    private static List<Object> blankTileKey(String layerName, String parametersId,
+            String format, int width, int height) {
+        return Arrays.<Object> asList(layerName, parametersId, format, width, height);
+    }
+
+    private static MetaTileKey metaTileKey(LevelKey level, long x, long y) {
+        // grid coordinates fit in 32 bits up to zoom level 31
+        return new MetaTileKey(level, ((x / level.metaX) << 32)
+                | ((y / level.metaY) & 0xffffffffL));
+    }
+
+    private static int bit(LevelKey level, long x, long y) {
+        return (int) (y % level.metaY) * level.metaX + (int) (x % level.metaX);
+    }
+
+    /**
+     * @return the number of tiles known to be empty
+     */
+    public long size() {
+        long size = 0;
+        for (Entry entry : metaTiles.asMap().values()) {
+            size += entry.count();
+        }
+        return size;
+    }
+
+    /**
+     * Forgets about the tiles in a range, stored or not. The blob store only reports the deletion
+     * of stored tiles, and the empty ones might not have been stored
+     */
+    public void truncate(TileRange tr) {
+        final String format = tr.getMimeType().getFormat();
+        final ConcurrentMap<MetaTileKey, Entry> map = metaTiles.asMap();
+        for (Map.Entry<MetaTileKey, Entry> mapEntry : map.entrySet()) {
+            final LevelKey level = mapEntry.getKey().level;
+            if (!level.layerName.equals(tr.getLayerName())
+                    || !level.gridSetId.equals(tr.getGridSetId()) || !level.format.equals(format)
+                    || level.z < tr.getZoomStart() || level.z > tr.getZoomStop()
+                    || !equal(level.parametersId, tr.getParametersId())) {
+                continue;
+            }
+            final long position = mapEntry.getKey().position;
+            final long minX = (position >>> 32) * level.metaX;
+            final long minY = (position & 0xffffffffL) * level.metaY;
+            Entry entry = mapEntry.getValue();
+            Entry truncated = entry;
+            for (int y = 0; y < level.metaY; y++) {
+                for (int x = 0; x < level.metaX; x++) {
+                    int bit = y * level.metaX + x;
+                    if (truncated.get(bit) && tr.contains(minX + x, minY + y, (int) level.z)) {
+                        truncated = truncated.with(bit, false);
+                    }
+                }
+            }
+            if (truncated != entry && !replace(map, mapEntry.getKey(), entry, truncated)) {
+                // changed meanwhile, forget about the whole metatile
+                map.remove(mapEntry.getKey());
+            }
+        }
+    }
+
+    private static boolean equal(String a, String b) {
+        return a == null ? b == null : a.equals(b);
+    }
+
+    private void removeLevels(String layerName, String gridSetId) {
+        if (gridSetId == null) {
+            layerMetaTilingFactors.remove(layerName);
+            for (Iterator<List<Object>> it = blankTiles.keySet().iterator(); it.hasNext();) {
+                if (layerName.equals(it.next().get(0))) {
+                    it.remove();
+                }
+            }
+        }
+        for (Iterator<MetaTileKey> it = metaTiles.asMap().keySet().iterator(); it.hasNext();) {
+            LevelKey level = it.next().level;
+            if (level.layerName.equals(layerName)
+                    && (gridSetId == null || level.gridSetId.equals(gridSetId))) {
+                it.remove();
+            }
+        }
+    }
+
+    public void tileStored(String layerName, String gridSetId, String blobFormat,
+            String parametersId, long x, long y, int z, long blobSize) {
+        // the blank tiles are stored too, seeding updates the entries itself
+    }
+
+    public void tileDeleted(String layerName, String gridSetId, String blobFormat,
+            String parametersId, long x, long y, int z, long blobSize) {
+        int[] metaTilingFactors = layerMetaTilingFactors.get(layerName);
+        if (metaTilingFactors != null) {
+            setEmpty(layerName, gridSetId, blobFormat, parametersId, new long[] { x, y, z },
+                    metaTilingFactors, false, 0);
+        }
+    }
+
+    public void tileUpdated(String layerName, String gridSetId, String blobFormat,
+            String parametersId, long x, long y, int z, long blobSize, long oldSize) {
+        // same as tileStored
+    }
+
+    public void layerDeleted(String layerName) {
+        removeLevels(layerName, null);
+    }
+
+    public void layerRenamed(String oldLayerName, String newLayerName) {
+        removeLevels(oldLayerName, null);
+    }
+
+    public void gridSubsetDeleted(String layerName, String gridSetId) {
+        removeLevels(layerName, gridSetId);
+    }
+}
@@ -0,0 +1,109 @@
+/**
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package org.geowebcache.layer.wms;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.geowebcache.conveyor.ConveyorTile;
+import org.springframework.scheduling.concurrent.CustomizableThreadFactory;
+
+/**
+ * Refreshes the stale tiles served by {@link WMSLayer} in the background.
+ * <p>
+ * A tile is queued at most once until its refresh completes. The refresh goes through the
+ * regular seeding path, which checks the cache again once the metatile lock is acquired, so the
+ * other stale tiles of the same metatile, refreshed by the same backend request, aren't rendered
+ * again. When the queue is full further refreshes are dropped, the tiles will be queued again
+ * by the next requests hitting them.
+ * </p>
+ */
+class StaleTileRefresher {
+
+    private static Log log = LogFactory.getLog(StaleTileRefresher.class);
+
+    private static final int MAX_QUEUED = 1000;
+
+    private static final StaleTileRefresher INSTANCE = new StaleTileRefresher();
+
+    private final ConcurrentMap<String, Boolean> pending = new ConcurrentHashMap<String, Boolean>();
+
+    private final ThreadPoolExecutor executor;
+
+    private StaleTileRefresher() {
+        CustomizableThreadFactory tf = new CustomizableThreadFactory("GWC stale tile refresh thread-");
+        tf.setDaemon(true);
+        int threads = Math.max(1, Runtime.getRuntime().availableProcessors() / 2);
+        executor = new ThreadPoolExecutor(threads, threads, 0L, TimeUnit.MILLISECONDS,
+                new LinkedBlockingQueue<Runnable>(MAX_QUEUED), tf);
+    }
+
+    static StaleTileRefresher getInstance() {
+        return INSTANCE;
+    }
+
+    /**
+     * Queues the refresh of a tile, unless it's queued already
+     *
+     * @param key
+     *            the tile key, used to tell if it's already queued
+     * @param layer
+     *            the layer to render the tile with
+     * @param stale
+     *            the stale tile served to the client
+     */
+    void refresh(final String key, final WMSLayer layer, ConveyorTile stale) {
+        if (pending.putIfAbsent(key, Boolean.TRUE) != null) {
+            return;
+        }
+        // the request the stale tile came with is answered meanwhile, don't hold on to it
+        final ConveyorTile tile = new ConveyorTile(stale.getStorageBroker(), stale.getLayerId(),
+                stale.getGridSetId(), stale.getTileIndex(), stale.getMimeType(),
+                stale.getFullParameters(), null, null);
+        tile.setTileLayer(layer);
+        try {
+            executor.execute(new Runnable() {
+                public void run() {
+                    try {
+                        layer.seedTile(tile, true);
+                    } catch (Exception e) {
+                        log.warn("Unable to refresh stale tile " + key + ": " + e.getMessage());
+                    } finally {
+                        pending.remove(key);
+                    }
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            pending.remove(key);
+            if (log.isDebugEnabled()) {
+                log.debug("Refresh queue full, not refreshing " + key);
+            }
+        }
+    }
+
+    /**
+     * @return the number of tiles queued or being refreshed
+     */
+    int getPending() {
+        return pending.size();
+    }
+}
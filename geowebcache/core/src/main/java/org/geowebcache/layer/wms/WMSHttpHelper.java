@@ -23,10 +23,13 @@ import java.net.MalformedURLException;
 import java.net.URL;
 import java.nio.channels.Channels;
 import java.nio.channels.ReadableByteChannel;
+import java.util.HashMap;
 import java.util.Map;
 
+import org.apache.commons.httpclient.Header;
 import org.apache.commons.httpclient.HttpClient;
 import org.apache.commons.httpclient.HttpException;
+import org.apache.commons.httpclient.HttpStatus;
 import org.apache.commons.httpclient.NameValuePair;
 import org.apache.commons.httpclient.methods.GetMethod;
 import org.apache.commons.io.IOUtils;
@@ -124,6 +127,11 @@ public class WMSHttpHelper extends WMSSourceHelper {
             }
 
             backendTries++;
+            if (tileRespRecv.getStatus() == HttpStatus.SC_NOT_MODIFIED
+                    || tileRespRecv.getStatus() == HttpStatus.SC_NO_CONTENT) {
+                // the cached tiles are still good, or there is nothing to draw: no body
+                return;
+            }
         }
 
         if (target.getSize() == 0) {
@@ -160,9 +168,21 @@ public class WMSHttpHelper extends WMSSourceHelper {
         final int responseCode;
         final int responseLength;
 
+        // revalidate the metatile if the validators of the cached tiles are known
+        WMSMetaTile metaTile = null;
+        Map<String, String> headers = null;
+        if (tileRespRecv instanceof WMSMetaTile) {
+            metaTile = (WMSMetaTile) tileRespRecv;
+            headers = getConditionalHeaders(metaTile);
+        }
+
         try { // finally
             try {
-                getMethod = executeRequest(wmsBackendUrl, wmsParams, backendTimeout);
+                if (headers == null) {
+                    getMethod = executeRequest(wmsBackendUrl, wmsParams, backendTimeout);
+                } else {
+                    getMethod = executeRequest(wmsBackendUrl, wmsParams, backendTimeout, headers);
+                }
                 responseCode = getMethod.getStatusCode();
                 responseLength = (int) getMethod.getResponseContentLength();
 
@@ -176,6 +196,9 @@ public class WMSHttpHelper extends WMSSourceHelper {
             }
             // Check that the response code is okay
             tileRespRecv.setStatus(responseCode);
+            if (responseCode == HttpStatus.SC_NOT_MODIFIED && headers != null) {
+                return;
+            }
             if (responseCode != 200 && responseCode != 204) {
                 tileRespRecv.setError();
                 throw new ServiceException("Unexpected response code from backend: " + responseCode
@@ -183,7 +206,7 @@ public class WMSHttpHelper extends WMSSourceHelper {
             }
 
             // Check that we're not getting an error MIME back.
-            String responseMime = getMethod.getResponseHeader("Content-Type").getValue();
+            String responseMime = getHeaderValue(getMethod, "Content-Type");
             if (responseCode != 204 && responseMime != null
                     && !mimeStringCheck(requestMime, responseMime)) {
                 String message = null;
@@ -220,6 +243,11 @@ public class WMSHttpHelper extends WMSSourceHelper {
                 log.warn(msg);
             }
 
+            if (metaTile != null) {
+                metaTile.setETag(getHeaderValue(getMethod, "ETag"));
+                metaTile.setLastModified(getHeaderValue(getMethod, "Last-Modified"));
+            }
+
             // Everything looks okay, try to save expiration
             if (tileRespRecv.getExpiresHeader() == GWCVars.CACHE_USE_WMS_BACKEND_VALUE) {
                 String expireValue = getMethod.getResponseHeader("Expires").getValue();
@@ -268,6 +296,26 @@ public class WMSHttpHelper extends WMSSourceHelper {
         }
     }
 
+    private static Map<String, String> getConditionalHeaders(WMSMetaTile metaTile) {
+        if (metaTile.getETag() == null && metaTile.getLastModified() == null) {
+            return null;
+        }
+        Map<String, String> headers = new HashMap<String, String>();
+        if (metaTile.getETag() != null) {
+            headers.put("If-None-Match", metaTile.getETag());
+        }
+        if (metaTile.getLastModified() != null) {
+            // sent back as is, as recommended by RFC 2616
+            headers.put("If-Modified-Since", metaTile.getLastModified());
+        }
+        return headers;
+    }
+
+    private static String getHeaderValue(GetMethod getMethod, String name) {
+        Header header = getMethod.getResponseHeader(name);
+        return header == null ? null : header.getValue();
+    }
+
     /**
      * sets up a HTTP GET request to a URL and configures authentication.
      * 
@@ -283,6 +331,18 @@ public class WMSHttpHelper extends WMSSourceHelper {
      */
     public GetMethod executeRequest(final URL url, final Map<String, String> queryParams,
             final Integer backendTimeout) throws HttpException, IOException {
+        return executeRequest(url, queryParams, backendTimeout, null);
+    }
+
+    /**
+     * Same as {@link #executeRequest(URL, Map, Integer)}, sending additional request headers
+     * 
+     * @param headers
+     *            the request headers, may be {@code null}
+     */
+    public GetMethod executeRequest(final URL url, final Map<String, String> queryParams,
+            final Integer backendTimeout, final Map<String, String> headers)
+            throws HttpException, IOException {
         // grab the client
         HttpClient httpClient = getHttpClient();
         
@@ -297,6 +357,11 @@ public class WMSHttpHelper extends WMSSourceHelper {
             }
             getMethod.setQueryString(params);
         }
+        if (headers != null) {
+            for (Map.Entry<String, String> e : headers.entrySet()) {
+                getMethod.setRequestHeader(e.getKey(), e.getValue());
+            }
+        }
         getMethod.setDoAuthentication(doAuthentication);
 
         // fire!
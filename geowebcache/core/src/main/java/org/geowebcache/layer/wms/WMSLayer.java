@@ -17,6 +17,11 @@
 
 package org.geowebcache.layer.wms;
 
+import java.awt.Graphics2D;
+import java.awt.RenderingHints;
+import java.awt.geom.AffineTransform;
+import java.awt.image.BufferedImage;
+import java.awt.image.RenderedImage;
 import java.io.IOException;
 import java.io.InputStream;
 import java.net.URL;
@@ -26,8 +31,10 @@ import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 
+import javax.imageio.ImageIO;
 import javax.servlet.http.HttpServletResponse;
 
+import org.apache.commons.httpclient.HttpStatus;
 import org.apache.commons.httpclient.methods.GetMethod;
 import org.apache.commons.io.IOUtils;
 import org.apache.commons.logging.Log;
@@ -47,15 +54,25 @@ import org.geowebcache.io.ByteArrayResource;
 import org.geowebcache.io.Resource;
 import org.geowebcache.layer.AbstractTileLayer;
 import org.geowebcache.layer.ExpirationRule;
+import org.geowebcache.layer.MetaTile;
 import org.geowebcache.layer.ProxyLayer;
 import org.geowebcache.layer.meta.LayerMetaInformation;
 import org.geowebcache.layer.meta.MetadataURL;
 import org.geowebcache.locks.LockProvider;
 import org.geowebcache.locks.LockProvider.Lock;
 import org.geowebcache.mime.FormatModifier;
+import org.geowebcache.mime.ImageMime;
+import org.geowebcache.mime.MimeException;
 import org.geowebcache.mime.MimeType;
 import org.geowebcache.mime.XMLMime;
+import org.geowebcache.storage.StorageBroker;
+import org.geowebcache.storage.StorageException;
+import org.geowebcache.storage.TileObject;
 import org.geowebcache.util.GWCVars;
+import org.geowebcache.util.ServletUtils;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
 
 /**
  * A tile layer backed by a WMS server
@@ -106,6 +123,12 @@ public class WMSLayer extends AbstractTileLayer implements ProxyLayer {
 
     private Integer concurrency;
 
+    private String masterFormat;
+
+    private Integer overzoomLevel;
+
+    private Boolean cacheOverzoomedTiles;
+
     // private transient int expireCacheInt = -1;
 
     // private transient int expireClientsInt = -1;
@@ -118,6 +141,24 @@ public class WMSLayer extends AbstractTileLayer implements ProxyLayer {
 
     private transient LockProvider lockProvider;
 
+    private transient EmptyTileCache emptyTileCache;
+
+    private transient MimeType masterMime;
+
+    /**
+     * Backend {@code ETag} and {@code Last-Modified} values of the cached metatiles, by metatile
+     * lock key. Kept in memory only, the first refresh after a restart fetches the metatiles
+     * in full
+     */
+    private static final Cache<String, String[]> BACKEND_VALIDATORS = CacheBuilder.newBuilder()
+            .maximumSize(100000).build();
+
+    /**
+     * Tiles transcoded from the master format, by tile key and creation time of the master tile
+     */
+    private static final Cache<String, byte[]> DERIVED_TILES = CacheBuilder.newBuilder()
+            .maximumSize(1000).build();
+
     WMSLayer() {
         //default constructor for XStream
     }
@@ -239,6 +280,20 @@ public class WMSLayer extends AbstractTileLayer implements ProxyLayer {
             gutter = Integer.valueOf(0);
         }
 
+        masterMime = null;
+        if (masterFormat != null) {
+            try {
+                masterMime = MimeType.createFromFormat(masterFormat);
+            } catch (MimeException e) {
+                log.error(e.getMessage());
+            }
+            if (masterMime != null && !formats.contains(masterMime)) {
+                log.error("The master format " + masterFormat + " of layer " + name
+                        + " is not one of its formats, ignoring it");
+                masterMime = null;
+            }
+        }
+
         if (this.requestFilters != null) {
             Iterator<RequestFilter> iter = requestFilters.iterator();
             while (iter.hasNext()) {
@@ -296,7 +351,17 @@ public class WMSLayer extends AbstractTileLayer implements ProxyLayer {
 
         tile.setMetaTileCacheOnly(!gridSubset.shouldCacheAtZoom(gridLoc[2]));
         try {
-            if (tryCacheFetch(tile)) {
+            if (isDerived(mime)) {
+                returnTile = getDerivedTile(tile);
+            } else if (isOverzoomed(tile)) {
+                returnTile = getOverzoomedTile(tile, true);
+            } else if (tryEmptyTileFetch(tile)) {
+                returnTile = finalizeTile(tile);
+            } else if (tryCacheFetch(tile, true)) {
+                if (tile.isStale()) {
+                    // serve it right away, and have it rendered again in the background
+                    StaleTileRefresher.getInstance().refresh(buildLockKey(tile, null), this, tile);
+                }
                 returnTile = finalizeTile(tile);
             } else if (mime.supportsTiling()) { // Okay, so we need to go to the backend
                 returnTile = getMetatilingReponse(tile, true);
@@ -317,10 +382,24 @@ public class WMSLayer extends AbstractTileLayer implements ProxyLayer {
      */
     public void seedTile(ConveyorTile tile, boolean tryCache) throws GeoWebCacheException,
             IOException {
+        if (isDerived(tile.getMimeType())) {
+            // only the master tiles are stored
+            seedTile(masterTile(tile), tryCache);
+            return;
+        }
+        if (isOverzoomed(tile)) {
+            // nothing to render, the tiles are only made here if they are to be stored
+            if (cacheOverzoomedTiles != null && cacheOverzoomedTiles.booleanValue()) {
+                seedOverzoomedTiles(tile, tryCache);
+            }
+            return;
+        }
         GridSubset gridSubset = getGridSubset(tile.getGridSetId());
         if (gridSubset.shouldCacheAtZoom(tile.getTileIndex()[2])) {
+            // the mixed format tiles are always encoded by the metatile slicer
             if (tile.getMimeType().supportsTiling()
-                    && (metaWidthHeight[0] > 1 || metaWidthHeight[1] > 1)) {
+                    && (metaWidthHeight[0] > 1 || metaWidthHeight[1] > 1
+                            || tile.getMimeType() == ImageMime.jpeg_png)) {
                 getMetatilingReponse(tile, tryCache);
             } else {
                 getNonMetatilingReponse(tile, tryCache);
@@ -328,6 +407,197 @@ public class WMSLayer extends AbstractTileLayer implements ProxyLayer {
         }
     }
 
+    /**
+     * @return whether tiles in the given format are transcoded from the master format rather
+     *         than requested from the backend
+     */
+    private boolean isDerived(MimeType mime) {
+        return masterMime != null && mime != masterMime && mime instanceof ImageMime
+                && mime.supportsTiling();
+    }
+
+    private ConveyorTile masterTile(ConveyorTile tile) {
+        ConveyorTile master = new ConveyorTile(tile.getStorageBroker(), tile.getLayerId(),
+                tile.getGridSetId(), tile.getTileIndex(), masterMime, tile.getFullParameters(),
+                null, null);
+        master.setTileLayer(this);
+        return master;
+    }
+
+    /**
+     * Serves a tile in a derived format, decoding the master tile, fetched or rendered as usual,
+     * and encoding it again. The results are kept in a bounded in memory cache, keyed by the
+     * creation time of the master tile so that they follow it when it's rendered again
+     */
+    private ConveyorTile getDerivedTile(ConveyorTile tile) throws GeoWebCacheException,
+            IOException {
+        ConveyorTile master = getTile(masterTile(tile));
+        tile.setCacheResult(master.getCacheResult());
+        tile.getStorageObject().setCreated(master.getTSCreated());
+        Resource masterBlob = master.getBlob();
+        if (master.getStatus() == HttpStatus.SC_NO_CONTENT || masterBlob == null
+                || masterBlob.getSize() == 0) {
+            tile.setStatus(master.getStatus());
+            tile.setBlob(new ByteArrayResource(new byte[0]));
+            return finalizeTile(tile);
+        }
+
+        final long[] gridLoc = tile.getTileIndex();
+        final MimeType mime = tile.getMimeType();
+        final String key = name + "_" + tile.getGridSetId() + "_" + tile.getParametersId() + "_"
+                + gridLoc[0] + "_" + gridLoc[1] + "_" + gridLoc[2] + "_" + mime.getFormat() + "_"
+                + master.getTSCreated();
+        byte[] contents = DERIVED_TILES.getIfPresent(key);
+        if (contents == null) {
+            contents = encodeTile(tile, decodeTile(master));
+            DERIVED_TILES.put(key, contents);
+        }
+        tile.setBlob(new ByteArrayResource(contents));
+        return finalizeTile(tile);
+    }
+
+    private BufferedImage decodeTile(ConveyorTile tile) throws GeoWebCacheException, IOException {
+        InputStream in = tile.getBlob().getInputStream();
+        BufferedImage image;
+        try {
+            image = ImageIO.read(in);
+        } finally {
+            in.close();
+        }
+        if (image == null) {
+            throw new GeoWebCacheException("Unable to decode " + tile);
+        }
+        return image;
+    }
+
+    /**
+     * Encodes a tile sized image in the format of the tile, the way the metatiles are sliced
+     */
+    private byte[] encodeTile(ConveyorTile tile, RenderedImage image) throws GeoWebCacheException,
+            IOException {
+        final MimeType mime = tile.getMimeType();
+        MetaTile metaTile = new MetaTile(getGridSubset(tile.getGridSetId()), mime,
+                getFormatModifier(mime), tile.getTileIndex(), 1, 1, 0);
+        metaTile.setImage(image);
+        ByteArrayResource target = new ByteArrayResource();
+        try {
+            metaTile.writeTileToStream(0, target);
+        } finally {
+            metaTile.dispose();
+        }
+        byte[] contents = target.getContents();
+        if (contents == null) {
+            throw new GeoWebCacheException("Unable to encode " + tile);
+        }
+        return contents;
+    }
+
+    /**
+     * @return whether the tile is past the overzoom level, and made out of its ancestor there
+     */
+    private boolean isOverzoomed(ConveyorTile tile) {
+        return overzoomLevel != null && tile.getTileIndex()[2] > overzoomLevel.intValue()
+                && tile.getMimeType() instanceof ImageMime && tile.getMimeType().supportsTiling();
+    }
+
+    /**
+     * Seeds the overzoomed tiles of the metatile holding the given tile, as seeding goes through
+     * one location per metatile
+     */
+    private void seedOverzoomedTiles(ConveyorTile tile, boolean tryCache)
+            throws GeoWebCacheException, IOException {
+        final GridSubset gridSubset = getGridSubset(tile.getGridSetId());
+        final long[] gridLoc = tile.getTileIndex();
+        final int[] metaTilingFactors = getMetaTilingFactors();
+        final long minX = gridLoc[0] - gridLoc[0] % metaTilingFactors[0];
+        final long minY = gridLoc[1] - gridLoc[1] % metaTilingFactors[1];
+        for (long y = minY; y < minY + metaTilingFactors[1]; y++) {
+            for (long x = minX; x < minX + metaTilingFactors[0]; x++) {
+                long[] index = { x, y, gridLoc[2] };
+                if (!gridSubset.covers(index)) {
+                    continue;
+                }
+                ConveyorTile overzoomed = new ConveyorTile(tile.getStorageBroker(),
+                        tile.getLayerId(), tile.getGridSetId(), index, tile.getMimeType(),
+                        tile.getFullParameters(), null, null);
+                overzoomed.setTileLayer(this);
+                getOverzoomedTile(overzoomed, tryCache);
+            }
+        }
+    }
+
+    /**
+     * Serves a tile past the overzoom level by cropping its ancestor at that level, fetched or
+     * rendered as usual, and scaling it up. The result is stored only if
+     * {@code cacheOverzoomedTiles} is set
+     * 
+     * @param tryCache
+     *            whether to serve the stored tile if any, or make it again
+     */
+    private ConveyorTile getOverzoomedTile(ConveyorTile tile, boolean tryCache)
+            throws GeoWebCacheException, IOException {
+        final GridSubset gridSubset = getGridSubset(tile.getGridSetId());
+        final boolean cache = cacheOverzoomedTiles != null && cacheOverzoomedTiles.booleanValue()
+                && gridSubset.shouldCacheAtZoom(tile.getTileIndex()[2]);
+        if (cache && tryCache && tryCacheFetch(tile)) {
+            return finalizeTile(tile);
+        }
+
+        // the ancestor is the tile holding the center of this one
+        final BoundingBox bounds = gridSubset.boundsFromIndex(tile.getTileIndex());
+        final double centerX = (bounds.getMinX() + bounds.getMaxX()) / 2;
+        final double centerY = (bounds.getMinY() + bounds.getMaxY()) / 2;
+        final int level = overzoomLevel.intValue();
+        long[] rectangle = gridSubset.getCoverageIntersection(level, new BoundingBox(centerX,
+                centerY, centerX, centerY));
+        long[] ancestorIndex = { rectangle[0], rectangle[1], level };
+        BoundingBox ancestorBounds = gridSubset.boundsFromIndex(ancestorIndex);
+        if (centerX < ancestorBounds.getMinX() || centerX > ancestorBounds.getMaxX()
+                || centerY < ancestorBounds.getMinY() || centerY > ancestorBounds.getMaxY()) {
+            throw new OutsideCoverageException(ancestorIndex, gridSubset.getCoverage(level));
+        }
+
+        ConveyorTile ancestor = new ConveyorTile(tile.getStorageBroker(), tile.getLayerId(),
+                tile.getGridSetId(), ancestorIndex, tile.getMimeType(),
+                tile.getFullParameters(), null, null);
+        ancestor.setTileLayer(this);
+        ancestor = getTile(ancestor);
+        tile.setCacheResult(ancestor.getCacheResult());
+        tile.getStorageObject().setCreated(ancestor.getTSCreated());
+        Resource ancestorBlob = ancestor.getBlob();
+        if (ancestor.getStatus() == HttpStatus.SC_NO_CONTENT || ancestorBlob == null
+                || ancestorBlob.getSize() == 0) {
+            tile.setStatus(ancestor.getStatus());
+            tile.setBlob(new ByteArrayResource(new byte[0]));
+            return finalizeTile(tile);
+        }
+
+        final BufferedImage source = decodeTile(ancestor);
+        final int width = gridSubset.getTileWidth();
+        final int height = gridSubset.getTileHeight();
+        final double scaleX = source.getWidth() / ancestorBounds.getWidth();
+        final double scaleY = source.getHeight() / ancestorBounds.getHeight();
+        BufferedImage image = new BufferedImage(width, height, source.getColorModel()
+                .hasAlpha() ? BufferedImage.TYPE_INT_ARGB : BufferedImage.TYPE_INT_RGB);
+        Graphics2D graphics = image.createGraphics();
+        try {
+            graphics.setRenderingHint(RenderingHints.KEY_INTERPOLATION,
+                    RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+            AffineTransform transform = AffineTransform.getScaleInstance(width
+                    / (bounds.getWidth() * scaleX), height / (bounds.getHeight() * scaleY));
+            transform.translate(-(bounds.getMinX() - ancestorBounds.getMinX()) * scaleX,
+                    -(ancestorBounds.getMaxY() - bounds.getMaxY()) * scaleY);
+            graphics.drawRenderedImage(source, transform);
+        } finally {
+            graphics.dispose();
+        }
+        tile.setBlob(new ByteArrayResource(encodeTile(tile, image)));
+        if (cache) {
+            tile.persist();
+        }
+        return finalizeTile(tile);
+    }
+
     /**
      * Metatiling request forwarding
      * 
@@ -384,9 +654,28 @@ public class WMSLayer extends AbstractTileLayer implements ProxyLayer {
             if (saveExpirationHeaders) {
                 metaTile.setExpiresHeader(GWCVars.CACHE_USE_WMS_BACKEND_VALUE);
             }
+            // Revalidate the cached tiles instead of fetching them again, if possible
+            final boolean revalidate = !tile.isMetaTileCacheOnly()
+                    && getExpireCache((int) gridLoc[2]) != GWCVars.CACHE_DISABLE_CACHE;
+            String[] validators = revalidate ? BACKEND_VALIDATORS.getIfPresent(metaKey) : null;
+            if (validators != null) {
+                metaTile.setETag(validators[0]);
+                metaTile.setLastModified(validators[1]);
+            }
             long requestTime = System.currentTimeMillis();
             sourceHelper.makeRequest(metaTile, buffer);
 
+            if (metaTile.isNotModified()) {
+                if (touchTiles(metaTile, tile, requestTime)) {
+                    return finalizeTile(tile);
+                }
+                // some of the tiles are gone, get the whole metatile again
+                BACKEND_VALIDATORS.invalidate(metaKey);
+                metaTile.setETag(null);
+                metaTile.setLastModified(null);
+                sourceHelper.makeRequest(metaTile, buffer);
+            }
+
             if (metaTile.getError()) {
                 throw new GeoWebCacheException("Empty metatile, error message: "
                         + metaTile.getErrorMessage());
@@ -397,10 +686,37 @@ public class WMSLayer extends AbstractTileLayer implements ProxyLayer {
                 saveExpirationInformation((int) (tile.getExpiresHeader() / 1000));
             }
 
-            metaTile.setImageBytes(buffer);
+            final boolean empty;
+            if (metaTile.getStatus() == HttpStatus.SC_NO_CONTENT) {
+                if (emptyTileCache == null || !(mimeType instanceof ImageMime)
+                        || !((ImageMime) mimeType).supportsAlphaChannel()
+                        && !((ImageMime) mimeType).supportsAlphaBit()) {
+                    throw new GeoWebCacheException("Empty metatile, the backend returned no content");
+                }
+                // nothing to draw, cut the metatile out of a transparent image
+                metaTile.setImage(new BufferedImage(metaTile.getMetaTileWidth(), metaTile
+                        .getMetaTileHeight(), BufferedImage.TYPE_INT_ARGB));
+                empty = true;
+            } else {
+                metaTile.setImageBytes(buffer);
+                empty = emptyTileCache != null && metaTile.isTransparent();
+            }
 
             saveTiles(metaTile, tile, requestTime);
 
+            if (emptyTileCache != null) {
+                recordEmptyTiles(metaTile, tile, empty, requestTime);
+            }
+
+            if (revalidate) {
+                if (metaTile.getETag() != null || metaTile.getLastModified() != null) {
+                    BACKEND_VALIDATORS.put(metaKey, new String[] { metaTile.getETag(),
+                            metaTile.getLastModified() });
+                } else {
+                    BACKEND_VALIDATORS.invalidate(metaKey);
+                }
+            }
+
             /** ****************** Return lock and response ****** */
         } finally {
             if(lock != null) {
@@ -411,6 +727,105 @@ public class WMSLayer extends AbstractTileLayer implements ProxyLayer {
         return finalizeTile(tile);
     }
 
+    /**
+     * Marks the tiles of a metatile the backend reported as not modified as created at the given
+     * time, and loads the requested one
+     * 
+     * @return {@code false} if some of the tiles are not stored, and the metatile has to be
+     *         fetched again
+     */
+    private boolean touchTiles(WMSMetaTile metaTile, ConveyorTile tile, long requestTime)
+            throws GeoWebCacheException {
+        final GridSubset gridSubset = getGridSubset(tile.getGridSetId());
+        final StorageBroker storageBroker = tile.getStorageBroker();
+        try {
+            for (long[] gridPos : metaTile.getTilesGridPositions()) {
+                if (!gridSubset.covers(gridPos)) {
+                    // edge tile outside coverage, never stored
+                    continue;
+                }
+                long[] idx = { gridPos[0], gridPos[1], gridPos[2] };
+                TileObject obj = TileObject.createQueryTileObject(getName(), idx,
+                        tile.getGridSetId(), tile.getMimeType().getFormat(), tile.getParameters());
+                obj.setCreated(requestTime);
+                // a differential reseed leaves unchanged tiles alone, creation time included
+                boolean stored = tile.isSkipUnchanged() ? storageBroker.get(obj) : storageBroker
+                        .touch(obj);
+                if (!stored) {
+                    return false;
+                }
+            }
+        } catch (StorageException e) {
+            throw new GeoWebCacheException(e);
+        }
+        if (!tile.retrieve(0)) {
+            return false;
+        }
+        tile.setCacheResult(CacheResult.MISS);
+        return true;
+    }
+
+    /**
+     * Serves the tile from the {@link EmptyTileCache}, if known to be empty and not expired
+     * 
+     * @return whether the tile was served
+     */
+    private boolean tryEmptyTileFetch(ConveyorTile tile) {
+        if (emptyTileCache == null) {
+            return false;
+        }
+        final long[] gridLoc = tile.getTileIndex();
+        final int expireCache = getExpireCache((int) gridLoc[2]);
+        if (expireCache == GWCVars.CACHE_DISABLE_CACHE) {
+            return false;
+        }
+        final String format = tile.getMimeType().getFormat();
+        final long maxAge = expireCache > 0 ? expireCache * 1000L : 0;
+        final long emptyTime = emptyTileCache.getEmptyTime(getName(), tile.getGridSetId(),
+                format, tile.getParametersId(), gridLoc, getMetaTilingFactors(), maxAge);
+        if (emptyTime == -1) {
+            return false;
+        }
+        final GridSubset gridSubset = getGridSubset(tile.getGridSetId());
+        Resource blank = emptyTileCache.getBlankTile(getName(), tile.getParametersId(), format,
+                gridSubset.getTileWidth(), gridSubset.getTileHeight());
+        if (blank == null) {
+            tile.setBlob(new ByteArrayResource());
+            tile.setStatus(HttpStatus.SC_NO_CONTENT);
+        } else {
+            tile.setBlob(blank);
+        }
+        tile.getStorageObject().setCreated(emptyTime);
+        tile.setCacheResult(CacheResult.HIT);
+        return true;
+    }
+
+    /**
+     * Records whether the tiles of a metatile just rendered are empty, along with the encoded
+     * blank tile
+     */
+    private void recordEmptyTiles(WMSMetaTile metaTile, ConveyorTile tile, boolean empty,
+            long requestTime) {
+        final GridSubset gridSubset = getGridSubset(tile.getGridSetId());
+        final String format = tile.getMimeType().getFormat();
+        for (long[] gridPos : metaTile.getTilesGridPositions()) {
+            if (gridSubset.covers(gridPos)) {
+                emptyTileCache.setEmpty(getName(), tile.getGridSetId(), format,
+                        tile.getParametersId(), gridPos, getMetaTilingFactors(), empty,
+                        requestTime);
+            }
+        }
+        Resource blob = tile.getBlob();
+        if (empty && blob instanceof ByteArrayResource && blob.getSize() > 0) {
+            // the tile blob is a reused buffer, keep a copy
+            byte[] contents = new byte[(int) blob.getSize()];
+            System.arraycopy(((ByteArrayResource) blob).getContents(), 0, contents, 0,
+                    contents.length);
+            emptyTileCache.setBlankTile(getName(), tile.getParametersId(), format,
+                    gridSubset.getTileWidth(), gridSubset.getTileHeight(), contents);
+        }
+    }
+
     private String buildLockKey(ConveyorTile tile, WMSMetaTile metaTile) {
         StringBuilder metaKey = new StringBuilder();
         
@@ -472,6 +887,16 @@ public class WMSLayer extends AbstractTileLayer implements ProxyLayer {
 
             tile = doNonMetatilingRequest(tile);
 
+            if (tile.getStatus() == HttpStatus.SC_NO_CONTENT) {
+                // nothing to store, don't ask again until the tile expires
+                if (emptyTileCache != null) {
+                    emptyTileCache.setEmpty(getName(), tile.getGridSetId(), tile.getMimeType()
+                            .getFormat(), tile.getParametersId(), gridLoc,
+                            getMetaTilingFactors(), true, System.currentTimeMillis());
+                }
+                return finalizeTile(tile);
+            }
+
             if (tile.getStatus() > 299
                     || this.getExpireCache((int) gridLoc[2]) != GWCVars.CACHE_DISABLE_CACHE) {
                 tile.persist();
@@ -492,10 +917,20 @@ public class WMSLayer extends AbstractTileLayer implements ProxyLayer {
     }
 
     public boolean tryCacheFetch(ConveyorTile tile) {
+        return tryCacheFetch(tile, false);
+    }
+
+    /**
+     * @param allowStale
+     *            whether expired tiles still within the {@link #getStaleWhileRevalidate()
+     *            stale-while-revalidate} period may be returned
+     */
+    private boolean tryCacheFetch(ConveyorTile tile, boolean allowStale) {
         int expireCache = this.getExpireCache((int) tile.getTileIndex()[2]);
         if (expireCache != GWCVars.CACHE_DISABLE_CACHE) {
+            long staleMaxAge = allowStale ? getStaleWhileRevalidate() * 1000L : 0;
             try {
-                return tile.retrieve(expireCache * 1000L);
+                return tile.retrieve(expireCache * 1000L, staleMaxAge);
             } catch (GeoWebCacheException gwce) {
                 log.error(gwce.getMessage());
                 tile.setErrorMsg(gwce.getMessage());
@@ -511,6 +946,11 @@ public class WMSLayer extends AbstractTileLayer implements ProxyLayer {
         ByteArrayResource buffer = getImageBuffer(WMS_BUFFER);
         sourceHelper.makeRequest(tile, buffer);
 
+        if (tile.getStatus() == HttpStatus.SC_NO_CONTENT) {
+            tile.setBlob(new ByteArrayResource());
+            return tile;
+        }
+
         if (tile.getError() || buffer.getSize() == 0) {
             throw new GeoWebCacheException("Empty tile, error message: " + tile.getErrorMessage());
         }
@@ -526,6 +966,12 @@ public class WMSLayer extends AbstractTileLayer implements ProxyLayer {
 
         if (tile.servletResp != null) {
             setExpirationHeader(tile.servletResp, (int) tile.getTileIndex()[2]);
+            if (tile.isStale()) {
+                // a fresh copy is on its way, clients shouldn't hold on to this one
+                tile.servletResp.setHeader("Cache-Control", "no-cache");
+                tile.servletResp.setHeader("Expires", ServletUtils.makeExpiresHeader(0));
+                tile.servletResp.setHeader("Warning", "110 - \"Response is stale\"");
+            }
         }
 
         return tile;
@@ -807,6 +1253,55 @@ public class WMSLayer extends AbstractTileLayer implements ProxyLayer {
         this.lockProvider = lockProvider;
     }
 
+    /**
+     * @return the cache of the tiles known to be empty, or {@code null} if not in use
+     */
+    public EmptyTileCache getEmptyTileCache() {
+        return emptyTileCache;
+    }
+
+    public void setEmptyTileCache(EmptyTileCache emptyTileCache) {
+        this.emptyTileCache = emptyTileCache;
+    }
+
+    /**
+     * @return the lossless format the tiles are rendered and stored in, the other image formats
+     *         of the layer being transcoded from it on demand, or {@code null} if each format is
+     *         rendered and stored on its own
+     */
+    public String getMasterFormat() {
+        return masterFormat;
+    }
+
+    public void setMasterFormat(String masterFormat) {
+        this.masterFormat = masterFormat;
+    }
+
+    /**
+     * @return the deepest zoom level requested from the backend, the tiles past it being
+     *         upsampled from their ancestor at this level, or {@code null} if there's no such
+     *         level
+     */
+    public Integer getOverzoomLevel() {
+        return overzoomLevel;
+    }
+
+    public void setOverzoomLevel(Integer overzoomLevel) {
+        this.overzoomLevel = overzoomLevel;
+    }
+
+    /**
+     * @return whether the upsampled tiles past the overzoom level are stored, rather than made
+     *         again on each request
+     */
+    public Boolean getCacheOverzoomedTiles() {
+        return cacheOverzoomedTiles;
+    }
+
+    public void setCacheOverzoomedTiles(Boolean cacheOverzoomedTiles) {
+        this.cacheOverzoomedTiles = cacheOverzoomedTiles;
+    }
+
     public void proxyRequest(ConveyorTile tile) throws GeoWebCacheException {
         String queryStr = tile.servletReq.getQueryString();
         String serverStr = getWMSurl()[0];
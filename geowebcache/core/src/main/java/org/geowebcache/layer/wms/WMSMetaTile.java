@@ -19,6 +19,7 @@ package org.geowebcache.layer.wms;
 
 import java.util.Map;
 
+import org.apache.commons.httpclient.HttpStatus;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import org.geowebcache.GeoWebCacheException;
@@ -36,6 +37,10 @@ public class WMSMetaTile extends MetaTile {
 
     protected Map<String, String> fullParameters;
 
+    protected String eTag;
+
+    protected String lastModified;
+
     /**
      * Used for requests by clients
      * 
@@ -58,14 +63,7 @@ public class WMSMetaTile extends MetaTile {
                 WMSLayer.RequestType.MAP);
 
         // Fill in the blanks
-        String format;
-        if (formatModifier == null) {
-            format = responseFormat.getFormat();
-        } else {
-            MimeType requestFormat = formatModifier.getRequestFormat();
-            format = requestFormat.getFormat();
-        }
-        params.put("FORMAT", format);
+        params.put("FORMAT", getRequestFormat().getFormat());
 
         params.put("SRS", wmsLayer.backendSRSOverride(gridSubset.getSRS()));
         params.put("WIDTH", String.valueOf(getMetaTileWidth()));
@@ -85,4 +83,39 @@ public class WMSMetaTile extends MetaTile {
         return wmsLayer;
     }
 
+    /**
+     * The backend validators of the metatile. Before the request they are the ones of the cached
+     * tiles, if any, and make the request conditional. Afterwards they are the ones of the
+     * response
+     * 
+     * @return the {@code ETag} header value, or {@code null}
+     */
+    public String getETag() {
+        return eTag;
+    }
+
+    public void setETag(String eTag) {
+        this.eTag = eTag;
+    }
+
+    /**
+     * @return the {@code Last-Modified} header value, or {@code null}
+     * @see #getETag()
+     */
+    public String getLastModified() {
+        return lastModified;
+    }
+
+    public void setLastModified(String lastModified) {
+        this.lastModified = lastModified;
+    }
+
+    /**
+     * @return whether the backend answered the conditional request with a
+     *         {@code 304 Not Modified}, the cached tiles are still current
+     */
+    public boolean isNotModified() {
+        return status == HttpStatus.SC_NOT_MODIFIED;
+    }
+
 }
@@ -17,6 +17,12 @@
  */
 package org.geowebcache.mime;
 
+import java.io.IOException;
+import java.io.InputStream;
+
+import org.apache.commons.io.IOUtils;
+import org.geowebcache.io.Resource;
+
 public class ImageMime extends MimeType {
     
     boolean supportsAlphaChannel;
@@ -47,6 +53,13 @@ public class ImageMime extends MimeType {
     public static final ImageMime dds = 
         new ImageMime("image/dds", "dds", "dds", "image/dds", false, false, false);
     
+    /**
+     * Opaque tiles encoded as JPEG, the ones with any transparency as PNG, from a PNG backend
+     * request
+     */
+    public static final ImageMime jpeg_png = 
+        new ImageMime("image/vnd.jpeg-png", "jpeg-png", "jpeg-png", "image/vnd.jpeg-png", true, true, true);
+    
     private ImageMime(String mimeType, String fileExtension, 
             String internalName, String format, boolean tiled,
             boolean alphaChannel, boolean alphaBit) {
@@ -76,6 +89,8 @@ public class ImageMime extends MimeType {
             return png_24;
         } else if ( tmpStr.equalsIgnoreCase("png;%20mode=24bit")) {
             return png_24;
+        } else if ( tmpStr.equalsIgnoreCase("vnd.jpeg-png")) {
+            return jpeg_png;
         }
         return null;
     }
@@ -107,10 +122,31 @@ public class ImageMime extends MimeType {
             return png24;
         } else if (fileExtension.equalsIgnoreCase("png_24")) {
             return png_24;
+        } else if (fileExtension.equalsIgnoreCase("jpeg-png")) {
+            return jpeg_png;
         }
         return null;
     }
     
+    /**
+     * Tells JPEG and PNG {@link #jpeg_png} tiles apart by their signature
+     */
+    @Override
+    public String getMimeType(Resource tile) throws IOException {
+        if (this != jpeg_png || tile == null || tile.getSize() < 2) {
+            return super.getMimeType(tile);
+        }
+        InputStream in = tile.getInputStream();
+        try {
+            if (in.read() == 0xFF && in.read() == 0xD8) {
+                return jpeg.getMimeType();
+            }
+            return png.getMimeType();
+        } finally {
+            IOUtils.closeQuietly(in);
+        }
+    }
+
     public boolean supportsAlphaBit() {
        return supportsAlphaBit; 
     }
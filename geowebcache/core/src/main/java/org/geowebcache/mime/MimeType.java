@@ -17,8 +17,11 @@
  */
 package org.geowebcache.mime;
 
+import java.io.IOException;
+
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
+import org.geowebcache.io.Resource;
 
 public class MimeType {
     protected String mimeType;
@@ -51,6 +54,18 @@ public class MimeType {
         return mimeType;
     }
     
+    /**
+     * The MIME identifier string of an encoded tile, which for the formats picking the encoding
+     * tile by tile depends on the contents
+     * 
+     * @param tile
+     *            the encoded tile, may be {@code null}
+     * @return the actual MIME type of the tile
+     */
+    public String getMimeType(Resource tile) throws IOException {
+        return getMimeType();
+    }
+    
     /**
      * Returns the format string, which can be different from 
      * 
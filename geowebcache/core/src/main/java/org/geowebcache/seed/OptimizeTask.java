@@ -0,0 +1,212 @@
+/**
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package org.geowebcache.seed;
+
+import java.awt.image.RenderedImage;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Iterator;
+
+import javax.imageio.IIOImage;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageWriteParam;
+import javax.imageio.ImageWriter;
+import javax.imageio.stream.ImageOutputStream;
+import javax.imageio.stream.MemoryCacheImageOutputStream;
+
+import org.apache.commons.io.IOUtils;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.geowebcache.GeoWebCacheException;
+import org.geowebcache.io.ByteArrayResource;
+import org.geowebcache.io.Resource;
+import org.geowebcache.layer.TileLayer;
+import org.geowebcache.storage.StorageBroker;
+import org.geowebcache.storage.StorageException;
+import org.geowebcache.storage.TileObject;
+import org.geowebcache.storage.TileRange;
+import org.geowebcache.storage.TileRangeIterator;
+
+/**
+ * A GWCTask recompressing the stored PNG tiles of a range with the highest deflate effort, and
+ * writing them back when smaller.
+ * <p>
+ * The pixels are decoded and encoded again, so the recompression is lossless. The tiles keep
+ * their creation time, and the blob store reports the update with the old and new sizes, so the
+ * disk quota accounts for the freed space. Each task pauses as needed to stay under the
+ * configured number of tiles read per second.
+ * </p>
+ */
+class OptimizeTask extends GWCTask {
+    private static Log log = LogFactory.getLog(OptimizeTask.class);
+
+    private static final byte[] PNG_SIGNATURE = { (byte) 0x89, 'P', 'N', 'G' };
+
+    private final StorageBroker storageBroker;
+
+    private final TileRangeIterator trIter;
+
+    private int maxTilesPerSecond;
+
+    private long bytesSaved;
+
+    /**
+     * @param trIter
+     *            iterator over the single tiles of the range, shared by the tasks of the group
+     */
+    public OptimizeTask(StorageBroker sb, TileRangeIterator trIter, TileLayer tl) {
+        this.storageBroker = sb;
+        this.trIter = trIter;
+
+        super.parsedType = GWCTask.TYPE.OPTIMIZE;
+        super.layerName = tl.getName();
+    }
+
+    /**
+     * @param maxTilesPerSecond
+     *            how many stored tiles this task reads per second at most, {@code 0} for no limit
+     */
+    public void setThrottle(int maxTilesPerSecond) {
+        this.maxTilesPerSecond = maxTilesPerSecond;
+    }
+
+    /**
+     * @return the number of bytes the task saved so far
+     */
+    public long getBytesSaved() {
+        return bytesSaved;
+    }
+
+    @Override
+    protected void doActionInternal() throws GeoWebCacheException, InterruptedException {
+        super.state = GWCTask.STATE.RUNNING;
+
+        // Lower the priority of the thread
+        Thread.currentThread().setPriority(
+                (java.lang.Thread.NORM_PRIORITY + java.lang.Thread.MIN_PRIORITY) / 2);
+
+        final long startTime = System.currentTimeMillis();
+        final TileRange tr = trIter.getTileRange();
+        super.tilesTotal = SeedTask.tileCount(tr);
+
+        log.info(Thread.currentThread().getName() + " begins optimizing layer : " + layerName);
+
+        long tilesChecked = 0;
+        long tilesRead = 0;
+        long[] gridLoc = trIter.nextMetaGridLocation(new long[3]);
+        while (gridLoc != null && !this.terminate) {
+            checkInterrupted();
+            TileObject tile = TileObject.createQueryTileObject(layerName, gridLoc.clone(),
+                    tr.getGridSetId(), tr.getMimeType().getFormat(), tr.getParameters());
+            try {
+                if (storageBroker.get(tile)) {
+                    tilesRead++;
+                    optimize(tile);
+                }
+            } catch (StorageException e) {
+                throw new GeoWebCacheException(e);
+            } catch (IOException e) {
+                log.warn("Unable to optimize tile " + tile + ": " + e.getMessage());
+            }
+
+            tilesChecked++;
+            this.tilesDone = tilesChecked;
+            this.timeSpent = (System.currentTimeMillis() - startTime) / 1000;
+            if (maxTilesPerSecond > 0) {
+                long wait = startTime + tilesRead * 1000 / maxTilesPerSecond
+                        - System.currentTimeMillis();
+                if (wait > 0) {
+                    Thread.sleep(wait);
+                }
+            }
+            gridLoc = trIter.nextMetaGridLocation(gridLoc);
+        }
+
+        log.info(Thread.currentThread().getName() + " completed optimizing layer " + layerName
+                + " after " + tilesChecked + " tiles, " + bytesSaved + " bytes saved");
+        super.state = GWCTask.STATE.DONE;
+    }
+
+    private void optimize(TileObject tile) throws IOException, StorageException {
+        final Resource blob = tile.getBlob();
+        final byte[] original;
+        InputStream in = blob.getInputStream();
+        try {
+            original = IOUtils.toByteArray(in);
+        } finally {
+            in.close();
+        }
+        final byte[] recompressed = recompress(original);
+        if (recompressed == null) {
+            return;
+        }
+        // leave the tile alone if it was rendered again meanwhile
+        TileObject current = TileObject.createQueryTileObject(tile.getLayerName(),
+                tile.getXYZ(), tile.getGridSetId(), tile.getBlobFormat(), tile.getParameters());
+        if (!storageBroker.get(current) || current.getCreated() != tile.getCreated()) {
+            return;
+        }
+        tile.setBlob(new ByteArrayResource(recompressed));
+        if (storageBroker.put(tile)) {
+            bytesSaved += original.length - recompressed.length;
+        }
+    }
+
+    /**
+     * @return the PNG encoded with the highest deflate effort, or {@code null} if the tile isn't
+     *         a PNG or the result isn't smaller
+     */
+    static byte[] recompress(byte[] original) throws IOException {
+        if (original.length < PNG_SIGNATURE.length) {
+            return null;
+        }
+        for (int i = 0; i < PNG_SIGNATURE.length; i++) {
+            if (original[i] != PNG_SIGNATURE[i]) {
+                return null;
+            }
+        }
+        InputStream in = new ByteArrayResource(original).getInputStream();
+        RenderedImage image = ImageIO.read(in);
+        if (image == null) {
+            return null;
+        }
+
+        Iterator<ImageWriter> it = ImageIO.getImageWritersByFormatName("png");
+        ImageWriter writer = it.next();
+        ImageWriteParam param = writer.getDefaultWriteParam();
+        if (param.canWriteCompressed()) {
+            // the lowest quality is the highest deflate level, the pixels are kept as they are
+            param.setCompressionMode(ImageWriteParam.MODE_EXPLICIT);
+            param.setCompressionQuality(0f);
+        }
+        ByteArrayOutputStream out = new ByteArrayOutputStream(original.length);
+        ImageOutputStream imgOut = new MemoryCacheImageOutputStream(out);
+        writer.setOutput(imgOut);
+        try {
+            writer.write(null, new IIOImage(image, null, null), param);
+        } finally {
+            imgOut.close();
+            writer.dispose();
+        }
+        return out.size() < original.length ? out.toByteArray() : null;
+    }
+
+    @Override
+    protected void dispose() {
+        // do nothing
+    }
+}
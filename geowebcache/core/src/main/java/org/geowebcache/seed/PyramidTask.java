@@ -0,0 +1,373 @@
+/**
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package org.geowebcache.seed;
+
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.HashSet;
+import java.util.Set;
+
+import javax.imageio.ImageIO;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.geowebcache.GeoWebCacheException;
+import org.geowebcache.conveyor.ConveyorTile;
+import org.geowebcache.grid.BoundingBox;
+import org.geowebcache.grid.Grid;
+import org.geowebcache.grid.GridSubset;
+import org.geowebcache.io.ByteArrayResource;
+import org.geowebcache.layer.MetaTile;
+import org.geowebcache.layer.TileLayer;
+import org.geowebcache.mime.ImageMime;
+import org.geowebcache.mime.MimeType;
+import org.geowebcache.storage.StorageBroker;
+import org.geowebcache.storage.StorageException;
+import org.geowebcache.storage.TileObject;
+import org.geowebcache.storage.TileRange;
+import org.geowebcache.storage.TileRangeIterator;
+
+/**
+ * A GWCTask seeding the deepest zoom level of a range from the backend, and building each level
+ * above from the four stored tiles below it, averaging each square of four pixels.
+ * <p>
+ * The levels are built bottom-up, the tasks of the group splitting each level among them. A task
+ * moves to the level above once the tiles of the level are all built, whether by itself or by the
+ * tasks running meanwhile, so that it never waits for tasks that haven't started yet. Tiles whose
+ * children aren't all stored are rendered by the backend as usual, a metatile at a time, and so
+ * are the levels whose resolution isn't half the one of the level above.
+ * </p>
+ */
+class PyramidTask extends GWCTask {
+    private static Log log = LogFactory.getLog(PyramidTask.class);
+
+    private final StorageBroker storageBroker;
+
+    private final Level[] levels;
+
+    private final TileLayer tl;
+
+    /**
+     * A level of the pyramid, shared by the tasks of the group. Keeps track of the tiles taken by
+     * the tasks and not built yet, so that the tasks know when the level is complete
+     */
+    static final class Level {
+
+        final TileRangeIterator iterator;
+
+        /**
+         * Whether the level is rendered by the backend, rather than built from the level below
+         */
+        final boolean seeded;
+
+        private int pending;
+
+        /**
+         * The metatiles the backend was asked to render for the tiles that couldn't be built
+         */
+        private final Set<Long> renderedMetaTiles = new HashSet<Long>();
+
+        Level(TileRangeIterator iterator, boolean seeded) {
+            this.iterator = iterator;
+            this.seeded = seeded;
+        }
+
+        /**
+         * @return the next location to build, to report with {@link #done()}, or {@code null}
+         *         if all of them were taken
+         */
+        synchronized long[] next(long[] gridLoc) {
+            long[] next = iterator.nextMetaGridLocation(gridLoc);
+            if (next != null) {
+                pending++;
+            }
+            return next;
+        }
+
+        synchronized void done() {
+            if (--pending == 0) {
+                notifyAll();
+            }
+        }
+
+        /**
+         * Waits until the locations taken by the other tasks are built, or the task is told to
+         * stop
+         */
+        synchronized void awaitDone(GWCTask task) throws InterruptedException {
+            while (pending > 0 && !task.terminate) {
+                wait(1000);
+            }
+        }
+
+        /**
+         * @return whether the metatile holding the tile is yet to be rendered, in which case the
+         *         caller is to render it
+         */
+        synchronized boolean claimMetaTile(long[] gridLoc, int[] metaTilingFactors) {
+            long x = gridLoc[0] / metaTilingFactors[0];
+            long y = gridLoc[1] / metaTilingFactors[1];
+            return renderedMetaTiles.add(Long.valueOf((x << 32) | (y & 0xffffffffL)));
+        }
+    }
+
+    /**
+     * @param levels
+     *            the levels, shared by the tasks of the group, as returned by
+     *            {@link #levels(TileRange, TileLayer)}
+     */
+    public PyramidTask(StorageBroker sb, Level[] levels, TileLayer tl) {
+        this.storageBroker = sb;
+        this.levels = levels;
+        this.tl = tl;
+
+        super.parsedType = GWCTask.TYPE.PYRAMID;
+        super.layerName = tl.getName();
+    }
+
+    /**
+     * @return the levels of the range, from the deepest one to the top one. The deepest one, and
+     *         those whose tiles aren't made of four tiles of the level below, are seeded by
+     *         metatiles, the others are built tile by tile
+     */
+    static Level[] levels(TileRange tr, TileLayer tl) throws GeoWebCacheException {
+        if (!(tr.getMimeType() instanceof ImageMime) || !tr.getMimeType().supportsTiling()) {
+            throw new GeoWebCacheException("Can't build a pyramid of "
+                    + tr.getMimeType().getFormat() + " tiles");
+        }
+        final Grid[] grids = tl.getGridSubset(tr.getGridSetId()).getGridSet().getGridLevels();
+        final int zoomStart = tr.getZoomStart();
+        final int zoomStop = tr.getZoomStop();
+        Level[] levels = new Level[1 + zoomStop - zoomStart];
+        for (int z = zoomStop; z >= zoomStart; z--) {
+            TileRange level = new TileRange(tr.getLayerName(), tr.getGridSetId(), z, z,
+                    new long[][] { tr.rangeBounds(z) }, tr.getMimeType(), tr.getParameters(),
+                    tr.getParametersId());
+            boolean seeded = z == zoomStop || !nests(grids, z);
+            int[] metaTilingFactors = seeded ? tl.getMetaTilingFactors() : new int[] { 1, 1 };
+            levels[zoomStop - z] = new Level(new TileRangeIterator(level, metaTilingFactors),
+                    seeded);
+        }
+        return levels;
+    }
+
+    @Override
+    protected void doActionInternal() throws GeoWebCacheException, InterruptedException {
+        super.state = GWCTask.STATE.RUNNING;
+
+        // Lower the priority of the thread
+        Thread.currentThread().setPriority(
+                (java.lang.Thread.NORM_PRIORITY + java.lang.Thread.MIN_PRIORITY) / 2);
+
+        final long startTime = System.currentTimeMillis();
+        final TileRange tr = levels[0].iterator.getTileRange();
+        long total = 0;
+        for (Level level : levels) {
+            total += SeedTask.tileCount(level.iterator.getTileRange());
+        }
+        super.tilesTotal = total;
+        super.tilesDone = 0;
+
+        log.info(Thread.currentThread().getName() + " begins building the pyramid of layer : "
+                + layerName);
+
+        final int metaTiles = tl.getMetaTilingFactors()[0] * tl.getMetaTilingFactors()[1];
+        for (int i = 0; i < levels.length && !this.terminate; i++) {
+            final Level level = levels[i];
+            final TileRange range = level.iterator.getTileRange();
+
+            long[] gridLoc = new long[3];
+            while (!this.terminate && (gridLoc = level.next(gridLoc)) != null) {
+                try {
+                    checkInterrupted();
+                    if (level.seeded) {
+                        // the deepest level is seeded, the others have no stored tiles to keep
+                        seedTile(range, gridLoc.clone(), i == 0);
+                        this.tilesDone += metaTiles;
+                    } else {
+                        buildTile(level, gridLoc.clone());
+                        this.tilesDone++;
+                    }
+                } finally {
+                    level.done();
+                }
+                this.timeSpent = (System.currentTimeMillis() - startTime) / 1000;
+            }
+            // the level above is built from the tiles the other tasks may still be working on
+            level.awaitDone(this);
+        }
+
+        log.info(Thread.currentThread().getName() + " completed the pyramid of layer "
+                + tr.getLayerName() + " after " + this.tilesDone + " tiles and " + this.timeSpent
+                + " seconds.");
+        super.state = GWCTask.STATE.DONE;
+    }
+
+    /**
+     * @return whether each tile of the level is made of four tiles of the level below
+     */
+    private static boolean nests(Grid[] grids, int z) {
+        return Math.abs(grids[z].getResolution() / grids[z + 1].getResolution() - 2) < 1E-6;
+    }
+
+    private void seedTile(TileRange level, long[] gridLoc, boolean tryCache)
+            throws GeoWebCacheException {
+        ConveyorTile tile = new ConveyorTile(storageBroker, layerName, level.getGridSetId(),
+                gridLoc, level.getMimeType(), level.getParameters(), null, null);
+        try {
+            tl.seedTile(tile, tryCache);
+        } catch (IOException e) {
+            throw new GeoWebCacheException(e);
+        }
+    }
+
+    /**
+     * Builds a tile out of its four children, or has the backend render its metatile if any of
+     * them that is in the coverage isn't stored
+     */
+    private void buildTile(Level pyramidLevel, long[] gridLoc) throws GeoWebCacheException {
+        final TileRange level = pyramidLevel.iterator.getTileRange();
+        final GridSubset gridSubset = tl.getGridSubset(level.getGridSetId());
+        if (!gridSubset.covers(gridLoc)) {
+            // the range is aligned to the metatiles, past the coverage
+            return;
+        }
+        final MimeType mime = level.getMimeType();
+        final int width = gridSubset.getTileWidth();
+        final int height = gridSubset.getTileHeight();
+        final int childLevel = (int) gridLoc[2] + 1;
+        final BoundingBox bounds = gridSubset.boundsFromIndex(gridLoc);
+
+        final BufferedImage children = new BufferedImage(2 * width, 2 * height,
+                BufferedImage.TYPE_INT_ARGB);
+        final int[] row = new int[width];
+        try {
+            for (int dy = 0; dy < 2; dy++) {
+                for (int dx = 0; dx < 2; dx++) {
+                    // the child holding the center of this quarter, if any
+                    double x = bounds.getMinX() + bounds.getWidth() * (1 + 2 * dx) / 4;
+                    double y = bounds.getMinY() + bounds.getHeight() * (1 + 2 * dy) / 4;
+                    long[] rectangle = gridSubset.getCoverageIntersection(childLevel,
+                            new BoundingBox(x, y, x, y));
+                    long[] childLoc = { rectangle[0], rectangle[1], childLevel };
+                    BoundingBox childBounds = gridSubset.boundsFromIndex(childLoc);
+                    if (x < childBounds.getMinX() || x > childBounds.getMaxX()
+                            || y < childBounds.getMinY() || y > childBounds.getMaxY()) {
+                        // outside of the coverage, nothing to draw
+                        continue;
+                    }
+                    BufferedImage child = readTile(level, childLoc);
+                    if (child == null || child.getWidth() != width
+                            || child.getHeight() != height) {
+                        if (pyramidLevel.claimMetaTile(gridLoc, tl.getMetaTilingFactors())) {
+                            seedTile(level, gridLoc, false);
+                        }
+                        // else rendered along with another tile of the same metatile
+                        return;
+                    }
+                    // the rows go from the top, the grid from the bottom
+                    for (int j = 0; j < height; j++) {
+                        child.getRGB(0, j, width, 1, row, 0, width);
+                        children.setRGB(dx * width, (1 - dy) * height + j, width, 1, row, 0,
+                                width);
+                    }
+                }
+            }
+
+            if (!gridSubset.shouldCacheAtZoom(gridLoc[2])) {
+                return;
+            }
+            MetaTile metaTile = new MetaTile(gridSubset, mime, tl.getFormatModifier(mime),
+                    gridLoc, 1, 1, 0);
+            metaTile.setImage(downsample(children));
+            ByteArrayResource target = new ByteArrayResource();
+            try {
+                metaTile.writeTileToStream(0, target);
+            } finally {
+                metaTile.dispose();
+            }
+            storageBroker.put(TileObject.createCompleteTileObject(layerName, gridLoc,
+                    level.getGridSetId(), mime.getFormat(), level.getParameters(), target));
+        } catch (IOException e) {
+            throw new GeoWebCacheException(e);
+        }
+    }
+
+    /**
+     * @return the stored tile, or {@code null} if it isn't stored
+     */
+    private BufferedImage readTile(TileRange level, long[] gridLoc) throws StorageException,
+            IOException {
+        TileObject tile = TileObject.createQueryTileObject(layerName, gridLoc,
+                level.getGridSetId(), level.getMimeType().getFormat(), level.getParameters());
+        if (!storageBroker.get(tile)) {
+            return null;
+        }
+        InputStream in = tile.getBlob().getInputStream();
+        try {
+            return ImageIO.read(in);
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * Halves the size of an image, each pixel being the average of a square of four, weighted by
+     * their alpha so that the transparent pixels don't darken the colors
+     */
+    static BufferedImage downsample(BufferedImage image) {
+        final int width = image.getWidth() / 2;
+        final int height = image.getHeight() / 2;
+        final BufferedImage result = new BufferedImage(width, height,
+                BufferedImage.TYPE_INT_ARGB);
+        final int[] top = new int[2 * width];
+        final int[] bottom = new int[2 * width];
+        final int[] row = new int[width];
+        for (int y = 0; y < height; y++) {
+            image.getRGB(0, 2 * y, 2 * width, 1, top, 0, 2 * width);
+            image.getRGB(0, 2 * y + 1, 2 * width, 1, bottom, 0, 2 * width);
+            for (int x = 0; x < width; x++) {
+                int[] pixels = { top[2 * x], top[2 * x + 1], bottom[2 * x], bottom[2 * x + 1] };
+                int alpha = 0;
+                long red = 0;
+                long green = 0;
+                long blue = 0;
+                for (int p : pixels) {
+                    int a = p >>> 24;
+                    alpha += a;
+                    red += a * ((p >> 16) & 0xFF);
+                    green += a * ((p >> 8) & 0xFF);
+                    blue += a * (p & 0xFF);
+                }
+                if (alpha == 0) {
+                    row[x] = 0;
+                } else {
+                    row[x] = ((alpha + 2) / 4) << 24 | (int) ((red + alpha / 2) / alpha) << 16
+                            | (int) ((green + alpha / 2) / alpha) << 8
+                            | (int) ((blue + alpha / 2) / alpha);
+                }
+            }
+            result.setRGB(0, y, width, 1, row, 0, width);
+        }
+        return result;
+    }
+
+    @Override
+    protected void dispose() {
+        // do nothing
+    }
+}
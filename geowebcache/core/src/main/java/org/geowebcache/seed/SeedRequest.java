@@ -179,6 +179,8 @@ public class SeedRequest {
      * <li>seed - (default) seeds new tiles</li>
      * <li>reseed - seeds new tiles and replaces old ones</li>
      * <li>truncate - removes tiles</li>
+     * <li>optimize - recompresses the stored PNG tiles</li>
+     * <li>pyramid - seeds the deepest level and builds the others out of it</li>
      * </ul>
      * 
      * @return type of seed
@@ -191,6 +193,10 @@ public class SeedRequest {
                 return TYPE.RESEED;
             } else if (type.equalsIgnoreCase("truncate")) {
                 return TYPE.TRUNCATE;
+            } else if (type.equalsIgnoreCase("optimize")) {
+                return TYPE.OPTIMIZE;
+            } else if (type.equalsIgnoreCase("pyramid")) {
+                return TYPE.PYRAMID;
             } else {
                 log.warn("Unknown type \"" + type + "\", assuming seed");
                 return TYPE.SEED;
@@ -47,6 +47,8 @@ class SeedTask extends GWCTask {
 
     private boolean reseed;
 
+    private boolean differential;
+
     private boolean doFilterUpdate;
 
     private StorageBroker storageBroker;
@@ -129,6 +131,7 @@ class SeedTask extends GWCTask {
 
             ConveyorTile tile = new ConveyorTile(storageBroker, layerName, tr.getGridSetId(), gridLoc,
                     tr.getMimeType(), fullParameters, null, null);
+            tile.setSkipUnchanged(reseed && differential);
 
             for (int fetchAttempt = 0; fetchAttempt <= tileFailureRetryCount; fetchAttempt++) {
                 try {
@@ -211,7 +214,7 @@ class SeedTask extends GWCTask {
      * @param tr
      * @return -1 if too many
      */
-    private long tileCount(TileRange tr) {
+    static long tileCount(TileRange tr) {
 
         final int startZoom = tr.getZoomStart();
         final int stopZoom = tr.getZoomStop();
@@ -291,6 +294,14 @@ class SeedTask extends GWCTask {
         this.sharedFailureCounter = sharedFailureCounter;
     }
 
+    /**
+     * @param differential
+     *            whether a reseed only writes the tiles whose contents changed
+     */
+    public void setDifferential(boolean differential) {
+        this.differential = differential;
+    }
+
     @Override
     protected void dispose() {
         if (tl instanceof WMSLayer) {
@@ -74,6 +74,13 @@ import org.springframework.context.ApplicationContextAware;
  * shared by all the threads launched as a single thread group; so if the value is {@code 10} and
  * you launch a seed task with four threads, when {@code 10} failures are reached by all or any of
  * those four threads the four threads will abort the seeding task. The default is {@code 1000}.
+ * <li>{@code GWC_SEED_DIFFERENTIAL_RESEED}: if {@code true}, reseed tasks compare each tile they
+ * render with the stored one, and leave the tiles whose contents did not change alone. Their
+ * creation time, and hence the {@code Last-Modified} header sent to clients, stays the same, and
+ * no tile update event is fired. Defaults to {@code false}.
+ * <li>{@code GWC_OPTIMIZE_TILES_PER_SECOND}: how many stored tiles each thread of an optimize task
+ * reads per second at most, so that recompressing the PNG tiles doesn't starve the requests being
+ * served. Use {@code 0} for no limit. Defaults to {@code 100}.
  * </ul>
  * These environment variables can be established by any of the following ways, in order of
  * precedence:
@@ -106,6 +113,10 @@ public class TileBreeder implements ApplicationContextAware {
 
     private static final String GWC_SEED_RETRY_COUNT = "GWC_SEED_RETRY_COUNT";
 
+    private static final String GWC_SEED_DIFFERENTIAL_RESEED = "GWC_SEED_DIFFERENTIAL_RESEED";
+
+    private static final String GWC_OPTIMIZE_TILES_PER_SECOND = "GWC_OPTIMIZE_TILES_PER_SECOND";
+
     private static Log log = LogFactory.getLog(TileBreeder.class);
 
     private ThreadPoolExecutor threadPool;
@@ -130,6 +141,16 @@ public class TileBreeder implements ApplicationContextAware {
      */
     private long totalFailuresBeforeAborting = 1000;
 
+    /**
+     * Whether reseeding only writes the tiles whose contents changed
+     */
+    private boolean differentialReseed = false;
+
+    /**
+     * How many stored tiles each optimize thread reads per second, 0 = no limit
+     */
+    private int optimizeTilesPerSecond = 100;
+
     private Map<Long, SubmittedTask> currentPool = new TreeMap<Long, SubmittedTask>();
 
     private AtomicLong currentId = new AtomicLong();
@@ -162,14 +183,22 @@ public class TileBreeder implements ApplicationContextAware {
         String retryCount = GWCVars.findEnvVar(applicationContext, GWC_SEED_RETRY_COUNT);
         String retryWait = GWCVars.findEnvVar(applicationContext, GWC_SEED_RETRY_WAIT);
         String abortLimit = GWCVars.findEnvVar(applicationContext, GWC_SEED_ABORT_LIMIT);
+        String differential = GWCVars.findEnvVar(applicationContext,
+                GWC_SEED_DIFFERENTIAL_RESEED);
+        String optimizeRate = GWCVars.findEnvVar(applicationContext,
+                GWC_OPTIMIZE_TILES_PER_SECOND);
 
         tileFailureRetryCount = (int) toLong(GWC_SEED_RETRY_COUNT, retryCount, 0);
         tileFailureRetryWaitTime = toLong(GWC_SEED_RETRY_WAIT, retryWait, 100);
         totalFailuresBeforeAborting = toLong(GWC_SEED_ABORT_LIMIT, abortLimit, 1000);
+        optimizeTilesPerSecond = (int) toLong(GWC_OPTIMIZE_TILES_PER_SECOND, optimizeRate, 100);
 
         checkPositive(tileFailureRetryCount, GWC_SEED_RETRY_COUNT);
         checkPositive(tileFailureRetryWaitTime, GWC_SEED_RETRY_WAIT);
         checkPositive(totalFailuresBeforeAborting, GWC_SEED_ABORT_LIMIT);
+        checkPositive(optimizeTilesPerSecond, GWC_OPTIMIZE_TILES_PER_SECOND);
+
+        differentialReseed = Boolean.valueOf(differential);
     }
 
     @SuppressWarnings("serial")
@@ -252,19 +281,36 @@ public class TileBreeder implements ApplicationContextAware {
             threadCount = 1;
         }
 
-        TileRangeIterator trIter = new TileRangeIterator(tr, tl.getMetaTilingFactors());
+        int[] metaTilingFactors = tl.getMetaTilingFactors();
+        if (type == TYPE.OPTIMIZE) {
+            // optimizing goes through the stored tiles one by one
+            metaTilingFactors = new int[] { 1, 1 };
+        }
+        TileRangeIterator trIter = new TileRangeIterator(tr, metaTilingFactors);
 
         GWCTask[] tasks = new GWCTask[threadCount];
 
+        PyramidTask.Level[] pyramidLevels = null;
+        if (type == TYPE.PYRAMID) {
+            pyramidLevels = PyramidTask.levels(tr, tl);
+        }
+
         AtomicLong failureCounter = new AtomicLong();
         AtomicInteger sharedThreadCount = new AtomicInteger();
         for (int i = 0; i < threadCount; i++) {
             if (type == TYPE.TRUNCATE) {
                 tasks[i] = createTruncateTask(trIter, tl, filterUpdate);
+            } else if (type == TYPE.PYRAMID) {
+                tasks[i] = new PyramidTask(storageBroker, pyramidLevels, tl);
+            } else if (type == TYPE.OPTIMIZE) {
+                OptimizeTask task = new OptimizeTask(storageBroker, trIter, tl);
+                task.setThrottle(optimizeTilesPerSecond);
+                tasks[i] = task;
             } else {
                 SeedTask task = (SeedTask) createSeedTask(type, trIter, tl, filterUpdate);
                 task.setFailurePolicy(tileFailureRetryCount, tileFailureRetryWaitTime,
                         totalFailuresBeforeAborting, failureCounter);
+                task.setDifferential(differentialReseed);
                 tasks[i] = task;
             }
             tasks[i].setThreadInfo(sharedThreadCount, i);
@@ -24,6 +24,7 @@ import org.apache.commons.logging.LogFactory;
 import org.geowebcache.GeoWebCacheException;
 import org.geowebcache.filter.request.RequestFilter;
 import org.geowebcache.layer.TileLayer;
+import org.geowebcache.layer.wms.WMSLayer;
 import org.geowebcache.storage.StorageBroker;
 import org.geowebcache.storage.TileRange;
 
@@ -54,6 +55,10 @@ class TruncateTask extends GWCTask {
         checkInterrupted();
         try {
             storageBroker.delete(tr);
+            if (tl instanceof WMSLayer && ((WMSLayer) tl).getEmptyTileCache() != null) {
+                // the empty tiles might not be stored, so the blob store doesn't report them
+                ((WMSLayer) tl).getEmptyTileCache().truncate(tr);
+            }
         } catch (Exception e) {
             e.printStackTrace();
             super.state = GWCTask.STATE.DEAD;
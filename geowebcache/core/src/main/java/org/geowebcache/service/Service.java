@@ -105,7 +105,11 @@ public abstract class Service {
 
         String mimeStr;
         if(mimeTypeOverride == null){
-            mimeStr = conv.getMimeType().getMimeType();
+            try {
+                mimeStr = conv.getMimeType().getMimeType(data);
+            } catch (IOException ioe) {
+                mimeStr = conv.getMimeType().getMimeType();
+            }
         }else{
             mimeStr = mimeTypeOverride;
         }
@@ -68,6 +68,14 @@ public final class BlobStoreListenerList {
     }
 
     public void sendTileStored(TileObject stObj) {
+        sendTileStored(stObj, stObj.getBlobSize());
+    }
+
+    /**
+     * Notifies a tile was stored, taking {@code blobSize} bytes on storage which may differ from
+     * the tile size when the blob store deduplicates or compresses tiles
+     */
+    public void sendTileStored(TileObject stObj, final int blobSize) {
         if (listeners.size() > 0) {
 
             final long[] xyz = stObj.getXYZ();
@@ -75,17 +83,32 @@ public final class BlobStoreListenerList {
             final String gridSetId = stObj.getGridSetId();
             final String blobFormat = stObj.getBlobFormat();
             final String paramsId = stObj.getParametersId();
-            final int blobSize = stObj.getBlobSize();
 
-            for (int i = 0; i < listeners.size(); i++) {
-                listeners.get(i).tileStored(layerName, gridSetId, blobFormat, paramsId, xyz[0],
-                        xyz[1], (int) xyz[2], blobSize);
+            sendTileStored(layerName, gridSetId, blobFormat, paramsId, xyz[0], xyz[1],
+                    (int) xyz[2], blobSize);
+        }
+    }
 
+    public void sendTileStored(String layerName, String gridSetId, String blobFormat,
+            String parametersId, long x, long y, int z, long blobSize) {
+
+        if (listeners.size() > 0) {
+            for (int i = 0; i < listeners.size(); i++) {
+                listeners.get(i).tileStored(layerName, gridSetId, blobFormat, parametersId, x, y,
+                        z, blobSize);
             }
         }
     }
 
     public void sendTileUpdated(TileObject stObj, final long oldSize) {
+        sendTileUpdated(stObj, stObj.getBlobSize(), oldSize);
+    }
+
+    /**
+     * Notifies a tile was replaced, now taking {@code blobSize} bytes on storage instead of
+     * {@code oldSize}
+     */
+    public void sendTileUpdated(TileObject stObj, final int blobSize, final long oldSize) {
         if (listeners.size() > 0) {
             final long[] xyz = stObj.getXYZ();
             final String layerName = stObj.getLayerName();
@@ -93,12 +116,18 @@ public final class BlobStoreListenerList {
             final String blobFormat = stObj.getBlobFormat();
             final String paramsId = stObj.getParametersId();
 
-            final int blobSize = stObj.getBlobSize();
+            sendTileUpdated(layerName, gridSetId, blobFormat, paramsId, xyz[0], xyz[1],
+                    (int) xyz[2], blobSize, oldSize);
+        }
+    }
 
-            for (int i = 0; i < listeners.size(); i++) {
-                listeners.get(i).tileUpdated(layerName, gridSetId, blobFormat, paramsId, xyz[0],
-                        xyz[1], (int) xyz[2], blobSize, oldSize);
+    public void sendTileUpdated(String layerName, String gridSetId, String blobFormat,
+            String parametersId, long x, long y, int z, long blobSize, long oldSize) {
 
+        if (listeners.size() > 0) {
+            for (int i = 0; i < listeners.size(); i++) {
+                listeners.get(i).tileUpdated(layerName, gridSetId, blobFormat, parametersId, x, y,
+                        z, blobSize, oldSize);
             }
         }
     }
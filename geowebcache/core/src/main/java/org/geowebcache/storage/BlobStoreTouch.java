@@ -0,0 +1,63 @@
+/**
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package org.geowebcache.storage;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+import org.apache.commons.io.IOUtils;
+import org.geowebcache.io.ByteArrayResource;
+
+/**
+ * Updates the creation time of stored tiles on any {@link BlobStore}, natively on the
+ * {@link TouchableBlobStore} ones, by reading and writing back the tile on the others
+ */
+final class BlobStoreTouch {
+
+    private BlobStoreTouch() {
+    }
+
+    /**
+     * @see TouchableBlobStore#touch(TileObject)
+     */
+    static boolean touch(BlobStore store, TileObject tile) throws StorageException {
+        if (store instanceof TouchableBlobStore) {
+            return ((TouchableBlobStore) store).touch(tile);
+        }
+        TileObject stored = TileObject.createQueryTileObject(tile.getLayerName(), tile.getXYZ(),
+                tile.getGridSetId(), tile.getBlobFormat(), tile.getParameters());
+        if (!store.get(stored)) {
+            return false;
+        }
+        // copied, as the stored resource may be backed by what put() is about to replace
+        final byte[] contents;
+        InputStream in = null;
+        try {
+            in = stored.getBlob().getInputStream();
+            contents = IOUtils.toByteArray(in);
+        } catch (IOException e) {
+            throw new StorageException("Unable to read tile contents: " + e.getMessage());
+        } finally {
+            IOUtils.closeQuietly(in);
+        }
+        TileObject touched = TileObject.createCompleteTileObject(tile.getLayerName(),
+                tile.getXYZ(), tile.getGridSetId(), tile.getBlobFormat(), tile.getParameters(),
+                new ByteArrayResource(contents));
+        touched.setCreated(tile.getCreated());
+        store.put(touched);
+        return true;
+    }
+}
@@ -20,6 +20,7 @@ package org.geowebcache.storage;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import org.geowebcache.io.Resource;
+import org.geowebcache.util.GWCVars;
 
 /**
  * Handles cacheable objects (tiles, wfs responses) both in terms of data storage and metadata
@@ -31,12 +32,60 @@ public class DefaultStorageBroker implements StorageBroker {
     private BlobStore blobStore;
 
     private TransientCache transientCache;
-    
+
+    /**
+     * Environment variable, system property or servlet context parameter setting how many
+     * background threads write the stored tiles. Tiles are written synchronously if unset or zero
+     */
+    public static final String GWC_WRITE_BEHIND_THREADS = "GWC_WRITE_BEHIND_THREADS";
+
+    /**
+     * Environment variable, system property or servlet context parameter setting how many tiles
+     * may wait to be written in the background before storing tiles blocks. Defaults to 1000
+     */
+    public static final String GWC_WRITE_BEHIND_MAX_TILES = "GWC_WRITE_BEHIND_MAX_TILES";
+
+    private WriteBehindQueue writeBehind;
+
     public DefaultStorageBroker(BlobStore blobStore) {
+        this(blobStore, toInt(GWC_WRITE_BEHIND_THREADS, 0), toInt(GWC_WRITE_BEHIND_MAX_TILES,
+                1000));
+    }
+
+    /**
+     * @param writeBehindThreads
+     *            number of threads writing the stored tiles in the background, or {@code 0} to
+     *            write them synchronously
+     * @param writeBehindMaxTiles
+     *            maximum number of tiles waiting to be written in the background
+     */
+    public DefaultStorageBroker(BlobStore blobStore, int writeBehindThreads,
+            int writeBehindMaxTiles) {
         this.blobStore = blobStore;
 
         // @todo are these settings reasonable? should they be configurable?
         transientCache = new TransientCache(100,1000);
+
+        if (writeBehindThreads > 0) {
+            log.info("Writing tiles in the background with " + writeBehindThreads
+                    + " threads, up to " + writeBehindMaxTiles + " queued tiles");
+            writeBehind = new WriteBehindQueue(blobStore, writeBehindThreads,
+                    Math.max(1, writeBehindMaxTiles));
+        }
+    }
+
+    private static int toInt(String varName, int defaultVal) {
+        String paramVal = GWCVars.findEnvVar(null, varName);
+        if (paramVal == null) {
+            return defaultVal;
+        }
+        try {
+            return Integer.parseInt(paramVal.trim());
+        } catch (NumberFormatException e) {
+            log.warn("Invalid environment parameter for " + varName + ": '" + paramVal
+                    + "'. Using default value: " + defaultVal);
+        }
+        return defaultVal;
     }
 
     public void addBlobStoreListener(BlobStoreListener listener){
@@ -48,33 +97,63 @@ public class DefaultStorageBroker implements StorageBroker {
     }
     
     public boolean delete(String layerName) throws StorageException {
+        flush();
         return blobStore.delete(layerName);
     }
 
     public boolean deleteByGridSetId(final String layerName, final String gridSetId)
             throws StorageException {
+        flush();
         return blobStore.deleteByGridsetId(layerName, gridSetId);
     }
 
     public boolean rename(String oldLayerName, String newLayerName) throws StorageException {
+        flush();
         return blobStore.rename(oldLayerName, newLayerName);
     }
 
     public boolean delete(TileRange trObj) throws StorageException {
+        flush();
         return blobStore.delete(trObj);
     }
 
     public boolean get(TileObject tileObj) throws StorageException {
+        if (writeBehind != null && writeBehind.get(tileObj)) {
+            return true;
+        }
         return blobStore.get(tileObj);
     }
 
     public boolean put(TileObject tileObj) throws StorageException {
-        blobStore.put(tileObj);
+        if (writeBehind != null) {
+            writeBehind.put(tileObj);
+        } else {
+            blobStore.put(tileObj);
+        }
         return true;
     }
 
+    public boolean touch(TileObject tileObj) throws StorageException {
+        if (writeBehind != null) {
+            return writeBehind.touch(tileObj);
+        }
+        return BlobStoreTouch.touch(blobStore, tileObj);
+    }
+
+    /**
+     * Waits for the tiles queued for writing, so that deletes and renames apply to them too
+     */
+    private void flush() {
+        if (writeBehind != null) {
+            writeBehind.flush();
+        }
+    }
+
     public void destroy() {
         log.info("Destroying StorageBroker");
+        if (writeBehind != null) {
+            writeBehind.destroy();
+        }
     }
 
     public String getLayerMetadata(final String layerName, final String key) {
@@ -47,6 +47,20 @@ public interface StorageBroker {
      */
     public abstract boolean put(TileObject tileObj) throws StorageException;
 
+    /**
+     * Sets the creation time of a stored tile to the one of the given TileObject, without
+     * rewriting its contents.
+     * <p>
+     * Added in 1.6.0, storage brokers implemented outside of GeoWebCache need to implement it.
+     * Those backed by a {@link BlobStore} not implementing {@link TouchableBlobStore} can get and
+     * put the tile back with the new creation time.
+     * </p>
+     * @param tileObj
+     * @return true if the tile was updated, false if it is not stored
+     * @throws StorageException
+     */
+    public abstract boolean touch(TileObject tileObj) throws StorageException;
+
     /**
      * Destroy method for Spring
      */
@@ -0,0 +1,637 @@
+/**
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package org.geowebcache.storage;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.geowebcache.io.Resource;
+import org.springframework.scheduling.concurrent.CustomizableThreadFactory;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheLoader;
+import com.google.common.cache.LoadingCache;
+
+/**
+ * A storage broker keeping the most used tiles on a small and fast {@link BlobStore}, and the
+ * rest on a large capacity one.
+ * <p>
+ * New tiles are written to the fast tier. Tiles read from the capacity tier are moved to the fast
+ * one once hit {@code promoteHits} times. When the fast tier holds more than {@code maxHotTiles},
+ * the least recently used pages of tiles are moved back to the capacity tier in the background.
+ * </p>
+ * <p>
+ * Pages group the tiles of a {@value #PAGE_SIZE}x{@value #PAGE_SIZE} block of a zoom level, and
+ * keep track of which of them are on the fast tier, so that reads go straight to the right tier.
+ * A bounded set of pages also tracks the tiles known to be on the capacity tier, so that writes
+ * only remove the capacity tier copy when there is one. Tiles left on the fast tier by a previous
+ * run are found by looking there after a capacity tier miss, or the first time an untracked tile
+ * is read from the capacity tier, and are tracked from then on.
+ * </p>
+ */
+public class TieredStorageBroker implements StorageBroker {
+
+    private static Log log = LogFactory.getLog(TieredStorageBroker.class);
+
+    static final int PAGE_SIZE = 16;
+
+    /**
+     * Fraction of {@code maxHotTiles} the demotion stops at, so that it doesn't run again right
+     * after
+     */
+    private static final double LOW_WATERMARK = 0.9;
+
+    private static final int LOCK_STRIPES = 64;
+
+    private final BlobStore hotStore;
+
+    private final BlobStore coldStore;
+
+    private final long maxHotTiles;
+
+    private final int promoteHits;
+
+    private final TransientCache transientCache;
+
+    /**
+     * The pages with tiles on the fast tier
+     */
+    private final ConcurrentMap<String, Page> pages = new ConcurrentHashMap<String, Page>();
+
+    private final AtomicLong hotTiles = new AtomicLong();
+
+    /**
+     * The pages with tiles known to be on the capacity tier
+     */
+    private final Cache<String, Page> coldPages;
+
+    /**
+     * Hits on the capacity tier tiles not promoted yet
+     */
+    private final LoadingCache<String, AtomicInteger> coldHits;
+
+    /**
+     * Serializes moving a tile between the tiers with writing it
+     */
+    private final Object[] locks = new Object[LOCK_STRIPES];
+
+    private final ExecutorService demoter;
+
+    private final AtomicBoolean demoting = new AtomicBoolean();
+
+    /**
+     * A set of tiles of a page, updated and read without locking
+     */
+    private static class Page {
+
+        private static final int WORDS = PAGE_SIZE * PAGE_SIZE / 64;
+
+        final String key;
+
+        final String layerName;
+
+        final String gridSetId;
+
+        final String format;
+
+        final Map<String, String> parameters;
+
+        final long pageX;
+
+        final long pageY;
+
+        final int z;
+
+        private final AtomicLongArray tiles = new AtomicLongArray(WORDS);
+
+        /**
+         * {@link System#nanoTime()} of the last access, orders the pages for demotion
+         */
+        volatile long lastAccess = System.nanoTime();
+
+        Page(String key, TileObject tile) {
+            long[] xyz = tile.getXYZ();
+            this.key = key;
+            this.layerName = tile.getLayerName();
+            this.gridSetId = tile.getGridSetId();
+            this.format = tile.getBlobFormat();
+            this.parameters = tile.getParameters();
+            this.pageX = xyz[0] / PAGE_SIZE;
+            this.pageY = xyz[1] / PAGE_SIZE;
+            this.z = (int) xyz[2];
+        }
+
+        long[] tileIndex(int bit) {
+            return new long[] { pageX * PAGE_SIZE + bit % PAGE_SIZE,
+                    pageY * PAGE_SIZE + bit / PAGE_SIZE, z };
+        }
+
+        boolean get(int bit) {
+            return (tiles.get(bit >> 6) & (1L << bit)) != 0;
+        }
+
+        /**
+         * @return whether the tile was not in the page
+         */
+        boolean set(int bit) {
+            final long mask = 1L << bit;
+            while (true) {
+                long word = tiles.get(bit >> 6);
+                if ((word & mask) != 0) {
+                    return false;
+                }
+                if (tiles.compareAndSet(bit >> 6, word, word | mask)) {
+                    return true;
+                }
+            }
+        }
+
+        /**
+         * @return whether the tile was in the page
+         */
+        boolean clear(int bit) {
+            final long mask = 1L << bit;
+            while (true) {
+                long word = tiles.get(bit >> 6);
+                if ((word & mask) == 0) {
+                    return false;
+                }
+                if (tiles.compareAndSet(bit >> 6, word, word & ~mask)) {
+                    return true;
+                }
+            }
+        }
+
+        /**
+         * @return the first tile at or after the given one, {@code -1} if none
+         */
+        int nextSetBit(int from) {
+            for (int i = from >> 6; i < WORDS; i++) {
+                long word = tiles.get(i);
+                if (i == from >> 6) {
+                    word &= -1L << from;
+                }
+                if (word != 0) {
+                    return i * 64 + Long.numberOfTrailingZeros(word);
+                }
+            }
+            return -1;
+        }
+
+        int cardinality() {
+            int count = 0;
+            for (int i = 0; i < WORDS; i++) {
+                count += Long.bitCount(tiles.get(i));
+            }
+            return count;
+        }
+
+        boolean isEmpty() {
+            return nextSetBit(0) < 0;
+        }
+    }
+
+    /**
+     * @param hotStore
+     *            the small and fast tier
+     * @param coldStore
+     *            the large capacity tier
+     * @param maxHotTiles
+     *            number of tiles the fast tier should hold at most
+     * @param promoteHits
+     *            number of hits moving a tile from the capacity tier to the fast one, tiles are
+     *            never promoted if not positive
+     */
+    public TieredStorageBroker(BlobStore hotStore, BlobStore coldStore, long maxHotTiles,
+            int promoteHits) {
+        this.hotStore = hotStore;
+        this.coldStore = coldStore;
+        this.maxHotTiles = maxHotTiles;
+        this.promoteHits = promoteHits;
+        this.transientCache = new TransientCache(100, 1000);
+        this.coldPages = CacheBuilder.newBuilder().maximumSize(100000).build();
+        this.coldHits = CacheBuilder.newBuilder().maximumSize(100000)
+                .build(new CacheLoader<String, AtomicInteger>() {
+                    @Override
+                    public AtomicInteger load(String key) {
+                        return new AtomicInteger();
+                    }
+                });
+        for (int i = 0; i < locks.length; i++) {
+            locks[i] = new Object();
+        }
+        CustomizableThreadFactory tf = new CustomizableThreadFactory("GWC tier demotion thread-");
+        tf.setDaemon(true);
+        tf.setThreadPriority(Thread.MIN_PRIORITY);
+        this.demoter = Executors.newSingleThreadExecutor(tf);
+    }
+
+    private static String pageKey(TileObject tile) {
+        long[] xyz = tile.getXYZ();
+        // the zoom level directory is unique per layer, gridset, zoom level and parameters
+        File zoomDir = new File(TransientCache.computeTransientKey(tile)).getParentFile()
+                .getParentFile();
+        StringBuilder key = new StringBuilder(zoomDir.getPath());
+        key.append(File.separatorChar).append(tile.getBlobFormat());
+        key.append(File.separatorChar).append(xyz[0] / PAGE_SIZE);
+        key.append('_').append(xyz[1] / PAGE_SIZE);
+        return key.toString();
+    }
+
+    private static int bit(TileObject tile) {
+        long[] xyz = tile.getXYZ();
+        return (int) ((xyz[1] % PAGE_SIZE) * PAGE_SIZE + xyz[0] % PAGE_SIZE);
+    }
+
+    private Object lock(TileObject tile) {
+        String key = TransientCache.computeTransientKey(tile);
+        return locks[Math.abs(key.hashCode() % locks.length)];
+    }
+
+    /**
+     * @return whether the tile is known to be on the fast tier
+     */
+    private boolean isHot(TileObject tile) {
+        Page page = pages.get(pageKey(tile));
+        if (page == null) {
+            return false;
+        }
+        page.lastAccess = System.nanoTime();
+        return page.get(bit(tile));
+    }
+
+    private void markHot(TileObject tile) {
+        final String key = pageKey(tile);
+        final int bit = bit(tile);
+        Page page;
+        do {
+            page = pages.get(key);
+            if (page == null) {
+                Page created = new Page(key, tile);
+                page = pages.putIfAbsent(key, created);
+                if (page == null) {
+                    page = created;
+                }
+            }
+            page.lastAccess = System.nanoTime();
+            if (page.set(bit)) {
+                hotTiles.incrementAndGet();
+            }
+            // retry if the page was demoted meanwhile
+        } while (pages.get(key) != page);
+        if (hotTiles.get() > maxHotTiles && demoting.compareAndSet(false, true)) {
+            demoter.submit(new Demotion());
+        }
+    }
+
+    private void markCold(TileObject tile) {
+        final String key = pageKey(tile);
+        Page page = pages.get(key);
+        if (page != null && page.clear(bit(tile))) {
+            hotTiles.decrementAndGet();
+            if (page.isEmpty() && pages.remove(key, page)) {
+                // a tile marked hot right before the removal is counted again on the next access
+                hotTiles.addAndGet(-page.cardinality());
+            }
+        }
+    }
+
+    /**
+     * @return whether the tile is known to be on the capacity tier
+     */
+    private boolean isKnownCold(TileObject tile) {
+        Page page = coldPages.getIfPresent(pageKey(tile));
+        return page != null && page.get(bit(tile));
+    }
+
+    private void setKnownCold(TileObject tile, boolean cold) {
+        final String key = pageKey(tile);
+        Page page = coldPages.getIfPresent(key);
+        if (page == null) {
+            if (!cold) {
+                return;
+            }
+            Page created = new Page(key, tile);
+            page = coldPages.asMap().putIfAbsent(key, created);
+            if (page == null) {
+                page = created;
+            }
+        }
+        if (cold) {
+            page.set(bit(tile));
+        } else {
+            page.clear(bit(tile));
+        }
+    }
+
+    /**
+     * Forgets the tiles of a layer on both tiers, they are looked up again on the next access
+     */
+    private void forgetLayer(String layerName, TileRange range) {
+        for (Iterator<Page> it = coldPages.asMap().values().iterator(); it.hasNext();) {
+            if (it.next().layerName.equals(layerName)) {
+                it.remove();
+            }
+        }
+        for (Page page : pages.values()) {
+            if (!page.layerName.equals(layerName)) {
+                continue;
+            }
+            if (range == null) {
+                if (pages.remove(page.key, page)) {
+                    hotTiles.addAndGet(-page.cardinality());
+                }
+                continue;
+            }
+            for (int bit = page.nextSetBit(0); bit >= 0; bit = page.nextSetBit(bit + 1)) {
+                if (range.contains(page.tileIndex(bit)) && page.clear(bit)) {
+                    hotTiles.decrementAndGet();
+                }
+            }
+            if (page.isEmpty() && pages.remove(page.key, page)) {
+                hotTiles.addAndGet(-page.cardinality());
+            }
+        }
+    }
+
+    /**
+     * Moves the least recently used pages to the capacity tier until the fast tier is below its
+     * low watermark
+     */
+    private class Demotion implements Runnable {
+
+        public void run() {
+            long demoted = 0;
+            try {
+                final long target = (long) (maxHotTiles * LOW_WATERMARK);
+                List<Page> lru = new ArrayList<Page>(pages.values());
+                Collections.sort(lru, new Comparator<Page>() {
+                    public int compare(Page p1, Page p2) {
+                        long diff = p1.lastAccess - p2.lastAccess;
+                        return diff < 0 ? -1 : (diff > 0 ? 1 : 0);
+                    }
+                });
+                for (Page page : lru) {
+                    if (Thread.currentThread().isInterrupted() || hotTiles.get() <= target) {
+                        break;
+                    }
+                    if (!pages.remove(page.key, page)) {
+                        continue;
+                    }
+                    hotTiles.addAndGet(-page.cardinality());
+                    demoted += demote(page);
+                }
+            } finally {
+                demoting.set(false);
+            }
+            if (log.isDebugEnabled()) {
+                log.debug("Moved " + demoted + " tiles to the capacity tier");
+            }
+        }
+
+        private long demote(Page page) {
+            long count = 0;
+            for (int bit = page.nextSetBit(0); bit >= 0; bit = page.nextSetBit(bit + 1)) {
+                long[] xyz = page.tileIndex(bit);
+                TileObject tile = TileObject.createQueryTileObject(page.layerName, xyz,
+                        page.gridSetId, page.format, page.parameters);
+                try {
+                    // a concurrent put of the same tile waits, or goes first and gets demoted
+                    synchronized (lock(tile)) {
+                        if (demote(tile)) {
+                            count++;
+                        }
+                    }
+                } catch (StorageException e) {
+                    log.warn("Unable to move tile " + tile + " to the capacity tier: "
+                            + e.getMessage());
+                }
+            }
+            return count;
+        }
+
+        private boolean demote(TileObject tile) throws StorageException {
+            if (!hotStore.get(tile)) {
+                return false;
+            }
+            TileObject copy = TileObject.createCompleteTileObject(tile.getLayerName(),
+                    tile.getXYZ(), tile.getGridSetId(), tile.getBlobFormat(),
+                    tile.getParameters(), tile.getBlob());
+            copy.setCreated(tile.getCreated());
+            coldStore.put(copy);
+            setKnownCold(tile, true);
+
+            // only remove the fast tier tile if it's still the one copied
+            TileObject current = TileObject.createQueryTileObject(tile.getLayerName(),
+                    tile.getXYZ(), tile.getGridSetId(), tile.getBlobFormat(),
+                    tile.getParameters());
+            if (!hotStore.get(current)) {
+                return true;
+            }
+            if (current.getCreated() != tile.getCreated()
+                    || current.getBlobSize() != tile.getBlobSize()) {
+                // rewritten by someone else, the capacity tier copy is stale
+                coldStore.delete(current);
+                setKnownCold(tile, false);
+                markHot(tile);
+                return false;
+            }
+            hotStore.delete(current);
+            return true;
+        }
+    }
+
+    public void addBlobStoreListener(BlobStoreListener listener) {
+        hotStore.addListener(listener);
+        coldStore.addListener(listener);
+    }
+
+    public boolean removeBlobStoreListener(BlobStoreListener listener) {
+        boolean hot = hotStore.removeListener(listener);
+        boolean cold = coldStore.removeListener(listener);
+        return hot || cold;
+    }
+
+    public boolean delete(String layerName) throws StorageException {
+        forgetLayer(layerName, null);
+        boolean hot = hotStore.delete(layerName);
+        boolean cold = coldStore.delete(layerName);
+        return hot || cold;
+    }
+
+    public boolean deleteByGridSetId(String layerName, String gridSetId)
+            throws StorageException {
+        forgetLayer(layerName, null);
+        boolean hot = hotStore.deleteByGridsetId(layerName, gridSetId);
+        boolean cold = coldStore.deleteByGridsetId(layerName, gridSetId);
+        return hot || cold;
+    }
+
+    public boolean rename(String oldLayerName, String newLayerName) throws StorageException {
+        forgetLayer(oldLayerName, null);
+        boolean hot = hotStore.rename(oldLayerName, newLayerName);
+        boolean cold = coldStore.rename(oldLayerName, newLayerName);
+        return hot && cold;
+    }
+
+    public boolean delete(TileRange trObj) throws StorageException {
+        forgetLayer(trObj.getLayerName(), trObj);
+        boolean hot = hotStore.delete(trObj);
+        boolean cold = coldStore.delete(trObj);
+        return hot && cold;
+    }
+
+    public boolean get(TileObject tileObj) throws StorageException {
+        if (isHot(tileObj)) {
+            if (hotStore.get(tileObj)) {
+                return true;
+            }
+            markCold(tileObj);
+        }
+        if (coldStore.get(tileObj)) {
+            if (!isKnownCold(tileObj)) {
+                // a tile written to the fast tier by a previous run takes precedence
+                if (hotStore.get(tileObj)) {
+                    coldStore.delete(tileObj);
+                    markHot(tileObj);
+                    return true;
+                }
+                setKnownCold(tileObj, true);
+            }
+            if (promoteHits > 0) {
+                promote(tileObj);
+            }
+            return true;
+        }
+        // tiles left on the fast tier by a previous run
+        if (hotStore.get(tileObj)) {
+            markHot(tileObj);
+            return true;
+        }
+        return false;
+    }
+
+    private void promote(TileObject tileObj) throws StorageException {
+        String key = TransientCache.computeTransientKey(tileObj);
+        AtomicInteger hits = coldHits.getUnchecked(key);
+        if (hits.incrementAndGet() < promoteHits) {
+            return;
+        }
+        coldHits.invalidate(key);
+        TileObject copy = TileObject.createCompleteTileObject(tileObj.getLayerName(),
+                tileObj.getXYZ(), tileObj.getGridSetId(), tileObj.getBlobFormat(),
+                tileObj.getParameters(), tileObj.getBlob());
+        copy.setCreated(tileObj.getCreated());
+        synchronized (lock(tileObj)) {
+            hotStore.put(copy);
+            // serve the fast tier copy, the capacity tier one is going away
+            if (hotStore.get(tileObj)) {
+                coldStore.delete(tileObj);
+                setKnownCold(tileObj, false);
+                markHot(tileObj);
+            }
+        }
+    }
+
+    public boolean put(TileObject tileObj) throws StorageException {
+        synchronized (lock(tileObj)) {
+            hotStore.put(tileObj);
+            markHot(tileObj);
+            // a stale copy on the capacity tier would be served once this one is forgotten
+            if (isKnownCold(tileObj)) {
+                coldStore.delete(tileObj);
+                setKnownCold(tileObj, false);
+            }
+        }
+        return true;
+    }
+
+    public boolean touch(TileObject tileObj) throws StorageException {
+        if (isHot(tileObj) && BlobStoreTouch.touch(hotStore, tileObj)) {
+            return true;
+        }
+        return BlobStoreTouch.touch(coldStore, tileObj)
+                || BlobStoreTouch.touch(hotStore, tileObj);
+    }
+
+    public void destroy() {
+        log.info("Destroying TieredStorageBroker");
+        demoter.shutdownNow();
+    }
+
+    public String getLayerMetadata(String layerName, String key) {
+        return coldStore.getLayerMetadata(layerName, key);
+    }
+
+    public void putLayerMetadata(String layerName, String key, String value) {
+        coldStore.putLayerMetadata(layerName, key, value);
+    }
+
+    public boolean getTransient(TileObject tile) {
+        String key = TransientCache.computeTransientKey(tile);
+        Resource resource;
+        synchronized (transientCache) {
+            resource = transientCache.get(key);
+        }
+        tile.setBlob(resource);
+        return resource != null;
+    }
+
+    public void putTransient(TileObject tile) {
+        String key = TransientCache.computeTransientKey(tile);
+        synchronized (transientCache) {
+            transientCache.put(key, tile.getBlob());
+        }
+    }
+
+    /**
+     * @return the number of tiles known to be on the fast tier
+     */
+    long getHotTiles() {
+        return hotTiles.get();
+    }
+
+    /**
+     * Waits for the running demotion, if any, and runs another one right away if still needed
+     */
+    void demote() throws InterruptedException, ExecutionException {
+        demoter.submit(new Runnable() {
+            public void run() {
+                // the demotion thread is done with the previous tasks
+            }
+        }).get();
+        if (demoting.compareAndSet(false, true)) {
+            new Demotion().run();
+        }
+    }
+}
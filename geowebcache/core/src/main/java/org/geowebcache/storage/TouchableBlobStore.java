@@ -0,0 +1,36 @@
+/**
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package org.geowebcache.storage;
+
+/**
+ * A {@link BlobStore} able to update the creation time of a stored tile without rewriting it.
+ * <p>
+ * The storage brokers read and write back the tiles of the blob stores not implementing it.
+ * </p>
+ */
+public interface TouchableBlobStore extends BlobStore {
+
+    /**
+     * Sets the creation time of a stored tile to the one of the given object, without rewriting
+     * its contents
+     * 
+     * @param obj
+     *            the tile to update, with the new creation time
+     * @return {@literal true} if the tile was updated, {@literal false} if it's not stored
+     * @throws StorageException
+     */
+    public boolean touch(TileObject obj) throws StorageException;
+}
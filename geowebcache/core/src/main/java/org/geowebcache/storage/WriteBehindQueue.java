@@ -0,0 +1,255 @@
+/**
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package org.geowebcache.storage;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.io.IOUtils;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.geowebcache.io.ByteArrayResource;
+import org.springframework.scheduling.concurrent.CustomizableThreadFactory;
+
+/**
+ * Persists tiles to a {@link BlobStore} in the background, so that the request thread that
+ * rendered them doesn't wait on storage.
+ * <p>
+ * Queued tiles are served from memory until written. The queue is bounded, once full
+ * {@link #put(TileObject)} blocks until the writers catch up. Writers drain the queue in batches
+ * and skip tiles superseded by a newer version of the same tile queued meanwhile.
+ * </p>
+ */
+class WriteBehindQueue {
+
+    private static Log log = LogFactory.getLog(WriteBehindQueue.class);
+
+    private static final int BATCH_SIZE = 64;
+
+    private static final int LOCK_STRIPES = 64;
+
+    private final BlobStore blobStore;
+
+    private final BlockingQueue<Entry> queue;
+
+    private final ConcurrentMap<String, Entry> pending = new ConcurrentHashMap<String, Entry>();
+
+    private final Object[] locks = new Object[LOCK_STRIPES];
+
+    private final ExecutorService writers;
+
+    private static class Entry {
+
+        final String key;
+
+        final TileObject tile;
+
+        Entry(String key, TileObject tile) {
+            this.key = key;
+            this.tile = tile;
+        }
+    }
+
+    /**
+     * @param threads
+     *            number of background writers
+     * @param maxTiles
+     *            maximum number of tiles waiting to be written
+     */
+    WriteBehindQueue(BlobStore blobStore, int threads, int maxTiles) {
+        this.blobStore = blobStore;
+        this.queue = new LinkedBlockingQueue<Entry>(maxTiles);
+        for (int i = 0; i < locks.length; i++) {
+            locks[i] = new Object();
+        }
+        CustomizableThreadFactory tf = new CustomizableThreadFactory("GWC write behind thread-");
+        tf.setDaemon(true);
+        writers = Executors.newFixedThreadPool(threads, tf);
+        for (int i = 0; i < threads; i++) {
+            writers.submit(new Writer());
+        }
+    }
+
+    /**
+     * Queues a tile to be written, blocking while the queue is full. The tile contents are copied,
+     * the caller is free to reuse its buffer once this method returns
+     */
+    void put(TileObject tile) throws StorageException {
+        final TileObject copy = copy(tile);
+        final Entry entry = new Entry(TransientCache.computeTransientKey(tile), copy);
+        pending.put(entry.key, entry);
+        try {
+            queue.put(entry);
+        } catch (InterruptedException e) {
+            pending.remove(entry.key, entry);
+            Thread.currentThread().interrupt();
+            throw new StorageException("Interrupted while queueing tile " + entry.key);
+        }
+    }
+
+    /**
+     * Sets the blob of a tile still waiting to be written
+     *
+     * @return {@code true} if the tile is queued
+     */
+    boolean get(TileObject tile) {
+        if (pending.isEmpty()) {
+            return false;
+        }
+        Entry entry = pending.get(TransientCache.computeTransientKey(tile));
+        if (entry == null) {
+            return false;
+        }
+        tile.setBlob(entry.tile.getBlob());
+        tile.setBlobSize(entry.tile.getBlobSize());
+        tile.setCreated(entry.tile.getCreated());
+        return true;
+    }
+
+    /**
+     * Updates the creation time of a tile, in the queue if it's still waiting to be written, in
+     * the blob store otherwise
+     *
+     * @return {@code false} if the tile is neither queued nor stored
+     */
+    boolean touch(TileObject tile) throws StorageException {
+        final String key = TransientCache.computeTransientKey(tile);
+        // the writers hold the same lock, a tile being written is touched once on disk
+        synchronized (locks[Math.abs(key.hashCode() % locks.length)]) {
+            Entry entry = pending.get(key);
+            if (entry != null) {
+                entry.tile.setCreated(tile.getCreated());
+                return true;
+            }
+            return BlobStoreTouch.touch(blobStore, tile);
+        }
+    }
+
+    /**
+     * Writes all the tiles queued when called, waiting for the ones being written by the
+     * background writers. Used before operations that must see every stored tile, like
+     * truncation and layer deletes. Tiles queued meanwhile are not waited for, so that a steady
+     * stream of puts can't keep this method from returning
+     */
+    void flush() {
+        final List<Entry> queued = new ArrayList<Entry>(pending.values());
+        List<Entry> batch = new ArrayList<Entry>();
+        for (Entry entry : queued) {
+            // done once written, or superseded by a newer version of the tile
+            while (pending.get(entry.key) == entry) {
+                batch.clear();
+                queue.drainTo(batch);
+                if (batch.isEmpty()) {
+                    // it's being written right now
+                    synchronized (pending) {
+                        if (pending.get(entry.key) == entry) {
+                            try {
+                                pending.wait(10);
+                            } catch (InterruptedException e) {
+                                Thread.currentThread().interrupt();
+                                return;
+                            }
+                        }
+                    }
+                } else {
+                    write(batch);
+                }
+            }
+        }
+    }
+
+    /**
+     * Writes the queued tiles and stops the background writers
+     */
+    void destroy() {
+        flush();
+        writers.shutdownNow();
+    }
+
+    private TileObject copy(TileObject tile) throws StorageException {
+        final byte[] contents;
+        InputStream in = null;
+        try {
+            in = tile.getBlob().getInputStream();
+            contents = IOUtils.toByteArray(in);
+        } catch (IOException e) {
+            throw new StorageException("Unable to read tile contents: " + e.getMessage());
+        } finally {
+            IOUtils.closeQuietly(in);
+        }
+        TileObject copy = TileObject.createCompleteTileObject(tile.getLayerName(), tile.getXYZ(),
+                tile.getGridSetId(), tile.getBlobFormat(), tile.getParameters(),
+                new ByteArrayResource(contents));
+        copy.setCreated(tile.getCreated());
+        return copy;
+    }
+
+    private void write(List<Entry> batch) {
+        for (Entry entry : batch) {
+            synchronized (locks[Math.abs(entry.key.hashCode() % locks.length)]) {
+                // a newer version of the tile is queued, it'll be written instead
+                if (pending.get(entry.key) != entry) {
+                    continue;
+                }
+                try {
+                    blobStore.put(entry.tile);
+                } catch (StorageException e) {
+                    log.error("Unable to store tile " + entry.key + ": " + e.getMessage());
+                } catch (RuntimeException e) {
+                    log.error("Unable to store tile " + entry.key, e);
+                } finally {
+                    pending.remove(entry.key, entry);
+                }
+            }
+        }
+        synchronized (pending) {
+            pending.notifyAll();
+        }
+    }
+
+    private class Writer implements Runnable {
+
+        public void run() {
+            List<Entry> batch = new ArrayList<Entry>(BATCH_SIZE);
+            try {
+                while (!Thread.currentThread().isInterrupted()) {
+                    Entry first = queue.poll(1, TimeUnit.SECONDS);
+                    if (first == null) {
+                        continue;
+                    }
+                    batch.clear();
+                    batch.add(first);
+                    queue.drainTo(batch, BATCH_SIZE - 1);
+                    write(batch);
+                }
+            } catch (InterruptedException e) {
+                if (!queue.isEmpty()) {
+                    log.warn("Write behind thread interrupted with " + queue.size()
+                            + " tiles left to write");
+                }
+            }
+        }
+    }
+}
@@ -21,29 +21,36 @@ import static org.geowebcache.storage.blobstore.file.FilePathUtils.*;
 
 import java.io.File;
 import java.io.FileFilter;
-import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.IOException;
-import java.io.OutputStream;
-import java.io.UnsupportedEncodingException;
-import java.net.URLDecoder;
-import java.net.URLEncoder;
+import java.io.InputStream;
 import java.nio.channels.FileChannel;
-import java.util.Properties;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
 import java.util.UUID;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 import org.apache.commons.io.IOUtils;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import org.geowebcache.config.ConfigurationException;
+import org.geowebcache.io.ByteArrayResource;
 import org.geowebcache.io.FileResource;
 import org.geowebcache.io.Resource;
 import org.geowebcache.mime.MimeException;
 import org.geowebcache.mime.MimeType;
-import org.geowebcache.storage.BlobStore;
 import org.geowebcache.storage.BlobStoreListener;
 import org.geowebcache.storage.BlobStoreListenerList;
 import org.geowebcache.storage.DefaultStorageFinder;
@@ -51,18 +58,28 @@ import org.geowebcache.storage.StorageException;
 import org.geowebcache.storage.StorageObject.Status;
 import org.geowebcache.storage.TileObject;
 import org.geowebcache.storage.TileRange;
+import org.geowebcache.storage.TouchableBlobStore;
+import org.geowebcache.util.GWCVars;
 import org.springframework.scheduling.concurrent.CustomizableThreadFactory;
 
 /**
  * See BlobStore interface description for details
  * 
  */
-public class FileBlobStore implements BlobStore {
+public class FileBlobStore implements TouchableBlobStore {
     private static Log log = LogFactory
             .getLog(org.geowebcache.storage.blobstore.file.FileBlobStore.class);
 
     public static final int BUFFER_SIZE = 32768;
 
+    /**
+     * Unique per JVM, so that temporary files of different processes sharing the cache don't
+     * clash
+     */
+    private static final String TEMP_PREFIX = UUID.randomUUID().toString() + "-";
+
+    private static final AtomicLong TEMP_COUNTER = new AtomicLong();
+
     private final File stagingArea;
 
     private final String path;
@@ -73,7 +90,47 @@ public class FileBlobStore implements BlobStore {
 
     private File tmp;
 
-    private static ExecutorService deleteExecutorService;
+    /**
+     * Environment variable, system property or servlet context parameter setting how many threads
+     * each store uses to delete the layers and gridsets moved to its staging area. Defaults to the
+     * number of available processors
+     */
+    public static final String GWC_DELETE_THREADS = "GWC_DELETE_THREADS";
+
+    /**
+     * Environment variable, system property or servlet context parameter limiting how many files
+     * per second the background deletes of each store remove. Unlimited if unset or not positive
+     */
+    public static final String GWC_DELETE_MAX_FILES_PER_SECOND = "GWC_DELETE_MAX_FILES_PER_SECOND";
+
+    private final ExecutorService deleteExecutorService;
+
+    private final DeleteThrottle deleteThrottle;
+
+    private int truncateThreads = Runtime.getRuntime().availableProcessors();
+
+    private final FileContentStore contentStore;
+
+    private final LayerMetadataStore metadata;
+
+    private volatile boolean deduplicate;
+
+    /**
+     * Serializes the writes and deletes of the same deduplicated tile
+     */
+    private final Object[] tileLocks = new Object[TILE_LOCK_STRIPES];
+
+    private static final int TILE_LOCK_STRIPES = 64;
+
+    private volatile TileExistenceIndex existenceIndex;
+
+    private boolean persistExistenceIndex;
+
+    /**
+     * Zoom levels where the range holds at most this many tiles are truncated by computing the
+     * tile paths, larger ones by scanning the intermediate directories
+     */
+    public static final long TARGETED_TRUNCATE_MAX_TILES = 10000;
 
     public FileBlobStore(DefaultStorageFinder defStoreFinder) throws StorageException, ConfigurationException {
         this(defStoreFinder.getDefaultPath());
@@ -97,8 +154,15 @@ public class FileBlobStore implements BlobStore {
             throw new StorageException(tmp.getPath() + " is not writable directory.");
         }
         
+        for (int i = 0; i < tileLocks.length; i++) {
+            tileLocks[i] = new Object();
+        }
+        contentStore = new FileContentStore(fh, tmp);
+        metadata = new LayerMetadataStore(tmp);
+
         stagingArea = new File(path, "_gwc_in_progress_deletes_");
-        createDeleteExecutorService();
+        deleteExecutorService = createDeleteExecutorService();
+        deleteThrottle = createDeleteThrottle();
         issuePendingDeletes();
     }
 
@@ -118,37 +182,242 @@ public class FileBlobStore implements BlobStore {
         }
     }
 
+    /**
+     * Schedules the deletion of a directory in the staging area. Each sub directory is deleted as
+     * a separate task so that large layers are deleted in parallel, the pending directory itself
+     * is removed once all of them are done
+     */
     private void deletePending(final File pendingDeleteDirectory) {
-        FileBlobStore.deleteExecutorService.submit(new DefferredDirectoryDeleteTask(
-                pendingDeleteDirectory));
+        File[] children = pendingDeleteDirectory.listFiles();
+        if (children == null || children.length == 0) {
+            children = new File[] { pendingDeleteDirectory };
+        }
+        PendingDelete pending = new PendingDelete(pendingDeleteDirectory, children.length);
+        // only look for reference files if tiles were ever deduplicated
+        FileContentStore references = contentStore.exists() ? contentStore : null;
+        for (File child : children) {
+            deleteExecutorService.submit(new DefferredDirectoryDeleteTask(child, pending,
+                    references, deleteThrottle));
+        }
     }
 
-    private void createDeleteExecutorService() {
+    private static ExecutorService createDeleteExecutorService() {
+        final int threads = (int) toLong(GWC_DELETE_THREADS, Runtime.getRuntime()
+                .availableProcessors());
+
         CustomizableThreadFactory tf;
         tf = new CustomizableThreadFactory("GWC FileStore delete directory thread-");
         tf.setDaemon(true);
         tf.setThreadPriority(Thread.MIN_PRIORITY);
-        deleteExecutorService = Executors.newFixedThreadPool(1);
+        return Executors.newFixedThreadPool(Math.max(1, threads), tf);
+    }
+
+    private static DeleteThrottle createDeleteThrottle() {
+        final long maxFilesPerSecond = toLong(GWC_DELETE_MAX_FILES_PER_SECOND, 0);
+        return maxFilesPerSecond > 0 ? new DeleteThrottle(maxFilesPerSecond) : null;
+    }
+
+    private static long toLong(String varName, long defaultVal) {
+        String paramVal = GWCVars.findEnvVar(null, varName);
+        if (paramVal == null) {
+            return defaultVal;
+        }
+        try {
+            return Long.parseLong(paramVal.trim());
+        } catch (NumberFormatException e) {
+            log.warn("Invalid environment parameter for " + varName + ": '" + paramVal
+                    + "'. Using default value: " + defaultVal);
+        }
+        return defaultVal;
+    }
+
+    /**
+     * Sets the maximum number of threads used to truncate a tile range, defaults to the number of
+     * available processors
+     */
+    public void setTruncateThreads(int truncateThreads) {
+        this.truncateThreads = truncateThreads;
+    }
+
+    /**
+     * Enables or disables tile deduplication, disabled by default.
+     * <p>
+     * When enabled byte identical tiles (e.g. empty or uniform ones) are stored once in a content
+     * addressed area, and each tile file just references the stored payload. Reference counts keep
+     * the payloads around until the last tile using them is deleted or truncated. The sizes
+     * reported to the {@link BlobStoreListener listeners}, and thus to the disk quota, are the
+     * physical bytes taken: a reference file, plus the payload when first stored.
+     * </p>
+     * <p>
+     * Deduplicated tiles are still read back after disabling it, only new tiles are written in
+     * full again.
+     * </p>
+     */
+    public void setDeduplicate(boolean deduplicate) {
+        this.deduplicate = deduplicate;
+    }
+
+    /**
+     * Enables or disables the in memory tile existence index, disabled by default.
+     * <p>
+     * The index answers misses without checking the file system, using an exact bitmap for the
+     * lower zoom levels and a Bloom filter for the higher ones. It's kept up to date by the events
+     * of this store, so it can only be used when no other process writes to the cache directory.
+     * </p>
+     */
+    public synchronized void setExistenceIndex(boolean enabled) {
+        if (enabled && existenceIndex == null) {
+            TileExistenceIndex index = new TileExistenceIndex(new File(path));
+            index.setPersist(persistExistenceIndex);
+            listeners.addListener(index);
+            existenceIndex = index;
+        } else if (!enabled && existenceIndex != null) {
+            listeners.removeListener(existenceIndex);
+            existenceIndex.destroy();
+            existenceIndex = null;
+        }
+    }
+
+    /**
+     * Sets whether the existence index is saved on {@link #destroy()}, and loaded back on the
+     * next start instead of scanning the cache again. Only applies when the index is enabled
+     * with {@link #setExistenceIndex(boolean)}
+     */
+    public synchronized void setPersistExistenceIndex(boolean persist) {
+        this.persistExistenceIndex = persist;
+        if (existenceIndex != null) {
+            existenceIndex.setPersist(persist);
+        }
     }
 
     /**
-     * Destroy method for Spring
+     * Destroy method for Spring. Pending deletes are interrupted, and resumed at the next start
      */
     public void destroy() {
         deleteExecutorService.shutdownNow();
+        try {
+            // the delete threads check for interruption between files, so this is quick
+            if (!deleteExecutorService.awaitTermination(10, TimeUnit.SECONDS)) {
+                log.warn("Timed out waiting for the delete threads of " + path + " to stop");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        TileExistenceIndex index = existenceIndex;
+        if (index != null) {
+            index.destroy();
+        }
+        contentStore.close();
+    }
+
+    /**
+     * Keeps track of the progress of a directory being deleted from the staging area
+     */
+    private static class PendingDelete {
+
+        private static final long PROGRESS_INTERVAL = 10000;
+
+        private final File directory;
+
+        private final AtomicInteger remaining;
+
+        private final AtomicLong deletedFiles = new AtomicLong();
+
+        private final long startTime = System.currentTimeMillis();
+
+        PendingDelete(File directory, int tasks) {
+            this.directory = directory;
+            this.remaining = new AtomicInteger(tasks);
+        }
+
+        void fileDeleted() {
+            long count = deletedFiles.incrementAndGet();
+            if (count % PROGRESS_INTERVAL == 0 && log.isInfoEnabled()) {
+                log.info("Deleted " + count + " files from '" + directory.getAbsolutePath()
+                        + "' so far, " + remaining.get() + " sub directories left");
+            }
+        }
+
+        /**
+         * Called once a sub directory has been fully deleted, removes the pending directory
+         * after the last one
+         */
+        void taskDone() {
+            if (remaining.decrementAndGet() <= 0) {
+                if (directory.delete() || !directory.exists()) {
+                    long seconds = (System.currentTimeMillis() - startTime) / 1000;
+                    log.info("Deleted '" + directory.getAbsolutePath() + "', " + deletedFiles.get()
+                            + " files in " + seconds + " seconds");
+                } else {
+                    log.warn("Unable to delete directory " + directory.getAbsolutePath());
+                }
+            }
+        }
+    }
+
+    /**
+     * Limits the rate at which the background deletes remove files, so that they don't saturate
+     * the disk serving tiles
+     */
+    private static class DeleteThrottle {
+
+        private final long intervalNanos;
+
+        private long next;
+
+        DeleteThrottle(long filesPerSecond) {
+            this.intervalNanos = TimeUnit.SECONDS.toNanos(1) / filesPerSecond;
+        }
+
+        void acquire() throws InterruptedException {
+            long wait;
+            synchronized (this) {
+                long now = System.nanoTime();
+                if (next < now) {
+                    next = now;
+                }
+                wait = next - now;
+                next += intervalNanos;
+            }
+            if (wait > 0) {
+                TimeUnit.NANOSECONDS.sleep(wait);
+            }
+        }
     }
 
     private static class DefferredDirectoryDeleteTask implements Runnable {
 
         private final File directory;
 
-        public DefferredDirectoryDeleteTask(final File directory) {
+        private final PendingDelete pending;
+
+        private final FileContentStore contentStore;
+
+        private final DeleteThrottle deleteThrottle;
+
+        /**
+         * @param contentStore
+         *            the store to release the deleted reference files from, or {@code null} if
+         *            there are none
+         * @param deleteThrottle
+         *            the rate limit shared by the store's delete tasks, or {@code null} if
+         *            unlimited
+         */
+        public DefferredDirectoryDeleteTask(final File directory, final PendingDelete pending,
+                final FileContentStore contentStore, final DeleteThrottle deleteThrottle) {
             this.directory = directory;
+            this.pending = pending;
+            this.contentStore = contentStore;
+            this.deleteThrottle = deleteThrottle;
         }
 
         public void run() {
             try {
-                deleteDirectory(directory);
+                if (directory.isDirectory()) {
+                    deleteDirectory(directory);
+                } else {
+                    deleteFile(directory);
+                }
             } catch (IOException e) {
                 log.warn("Exception occurred while deleting '" + directory.getAbsolutePath() + "'",
                         e);
@@ -156,7 +425,9 @@ public class FileBlobStore implements BlobStore {
                 log.info("FileStore delete background service interrupted while deleting '"
                         + directory.getAbsolutePath()
                         + "'. Process will be resumed at next start up");
+                return;
             }
+            pending.taskDone();
         }
 
         private void deleteDirectory(File directory) throws IOException, InterruptedException {
@@ -175,9 +446,7 @@ public class FileBlobStore implements BlobStore {
                 if (file.isDirectory()) {
                     deleteDirectory(file);
                 } else {
-                    if (!file.delete()) {
-                        throw new IOException("Unable to delete " + file.getAbsolutePath());
-                    }
+                    deleteFile(file);
                 }
             }
             if (!directory.delete()) {
@@ -186,6 +455,22 @@ public class FileBlobStore implements BlobStore {
             }
         }
 
+        private void deleteFile(File file) throws IOException, InterruptedException {
+            if (deleteThrottle != null) {
+                deleteThrottle.acquire();
+            }
+            String hash = null;
+            if (contentStore != null) {
+                hash = FileContentStore.readReference(file, file.length());
+            }
+            if (!file.delete()) {
+                throw new IOException("Unable to delete " + file.getAbsolutePath());
+            }
+            if (hash != null) {
+                contentStore.removeReference(hash);
+            }
+            pending.fileDeleted();
+        }
     }
 
     /**
@@ -196,6 +481,7 @@ public class FileBlobStore implements BlobStore {
         final String target = filteredLayerName(layerName);
 
         boolean ret = stageDelete(source, target);
+        metadata.invalidate(layerName);
 
         this.listeners.sendLayerDeleted(layerName);
         return ret;
@@ -283,6 +569,8 @@ public class FileBlobStore implements BlobStore {
             throw new StorageException("Can't rename layer directory " + oldLayerPath + " to "
                     + newLayerPath + ". Target directory already exists");
         }
+        metadata.invalidate(oldLayerName);
+        metadata.invalidate(newLayerName);
         if (!oldLayerPath.exists()) {
             this.listeners.sendLayerRenamed(oldLayerName, newLayerName);
             return true;
@@ -320,10 +608,11 @@ public class FileBlobStore implements BlobStore {
         final long length = fh.length();
         final boolean exists = length > 0;
         if (exists) {
-            if (!fh.delete()) {
+            final long deleted = deleteTile(fh, length);
+            if (deleted < 0) {
                 throw new StorageException("Unable to delete " + fh.getAbsolutePath());
             }
-            stObj.setBlobSize((int) length);
+            stObj.setBlobSize((int) deleted);
             listeners.sendTileDeleted(stObj);
 
             ret = true;
@@ -339,12 +628,45 @@ public class FileBlobStore implements BlobStore {
         return ret;
     }
 
+    /**
+     * Deletes a tile file, releasing the payload it references if deduplicated
+     * 
+     * @param length
+     *            the tile file length
+     * @return the number of bytes released, or {@code -1} if the file could not be deleted
+     */
+    private long deleteTile(File tile, long length) {
+        if (length != FileContentStore.REFERENCE_LENGTH) {
+            return tile.delete() ? length : -1;
+        }
+        // may be a reference, released under the same lock put() swaps them with
+        synchronized (tileLock(tile)) {
+            final long current = tile.length();
+            final String hash = FileContentStore.readReference(tile, current);
+            if (!tile.delete()) {
+                return -1;
+            }
+            if (hash == null) {
+                return current;
+            }
+            return current + contentStore.removeReference(hash);
+        }
+    }
+
+    private Object tileLock(File tile) {
+        return tileLocks[Math.abs(tile.getPath().hashCode() % tileLocks.length)];
+    }
+
     /**
      * Delete tiles within a range.
+     * <p>
+     * Zoom levels where the range is small have their tile paths computed out of the range bounds,
+     * the others get the intermediate directories intersecting the range scanned. Each zoom level
+     * or intermediate directory is truncated in parallel, using up to
+     * {@link #setTruncateThreads(int) truncateThreads} threads
+     * </p>
      */
     public boolean delete(TileRange trObj) throws StorageException {
-        int count = 0;
-
         String prefix = path + File.separator
                 + filteredLayerName(trObj.getLayerName());
 
@@ -362,46 +684,55 @@ public class FileBlobStore implements BlobStore {
         
         final FilePathFilter tileFinder = new FilePathFilter(trObj);
 
-        final String layerName = trObj.getLayerName();
-        final String gridSetId = trObj.getGridSetId();
-        final String blobFormat = trObj.getMimeType().getFormat();
-        final String parametersId = trObj.getParametersId();
-
         File[] srsZoomDirs = layerPath.listFiles(tileFinder);
 
-        final String gridsetPrefix = filteredGridSetId(gridSetId);
+        final String gridsetPrefix = filteredGridSetId(trObj.getGridSetId());
+        final List<TruncateTask> tasks = new ArrayList<TruncateTask>();
         for (File srsZoomParamId : srsZoomDirs) {
             int zoomLevel = findZoomLevel(gridsetPrefix, srsZoomParamId.getName());
+            long[] rangeBounds = FilePathFilter.getRangeBounds(trObj, zoomLevel);
+            if (rangeBounds != null && countTiles(rangeBounds) <= TARGETED_TRUNCATE_MAX_TILES) {
+                tasks.add(new TargetedTruncateTask(trObj, srsZoomParamId, zoomLevel, rangeBounds));
+                continue;
+            }
+            // large range, scan the intermediate directories intersecting it
             File[] intermediates = srsZoomParamId.listFiles(tileFinder);
-
+            if (intermediates == null) {
+                continue;
+            }
             for (File imd : intermediates) {
-                File[] tiles = imd.listFiles(tileFinder);
-                long length;
-
-                for (File tile : tiles) {
-                    length = tile.length();
-                    boolean deleted = tile.delete();
-                    if (deleted) {
-                        String[] coords = tile.getName().split("\\.")[0].split("_");
-                        long x = Long.parseLong(coords[0]);
-                        long y = Long.parseLong(coords[1]);
-                        listeners.sendTileDeleted(layerName, gridSetId, blobFormat, parametersId,
-                                x, y, zoomLevel, length);
-                        count++;
-                    }
-                }
+                tasks.add(new IntermediateTruncateTask(trObj, imd, zoomLevel));
+            }
+        }
 
-                // Try deleting the directory (will be done only if the directory is empty)
-                if (imd.delete()) {
-                    // listeners.sendDirectoryDeleted(layerName);
+        long count = 0;
+        final int threads = Math.min(truncateThreads, tasks.size());
+        if (threads <= 1) {
+            for (TruncateTask task : tasks) {
+                count += task.call().longValue();
+            }
+        } else {
+            ExecutorService executor = Executors.newFixedThreadPool(threads,
+                    new CustomizableThreadFactory("GWC FileStore truncate thread-"));
+            try {
+                List<Future<Long>> results = executor.invokeAll(tasks);
+                for (Future<Long> result : results) {
+                    count += result.get().longValue();
                 }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new StorageException("Interrupted while truncating " + trObj.getLayerName());
+            } catch (ExecutionException e) {
+                throw new StorageException("Error truncating " + trObj.getLayerName() + ": "
+                        + e.getCause().getMessage());
+            } finally {
+                executor.shutdownNow();
             }
+        }
 
+        for (File srsZoomParamId : srsZoomDirs) {
             // Try deleting the zoom directory (will be done only if the directory is empty)
-            if (srsZoomParamId.delete()) {
-                count++;
-                // listeners.sendDirectoryDeleted(layerName);
-            }
+            srsZoomParamId.delete();
         }
 
         log.info("Truncated " + count + " tiles");
@@ -409,6 +740,165 @@ public class FileBlobStore implements BlobStore {
         return true;
     }
 
+    /**
+     * A unit of work of a tile range truncation, returning the number of deleted tiles
+     */
+    private abstract static class TruncateTask implements Callable<Long> {
+        public abstract Long call();
+    }
+
+    private static long countTiles(long[] rangeBounds) {
+        return (rangeBounds[2] - rangeBounds[0] + 1) * (rangeBounds[3] - rangeBounds[1] + 1);
+    }
+
+    /**
+     * Deletes the tiles of a zoom level computing their paths out of the range bounds, instead of
+     * listing the intermediate directories. Used for ranges small enough that probing each tile
+     * is cheaper than a directory scan
+     */
+    private class TargetedTruncateTask extends TruncateTask {
+
+        private final TileRange tr;
+
+        private final File zoomLevelDir;
+
+        private final int zoomLevel;
+
+        private final long[] rangeBounds;
+
+        TargetedTruncateTask(TileRange tr, File zoomLevelDir, int zoomLevel, long[] rangeBounds) {
+            this.tr = tr;
+            this.zoomLevelDir = zoomLevelDir;
+            this.zoomLevel = zoomLevel;
+            this.rangeBounds = rangeBounds;
+        }
+
+        public Long call() {
+            final String layerName = tr.getLayerName();
+            final String gridSetId = tr.getGridSetId();
+            final String blobFormat = tr.getMimeType().getFormat();
+            final String parametersId = tr.getParametersId();
+            final String extension = tr.getMimeType().getFileExtension();
+
+            final String prefix = zoomLevelDir.getPath() + File.separatorChar;
+            final StringBuilder path = new StringBuilder(prefix.length() + 32);
+            final Set<File> intermediates = new HashSet<File>();
+            long count = 0;
+            for (long x = rangeBounds[0]; x <= rangeBounds[2]; x++) {
+                for (long y = rangeBounds[1]; y <= rangeBounds[3]; y++) {
+                    if (!tr.contains(x, y, zoomLevel)) {
+                        continue;
+                    }
+                    path.setLength(0);
+                    path.append(prefix);
+                    FilePathGenerator.appendTilePath(x, y, zoomLevel, extension, path);
+                    File tile = new File(path.toString());
+                    // deleting a missing file fails, no need for an exists() call. Zero length
+                    // tiles are deleted too, as the directory scan does
+                    final long deleted = deleteTile(tile, tile.length());
+                    if (deleted >= 0) {
+                        listeners.sendTileDeleted(layerName, gridSetId, blobFormat, parametersId,
+                                x, y, zoomLevel, deleted);
+                        intermediates.add(tile.getParentFile());
+                        count++;
+                    }
+                }
+            }
+
+            // Try deleting the directories (will be done only if they are empty)
+            for (File intermediate : intermediates) {
+                intermediate.delete();
+            }
+
+            return Long.valueOf(count);
+        }
+    }
+
+    /**
+     * Deletes the tiles of a single intermediate directory that fall within a tile range, and
+     * the directory itself if left empty. Tile coordinates are parsed once per file, and bounds
+     * checks are skipped altogether when the range fully covers the directory
+     */
+    private class IntermediateTruncateTask extends TruncateTask {
+
+        private final TileRange tr;
+
+        private final File intermediate;
+
+        private final int zoomLevel;
+
+        private final String extension;
+
+        IntermediateTruncateTask(TileRange tr, File intermediate, int zoomLevel) {
+            this.tr = tr;
+            this.intermediate = intermediate;
+            this.zoomLevel = zoomLevel;
+            this.extension = tr.getMimeType().getFileExtension();
+        }
+
+        public Long call() {
+            final String layerName = tr.getLayerName();
+            final String gridSetId = tr.getGridSetId();
+            final String blobFormat = tr.getMimeType().getFormat();
+            final String parametersId = tr.getParametersId();
+            final boolean covered = isCovered();
+
+            String[] names = intermediate.list();
+            if (names == null) {
+                return Long.valueOf(0);
+            }
+            long count = 0;
+            for (String name : names) {
+                final int dot = name.lastIndexOf('.');
+                final int sep = name.indexOf('_');
+                if (dot <= 0 || sep <= 0 || sep > dot
+                        || !extension.equalsIgnoreCase(name.substring(dot + 1))) {
+                    continue;
+                }
+                final long x;
+                final long y;
+                try {
+                    x = Long.parseLong(name.substring(0, sep));
+                    y = Long.parseLong(name.substring(sep + 1, dot));
+                } catch (NumberFormatException e) {
+                    continue;
+                }
+                if (!covered && !tr.contains(x, y, zoomLevel)) {
+                    continue;
+                }
+                File tile = new File(intermediate, name);
+                long deleted = deleteTile(tile, tile.length());
+                if (deleted >= 0) {
+                    listeners.sendTileDeleted(layerName, gridSetId, blobFormat, parametersId, x,
+                            y, zoomLevel, deleted);
+                    count++;
+                }
+            }
+
+            // Try deleting the directory (will be done only if the directory is empty)
+            intermediate.delete();
+
+            return Long.valueOf(count);
+        }
+
+        /**
+         * @return whether all the tiles the intermediate directory can hold are within the range
+         */
+        private boolean isCovered() {
+            // subclasses may filter tiles further than the range bounds
+            if (tr.getClass() != TileRange.class) {
+                return false;
+            }
+            long[] dirBounds = findIntermediateBounds(zoomLevel, intermediate.getName());
+            if (dirBounds == null) {
+                return false;
+            }
+            // the range is a rectangle, so it covers the directory if it contains both corners
+            return tr.contains(dirBounds[0], dirBounds[1], zoomLevel)
+                    && tr.contains(dirBounds[2], dirBounds[3], zoomLevel);
+        }
+    }
+
     /**
      * Set the blob property of a TileObject.
      * @param stObj the tile to load.  Its setBlob() method will be called.
@@ -416,16 +906,39 @@ public class FileBlobStore implements BlobStore {
      */
     public boolean get(TileObject stObj) throws StorageException {
         File fh = getFileHandleTile(stObj, false);
-        if(!fh.exists()) {
+        final TileExistenceIndex index = existenceIndex;
+        if (index != null && index.isMissing(stObj, fh)) {
             stObj.setStatus(Status.MISS);
             return false;
+        }
+        // File.length() returns 0 if the file does not exist, so a single call tells both for
+        // any non empty tile, and the size and modification time are handed over to the
+        // resource instead of being looked up again later
+        final long length = fh.length();
+        if (length == 0 && !fh.exists()) {
+            stObj.setStatus(Status.MISS);
+            return false;
+        }
+        final long lastModified = fh.lastModified();
+        final Resource resource;
+        final String hash = FileContentStore.readReference(fh, length);
+        if (hash == null) {
+            resource = new FileResource(fh, length, lastModified);
         } else {
-            Resource resource = readFile(fh);
-            stObj.setBlob(resource);
-            stObj.setCreated(resource.getLastModified());
-            stObj.setBlobSize((int) resource.getSize());
-            return true;
+            // the payload may be shared, the tile creation time is the reference one
+            File content = contentStore.getContentFile(hash);
+            long contentLength = content.length();
+            if (contentLength == 0) {
+                // the referenced payload is gone
+                stObj.setStatus(Status.MISS);
+                return false;
+            }
+            resource = new FileResource(content, contentLength, lastModified);
         }
+        stObj.setBlob(resource);
+        stObj.setCreated(lastModified);
+        stObj.setBlobSize((int) resource.getSize());
+        return true;
     }
 
     /**
@@ -433,9 +946,46 @@ public class FileBlobStore implements BlobStore {
      */
     public void put(TileObject stObj) throws StorageException {
         final File fh = getFileHandleTile(stObj, true);
-        final long oldSize = fh.length();
-        final boolean existed = oldSize > 0;
-        writeFile(fh, stObj, existed);
+        final TileExistenceIndex index = existenceIndex;
+        long oldSize = index != null && index.isMissing(stObj, fh) ? 0 : fh.length();
+        final boolean existed;
+        final int storedSize;
+        long oldStoredSize;
+        if (deduplicate || oldSize == FileContentStore.REFERENCE_LENGTH) {
+            // swapping references, one writer at a time so that the old one is released once
+            synchronized (tileLock(fh)) {
+                oldSize = fh.length();
+                existed = oldSize > 0;
+                final String oldHash = FileContentStore.readReference(fh, oldSize);
+                final boolean replaced;
+                if (deduplicate) {
+                    final byte[] contents = getContents(stObj.getBlob());
+                    final String hash = FileContentStore.hash(contents);
+                    // reference first, so that the payload can't be released by a concurrent
+                    // delete
+                    long added = contentStore.addReference(hash, contents);
+                    replaced = writeFile(fh,
+                            new ByteArrayResource(FileContentStore.reference(hash)), existed);
+                    if (!replaced) {
+                        added -= contentStore.removeReference(hash);
+                    }
+                    storedSize = (int) (FileContentStore.REFERENCE_LENGTH + added);
+                } else {
+                    replaced = writeFile(fh, stObj.getBlob(), existed);
+                    storedSize = stObj.getBlobSize();
+                }
+                oldStoredSize = oldSize;
+                // the old reference is only gone if our file took its place
+                if (oldHash != null && replaced) {
+                    oldStoredSize += contentStore.removeReference(oldHash);
+                }
+            }
+        } else {
+            existed = oldSize > 0;
+            writeFile(fh, stObj.getBlob(), existed);
+            storedSize = stObj.getBlobSize();
+            oldStoredSize = oldSize;
+        }
         // mark the last modification as the tile creation time if set, otherwise
         // we'll leave it to the writing time
         if(stObj.getCreated() > 0) {
@@ -450,10 +1000,23 @@ public class FileBlobStore implements BlobStore {
          * This is important because listeners may be tracking tile existence
          */
         if (existed) {
-            listeners.sendTileUpdated(stObj, oldSize);
+            listeners.sendTileUpdated(stObj, storedSize, oldStoredSize);
         } else {
-            listeners.sendTileStored(stObj);
+            listeners.sendTileStored(stObj, storedSize);
+        }
+    }
+
+    /**
+     * Updates the tile creation time, that is, the file last modification time
+     */
+    public boolean touch(TileObject stObj) throws StorageException {
+        File fh = getFileHandleTile(stObj, false);
+        final TileExistenceIndex index = existenceIndex;
+        if (index != null && index.isMissing(stObj, fh)) {
+            return false;
         }
+        // fails if the file does not exist
+        return fh.setLastModified(stObj.getCreated());
     }
 
     private File getFileHandleTile(TileObject stObj, boolean create) throws StorageException {
@@ -475,17 +1038,40 @@ public class FileBlobStore implements BlobStore {
         return tilePath;
     }
 
-    private Resource readFile(File fh) throws StorageException {
-        if (!fh.exists()) {
-            return null;
+    /**
+     * Returns a new unique temporary file name. Unlike {@link UUID#randomUUID()} this doesn't
+     * hit the shared secure random generator on each write, which contends under heavy seeding
+     */
+    static File newTempFile(File tmp) {
+        return new File(tmp, TEMP_PREFIX + TEMP_COUNTER.incrementAndGet());
+    }
+
+    private byte[] getContents(Resource blob) throws StorageException {
+        if (blob instanceof ByteArrayResource) {
+            byte[] contents = ((ByteArrayResource) blob).getContents();
+            return contents == null ? new byte[0] : contents;
+        }
+        InputStream in = null;
+        try {
+            in = blob.getInputStream();
+            return IOUtils.toByteArray(in);
+        } catch (IOException e) {
+            throw new StorageException("Unable to read tile contents: " + e.getMessage());
+        } finally {
+            IOUtils.closeQuietly(in);
         }
-        return new FileResource(fh);
     }
 
-    private void writeFile(File target, TileObject stObj, boolean existed) throws StorageException {
+    /**
+     * Writes the tile to a temporary file, then moves it in place
+     *
+     * @return whether the written file replaced the target, {@code false} if another writer got
+     *         there first and the written file was dropped
+     */
+    private boolean writeFile(File target, Resource blob, boolean existed) throws StorageException {
         // first write to temp file
         tmp.mkdirs();
-        File temp = new File(tmp, UUID.randomUUID().toString());
+        File temp = newTempFile(tmp);
         
         try {
             // Open the output stream and read the blob into the tile
@@ -496,7 +1082,7 @@ public class FileBlobStore implements BlobStore {
                 
                 channel = fos.getChannel();
                 try {
-                    stObj.getBlob().transferTo(channel);
+                    blob.transferTo(channel);
                 } catch (IOException ioe) {
                     throw new StorageException(ioe.getMessage() + " for " + target.getAbsolutePath());
                 } finally {
@@ -531,7 +1117,7 @@ public class FileBlobStore implements BlobStore {
                 temp.delete();
             }
         }
-        
+        return temp == null;
     }
 
     public void clear() throws StorageException {
@@ -587,16 +1173,7 @@ public class FileBlobStore implements BlobStore {
      * @see org.geowebcache.storage.BlobStore#getLayerMetadata(java.lang.String, java.lang.String)
      */
     public String getLayerMetadata(final String layerName, final String key) {
-        Properties metadata = getLayerMetadata(layerName);
-        String value = metadata.getProperty(key);
-        if (value != null) {
-            try {
-                value = URLDecoder.decode(value, "UTF-8");
-            } catch (UnsupportedEncodingException e) {
-                throw new RuntimeException(e);
-            }
-        }
-        return value;
+        return metadata.get(layerName, getLayerPath(layerName), key);
     }
 
     /**
@@ -604,77 +1181,18 @@ public class FileBlobStore implements BlobStore {
      *      java.lang.String)
      */
     public void putLayerMetadata(final String layerName, final String key, final String value) {
-        Properties metadata = getLayerMetadata(layerName);
-        if (null == value) {
-            metadata.remove(key);
-        } else {
-            try {
-                metadata.setProperty(key, URLEncoder.encode(value, "UTF-8"));
-            } catch (UnsupportedEncodingException e) {
-                throw new RuntimeException(e);
-            }
-        }
-
-        final File metadataFile = getMetadataFile(layerName);
-
-        final String lockObj = metadataFile.getAbsolutePath().intern();
-        synchronized (lockObj) {
-            OutputStream out;
-            try {
-                if (!metadataFile.getParentFile().exists()) {
-                    metadataFile.getParentFile().mkdirs();
-                }
-                out = new FileOutputStream(metadataFile);
-            } catch (FileNotFoundException e) {
-                throw new RuntimeException(e);
-            }
-            try {
-                String comments = "auto generated file, do not edit by hand";
-                metadata.store(out, comments);
-            } catch (Exception e) {
-                throw new RuntimeException(e);
-            } finally {
-                try {
-                    out.close();
-                } catch (IOException e) {
-                    log.warn(e.getMessage(), e);
-                }
-            }
-        }
-    }
-
-    private Properties getLayerMetadata(final String layerName) {
-        final File metadataFile = getMetadataFile(layerName);
-        Properties properties = new Properties();
-        final String lockObj = metadataFile.getAbsolutePath().intern();
-        synchronized (lockObj) {
-            if (metadataFile.exists()) {
-                FileInputStream in;
-                try {
-                    in = new FileInputStream(metadataFile);
-                } catch (FileNotFoundException e) {
-                    throw new RuntimeException(e);
-                }
-                try {
-                    properties.load(in);
-                } catch (Exception e) {
-                    throw new RuntimeException(e);
-                } finally {
-                    try {
-                        in.close();
-                    } catch (IOException e) {
-                        log.warn(e.getMessage(), e);
-                    }
-                }
-            }
-        }
-        return properties;
+        putLayerMetadata(layerName, Collections.singletonMap(key, value));
     }
 
-    private File getMetadataFile(final String layerName) {
-        File layerPath = getLayerPath(layerName);
-        File metadataFile = new File(layerPath, "metadata.properties");
-        return metadataFile;
+    /**
+     * Updates several metadata entries of a layer at once, rewriting the metadata file a single
+     * time
+     * 
+     * @param values
+     *            the entries to set, {@code null} values remove their key
+     */
+    public void putLayerMetadata(final String layerName, final Map<String, String> values) {
+        metadata.put(layerName, getLayerPath(layerName), values);
     }
 
 }
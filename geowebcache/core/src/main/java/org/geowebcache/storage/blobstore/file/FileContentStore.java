@@ -0,0 +1,491 @@
+/**
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package org.geowebcache.storage.blobstore.file;
+
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import org.apache.commons.codec.digest.DigestUtils;
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.geowebcache.storage.StorageException;
+
+/**
+ * Content addressed storage for the {@link FileBlobStore} deduplication mode.
+ * <p>
+ * Each distinct tile payload is stored once under {@code _gwc_content_/<xx>/<sha1>}, along with
+ * a {@code <sha1>.refs} file counting the tiles referencing it. The tile files themselves are
+ * replaced by small reference files holding {@link #MAGIC} followed by the payload hash, which
+ * are recognized by their exact {@link #REFERENCE_LENGTH length} before being read.
+ * </p>
+ * <p>
+ * Reference counts are kept in memory, and their changes appended to the
+ * {@code _gwc_content_.journal} file, the changes made by concurrent writers going out in a single
+ * write. The {@code .refs} files are only rewritten on checkpoints, once the journal holds
+ * {@value #CHECKPOINT_ENTRIES} changes and on {@link #close()}, and the journal is replayed at
+ * start up if a checkpoint didn't happen.
+ * </p>
+ * <p>
+ * Reference counts are incremented, and the change written to the journal, before a reference
+ * file is written, and decremented after it is removed, so that a crash can at worst leak a
+ * payload, never remove one still in use.
+ * </p>
+ */
+class FileContentStore {
+
+    private static Log log = LogFactory.getLog(FileContentStore.class);
+
+    static final String DIRECTORY = "_gwc_content_";
+
+    static final byte[] MAGIC = { 'G', 'W', 'C', '-', 'R', 'E', 'F', ':' };
+
+    private static final int HASH_LENGTH = 40;
+
+    static final int REFERENCE_LENGTH = MAGIC.length + HASH_LENGTH;
+
+    private static final int LOCK_STRIPES = 64;
+
+    static final int CHECKPOINT_ENTRIES = 10000;
+
+    private final File root;
+
+    private final File tmp;
+
+    private final File journalFile;
+
+    private final Object[] locks = new Object[LOCK_STRIPES];
+
+    /**
+     * Reference counts changed since the last checkpoint, each guarded by the lock of its hash
+     */
+    private final ConcurrentMap<String, RefCount> counts = new ConcurrentHashMap<String, RefCount>();
+
+    /**
+     * Held while changing reference counts, and exclusively while checkpointing
+     */
+    private final ReadWriteLock checkpointLock = new ReentrantReadWriteLock();
+
+    /**
+     * Guards the journal state below
+     */
+    private final Object journalLock = new Object();
+
+    private final StringBuilder pending = new StringBuilder();
+
+    private long appended;
+
+    private long written;
+
+    private boolean writing;
+
+    private int journalEntries;
+
+    /**
+     * Opened on the first write, only used by the thread {@link #writing}
+     */
+    private OutputStream journal;
+
+    private static final class RefCount {
+
+        long refs;
+
+        RefCount(long refs) {
+            this.refs = refs;
+        }
+    }
+
+    FileContentStore(File root, File tmp) {
+        this.root = new File(root, DIRECTORY);
+        this.tmp = tmp;
+        this.journalFile = new File(root, DIRECTORY + ".journal");
+        for (int i = 0; i < locks.length; i++) {
+            locks[i] = new Object();
+        }
+        replayJournal();
+    }
+
+    /**
+     * Computes the hash the given payload is stored under
+     */
+    static String hash(byte[] contents) {
+        return DigestUtils.shaHex(contents);
+    }
+
+    /**
+     * Builds the contents of a reference file pointing at the given hash
+     */
+    static byte[] reference(String hash) {
+        byte[] reference = new byte[REFERENCE_LENGTH];
+        System.arraycopy(MAGIC, 0, reference, 0, MAGIC.length);
+        for (int i = 0; i < HASH_LENGTH; i++) {
+            reference[MAGIC.length + i] = (byte) hash.charAt(i);
+        }
+        return reference;
+    }
+
+    /**
+     * Returns the hash a tile file points at, or {@code null} if it's a regular tile file
+     *
+     * @param length
+     *            the tile file length, only files of exactly {@link #REFERENCE_LENGTH} bytes are
+     *            read
+     */
+    static String readReference(File tile, long length) {
+        if (length != REFERENCE_LENGTH) {
+            return null;
+        }
+        byte[] reference = new byte[REFERENCE_LENGTH];
+        DataInputStream in = null;
+        try {
+            in = new DataInputStream(new FileInputStream(tile));
+            in.readFully(reference);
+        } catch (IOException e) {
+            return null;
+        } finally {
+            IOUtils.closeQuietly(in);
+        }
+        for (int i = 0; i < MAGIC.length; i++) {
+            if (reference[i] != MAGIC[i]) {
+                return null;
+            }
+        }
+        return new String(reference, MAGIC.length, HASH_LENGTH);
+    }
+
+    /**
+     * @return the file holding the payload for the given hash
+     */
+    File getContentFile(String hash) {
+        return new File(new File(root, hash.substring(0, 2)), hash);
+    }
+
+    /**
+     * Adds a reference to the given payload, storing it if it's not there yet
+     *
+     * @return the number of bytes the payload added to the store, {@code 0} if it was already
+     *         stored
+     */
+    long addReference(String hash, byte[] contents) throws StorageException {
+        long added = 0;
+        final long entry;
+        checkpointLock.readLock().lock();
+        try {
+            synchronized (lock(hash)) {
+                final File content = getContentFile(hash);
+                final RefCount count = count(hash);
+                if (count.refs <= 0 || !content.exists()) {
+                    write(content, contents);
+                    added = contents.length;
+                }
+                count.refs++;
+                entry = append(hash, count.refs);
+            }
+        } finally {
+            checkpointLock.readLock().unlock();
+        }
+        // the reference must be counted on disk before the tile points at the payload
+        awaitWritten(entry);
+        checkpointIfNeeded();
+        return added;
+    }
+
+    /**
+     * Removes a reference to the given payload, deleting it once no tile references it anymore
+     *
+     * @return the number of bytes released from the store, {@code 0} if the payload is still
+     *         referenced
+     */
+    long removeReference(String hash) {
+        long length = 0;
+        checkpointLock.readLock().lock();
+        try {
+            synchronized (lock(hash)) {
+                final RefCount count = count(hash);
+                count.refs--;
+                if (count.refs <= 0) {
+                    count.refs = 0;
+                    File content = getContentFile(hash);
+                    length = content.length();
+                    if (!content.delete()) {
+                        length = 0;
+                    }
+                    getRefsFile(hash).delete();
+                }
+                // a lost decrement only leaks the payload, no need to wait for it
+                append(hash, count.refs);
+            }
+        } finally {
+            checkpointLock.readLock().unlock();
+        }
+        checkpointIfNeeded();
+        return length;
+    }
+
+    /**
+     * Writes the reference counts to their {@code .refs} files and empties the journal
+     */
+    void close() {
+        checkpoint(true);
+    }
+
+    /**
+     * @return whether any payload has ever been stored
+     */
+    boolean exists() {
+        return root.exists();
+    }
+
+    private Object lock(String hash) {
+        return locks[Math.abs(hash.hashCode() % locks.length)];
+    }
+
+    /**
+     * @return the in memory reference count, loaded from its {@code .refs} file the first time,
+     *         the caller holding the lock of the hash
+     */
+    private RefCount count(String hash) {
+        RefCount count = counts.get(hash);
+        if (count == null) {
+            count = new RefCount(readRefs(hash));
+            counts.put(hash, count);
+        }
+        return count;
+    }
+
+    /**
+     * Queues a reference count change for the journal
+     *
+     * @return the number to wait for with {@link #awaitWritten(long)}
+     */
+    private long append(String hash, long refs) {
+        synchronized (journalLock) {
+            pending.append(hash).append(' ').append(refs).append('\n');
+            journalEntries++;
+            return ++appended;
+        }
+    }
+
+    /**
+     * Waits until the given journal entry is written. The first waiter writes the entries
+     * queued so far on behalf of all the others
+     */
+    private void awaitWritten(long entry) throws StorageException {
+        while (true) {
+            final String batch;
+            final long batchEnd;
+            synchronized (journalLock) {
+                while (written < entry && writing) {
+                    try {
+                        journalLock.wait();
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        throw new StorageException("Interrupted waiting for the reference count of "
+                                + root.getAbsolutePath() + " to be written");
+                    }
+                }
+                if (written >= entry) {
+                    return;
+                }
+                writing = true;
+                batch = pending.toString();
+                batchEnd = appended;
+                pending.setLength(0);
+            }
+            boolean done = false;
+            try {
+                writeJournal(batch);
+                done = true;
+            } finally {
+                synchronized (journalLock) {
+                    writing = false;
+                    if (done) {
+                        written = batchEnd;
+                    } else {
+                        // keep the entries for the next writer
+                        pending.insert(0, batch);
+                    }
+                    journalLock.notifyAll();
+                }
+            }
+        }
+    }
+
+    private void writeJournal(String batch) throws StorageException {
+        try {
+            if (journal == null) {
+                journal = new FileOutputStream(journalFile, true);
+            }
+            journal.write(batch.getBytes());
+        } catch (IOException e) {
+            IOUtils.closeQuietly(journal);
+            journal = null;
+            throw new StorageException(e.getMessage() + " for " + journalFile.getAbsolutePath());
+        }
+    }
+
+    private void checkpointIfNeeded() {
+        synchronized (journalLock) {
+            if (journalEntries < CHECKPOINT_ENTRIES) {
+                return;
+            }
+        }
+        checkpoint(false);
+    }
+
+    /**
+     * Writes the changed reference counts to their {@code .refs} files, and then empties the
+     * journal. If interrupted halfway, the journal is still there to be replayed
+     */
+    private void checkpoint(boolean force) {
+        checkpointLock.writeLock().lock();
+        try {
+            synchronized (journalLock) {
+                if (!force && journalEntries < CHECKPOINT_ENTRIES) {
+                    return;
+                }
+                while (writing) {
+                    journalLock.wait();
+                }
+            }
+            for (Map.Entry<String, RefCount> entry : counts.entrySet()) {
+                if (entry.getValue().refs > 0) {
+                    writeRefs(entry.getKey(), entry.getValue().refs);
+                }
+            }
+            counts.clear();
+            synchronized (journalLock) {
+                IOUtils.closeQuietly(journal);
+                journal = null;
+                journalFile.delete();
+                // the queued entries are in the .refs files now
+                pending.setLength(0);
+                written = appended;
+                journalEntries = 0;
+                journalLock.notifyAll();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (StorageException e) {
+            log.warn("Unable to checkpoint the reference counts, will retry: " + e.getMessage());
+        } finally {
+            checkpointLock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Applies the reference counts of a journal left behind by a crash, the last count of each
+     * payload being the current one
+     */
+    @SuppressWarnings("unchecked")
+    private void replayJournal() {
+        if (!journalFile.exists()) {
+            return;
+        }
+        Map<String, Long> last = new HashMap<String, Long>();
+        try {
+            for (String line : (List<String>) FileUtils.readLines(journalFile)) {
+                int separator = line.indexOf(' ');
+                if (separator != HASH_LENGTH) {
+                    // cut short by the crash
+                    continue;
+                }
+                try {
+                    last.put(line.substring(0, separator),
+                            Long.valueOf(line.substring(separator + 1).trim()));
+                } catch (NumberFormatException e) {
+                    continue;
+                }
+            }
+            for (Map.Entry<String, Long> entry : last.entrySet()) {
+                String hash = entry.getKey();
+                if (entry.getValue().longValue() > 0) {
+                    writeRefs(hash, entry.getValue().longValue());
+                } else {
+                    getContentFile(hash).delete();
+                    getRefsFile(hash).delete();
+                }
+            }
+            journalFile.delete();
+        } catch (Exception e) {
+            log.warn("Unable to replay the reference count journal "
+                    + journalFile.getAbsolutePath() + ": " + e.getMessage());
+        }
+    }
+
+    private File getRefsFile(String hash) {
+        return new File(new File(root, hash.substring(0, 2)), hash + ".refs");
+    }
+
+    private long readRefs(String hash) {
+        File refsFile = getRefsFile(hash);
+        if (!refsFile.exists()) {
+            return 0;
+        }
+        try {
+            return Long.parseLong(FileUtils.readFileToString(refsFile).trim());
+        } catch (Exception e) {
+            log.warn("Invalid reference count in " + refsFile.getAbsolutePath()
+                    + ", assuming the content is referenced once: " + e.getMessage());
+            return 1;
+        }
+    }
+
+    private void writeRefs(String hash, long refs) throws StorageException {
+        write(getRefsFile(hash), String.valueOf(refs).getBytes());
+    }
+
+    /**
+     * Writes to a temporary file first and then renames it, so that readers never see a partial
+     * payload or reference count
+     */
+    private void write(File target, byte[] contents) throws StorageException {
+        File parent = target.getParentFile();
+        if (!parent.exists() && !parent.mkdirs() && !parent.exists()) {
+            throw new StorageException("Unable to create " + parent.getAbsolutePath());
+        }
+        tmp.mkdirs();
+        File temp = FileBlobStore.newTempFile(tmp);
+        OutputStream out = null;
+        try {
+            out = new FileOutputStream(temp);
+            out.write(contents);
+        } catch (IOException e) {
+            IOUtils.closeQuietly(out);
+            temp.delete();
+            throw new StorageException(e.getMessage() + " for " + target.getAbsolutePath());
+        } finally {
+            IOUtils.closeQuietly(out);
+        }
+        // on windows renaming over an existing file fails
+        if (!temp.renameTo(target) && !(target.delete() && temp.renameTo(target))) {
+            temp.delete();
+            throw new StorageException("Unable to write " + target.getAbsolutePath());
+        }
+    }
+}
@@ -71,7 +71,7 @@ public class FilePathFilter implements FilenameFilter {
             ret = acceptFileName(parent, fileName);
         } else {
             // intermediate
-            ret = acceptIntermediateDir(fileName);
+            ret = acceptIntermediateDir(parent, fileName);
         }
 
         // System.out.println(ret + " " + name);
@@ -105,14 +105,39 @@ public class FilePathFilter implements FilenameFilter {
         }
     }
 
-    private boolean acceptIntermediateDir(String name) {
-        // if(bounds == null) {
-        // return true;
-        // }
+    /**
+     * Example: 00_02, 12_05 (i.e. {@code <halfx>_<halfy>}), accepted if the block of tiles it
+     * holds intersects the range bounds
+     */
+    private boolean acceptIntermediateDir(File parent, String name) {
+        final String zoomLevelDir = parent.getName();
+        if (!zoomLevelDir.startsWith(gridSetPrefix)) {
+            return true;
+        }
+        final int zoomLevel = findZoomLevel(gridSetPrefix, zoomLevelDir);
+        final long[] dirBounds = findIntermediateBounds(zoomLevel, name);
+        final long[] rangeBounds = getRangeBounds(tr, zoomLevel);
+        if (dirBounds == null || rangeBounds == null) {
+            return true;
+        }
+        return dirBounds[0] <= rangeBounds[2] && dirBounds[2] >= rangeBounds[0]
+                && dirBounds[1] <= rangeBounds[3] && dirBounds[3] >= rangeBounds[1];
+    }
 
-        // For now we'll do all of them,
-        // otherwise we have to extract zoomlevel from path
-        return true;
+    /**
+     * @return the range bounds at the given zoom level, or {@code null} if the range does not
+     *         define them, in which case all the tiles at that level are within the range
+     */
+    static long[] getRangeBounds(TileRange tr, int zoomLevel) {
+        if (zoomLevel < tr.getZoomStart() || zoomLevel > tr.getZoomStop()) {
+            return null;
+        }
+        try {
+            return tr.rangeBounds(zoomLevel);
+        } catch (RuntimeException e) {
+            // unbounded range, or no bounds for this zoom level
+            return null;
+        }
     }
 
     private boolean acceptFileName(File parent, String name) {
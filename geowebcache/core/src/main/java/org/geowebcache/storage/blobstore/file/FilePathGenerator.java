@@ -20,6 +20,7 @@ package org.geowebcache.storage.blobstore.file;
 import static org.geowebcache.storage.blobstore.file.FilePathUtils.*;
 
 import java.io.File;
+import java.util.HashMap;
 import java.util.Map;
 import java.util.SortedMap;
 import java.util.TreeMap;
@@ -30,9 +31,19 @@ import org.apache.commons.logging.LogFactory;
 import org.geowebcache.mime.MimeType;
 import org.geowebcache.storage.TileObject;
 
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+
 public class FilePathGenerator {
     
     private static Log log = LogFactory.getLog(FilePathGenerator.class);
+
+    /**
+     * The most recently used parameter ids, so that the same parameters are not hashed over and
+     * over
+     */
+    private static final Cache<Map<String, String>, String> PARAMETERS_IDS = CacheBuilder
+            .newBuilder().maximumSize(10000).build();
     
     String cacheRoot;
 
@@ -65,15 +76,6 @@ public class FilePathGenerator {
 
         StringBuilder path = new StringBuilder(256);
 
-        long shift = z / 2;
-        long half = 2 << shift;
-        int digits = 1;
-        if (half > 10) {
-            digits = (int) (Math.log10(half)) + 1;
-        }
-        long halfx = x / half;
-        long halfy = y / half;
-
         String fileExtension = mimeType.getFileExtension();
 
         path.append(cacheRoot);
@@ -92,6 +94,27 @@ public class FilePathGenerator {
             path.append(parametersId);
         }
         path.append(File.separatorChar);
+        appendTilePath(x, y, z, fileExtension, path);
+
+        File tileFile = new File(path.toString());
+        return tileFile;
+    }
+
+    /**
+     * Appends the {@code <halfx>_<halfy>/<x>_<y>.<extension>} path of a tile relative to its
+     * {@code <gridset>_<zoom>[_<parametersId>]} directory
+     */
+    public static void appendTilePath(long x, long y, long z, String fileExtension,
+            StringBuilder path) {
+        long shift = z / 2;
+        long half = 2 << shift;
+        int digits = 1;
+        if (half > 10) {
+            digits = (int) (Math.log10(half)) + 1;
+        }
+        long halfx = x / half;
+        long halfy = y / half;
+
         zeroPadder(halfx, digits, path);
         path.append('_');
         zeroPadder(halfy, digits, path);
@@ -102,9 +125,6 @@ public class FilePathGenerator {
         zeroPadder(y, 2 * digits, path);
         path.append('.');
         path.append(fileExtension);
-
-        File tileFile = new File(path.toString());
-        return tileFile;
     }
 
     protected static String buildKey(String parametersKvp) {
@@ -120,8 +140,14 @@ public class FilePathGenerator {
         if(parameters == null || parameters.size() == 0) {
             return null;
         }
-        String parametersKvp = getParametersKvp(parameters);
-        return buildKey(parametersKvp);
+        String parametersId = PARAMETERS_IDS.getIfPresent(parameters);
+        if (parametersId == null) {
+            String parametersKvp = getParametersKvp(parameters);
+            parametersId = buildKey(parametersKvp);
+            // copy the key, the caller might modify its map later
+            PARAMETERS_IDS.put(new HashMap<String, String>(parameters), parametersId);
+        }
+        return parametersId;
     }
 
     /**
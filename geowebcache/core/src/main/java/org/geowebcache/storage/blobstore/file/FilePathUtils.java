@@ -98,6 +98,31 @@ public class FilePathUtils {
     }
     
     
+    /**
+     * Computes the tile bounds covered by an intermediate directory named
+     * {@code <halfx>_<halfy>}, mirroring the layout of {@link FilePathGenerator#tilePath}
+     * 
+     * @return {@code minx, miny, maxx, maxy} or {@code null} if the name is not an intermediate
+     *         directory name
+     */
+    public static long[] findIntermediateBounds(final int zoomLevel, final String dirName) {
+        final int sep = dirName.indexOf('_');
+        if (sep <= 0 || sep == dirName.length() - 1) {
+            return null;
+        }
+        final long halfx;
+        final long halfy;
+        try {
+            halfx = Long.parseLong(dirName.substring(0, sep));
+            halfy = Long.parseLong(dirName.substring(sep + 1));
+        } catch (NumberFormatException e) {
+            return null;
+        }
+        final long half = 2 << (zoomLevel / 2);
+        return new long[] { halfx * half, halfy * half, halfx * half + half - 1,
+                halfy * half + half - 1 };
+    }
+
     /**
      * Adds the gridset and zoom level fors the standard file system layout path
      */
@@ -0,0 +1,195 @@
+/**
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package org.geowebcache.storage.blobstore.file;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.net.URLDecoder;
+import java.net.URLEncoder;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import org.apache.commons.io.IOUtils;
+
+/**
+ * Caches the {@code metadata.properties} file of each layer of a {@link FileBlobStore}.
+ * <p>
+ * Each file is read once, and its values are kept decoded in memory. Reads don't lock or touch
+ * the disk. Updates are written through right away by replacing the whole file: it's written to
+ * the temporary directory first, then renamed over the old one, so readers never see a partial
+ * file. Several keys can be updated with a single write.
+ * </p>
+ * <p>
+ * Like the rest of the {@link FileBlobStore} state, the cache assumes no other process edits
+ * the files meanwhile.
+ * </p>
+ */
+class LayerMetadataStore {
+
+    static final String FILE_NAME = "metadata.properties";
+
+    private static final String COMMENTS = "auto generated file, do not edit by hand";
+
+    private final File tmp;
+
+    private final ConcurrentMap<String, LayerMetadata> layers = new ConcurrentHashMap<String, LayerMetadata>();
+
+    private static class LayerMetadata {
+
+        final File file;
+
+        final ConcurrentMap<String, String> values = new ConcurrentHashMap<String, String>();
+
+        volatile boolean loaded;
+
+        LayerMetadata(File file) {
+            this.file = file;
+        }
+    }
+
+    LayerMetadataStore(File tmp) {
+        this.tmp = tmp;
+    }
+
+    /**
+     * @param layerDir
+     *            the layer directory the metadata file is stored into
+     * @return the value, or {@code null} if not set
+     */
+    String get(String layerName, File layerDir, String key) {
+        return getLayer(layerName, layerDir).values.get(key);
+    }
+
+    /**
+     * Updates several keys at once, writing the file a single time
+     *
+     * @param values
+     *            the values to set, {@code null} values remove their key
+     */
+    void put(String layerName, File layerDir, Map<String, String> values) {
+        final LayerMetadata metadata = getLayer(layerName, layerDir);
+        synchronized (metadata) {
+            for (Map.Entry<String, String> entry : values.entrySet()) {
+                if (entry.getValue() == null) {
+                    metadata.values.remove(entry.getKey());
+                } else {
+                    metadata.values.put(entry.getKey(), entry.getValue());
+                }
+            }
+            write(metadata);
+        }
+    }
+
+    /**
+     * Forgets the cached metadata of a layer, to be called when its directory is removed or
+     * renamed
+     */
+    void invalidate(String layerName) {
+        layers.remove(layerName);
+    }
+
+    private LayerMetadata getLayer(String layerName, File layerDir) {
+        LayerMetadata metadata = layers.get(layerName);
+        if (metadata == null) {
+            metadata = new LayerMetadata(new File(layerDir, FILE_NAME));
+            LayerMetadata existing = layers.putIfAbsent(layerName, metadata);
+            if (existing != null) {
+                metadata = existing;
+            }
+        }
+        if (!metadata.loaded) {
+            synchronized (metadata) {
+                if (!metadata.loaded) {
+                    load(metadata);
+                    metadata.loaded = true;
+                }
+            }
+        }
+        return metadata;
+    }
+
+    private void load(LayerMetadata metadata) {
+        if (!metadata.file.exists()) {
+            return;
+        }
+        Properties properties = new Properties();
+        InputStream in = null;
+        try {
+            in = new FileInputStream(metadata.file);
+            properties.load(in);
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        } finally {
+            IOUtils.closeQuietly(in);
+        }
+        try {
+            for (Map.Entry<Object, Object> entry : properties.entrySet()) {
+                metadata.values.put((String) entry.getKey(),
+                        URLDecoder.decode((String) entry.getValue(), "UTF-8"));
+            }
+        } catch (UnsupportedEncodingException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    private void write(LayerMetadata metadata) {
+        Properties properties = new Properties();
+        try {
+            for (Map.Entry<String, String> entry : metadata.values.entrySet()) {
+                properties.setProperty(entry.getKey(), URLEncoder.encode(entry.getValue(), "UTF-8"));
+            }
+        } catch (UnsupportedEncodingException e) {
+            throw new RuntimeException(e);
+        }
+
+        final File target = metadata.file;
+        if (!target.getParentFile().exists()) {
+            target.getParentFile().mkdirs();
+        }
+        tmp.mkdirs();
+        File temp = FileBlobStore.newTempFile(tmp);
+        try {
+            OutputStream out = null;
+            try {
+                out = new FileOutputStream(temp);
+                properties.store(out, COMMENTS);
+            } catch (IOException e) {
+                throw new RuntimeException(e);
+            } finally {
+                IOUtils.closeQuietly(out);
+            }
+            if (temp.renameTo(target)) {
+                temp = null;
+            } else if (target.delete() && temp.renameTo(target)) {
+                // on windows renaming over an existing file fails
+                temp = null;
+            } else {
+                throw new RuntimeException("Unable to replace " + target.getAbsolutePath());
+            }
+        } finally {
+            if (temp != null) {
+                temp.delete();
+            }
+        }
+    }
+}
@@ -0,0 +1,340 @@
+/**
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package org.geowebcache.storage.blobstore.file;
+
+import java.io.File;
+import java.io.UnsupportedEncodingException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.zip.CRC32;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.geowebcache.mime.MimeException;
+import org.geowebcache.mime.MimeType;
+import org.geowebcache.storage.BlobStoreListener;
+import org.geowebcache.storage.BlobStoreListenerList;
+import org.geowebcache.storage.StorageException;
+import org.geowebcache.storage.TileObject;
+import org.geowebcache.storage.TileRange;
+import org.geowebcache.storage.TouchableBlobStore;
+import org.springframework.scheduling.concurrent.CustomizableThreadFactory;
+
+/**
+ * A blob store spreading tiles over several {@link FileBlobStore} roots, usually on different
+ * disks, to add up their throughput.
+ * <p>
+ * Tiles are placed by intermediate directory, so the tiles of a {@code <halfx>_<halfy>} block stay
+ * together: the block is assigned to the root winning a rendezvous hash of its layer, gridset,
+ * zoom level, parameters and block directory names. The placement only depends on the number of
+ * roots and their order, and adding a root at the end only moves the blocks it wins, see
+ * {@link StripedFileBlobStoreRebalancer}.
+ * </p>
+ * <p>
+ * Single tile operations go straight to the owning root, truncation, layer and gridset deletes
+ * and renames run on all the roots in parallel. Layer metadata is kept in the first root.
+ * </p>
+ */
+public class StripedFileBlobStore implements TouchableBlobStore {
+
+    private static Log log = LogFactory.getLog(StripedFileBlobStore.class);
+
+    private final FileBlobStore[] stripes;
+
+    private final BlobStoreListenerList listeners = new BlobStoreListenerList();
+
+    /**
+     * Generates paths relative to the roots, the parent directory being the placement key
+     */
+    private final FilePathGenerator keyGenerator = new FilePathGenerator("");
+
+    private final ExecutorService executor;
+
+    public StripedFileBlobStore(String[] rootPaths) throws StorageException {
+        if (rootPaths == null || rootPaths.length == 0) {
+            throw new StorageException("At least one root directory is required");
+        }
+        stripes = new FileBlobStore[rootPaths.length];
+        // layer wide events are sent once by this store, not once per stripe
+        TileEventsForwarder forwarder = new TileEventsForwarder();
+        for (int i = 0; i < rootPaths.length; i++) {
+            stripes[i] = new FileBlobStore(rootPaths[i].trim());
+            stripes[i].addListener(forwarder);
+        }
+        CustomizableThreadFactory tf = new CustomizableThreadFactory("GWC striped store thread-");
+        tf.setDaemon(true);
+        executor = Executors.newCachedThreadPool(tf);
+    }
+
+    /**
+     * Destroy method for Spring
+     */
+    public void destroy() {
+        executor.shutdownNow();
+        for (FileBlobStore stripe : stripes) {
+            stripe.destroy();
+        }
+    }
+
+    /**
+     * @see FileBlobStore#setTruncateThreads(int)
+     */
+    public void setTruncateThreads(int truncateThreads) {
+        for (FileBlobStore stripe : stripes) {
+            stripe.setTruncateThreads(truncateThreads);
+        }
+    }
+
+    /**
+     * @see FileBlobStore#setDeduplicate(boolean)
+     */
+    public void setDeduplicate(boolean deduplicate) {
+        for (FileBlobStore stripe : stripes) {
+            stripe.setDeduplicate(deduplicate);
+        }
+    }
+
+    /**
+     * Returns the index of the root owning the given intermediate directory
+     *
+     * @param key
+     *            the intermediate directory path relative to the roots, as in
+     *            {@code /<layer>/<gridset>_<zoom>[_<parametersId>]/<halfx>_<halfy>}
+     * @param stripes
+     *            the number of roots
+     */
+    static int stripe(String key, int stripes) {
+        if (stripes == 1) {
+            return 0;
+        }
+        CRC32 crc = new CRC32();
+        try {
+            crc.update(key.replace(File.separatorChar, '/').getBytes("UTF-8"));
+        } catch (UnsupportedEncodingException e) {
+            throw new RuntimeException(e);
+        }
+        final long hash = crc.getValue();
+        int winner = 0;
+        long max = Long.MIN_VALUE;
+        for (int i = 0; i < stripes; i++) {
+            long weight = mix(hash * 31 + i);
+            if (weight > max) {
+                max = weight;
+                winner = i;
+            }
+        }
+        return winner;
+    }
+
+    /**
+     * 64 bit finalizer from MurmurHash3, spreads the bits of similar keys
+     */
+    private static long mix(long k) {
+        k ^= k >>> 33;
+        k *= 0xff51afd7ed558ccdL;
+        k ^= k >>> 33;
+        k *= 0xc4ceb3fe1a85ec53L;
+        k ^= k >>> 33;
+        return k;
+    }
+
+    private FileBlobStore getStripe(TileObject tile) {
+        final MimeType mimeType;
+        try {
+            mimeType = MimeType.createFromFormat(tile.getBlobFormat());
+        } catch (MimeException me) {
+            log.error(me.getMessage());
+            throw new RuntimeException(me);
+        }
+        String key = keyGenerator.tilePath(tile, mimeType).getParent();
+        return stripes[stripe(key, stripes.length)];
+    }
+
+    public boolean get(TileObject obj) throws StorageException {
+        return getStripe(obj).get(obj);
+    }
+
+    public void put(TileObject obj) throws StorageException {
+        getStripe(obj).put(obj);
+    }
+
+    public boolean touch(TileObject obj) throws StorageException {
+        return getStripe(obj).touch(obj);
+    }
+
+    public boolean delete(TileObject obj) throws StorageException {
+        return getStripe(obj).delete(obj);
+    }
+
+    /**
+     * Truncates the range on all the roots in parallel
+     */
+    public boolean delete(final TileRange obj) throws StorageException {
+        return runOnStripes("truncating " + obj.getLayerName(), new StripeOperation() {
+            public boolean run(FileBlobStore stripe) throws StorageException {
+                return stripe.delete(obj);
+            }
+        });
+    }
+
+    public boolean delete(final String layerName) throws StorageException {
+        boolean ret = runOnStripes("deleting " + layerName, new StripeOperation() {
+            public boolean run(FileBlobStore stripe) throws StorageException {
+                // the layer may not have tiles on every root
+                stripe.delete(layerName);
+                return true;
+            }
+        });
+        listeners.sendLayerDeleted(layerName);
+        return ret;
+    }
+
+    public boolean deleteByGridsetId(final String layerName, final String gridSetId)
+            throws StorageException {
+        boolean ret = runOnStripes("deleting " + layerName + " " + gridSetId,
+                new StripeOperation() {
+                    public boolean run(FileBlobStore stripe) throws StorageException {
+                        stripe.deleteByGridsetId(layerName, gridSetId);
+                        return true;
+                    }
+                });
+        listeners.sendGridSubsetDeleted(layerName, gridSetId);
+        return ret;
+    }
+
+    public boolean rename(final String oldLayerName, final String newLayerName)
+            throws StorageException {
+        boolean ret = runOnStripes("renaming " + oldLayerName, new StripeOperation() {
+            public boolean run(FileBlobStore stripe) throws StorageException {
+                return stripe.rename(oldLayerName, newLayerName);
+            }
+        });
+        if (ret) {
+            listeners.sendLayerRenamed(oldLayerName, newLayerName);
+        }
+        return ret;
+    }
+
+    public void clear() throws StorageException {
+        throw new StorageException("Not implemented yet!");
+    }
+
+    public void addListener(BlobStoreListener listener) {
+        listeners.addListener(listener);
+    }
+
+    public boolean removeListener(BlobStoreListener listener) {
+        return listeners.removeListener(listener);
+    }
+
+    public String getLayerMetadata(String layerName, String key) {
+        return stripes[0].getLayerMetadata(layerName, key);
+    }
+
+    public void putLayerMetadata(String layerName, String key, String value) {
+        stripes[0].putLayerMetadata(layerName, key, value);
+    }
+
+    /**
+     * @see FileBlobStore#putLayerMetadata(String, Map)
+     */
+    public void putLayerMetadata(String layerName, Map<String, String> values) {
+        stripes[0].putLayerMetadata(layerName, values);
+    }
+
+    private interface StripeOperation {
+        boolean run(FileBlobStore stripe) throws StorageException;
+    }
+
+    /**
+     * Runs an operation on every root in parallel
+     *
+     * @return whether the operation succeeded on all of them
+     */
+    private boolean runOnStripes(String description, final StripeOperation operation)
+            throws StorageException {
+        if (stripes.length == 1) {
+            return operation.run(stripes[0]);
+        }
+        List<Callable<Boolean>> tasks = new ArrayList<Callable<Boolean>>(stripes.length);
+        for (final FileBlobStore stripe : stripes) {
+            tasks.add(new Callable<Boolean>() {
+                public Boolean call() throws StorageException {
+                    return Boolean.valueOf(operation.run(stripe));
+                }
+            });
+        }
+        boolean ret = true;
+        try {
+            for (Future<Boolean> result : executor.invokeAll(tasks)) {
+                ret &= result.get().booleanValue();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new StorageException("Interrupted while " + description);
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof StorageException) {
+                throw (StorageException) cause;
+            }
+            throw new StorageException("Error " + description + ": " + cause.getMessage());
+        }
+        return ret;
+    }
+
+    /**
+     * Relays the tile events of the stripes, the layer wide ones are sent by the striped store
+     * itself once all the stripes are done
+     */
+    private class TileEventsForwarder implements BlobStoreListener {
+
+        public void tileStored(String layerName, String gridSetId, String blobFormat,
+                String parametersId, long x, long y, int z, long blobSize) {
+            listeners.sendTileStored(layerName, gridSetId, blobFormat, parametersId, x, y, z,
+                    blobSize);
+        }
+
+        public void tileDeleted(String layerName, String gridSetId, String blobFormat,
+                String parametersId, long x, long y, int z, long blobSize) {
+            listeners.sendTileDeleted(layerName, gridSetId, blobFormat, parametersId, x, y, z,
+                    blobSize);
+        }
+
+        public void tileUpdated(String layerName, String gridSetId, String blobFormat,
+                String parametersId, long x, long y, int z, long blobSize, long oldSize) {
+            listeners.sendTileUpdated(layerName, gridSetId, blobFormat, parametersId, x, y, z,
+                    blobSize, oldSize);
+        }
+
+        public void layerDeleted(String layerName) {
+            // sent once by the striped store
+        }
+
+        public void layerRenamed(String oldLayerName, String newLayerName) {
+            // sent once by the striped store
+        }
+
+        public void gridSubsetDeleted(String layerName, String gridSetId) {
+            // sent once by the striped store
+        }
+    }
+}
@@ -0,0 +1,166 @@
+/**
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package org.geowebcache.storage.blobstore.file;
+
+import java.io.File;
+import java.io.IOException;
+
+import org.apache.commons.io.FileUtils;
+import org.geowebcache.storage.StorageException;
+
+/**
+ * Offline tool moving the tiles of a {@link StripedFileBlobStore} to the roots they belong to,
+ * to be run after adding roots, with GeoWebCache stopped.
+ * <p>
+ * Usage: {@code StripedFileBlobStoreRebalancer <root1> <root2> ...}, with the roots in the same
+ * order as configured for the striped store.
+ * </p>
+ */
+public class StripedFileBlobStoreRebalancer {
+
+    private final File[] roots;
+
+    private final FileContentStore[] contentStores;
+
+    private long movedDirectories;
+
+    private long movedFiles;
+
+    public StripedFileBlobStoreRebalancer(String[] rootPaths) {
+        roots = new File[rootPaths.length];
+        contentStores = new FileContentStore[rootPaths.length];
+        for (int i = 0; i < rootPaths.length; i++) {
+            roots[i] = new File(rootPaths[i].trim());
+            contentStores[i] = new FileContentStore(roots[i], new File(roots[i], "tmp"));
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        if (args.length < 2) {
+            System.err.println("Usage: StripedFileBlobStoreRebalancer <root1> <root2> ...");
+            System.exit(1);
+        }
+        StripedFileBlobStoreRebalancer rebalancer = new StripedFileBlobStoreRebalancer(args);
+        rebalancer.rebalance();
+        System.out.println("Moved " + rebalancer.getMovedFiles() + " files in "
+                + rebalancer.getMovedDirectories() + " directories");
+    }
+
+    public long getMovedDirectories() {
+        return movedDirectories;
+    }
+
+    public long getMovedFiles() {
+        return movedFiles;
+    }
+
+    /**
+     * Moves every intermediate directory found on the wrong root to the one owning it
+     */
+    public void rebalance() throws IOException, StorageException {
+        try {
+            moveMisplaced();
+        } finally {
+            for (FileContentStore contentStore : contentStores) {
+                contentStore.close();
+            }
+        }
+    }
+
+    private void moveMisplaced() throws IOException, StorageException {
+        for (int i = 0; i < roots.length; i++) {
+            File[] layers = roots[i].listFiles();
+            if (layers == null) {
+                continue;
+            }
+            for (File layer : layers) {
+                if (!layer.isDirectory() || isReserved(layer.getName())) {
+                    continue;
+                }
+                for (File zoom : listDirectories(layer)) {
+                    for (File intermediate : listDirectories(zoom)) {
+                        String key = File.separator + layer.getName() + File.separator
+                                + zoom.getName() + File.separator + intermediate.getName();
+                        int target = StripedFileBlobStore.stripe(key, roots.length);
+                        if (target != i) {
+                            File dest = new File(roots[target], key);
+                            move(intermediate, contentStores[i], dest, contentStores[target]);
+                        }
+                    }
+                    zoom.delete();
+                }
+            }
+        }
+    }
+
+    private static boolean isReserved(String name) {
+        return "tmp".equals(name) || "_gwc_in_progress_deletes_".equals(name)
+                || FileContentStore.DIRECTORY.equals(name)
+                || TileExistenceIndex.DIRECTORY.equals(name);
+    }
+
+    private static File[] listDirectories(File parent) {
+        File[] children = parent.listFiles();
+        if (children == null) {
+            return new File[0];
+        }
+        int count = 0;
+        for (File child : children) {
+            if (child.isDirectory()) {
+                children[count++] = child;
+            }
+        }
+        File[] directories = new File[count];
+        System.arraycopy(children, 0, directories, 0, count);
+        return directories;
+    }
+
+    private void move(File source, FileContentStore sourceContent, File dest,
+            FileContentStore destContent) throws IOException, StorageException {
+        if (!dest.exists() && !dest.mkdirs()) {
+            throw new IOException("Unable to create " + dest.getAbsolutePath());
+        }
+        File[] tiles = source.listFiles();
+        for (File tile : tiles) {
+            File target = new File(dest, tile.getName());
+            String hash = FileContentStore.readReference(tile, tile.length());
+            // the tile on the right root is the one that was being served
+            if (!target.exists()) {
+                if (hash != null) {
+                    // deduplicated payloads are per root, store it on the target one
+                    byte[] contents = FileUtils.readFileToByteArray(sourceContent
+                            .getContentFile(hash));
+                    destContent.addReference(hash, contents);
+                    FileUtils.copyFile(tile, target);
+                } else if (!tile.renameTo(target)) {
+                    // different disks
+                    FileUtils.copyFile(tile, target);
+                }
+                movedFiles++;
+            }
+            if (tile.exists() && !tile.delete()) {
+                throw new IOException("Unable to delete " + tile.getAbsolutePath());
+            }
+            if (hash != null) {
+                sourceContent.removeReference(hash);
+            }
+        }
+        if (!source.delete()) {
+            throw new IOException("Unable to delete " + source.getAbsolutePath());
+        }
+        movedDirectories++;
+    }
+}
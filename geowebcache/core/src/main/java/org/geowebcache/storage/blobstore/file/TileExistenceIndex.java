@@ -0,0 +1,473 @@
+/**
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package org.geowebcache.storage.blobstore.file;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import org.apache.commons.codec.digest.DigestUtils;
+import org.apache.commons.io.IOUtils;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.geowebcache.storage.BlobStoreListener;
+import org.geowebcache.storage.TileObject;
+import org.springframework.scheduling.concurrent.CustomizableThreadFactory;
+
+import com.google.common.hash.BloomFilter;
+import com.google.common.hash.Funnel;
+import com.google.common.hash.Sink;
+
+/**
+ * In memory index of the tiles stored by a {@link FileBlobStore}, per layer, gridset, format,
+ * parameters and zoom level, letting {@link FileBlobStore#get} answer definite misses without
+ * touching the file system.
+ * <p>
+ * Zoom levels up to {@link #DENSE_MAX_ZOOM} use an exact bitmap, higher ones a Bloom filter that
+ * may report tiles as existing when they don't, but never the other way around. The index is
+ * kept up to date through the blob store events. A zoom level whose directory already exists when
+ * first accessed gets scanned in the background, until then every lookup falls back to the file
+ * system. The index assumes this blob store is the only one writing to its directory.
+ * </p>
+ * <p>
+ * When persisted, the indexes are saved on {@link #destroy()} and loaded, then removed, the first
+ * time each zoom level is accessed after a restart.
+ * </p>
+ */
+class TileExistenceIndex implements BlobStoreListener {
+
+    private static Log log = LogFactory.getLog(TileExistenceIndex.class);
+
+    static final String DIRECTORY = "_gwc_existence_";
+
+    /**
+     * Zoom levels up to this one are indexed with an exact bitmap
+     */
+    static final int DENSE_MAX_ZOOM = 10;
+
+    /**
+     * Tile coordinates above this limit don't fit the bitmap, the zoom level is left unindexed
+     */
+    private static final long DENSE_MAX_ORDINATE = 1 << 15;
+
+    private static final int BLOOM_MIN_EXPECTED_TILES = 16384;
+
+    private static final double BLOOM_FALSE_POSITIVE_RATE = 0.01;
+
+    private final File persistenceDir;
+
+    private volatile boolean persist;
+
+    private final Map<String, ZoomIndex> indexes = new ConcurrentHashMap<String, ZoomIndex>();
+
+    private final ExecutorService scanner;
+
+    TileExistenceIndex(File root) {
+        this.persistenceDir = new File(root, DIRECTORY);
+        CustomizableThreadFactory tf = new CustomizableThreadFactory(
+                "GWC FileStore existence index thread-");
+        tf.setDaemon(true);
+        tf.setThreadPriority(Thread.MIN_PRIORITY);
+        this.scanner = Executors.newSingleThreadExecutor(tf);
+    }
+
+    void setPersist(boolean persist) {
+        this.persist = persist;
+    }
+
+    private static String key(String layerName, String gridSetId, String blobFormat,
+            String parametersId, int z) {
+        return layerName + '\u0000' + gridSetId + '\u0000' + z + '\u0000' + blobFormat
+                + '\u0000' + parametersId;
+    }
+
+    /**
+     * @param tileFile
+     *            the file the tile is stored into
+     * @return {@code true} if the tile is known not to be stored, {@code false} if it is or might
+     *         be
+     */
+    boolean isMissing(TileObject tile, File tileFile) {
+        final long[] xyz = tile.getXYZ();
+        final int z = (int) xyz[2];
+        final String key = key(tile.getLayerName(), tile.getGridSetId(), tile.getBlobFormat(),
+                tile.getParametersId(), z);
+        ZoomIndex index = indexes.get(key);
+        if (index == null) {
+            index = createIndex(key, z, tileFile);
+        }
+        return index.isMissing(xyz[0], xyz[1]);
+    }
+
+    private ZoomIndex createIndex(String key, int z, File tileFile) {
+        synchronized (indexes) {
+            ZoomIndex index = indexes.get(key);
+            if (index != null) {
+                return index;
+            }
+            // the directory check happens under the lock, so that tiles stored from now on are
+            // either added by their events or found by the scan
+            final File zoomDir = tileFile.getParentFile().getParentFile();
+            final String name = tileFile.getName();
+            final String extension = name.substring(name.lastIndexOf('.') + 1);
+            index = load(key);
+            if (index == null) {
+                index = new ZoomIndex(z, 0);
+                index.zoomDir = zoomDir;
+                index.extension = extension;
+                if (zoomDir.exists()) {
+                    scan(index);
+                } else {
+                    index.complete = true;
+                }
+            } else {
+                index.zoomDir = zoomDir;
+                index.extension = extension;
+            }
+            indexes.put(key, index);
+            return index;
+        }
+    }
+
+    private void scan(final ZoomIndex index) {
+        index.complete = false;
+        scanner.submit(new Runnable() {
+            public void run() {
+                final File zoomDir = index.zoomDir;
+                final String extension = index.extension;
+                long count = 0;
+                File[] intermediates = zoomDir.listFiles();
+                if (intermediates != null) {
+                    for (File intermediate : intermediates) {
+                        String[] names = intermediate.list();
+                        if (names == null) {
+                            continue;
+                        }
+                        for (String name : names) {
+                            final int dot = name.lastIndexOf('.');
+                            final int sep = name.indexOf('_');
+                            if (dot <= 0 || sep <= 0 || sep > dot
+                                    || !extension.equalsIgnoreCase(name.substring(dot + 1))) {
+                                continue;
+                            }
+                            try {
+                                index.add(Long.parseLong(name.substring(0, sep)),
+                                        Long.parseLong(name.substring(sep + 1, dot)), true);
+                                count++;
+                            } catch (NumberFormatException e) {
+                                continue;
+                            }
+                        }
+                    }
+                }
+                if (index.resize(count)) {
+                    // the Bloom filter was too small, start over with a bigger one
+                    scan(index);
+                } else {
+                    index.complete = true;
+                }
+            }
+        });
+    }
+
+    private void remove(String prefix) {
+        for (Iterator<String> it = indexes.keySet().iterator(); it.hasNext();) {
+            if (it.next().startsWith(prefix)) {
+                it.remove();
+            }
+        }
+    }
+
+    /**
+     * Saves the indexes if persistent, and stops the background scans
+     */
+    void destroy() {
+        scanner.shutdownNow();
+        if (!persist) {
+            return;
+        }
+        for (Map.Entry<String, ZoomIndex> entry : indexes.entrySet()) {
+            if (entry.getValue().complete) {
+                save(entry.getKey(), entry.getValue());
+            }
+        }
+    }
+
+    private File getPersistenceFile(String key) {
+        return new File(persistenceDir, DigestUtils.shaHex(key));
+    }
+
+    private void save(String key, ZoomIndex index) {
+        persistenceDir.mkdirs();
+        ObjectOutputStream out = null;
+        try {
+            out = new ObjectOutputStream(new FileOutputStream(getPersistenceFile(key)));
+            synchronized (index) {
+                out.writeObject(index);
+            }
+        } catch (IOException e) {
+            log.warn("Unable to save the tile existence index: " + e.getMessage());
+            IOUtils.closeQuietly(out);
+            getPersistenceFile(key).delete();
+        } finally {
+            IOUtils.closeQuietly(out);
+        }
+    }
+
+    /**
+     * Loads a saved index, removing the file so that a stale copy is never loaded after an
+     * unclean shutdown
+     */
+    private ZoomIndex load(String key) {
+        if (!persist) {
+            return null;
+        }
+        File file = getPersistenceFile(key);
+        if (!file.exists()) {
+            return null;
+        }
+        ObjectInputStream in = null;
+        try {
+            in = new ObjectInputStream(new FileInputStream(file));
+            ZoomIndex index = (ZoomIndex) in.readObject();
+            index.complete = true;
+            return index;
+        } catch (Exception e) {
+            log.warn("Unable to load the tile existence index: " + e.getMessage());
+            return null;
+        } finally {
+            IOUtils.closeQuietly(in);
+            file.delete();
+        }
+    }
+
+    private ZoomIndex get(String layerName, String gridSetId, String blobFormat,
+            String parametersId, int z) {
+        return indexes.get(key(layerName, gridSetId, blobFormat, parametersId, z));
+    }
+
+    public void tileStored(String layerName, String gridSetId, String blobFormat,
+            String parametersId, long x, long y, int z, long blobSize) {
+        // zoom levels not indexed yet will find the tile in their scan
+        ZoomIndex index = get(layerName, gridSetId, blobFormat, parametersId, z);
+        if (index != null) {
+            index.add(x, y, true);
+            if (index.complete && index.resize(0)) {
+                // the Bloom filter got too many false positives, fill a bigger one
+                scan(index);
+            }
+        }
+    }
+
+    public void tileUpdated(String layerName, String gridSetId, String blobFormat,
+            String parametersId, long x, long y, int z, long blobSize, long oldSize) {
+        // most likely indexed already, not counted so that reseeding doesn't grow the filter
+        ZoomIndex index = get(layerName, gridSetId, blobFormat, parametersId, z);
+        if (index != null) {
+            index.add(x, y, false);
+        }
+    }
+
+    public void tileDeleted(String layerName, String gridSetId, String blobFormat,
+            String parametersId, long x, long y, int z, long blobSize) {
+        ZoomIndex index = get(layerName, gridSetId, blobFormat, parametersId, z);
+        if (index != null) {
+            index.remove(x, y);
+        }
+    }
+
+    public void layerDeleted(String layerName) {
+        remove(layerName + '\u0000');
+    }
+
+    public void layerRenamed(String oldLayerName, String newLayerName) {
+        remove(oldLayerName + '\u0000');
+        remove(newLayerName + '\u0000');
+    }
+
+    public void gridSubsetDeleted(String layerName, String gridSetId) {
+        remove(layerName + '\u0000' + gridSetId + '\u0000');
+    }
+
+    private enum TileFunnel implements Funnel<Long> {
+        INSTANCE;
+
+        public void funnel(Long tile, Sink into) {
+            into.putLong(tile.longValue());
+        }
+    }
+
+    /**
+     * The tiles stored for a single zoom level. Updates are serialized, lookups don't lock
+     */
+    private static class ZoomIndex implements Serializable {
+
+        private static final long serialVersionUID = 2L;
+
+        private final boolean dense;
+
+        /**
+         * The bitmap of the dense zoom levels, replaced by a bigger copy when it has to grow
+         */
+        private volatile AtomicLongArray bits;
+
+        private volatile BloomFilter<Long> bloom;
+
+        private int expected;
+
+        private long added;
+
+        /**
+         * Whether every stored tile is in the index, lookups are answered only then
+         */
+        transient volatile boolean complete;
+
+        transient File zoomDir;
+
+        transient String extension;
+
+        /**
+         * Set when the tile coordinates don't fit the bitmap, nothing is answered then
+         */
+        private volatile boolean overflow;
+
+        ZoomIndex(int z, long tiles) {
+            this.dense = z <= DENSE_MAX_ZOOM;
+            if (dense) {
+                bits = new AtomicLongArray(64);
+            } else {
+                expected = (int) Math.min(Integer.MAX_VALUE,
+                        Math.max(BLOOM_MIN_EXPECTED_TILES, 2 * tiles));
+                bloom = BloomFilter.create(TileFunnel.INSTANCE, expected,
+                        BLOOM_FALSE_POSITIVE_RATE);
+            }
+        }
+
+        /**
+         * Interleaves the bits of the coordinates, so that the bitmap only grows as much as the
+         * largest coordinates require
+         */
+        private static int morton(long x, long y) {
+            int code = 0;
+            for (int i = 0; i < 15; i++) {
+                code |= ((x >> i) & 1) << (2 * i);
+                code |= ((y >> i) & 1) << (2 * i + 1);
+            }
+            return code;
+        }
+
+        boolean isMissing(long x, long y) {
+            // read before checking completeness, a resize marks the index incomplete before
+            // replacing the filter. Being volatile, it also makes the tiles added to the filter
+            // before visible
+            final BloomFilter<Long> filter = bloom;
+            if (!complete || overflow) {
+                return false;
+            }
+            if (dense) {
+                if (x >= DENSE_MAX_ORDINATE || y >= DENSE_MAX_ORDINATE) {
+                    return false;
+                }
+                final int bit = morton(x, y);
+                final AtomicLongArray words = bits;
+                final int word = bit >>> 6;
+                return word >= words.length() || (words.get(word) & (1L << bit)) == 0;
+            }
+            // a tile added concurrently may still be reported missing, as if looked up right
+            // before it was stored
+            return !filter.mightContain(bloomKey(x, y));
+        }
+
+        /**
+         * @param count
+         *            whether the tile counts towards the Bloom filter size, {@code false} if it
+         *            was most likely added already
+         */
+        synchronized void add(long x, long y, boolean count) {
+            if (dense) {
+                if (x >= DENSE_MAX_ORDINATE || y >= DENSE_MAX_ORDINATE) {
+                    overflow = true;
+                    return;
+                }
+                final int bit = morton(x, y);
+                final int word = bit >>> 6;
+                AtomicLongArray words = bits;
+                if (word >= words.length()) {
+                    AtomicLongArray grown = new AtomicLongArray(Math.max(word + 1,
+                            2 * words.length()));
+                    for (int i = 0; i < words.length(); i++) {
+                        grown.set(i, words.get(i));
+                    }
+                    bits = words = grown;
+                }
+                words.set(word, words.get(word) | (1L << bit));
+            } else {
+                final BloomFilter<Long> filter = bloom;
+                filter.put(bloomKey(x, y));
+                if (count) {
+                    added++;
+                }
+                // published again for the lock free lookups
+                bloom = filter;
+            }
+        }
+
+        synchronized void remove(long x, long y) {
+            // Bloom filters can't forget tiles, they'll just cost a file system check
+            if (dense && x < DENSE_MAX_ORDINATE && y < DENSE_MAX_ORDINATE) {
+                final int bit = morton(x, y);
+                final int word = bit >>> 6;
+                final AtomicLongArray words = bits;
+                if (word < words.length()) {
+                    words.set(word, words.get(word) & ~(1L << bit));
+                }
+            }
+        }
+
+        /**
+         * Replaces the Bloom filter with a bigger one if it holds more tiles than it was sized
+         * for
+         *
+         * @param tiles
+         *            the number of tiles found on disk, if known
+         * @return {@code true} if the filter was replaced and needs to be filled again
+         */
+        synchronized boolean resize(long tiles) {
+            if (dense || Math.max(tiles, added) <= expected) {
+                return false;
+            }
+            complete = false;
+            expected = (int) Math.min(Integer.MAX_VALUE, 4 * Math.max(tiles, added));
+            bloom = BloomFilter.create(TileFunnel.INSTANCE, expected, BLOOM_FALSE_POSITIVE_RATE);
+            added = 0;
+            return true;
+        }
+
+        private static Long bloomKey(long x, long y) {
+            return Long.valueOf((y << 32) | (x & 0xffffffffL));
+        }
+    }
+}
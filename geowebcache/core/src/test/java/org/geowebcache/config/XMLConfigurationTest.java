@@ -17,6 +17,7 @@ import java.util.Set;
 import junit.framework.TestCase;
 
 import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.filefilter.SuffixFileFilter;
 import org.apache.commons.io.IOUtils;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
@@ -234,23 +235,36 @@ public class XMLConfigurationTest extends TestCase {
                 .getResource(XMLConfigurationBackwardsCompatibilityTest.GWC_125_CONFIG_FILE);
         configFile = new File(configDir, "geowebcache.xml");
         FileUtils.copyURLToFile(source, configFile);
+        final long originalLength = configFile.length();
 
         gridSetBroker = new GridSetBroker(true, false);
         config = new XMLConfiguration(null, configDir.getAbsolutePath());
         config.initialize(gridSetBroker);
 
-        final String previousVersion = config.getVersion();
-        assertNotNull(previousVersion);
-
-        config.save();
-
+        // the upgraded configuration is saved right away, backing up the original one
         final String currVersion = XMLConfiguration.getCurrentSchemaVersion();
         assertNotNull(currVersion);
-        assertFalse(previousVersion.equals(currVersion));
+        assertEquals(currVersion, config.getVersion());
+        String[] backups = configDir.list(new SuffixFileFilter(".bak"));
+        assertEquals(1, backups.length);
+        assertEquals(originalLength, new File(configDir, backups[0]).length());
+
+        config.save();
 
         config = new XMLConfiguration(null, configDir.getAbsolutePath());
         config.initialize(gridSetBroker);
         final String savedVersion = config.getVersion();
         assertEquals(currVersion, savedVersion);
     }
+
+    public void testInitializeDoesNotSaveCurrentVersion() throws Exception {
+        // setUp already initialized the configuration once
+        assertEquals(0, configDir.list(new SuffixFileFilter(".bak")).length);
+        final long lastModified = configFile.lastModified();
+
+        config = new XMLConfiguration(null, configDir.getAbsolutePath());
+        config.initialize(new GridSetBroker(true, false));
+        assertEquals(lastModified, configFile.lastModified());
+        assertEquals(0, configDir.list(new SuffixFileFilter(".bak")).length);
+    }
 }
@@ -0,0 +1,57 @@
+package org.geowebcache.layer;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.IndexColorModel;
+
+import junit.framework.TestCase;
+
+public class ColorQuantizerTest extends TestCase {
+
+    public void testFewColorsKept() {
+        BufferedImage image = new BufferedImage(64, 64, BufferedImage.TYPE_INT_ARGB);
+        for (int x = 0; x < 64; x++) {
+            for (int y = 0; y < 64; y++) {
+                if (x < 16) {
+                    image.setRGB(x, y, 0xFFFF0000);
+                } else if (x < 32) {
+                    image.setRGB(x, y, 0xFF0000FF);
+                } else if (x < 48) {
+                    image.setRGB(x, y, 0xFFFFFFFF);
+                }
+                // the rest stays transparent
+            }
+        }
+
+        BufferedImage quantized = ColorQuantizer.quantize(image);
+        assertTrue(quantized.getColorModel() instanceof IndexColorModel);
+        assertEquals(4, ((IndexColorModel) quantized.getColorModel()).getMapSize());
+        assertEquals(0xFFFF0000, quantized.getRGB(0, 0));
+        assertEquals(0xFF0000FF, quantized.getRGB(20, 10));
+        assertEquals(0xFFFFFFFF, quantized.getRGB(40, 63));
+        assertEquals(0, quantized.getRGB(50, 50) >>> 24);
+    }
+
+    public void testManyColorsApproximated() {
+        BufferedImage image = new BufferedImage(256, 256, BufferedImage.TYPE_INT_RGB);
+        for (int x = 0; x < 256; x++) {
+            for (int y = 0; y < 256; y++) {
+                image.setRGB(x, y, (x << 16) | (y << 8) | ((x + y) / 2));
+            }
+        }
+
+        BufferedImage quantized = ColorQuantizer.quantize(image);
+        assertEquals(256, ((IndexColorModel) quantized.getColorModel()).getMapSize());
+        long error = 0;
+        for (int x = 0; x < 256; x++) {
+            for (int y = 0; y < 256; y++) {
+                int expected = image.getRGB(x, y);
+                int actual = quantized.getRGB(x, y);
+                for (int shift = 0; shift < 24; shift += 8) {
+                    error += Math.abs(((expected >> shift) & 0xFF) - ((actual >> shift) & 0xFF));
+                }
+            }
+        }
+        // average error per component
+        assertTrue(error / (256 * 256 * 3) < 12);
+    }
+}
@@ -1,11 +1,17 @@
 package org.geowebcache.layer.wms;
 
+import java.awt.image.BufferedImage;
+import java.awt.image.IndexColorModel;
+import java.awt.image.RenderedImage;
 import java.util.Arrays;
 import java.util.Collections;
 import java.util.Hashtable;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.imageio.ImageIO;
 
 import junit.framework.TestCase;
 
@@ -13,7 +19,9 @@ import org.geowebcache.grid.BoundingBox;
 import org.geowebcache.grid.GridSetBroker;
 import org.geowebcache.grid.GridSubset;
 import org.geowebcache.grid.GridSubsetFactory;
+import org.geowebcache.io.ByteArrayResource;
 import org.geowebcache.mime.ImageMime;
+import org.geowebcache.mime.MimeType;
 
 public class MetaTileTest extends TestCase {
 
@@ -194,6 +202,95 @@ public class MetaTileTest extends TestCase {
         assertTrue(Math.abs( Double.parseDouble(coordStrs[3]) - 45.54931640625) < 0.001);
     }
     
+    public void testUniformTilesEncodedOnce() throws Exception {
+        GridSubset grid = GridSubsetFactory.createGridSubSet(gridSetBroker.WORLD_EPSG4326);
+        long[] gridPos = { 0, 0, 1 };
+        final AtomicInteger encoded = new AtomicInteger();
+        WMSMetaTile mt = new WMSMetaTile(null, grid, ImageMime.png, null, gridPos, 2, 1,
+                Collections.singletonMap("test", "test1")) {
+            @Override
+            public RenderedImage createTile(int minX, int minY, int tileWidth, int tileHeight) {
+                encoded.incrementAndGet();
+                return super.createTile(minX, minY, tileWidth, tileHeight);
+            }
+        };
+        final int color = 0x80123456;
+        BufferedImage image = new BufferedImage(512, 256, BufferedImage.TYPE_INT_ARGB);
+        for (int x = 0; x < 512; x++) {
+            for (int y = 0; y < 256; y++) {
+                image.setRGB(x, y, color);
+            }
+        }
+        // the second tile isn't uniform
+        image.setRGB(300, 10, 0xFFFFFFFF);
+        mt.setImage(image);
+
+        ByteArrayResource first = new ByteArrayResource();
+        assertTrue(mt.writeTileToStream(0, first));
+        assertTrue(mt.writeTileToStream(1, new ByteArrayResource()));
+        assertEquals(2, encoded.get());
+
+        // the same uniform tile is not encoded again
+        ByteArrayResource second = new ByteArrayResource();
+        assertTrue(mt.writeTileToStream(0, second));
+        assertEquals(2, encoded.get());
+        assertTrue(Arrays.equals(first.getContents(), second.getContents()));
+        BufferedImage decoded = ImageIO.read(second.getInputStream());
+        assertEquals(color, decoded.getRGB(0, 0));
+        assertEquals(color, decoded.getRGB(255, 255));
+        mt.dispose();
+    }
+
+    public void testPng8Quantized() throws Exception {
+        GridSubset grid = GridSubsetFactory.createGridSubSet(gridSetBroker.WORLD_EPSG4326);
+        long[] gridPos = { 0, 0, 1 };
+        WMSMetaTile mt = new WMSMetaTile(null, grid, ImageMime.png8, null, gridPos, 2, 1,
+                Collections.singletonMap("test", "test1"));
+        BufferedImage image = new BufferedImage(512, 256, BufferedImage.TYPE_INT_ARGB);
+        for (int x = 0; x < 512; x++) {
+            for (int y = 0; y < 128; y++) {
+                image.setRGB(x, y, 0xFF000000 | (x << 8) | y);
+            }
+        }
+        mt.setImage(image);
+
+        ByteArrayResource tile = new ByteArrayResource();
+        assertTrue(mt.writeTileToStream(1, tile));
+        BufferedImage decoded = ImageIO.read(tile.getInputStream());
+        assertTrue(decoded.getColorModel() instanceof IndexColorModel);
+        mt.dispose();
+    }
+
+    public void testJpegPngByTransparency() throws Exception {
+        assertSame(ImageMime.jpeg_png, MimeType.createFromFormat("image/vnd.jpeg-png"));
+        assertSame(ImageMime.jpeg_png, MimeType.createFromExtension("jpeg-png"));
+
+        GridSubset grid = GridSubsetFactory.createGridSubSet(gridSetBroker.WORLD_EPSG4326);
+        long[] gridPos = { 0, 0, 1 };
+        WMSMetaTile mt = new WMSMetaTile(null, grid, ImageMime.jpeg_png, null, gridPos, 2, 1,
+                Collections.singletonMap("test", "test1"));
+        assertSame(ImageMime.png, mt.getRequestFormat());
+        BufferedImage image = new BufferedImage(512, 256, BufferedImage.TYPE_INT_ARGB);
+        for (int x = 0; x < 512; x++) {
+            for (int y = 0; y < 256; y++) {
+                image.setRGB(x, y, 0xFF000000 | (x << 8) | y);
+            }
+        }
+        // a hole in the second tile
+        image.setRGB(400, 100, 0);
+        mt.setImage(image);
+
+        ByteArrayResource opaque = new ByteArrayResource();
+        assertTrue(mt.writeTileToStream(0, opaque));
+        assertEquals("image/jpeg", ImageMime.jpeg_png.getMimeType(opaque));
+        ByteArrayResource transparent = new ByteArrayResource();
+        assertTrue(mt.writeTileToStream(1, transparent));
+        assertEquals("image/png", ImageMime.jpeg_png.getMimeType(transparent));
+        assertNotNull(ImageIO.read(opaque.getInputStream()));
+        assertNotNull(ImageIO.read(transparent.getInputStream()));
+        mt.dispose();
+    }
+
     private WMSLayer createWMSLayer(BoundingBox layerBounds) {
         String[] urls = {"http://localhost:38080/wms"};
         List<String> formatList = new LinkedList<String>();
@@ -19,6 +19,7 @@ import static org.easymock.EasyMock.capture;
 import static org.easymock.EasyMock.expect;
 import static org.easymock.EasyMock.expectLastCall;
 import static org.easymock.classextension.EasyMock.replay;
+import static org.easymock.classextension.EasyMock.reset;
 import static org.easymock.classextension.EasyMock.verify;
 import static org.geowebcache.TestHelpers.createFakeSourceImage;
 import static org.geowebcache.TestHelpers.createRequest;
@@ -29,7 +30,11 @@ import java.io.IOException;
 import java.net.URL;
 import java.nio.channels.Channels;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.HashSet;
+import java.util.Hashtable;
 import java.util.List;
 import java.util.Map;
 import java.util.concurrent.Callable;
@@ -38,7 +43,9 @@ import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.Future;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
+import javax.imageio.ImageIO;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 
@@ -52,9 +59,17 @@ import org.easymock.IAnswer;
 import org.easymock.classextension.EasyMock;
 import org.geowebcache.GeoWebCacheException;
 import org.geowebcache.TestHelpers;
+import org.geowebcache.conveyor.Conveyor.CacheResult;
 import org.geowebcache.conveyor.ConveyorTile;
+import org.geowebcache.filter.parameters.ParameterException;
+import org.geowebcache.filter.parameters.ParameterFilter;
+import org.geowebcache.filter.parameters.RegexParameterFilter;
+import org.geowebcache.filter.parameters.StringParameterFilter;
+import org.geowebcache.grid.BoundingBox;
 import org.geowebcache.grid.GridSet;
 import org.geowebcache.grid.GridSetBroker;
+import org.geowebcache.grid.GridSubset;
+import org.geowebcache.grid.GridSubsetFactory;
 import org.geowebcache.grid.OutsideCoverageException;
 import org.geowebcache.io.ByteArrayResource;
 import org.geowebcache.io.Resource;
@@ -217,6 +232,426 @@ public class WMSLayerTest extends TestCase {
 
 	}
 
+    public void testModifiableParametersCached() throws Exception {
+        RegexParameterFilter styles = new RegexParameterFilter();
+        styles.setKey("STYLES");
+        styles.setDefaultValue("default");
+        styles.setRegex("default|alt[0-9]");
+        StringParameterFilter time = new StringParameterFilter();
+        time.setKey("time");
+        time.setDefaultValue("now");
+        time.setValues(Arrays.asList("now", "yesterday"));
+        List<ParameterFilter> filters = new ArrayList<ParameterFilter>();
+        filters.add(styles.clone());
+        filters.add(time);
+        WMSLayer l = new WMSLayer("name", new String[0], null, "a", null, null, filters, null,
+                null, false, null);
+
+        Map<String, String[]> request = new HashMap<String, String[]>();
+        assertTrue(l.getModifiableParameters(request, "UTF-8").isEmpty());
+        request.put("styles", new String[] { "default" });
+        assertTrue(l.getModifiableParameters(request, "UTF-8").isEmpty());
+
+        request.put("styles", new String[] { "alt1" });
+        Map<String, String> params = l.getModifiableParameters(request, "UTF-8");
+        assertEquals("alt1", params.get("STYLES"));
+        assertEquals("now", params.get("TIME"));
+        // same values, same cached result
+        assertSame(params, l.getModifiableParameters(request, "UTF-8"));
+
+        request.put("TIME", new String[] { "yesterday" });
+        params = l.getModifiableParameters(request, "UTF-8");
+        assertEquals("alt1", params.get("STYLES"));
+        assertEquals("yesterday", params.get("TIME"));
+
+        request.put("styles", new String[] { "bad" });
+        try {
+            l.getModifiableParameters(request, "UTF-8");
+            fail("Expected a ParameterException");
+        } catch (ParameterException e) {
+            // ok
+        }
+        // the failure is not cached
+        try {
+            l.getModifiableParameters(request, "UTF-8");
+            fail("Expected a ParameterException");
+        } catch (ParameterException e) {
+            // ok
+        }
+
+        // filters modified in place are picked up
+        time.setValues(Arrays.asList("now", "yesterday", "tomorrow"));
+        request.put("styles", new String[] { "alt1" });
+        request.put("TIME", new String[] { "tomorrow" });
+        assertEquals("tomorrow", l.getModifiableParameters(request, "UTF-8").get("TIME"));
+        // and so are the filters replaced in the list, along with their default values
+        styles.setDefaultValue("alt1");
+        l.getParameterFilters().set(0, styles);
+        request.put("TIME", new String[] { "now" });
+        assertTrue(l.getModifiableParameters(request, "UTF-8").isEmpty());
+    }
+
+    public void testStaleWhileRevalidate() throws Exception {
+        // tiles expire after a minute, and may be served for an hour more
+        String[] urls = { "http://localhost:38080/wms" };
+        List<String> formats = Collections.singletonList("image/png");
+        Hashtable<String, GridSubset> grids = new Hashtable<String, GridSubset>();
+        GridSubset grid = GridSubsetFactory.createGridSubSet(gridSetBroker.WORLD_EPSG4326,
+                new BoundingBox(-30.0, 15.0, 45.0, 30), 0, 10);
+        grids.put(grid.getName(), grid);
+        WMSLayer layer = new WMSLayer("test:layer", urls, "aStyle", "test:layer", formats,
+                grids, null, new int[] { 3, 3 }, null, false, null) {
+            @Override
+            public int getExpireCache(int zoomLevel) {
+                return 60;
+            }
+        };
+        layer.setStaleWhileRevalidate(3600);
+        layer.initialize(gridSetBroker);
+        layer.setLockProvider(new MockLockProvider());
+        layer.setSourceHelper(new MockWMSSourceHelper());
+
+        final AtomicLong created = new AtomicLong();
+        final AtomicInteger puts = new AtomicInteger();
+        StorageBroker storageBroker = EasyMock.createMock(StorageBroker.class);
+        expect(storageBroker.get((TileObject) anyObject())).andAnswer(new IAnswer<Boolean>() {
+            public Boolean answer() throws Throwable {
+                TileObject tile = (TileObject) EasyMock.getCurrentArguments()[0];
+                tile.setBlob(new ByteArrayResource(new byte[] { 1, 2, 3 }));
+                tile.setCreated(created.get());
+                return true;
+            }
+        }).anyTimes();
+        expect(storageBroker.put((TileObject) anyObject())).andAnswer(new IAnswer<Boolean>() {
+            public Boolean answer() throws Throwable {
+                puts.incrementAndGet();
+                created.set(System.currentTimeMillis());
+                return true;
+            }
+        }).anyTimes();
+        replay(storageBroker);
+
+        long[] coverage = grid.getCoverage(0);
+        long[] gridLoc = { coverage[0], coverage[1], 0 };
+        MimeType mimeType = layer.getMimeTypes().get(0);
+
+        // an expired tile is served right away, and refreshed in the background
+        created.set(System.currentTimeMillis() - 120 * 1000);
+        MockHttpServletResponse response = new MockHttpServletResponse();
+        ConveyorTile tile = layer.getTile(new ConveyorTile(storageBroker, layer.getName(),
+                grid.getName(), gridLoc, mimeType, null, new MockHttpServletRequest(), response));
+        assertTrue(tile.isStale());
+        assertEquals(CacheResult.HIT, tile.getCacheResult());
+        assertEquals("no-cache", response.getHeader("Cache-Control"));
+        assertNotNull(response.getHeader("Warning"));
+
+        long timeout = System.currentTimeMillis() + 10000;
+        while (puts.get() == 0 || StaleTileRefresher.getInstance().getPending() > 0) {
+            assertTrue("The stale tile was not refreshed", System.currentTimeMillis() < timeout);
+            Thread.sleep(10);
+        }
+
+        // the refreshed tile is fresh
+        response = new MockHttpServletResponse();
+        tile = layer.getTile(new ConveyorTile(storageBroker, layer.getName(), grid.getName(),
+                gridLoc, mimeType, null, new MockHttpServletRequest(), response));
+        assertFalse(tile.isStale());
+        assertEquals(CacheResult.HIT, tile.getCacheResult());
+        assertFalse("no-cache".equals(response.getHeader("Cache-Control")));
+
+        // past the stale-while-revalidate period the tile is rendered before being served
+        created.set(System.currentTimeMillis() - 7200 * 1000);
+        int before = puts.get();
+        tile = layer.getTile(new ConveyorTile(storageBroker, layer.getName(), grid.getName(),
+                gridLoc, mimeType, null, new MockHttpServletRequest(),
+                new MockHttpServletResponse()));
+        assertFalse(tile.isStale());
+        assertEquals(CacheResult.MISS, tile.getCacheResult());
+        assertTrue(puts.get() > before);
+    }
+
+    public void testConditionalRevalidation() throws Exception {
+        final WMSLayer layer = createWMSLayer("image/png");
+        final byte[] image = createFakeSourceImage(layer);
+        final AtomicInteger fullRequests = new AtomicInteger();
+        final AtomicInteger conditionalRequests = new AtomicInteger();
+        layer.setSourceHelper(new WMSHttpHelper() {
+            @Override
+            public GetMethod executeRequest(URL url, Map<String, String> queryParams,
+                    Integer backendTimeout, Map<String, String> headers) throws HttpException,
+                    IOException {
+                GetMethod response = EasyMock.createNiceMock(GetMethod.class);
+                if (headers != null) {
+                    conditionalRequests.incrementAndGet();
+                    assertEquals("\"v1\"", headers.get("If-None-Match"));
+                    expect(response.getStatusCode()).andReturn(304).anyTimes();
+                } else {
+                    fullRequests.incrementAndGet();
+                    expect(response.getStatusCode()).andReturn(200).anyTimes();
+                    expect(response.getResponseHeader("Content-Type")).andReturn(
+                            new Header("Content-Type", "image/png")).anyTimes();
+                    expect(response.getResponseHeader("ETag")).andReturn(
+                            new Header("ETag", "\"v1\"")).anyTimes();
+                    expect(response.getResponseBodyAsStream()).andReturn(
+                            new ByteArrayInputStream(image));
+                }
+                replay(response);
+                return response;
+            }
+        });
+
+        // tile creation times by position
+        final Map<List<Long>, Long> stored = new HashMap<List<Long>, Long>();
+        final AtomicInteger puts = new AtomicInteger();
+        StorageBroker storageBroker = EasyMock.createMock(StorageBroker.class);
+        expect(storageBroker.get((TileObject) anyObject())).andAnswer(new IAnswer<Boolean>() {
+            public Boolean answer() throws Throwable {
+                TileObject tile = (TileObject) EasyMock.getCurrentArguments()[0];
+                Long created = stored.get(Arrays.asList(tile.getXYZ()[0], tile.getXYZ()[1],
+                        tile.getXYZ()[2]));
+                if (created == null) {
+                    return false;
+                }
+                tile.setBlob(new ByteArrayResource(image));
+                tile.setCreated(created);
+                return true;
+            }
+        }).anyTimes();
+        expect(storageBroker.put((TileObject) anyObject())).andAnswer(new IAnswer<Boolean>() {
+            public Boolean answer() throws Throwable {
+                TileObject tile = (TileObject) EasyMock.getCurrentArguments()[0];
+                stored.put(Arrays.asList(tile.getXYZ()[0], tile.getXYZ()[1], tile.getXYZ()[2]),
+                        tile.getCreated());
+                puts.incrementAndGet();
+                return true;
+            }
+        }).anyTimes();
+        expect(storageBroker.touch((TileObject) anyObject())).andAnswer(new IAnswer<Boolean>() {
+            public Boolean answer() throws Throwable {
+                TileObject tile = (TileObject) EasyMock.getCurrentArguments()[0];
+                List<Long> key = Arrays.asList(tile.getXYZ()[0], tile.getXYZ()[1],
+                        tile.getXYZ()[2]);
+                if (!stored.containsKey(key)) {
+                    return false;
+                }
+                stored.put(key, tile.getCreated());
+                return true;
+            }
+        }).anyTimes();
+        replay(storageBroker);
+
+        GridSubset gridSubset = layer.getGridSubset(gridSetBroker.WORLD_EPSG4326.getName());
+        long[] coverage = gridSubset.getCoverage(5);
+        long[] gridLoc = { coverage[0] + 1, coverage[1], 5 };
+        MimeType mimeType = layer.getMimeTypes().get(0);
+
+        // the first time the metatile is fetched in full
+        layer.seedTile(new ConveyorTile(storageBroker, layer.getName(), gridSubset.getName(),
+                gridLoc, mimeType, null, null, null), false);
+        assertEquals(1, fullRequests.get());
+        assertEquals(0, conditionalRequests.get());
+        final int tiles = puts.get();
+        assertTrue(tiles > 0);
+
+        // then revalidated, and the tiles only touched
+        for (List<Long> key : stored.keySet()) {
+            stored.put(key, 0L);
+        }
+        ConveyorTile tile = new ConveyorTile(storageBroker, layer.getName(),
+                gridSubset.getName(), gridLoc, mimeType, null, null, null);
+        layer.seedTile(tile, false);
+        assertEquals(1, fullRequests.get());
+        assertEquals(1, conditionalRequests.get());
+        assertEquals(tiles, puts.get());
+        for (Long created : stored.values()) {
+            assertTrue(created > 0);
+        }
+        assertEquals(image.length, tile.getBlob().getSize());
+
+        // a tile went missing, the metatile is fetched in full again
+        stored.remove(stored.keySet().iterator().next());
+        layer.seedTile(new ConveyorTile(storageBroker, layer.getName(), gridSubset.getName(),
+                gridLoc, mimeType, null, null, null), false);
+        assertEquals(2, fullRequests.get());
+        assertEquals(2, conditionalRequests.get());
+        assertEquals(2 * tiles, puts.get());
+    }
+
+    public void testEmptyTileCache() throws Exception {
+        final WMSLayer layer = createWMSLayer("image/png");
+        final AtomicInteger requests = new AtomicInteger();
+        layer.setSourceHelper(new WMSHttpHelper() {
+            @Override
+            public GetMethod executeRequest(URL url, Map<String, String> queryParams,
+                    Integer backendTimeout, Map<String, String> headers) throws HttpException,
+                    IOException {
+                requests.incrementAndGet();
+                GetMethod response = EasyMock.createNiceMock(GetMethod.class);
+                expect(response.getStatusCode()).andReturn(204).anyTimes();
+                replay(response);
+                return response;
+            }
+        });
+        final EmptyTileCache emptyTileCache = new EmptyTileCache();
+        layer.setEmptyTileCache(emptyTileCache);
+
+        StorageBroker storageBroker = EasyMock.createNiceMock(StorageBroker.class);
+        expect(storageBroker.put((TileObject) anyObject())).andReturn(true).anyTimes();
+        replay(storageBroker);
+
+        GridSubset gridSubset = layer.getGridSubset(gridSetBroker.WORLD_EPSG4326.getName());
+        long[] coverage = gridSubset.getCoverage(5);
+        long[] gridLoc = { coverage[0] + 1, coverage[1], 5 };
+        MimeType mimeType = layer.getMimeTypes().get(0);
+
+        // the backend has nothing to draw, the whole metatile is recorded as empty
+        layer.seedTile(new ConveyorTile(storageBroker, layer.getName(), gridSubset.getName(),
+                gridLoc, mimeType, null, null, null), false);
+        assertEquals(1, requests.get());
+        assertTrue(emptyTileCache.size() > 1);
+
+        // and served as a blank tile without asking the backend nor the storage again
+        reset(storageBroker);
+        replay(storageBroker);
+        ConveyorTile tile = layer.getTile(new ConveyorTile(storageBroker, layer.getName(),
+                gridSubset.getName(), gridLoc, mimeType, null, null, null));
+        assertEquals(1, requests.get());
+        assertEquals(CacheResult.HIT, tile.getCacheResult());
+        assertEquals(200, tile.getStatus());
+        assertTrue(tile.getBlob().getSize() > 0);
+        assertTrue(tile.getTSCreated() > 0);
+        verify(storageBroker);
+
+        // deleting the tile, or truncating the range, forgets about it
+        long size = emptyTileCache.size();
+        emptyTileCache.tileDeleted(layer.getName(), gridSubset.getName(), mimeType.getFormat(),
+                null, gridLoc[0], gridLoc[1], (int) gridLoc[2], 0);
+        assertEquals(size - 1, emptyTileCache.size());
+        assertFalse(emptyTileCache.isEmpty(layer.getName(), gridSubset.getName(),
+                mimeType.getFormat(), null, gridLoc, layer.getMetaTilingFactors(), 0));
+        emptyTileCache.truncate(new TileRange(layer.getName(), gridSubset.getName(), 5, 5,
+                gridSubset.getCoverages(), mimeType, (Map<String, String>) null));
+        assertEquals(0, emptyTileCache.size());
+
+        // the blank tiles are not shared among layers, and go away with the layer
+        emptyTileCache.setBlankTile(layer.getName(), null, mimeType.getFormat(), 256, 256,
+                new byte[] { 1 });
+        assertNotNull(emptyTileCache.getBlankTile(layer.getName(), null, mimeType.getFormat(),
+                256, 256));
+        assertNull(emptyTileCache.getBlankTile("other", null, mimeType.getFormat(), 256, 256));
+        assertNull(emptyTileCache.getBlankTile(layer.getName(), "params", mimeType.getFormat(),
+                256, 256));
+        emptyTileCache.layerDeleted(layer.getName());
+        assertNull(emptyTileCache.getBlankTile(layer.getName(), null, mimeType.getFormat(), 256,
+                256));
+    }
+
+    public void testMasterFormat() throws Exception {
+        Hashtable<String, GridSubset> grids = new Hashtable<String, GridSubset>();
+        GridSubset grid = GridSubsetFactory.createGridSubSet(gridSetBroker.WORLD_EPSG4326,
+                new BoundingBox(-30.0, 15.0, 45.0, 30), 0, 10);
+        grids.put(grid.getName(), grid);
+        WMSLayer layer = new WMSLayer("test:master", new String[] { "http://localhost:38080/wms" },
+                "aStyle", "test:master", Arrays.asList("image/png", "image/jpeg"), grids, null,
+                new int[] { 3, 3 }, null, false, null);
+        layer.setMasterFormat("image/png");
+        layer.initialize(gridSetBroker);
+        layer.setLockProvider(new MockLockProvider());
+        MockTileSupport mock = new MockTileSupport(layer);
+
+        long[] coverage = grid.getCoverage(5);
+        long[] gridLoc = { coverage[0], coverage[1], 5 };
+        MimeType png = MimeType.createFromFormat("image/png");
+        MimeType jpeg = MimeType.createFromFormat("image/jpeg");
+
+        // the jpeg tile is encoded from the png one, rendered and stored as usual
+        ConveyorTile tile = layer.getTile(new ConveyorTile(mock.storageBroker, layer.getName(),
+                grid.getName(), gridLoc, jpeg, null, null, null));
+        assertEquals(1, mock.wmsMetaRequestCounter.get());
+        assertEquals(200, tile.getStatus());
+        byte[] contents = tile.getContent();
+        assertEquals((byte) 0xFF, contents[0]);
+        assertEquals((byte) 0xD8, contents[1]);
+        final int puts = mock.storagePutCounter.get();
+        assertTrue(puts > 0);
+
+        // both formats are served from the stored png tile from now on
+        tile = layer.getTile(new ConveyorTile(mock.storageBroker, layer.getName(),
+                grid.getName(), gridLoc, jpeg, null, null, null));
+        assertEquals(CacheResult.HIT, tile.getCacheResult());
+        assertTrue(Arrays.equals(contents, tile.getContent()));
+        tile = layer.getTile(new ConveyorTile(mock.storageBroker, layer.getName(),
+                grid.getName(), gridLoc, png, null, null, null));
+        assertEquals(CacheResult.HIT, tile.getCacheResult());
+        assertEquals(1, mock.wmsMetaRequestCounter.get());
+
+        // seeding the jpeg tiles renders the png ones
+        layer.seedTile(new ConveyorTile(mock.storageBroker, layer.getName(), grid.getName(),
+                gridLoc, jpeg, null, null, null), false);
+        assertEquals(2, mock.wmsMetaRequestCounter.get());
+        assertEquals(2 * puts, mock.storagePutCounter.get());
+    }
+
+    public void testOverzoom() throws Exception {
+        WMSLayer layer = createWMSLayer("image/png");
+        layer.setOverzoomLevel(5);
+        MockTileSupport mock = new MockTileSupport(layer);
+
+        GridSubset gridSubset = layer.getGridSubset(gridSetBroker.WORLD_EPSG4326.getName());
+        long[] coverage = gridSubset.getCoverage(7);
+        // two tiles sharing their ancestor at level 5
+        long[] gridLoc = { (coverage[0] + 3) / 4 * 4, (coverage[1] + 3) / 4 * 4, 7 };
+        long[] siblingLoc = { gridLoc[0] + 1, gridLoc[1] + 1, 7 };
+        MimeType mimeType = layer.getMimeTypes().get(0);
+
+        ConveyorTile tile = layer.getTile(new ConveyorTile(mock.storageBroker, layer.getName(),
+                gridSubset.getName(), gridLoc, mimeType, null, null, null));
+        assertEquals(1, mock.wmsMetaRequestCounter.get());
+        assertEquals(200, tile.getStatus());
+        assertNotNull(ImageIO.read(tile.getBlob().getInputStream()));
+        final int puts = mock.storagePutCounter.get();
+
+        // the ancestor is cached, the upsampled tiles aren't
+        tile = layer.getTile(new ConveyorTile(mock.storageBroker, layer.getName(),
+                gridSubset.getName(), siblingLoc, mimeType, null, null, null));
+        assertEquals(CacheResult.HIT, tile.getCacheResult());
+        assertEquals(1, mock.wmsMetaRequestCounter.get());
+        assertEquals(puts, mock.storagePutCounter.get());
+        layer.seedTile(new ConveyorTile(mock.storageBroker, layer.getName(),
+                gridSubset.getName(), siblingLoc, mimeType, null, null, null), false);
+        assertEquals(puts, mock.storagePutCounter.get());
+
+        // unless asked to, seeding then makes every tile of the metatile
+        layer.setCacheOverzoomedTiles(true);
+        int[] metaTilingFactors = layer.getMetaTilingFactors();
+        long minX = siblingLoc[0] - siblingLoc[0] % metaTilingFactors[0];
+        long minY = siblingLoc[1] - siblingLoc[1] % metaTilingFactors[1];
+        int metaTileTiles = 0;
+        for (long x = minX; x < minX + metaTilingFactors[0]; x++) {
+            for (long y = minY; y < minY + metaTilingFactors[1]; y++) {
+                if (gridSubset.covers(new long[] { x, y, 7 })) {
+                    metaTileTiles++;
+                }
+            }
+        }
+        assertTrue(metaTileTiles > 1);
+        layer.seedTile(new ConveyorTile(mock.storageBroker, layer.getName(),
+                gridSubset.getName(), siblingLoc, mimeType, null, null, null), false);
+        assertEquals(1, mock.wmsMetaRequestCounter.get());
+        assertEquals(puts + metaTileTiles, mock.storagePutCounter.get());
+
+        // seeding leaves the stored tiles alone
+        layer.seedTile(new ConveyorTile(mock.storageBroker, layer.getName(),
+                gridSubset.getName(), siblingLoc, mimeType, null, null, null), true);
+        assertEquals(puts + metaTileTiles, mock.storagePutCounter.get());
+
+        // reseeding makes them again out of the ancestor
+        layer.seedTile(new ConveyorTile(mock.storageBroker, layer.getName(),
+                gridSubset.getName(), siblingLoc, mimeType, null, null, null), false);
+        assertEquals(1, mock.wmsMetaRequestCounter.get());
+        assertEquals(puts + 2 * metaTileTiles, mock.storagePutCounter.get());
+    }
+
 	private WMSLayer createFeatureInfoLayer(String wmsLayers, String wmsQueryLayers) {
 		return new WMSLayer("name", new String[0], null, wmsLayers, null, null,
 				null, null, null, true, wmsQueryLayers);
@@ -25,25 +25,43 @@ import static org.geowebcache.TestHelpers.createFakeSourceImage;
 import static org.geowebcache.TestHelpers.createWMSLayer;
 import static org.geowebcache.TestHelpers.createRequest;
 
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
 import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.nio.channels.Channels;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicLong;
 
+import javax.imageio.IIOImage;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageWriteParam;
+import javax.imageio.ImageWriter;
+import javax.imageio.stream.ImageOutputStream;
+
 import junit.framework.TestCase;
 
+import org.apache.commons.io.IOUtils;
 import org.easymock.Capture;
+import org.easymock.IAnswer;
 import org.easymock.classextension.EasyMock;
 import org.geowebcache.GeoWebCacheException;
 import org.geowebcache.TestHelpers;
 import org.geowebcache.grid.BoundingBox;
 import org.geowebcache.grid.GridSubset;
+import org.geowebcache.io.ByteArrayResource;
 import org.geowebcache.io.Resource;
 import org.geowebcache.layer.TileResponseReceiver;
 import org.geowebcache.layer.wms.WMSLayer;
@@ -329,6 +347,322 @@ public class SeedTaskTest extends TestCase {
         assertEquals(expectedTiles, tileKeys);
     }
 
+    public void testDifferentialReseed() throws Exception {
+        WMSLayer tl = createWMSLayer("image/png");
+        tl.setSourceHelper(new MockWMSSourceHelper());
+
+        /*
+         * A storage broker keeping the tile contents in memory
+         */
+        final Map<List<Long>, byte[]> stored = new HashMap<List<Long>, byte[]>();
+        final AtomicInteger puts = new AtomicInteger();
+        final StorageBroker storageBroker = mockMemoryStorageBroker(stored,
+                new HashMap<List<Long>, Long>(), puts);
+
+        SeedRequest req = createRequest(tl, TYPE.RESEED, 2, 2);
+        TileRange tr = TileBreeder.createTileRange(req, tl);
+        /*
+         * HACK: avoid SeedTask.getCurrentThreadArrayIndex failure.
+         */
+        Thread.currentThread().setName("pool-fake-thread-1");
+
+        // a regular reseed writes all the tiles
+        SeedTask task = new SeedTask(storageBroker, new TileRangeIterator(tr,
+                tl.getMetaTilingFactors()), tl, true, false);
+        task.setThreadInfo(new AtomicInteger(), 0);
+        task.doAction();
+        final int tiles = puts.get();
+        assertTrue(tiles > 0);
+
+        // a differential one none, the backend returns the same image
+        task = new SeedTask(storageBroker, new TileRangeIterator(tr, tl.getMetaTilingFactors()),
+                tl, true, false);
+        task.setDifferential(true);
+        task.setThreadInfo(new AtomicInteger(), 0);
+        task.doAction();
+        assertEquals(tiles, puts.get());
+
+        // but for the tiles that changed
+        stored.put(stored.keySet().iterator().next(), new byte[] { 1, 2, 3 });
+        task = new SeedTask(storageBroker, new TileRangeIterator(tr, tl.getMetaTilingFactors()),
+                tl, true, false);
+        task.setDifferential(true);
+        task.setThreadInfo(new AtomicInteger(), 0);
+        task.doAction();
+        assertEquals(tiles + 1, puts.get());
+    }
+
+    public void testOptimizeStoredTiles() throws Exception {
+        WMSLayer tl = createWMSLayer("image/png");
+        SeedRequest req = createRequest(tl, TYPE.OPTIMIZE, 2, 2);
+        TileRange tr = TileBreeder.createTileRange(req, tl);
+
+        // a PNG encoded without deflating, and a tile that isn't a PNG
+        BufferedImage image = new BufferedImage(256, 256, BufferedImage.TYPE_INT_ARGB);
+        Graphics2D g = image.createGraphics();
+        g.setColor(Color.BLUE);
+        g.fillRect(64, 64, 128, 128);
+        g.dispose();
+        ImageWriter writer = ImageIO.getImageWritersByFormatName("png").next();
+        ImageWriteParam param = writer.getDefaultWriteParam();
+        param.setCompressionMode(ImageWriteParam.MODE_EXPLICIT);
+        param.setCompressionQuality(1f);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        ImageOutputStream imgOut = ImageIO.createImageOutputStream(out);
+        writer.setOutput(imgOut);
+        writer.write(null, new IIOImage(image, null, null), param);
+        imgOut.close();
+        final byte[] png = out.toByteArray();
+        final byte[] other = new byte[] { (byte) 0xFF, (byte) 0xD8, 1, 2, 3 };
+
+        final Map<List<Long>, byte[]> stored = new HashMap<List<Long>, byte[]>();
+        final Map<List<Long>, Long> created = new HashMap<List<Long>, Long>();
+        TileRangeIterator it = new TileRangeIterator(tr, new int[] { 1, 1 });
+        final List<Long> pngKey = key(it.nextMetaGridLocation(new long[3]));
+        final List<Long> otherKey = key(it.nextMetaGridLocation(new long[3]));
+        stored.put(pngKey, png);
+        stored.put(otherKey, other);
+        created.put(pngKey, 1000L);
+        created.put(otherKey, 1000L);
+
+        final StorageBroker storageBroker = mockMemoryStorageBroker(stored, created,
+                new AtomicInteger());
+
+        OptimizeTask task = new OptimizeTask(storageBroker, new TileRangeIterator(tr, new int[] {
+                1, 1 }), tl);
+        task.setThrottle(0);
+        task.setThreadInfo(new AtomicInteger(), 0);
+        task.doAction();
+
+        // the PNG got smaller, with the same pixels and creation time
+        byte[] optimized = stored.get(pngKey);
+        assertTrue(optimized.length < png.length);
+        assertEquals(png.length - optimized.length, task.getBytesSaved());
+        assertEquals(Long.valueOf(1000L), created.get(pngKey));
+        BufferedImage decoded = ImageIO.read(new ByteArrayInputStream(optimized));
+        for (int y = 0; y < 256; y += 16) {
+            for (int x = 0; x < 256; x += 16) {
+                assertEquals(image.getRGB(x, y), decoded.getRGB(x, y));
+            }
+        }
+        // the other tile was left alone
+        assertSame(other, stored.get(otherKey));
+    }
+
+    public void testPyramid() throws Exception {
+        WMSLayer tl = createWMSLayer("image/png");
+        final AtomicInteger requests = countRequests(tl);
+        SeedRequest req = createRequest(tl, TYPE.PYRAMID, 3, 4);
+        TileRange tr = TileBreeder.createTileRange(req, tl);
+        final Map<List<Long>, byte[]> stored = new ConcurrentHashMap<List<Long>, byte[]>();
+        StorageBroker storageBroker = createPyramidStorage(tr, stored);
+
+        PyramidTask task = new PyramidTask(storageBroker, PyramidTask.levels(tr, tl), tl);
+        task.setThreadInfo(new AtomicInteger(), 0);
+        task.doAction();
+
+        // the level above is built without going to the backend
+        assertEquals(0, requests.get());
+        assertPyramidBuilt(tl, tr, stored);
+    }
+
+    /**
+     * The tasks of a group are queued on the seeder pool, a task must not wait for the others to
+     * start before building the next level
+     */
+    public void testPyramidTasksRunInTurn() throws Exception {
+        WMSLayer tl = createWMSLayer("image/png");
+        final AtomicInteger requests = countRequests(tl);
+        SeedRequest req = createRequest(tl, TYPE.PYRAMID, 3, 4);
+        TileRange tr = TileBreeder.createTileRange(req, tl);
+        final Map<List<Long>, byte[]> stored = new ConcurrentHashMap<List<Long>, byte[]>();
+        StorageBroker storageBroker = createPyramidStorage(tr, stored);
+
+        PyramidTask.Level[] levels = PyramidTask.levels(tr, tl);
+        AtomicInteger sharedThreadCount = new AtomicInteger();
+        PyramidTask[] tasks = new PyramidTask[3];
+        for (int i = 0; i < tasks.length; i++) {
+            tasks[i] = new PyramidTask(storageBroker, levels, tl);
+            tasks[i].setThreadInfo(sharedThreadCount, i);
+        }
+        // the first task builds the whole pyramid alone, the others find nothing left to do
+        for (PyramidTask task : tasks) {
+            task.doAction();
+            assertEquals(GWCTask.STATE.DONE, task.getState());
+        }
+        assertEquals(0, requests.get());
+        assertPyramidBuilt(tl, tr, stored);
+    }
+
+    public void testPyramidConcurrentTasks() throws Exception {
+        WMSLayer tl = createWMSLayer("image/png");
+        final AtomicInteger requests = countRequests(tl);
+        SeedRequest req = createRequest(tl, TYPE.PYRAMID, 2, 4);
+        TileRange tr = TileBreeder.createTileRange(req, tl);
+        final Map<List<Long>, byte[]> stored = new ConcurrentHashMap<List<Long>, byte[]>();
+        StorageBroker storageBroker = createPyramidStorage(tr, stored);
+
+        PyramidTask.Level[] levels = PyramidTask.levels(tr, tl);
+        AtomicInteger sharedThreadCount = new AtomicInteger();
+        final PyramidTask[] tasks = new PyramidTask[4];
+        final List<Throwable> errors = Collections.synchronizedList(new ArrayList<Throwable>());
+        Thread[] threads = new Thread[tasks.length];
+        for (int i = 0; i < tasks.length; i++) {
+            final PyramidTask task = new PyramidTask(storageBroker, levels, tl);
+            task.setThreadInfo(sharedThreadCount, i);
+            tasks[i] = task;
+            threads[i] = new Thread() {
+                @Override
+                public void run() {
+                    try {
+                        task.doAction();
+                    } catch (Throwable t) {
+                        errors.add(t);
+                    }
+                }
+            };
+            threads[i].start();
+        }
+        for (int i = 0; i < tasks.length; i++) {
+            threads[i].join(60000);
+            assertFalse(threads[i].isAlive());
+        }
+        // report the failures of the workers rather than just their state
+        assertEquals(Collections.emptyList(), errors);
+        for (PyramidTask task : tasks) {
+            assertEquals(GWCTask.STATE.DONE, task.getState());
+        }
+        assertEquals(0, requests.get());
+        assertPyramidBuilt(tl, tr, stored);
+    }
+
+    private AtomicInteger countRequests(WMSLayer tl) {
+        final AtomicInteger requests = new AtomicInteger();
+        tl.setSourceHelper(new MockWMSSourceHelper() {
+            @Override
+            protected void makeRequest(TileResponseReceiver tileRespRecv, WMSLayer layer,
+                    Map<String, String> wmsParams, String expectedMimeType, Resource target)
+                    throws GeoWebCacheException {
+                requests.incrementAndGet();
+                super.makeRequest(tileRespRecv, layer, wmsParams, expectedMimeType, target);
+            }
+        });
+        return requests;
+    }
+
+    /**
+     * @return a storage broker backed by {@code stored}, with the deepest level of the range
+     *         seeded already, with tiles of black and white pixels
+     */
+    private StorageBroker createPyramidStorage(TileRange tr, final Map<List<Long>, byte[]> stored)
+            throws Exception {
+        BufferedImage image = new BufferedImage(256, 256, BufferedImage.TYPE_INT_ARGB);
+        for (int y = 0; y < 256; y++) {
+            for (int x = 0; x < 256; x++) {
+                image.setRGB(x, y, (x + y) % 2 == 0 ? 0xFF000000 : 0xFFFFFFFF);
+            }
+        }
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        ImageIO.write(image, "png", out);
+        final int zoomStop = tr.getZoomStop();
+        long[] bounds = tr.rangeBounds(zoomStop);
+        for (long x = bounds[0]; x <= bounds[2]; x++) {
+            for (long y = bounds[1]; y <= bounds[3]; y++) {
+                stored.put(Arrays.asList(x, y, (long) zoomStop), out.toByteArray());
+            }
+        }
+
+        return mockMemoryStorageBroker(stored, new ConcurrentHashMap<List<Long>, Long>(),
+                new AtomicInteger());
+    }
+
+    /**
+     * @return a storage broker keeping the tile contents in {@code stored} and their creation
+     *         time in {@code created}, counting the puts in {@code puts}
+     */
+    private StorageBroker mockMemoryStorageBroker(final Map<List<Long>, byte[]> stored,
+            final Map<List<Long>, Long> created, final AtomicInteger puts) {
+        final StorageBroker storageBroker = EasyMock.createMock(StorageBroker.class);
+        expect(storageBroker.get((TileObject) anyObject())).andAnswer(new IAnswer<Boolean>() {
+            public Boolean answer() throws Throwable {
+                TileObject tile = (TileObject) EasyMock.getCurrentArguments()[0];
+                byte[] contents = stored.get(key(tile));
+                if (contents == null) {
+                    return false;
+                }
+                tile.setBlob(new ByteArrayResource(contents));
+                Long time = created.get(key(tile));
+                if (time != null) {
+                    tile.setCreated(time);
+                }
+                return true;
+            }
+        }).anyTimes();
+        expect(storageBroker.put((TileObject) anyObject())).andAnswer(new IAnswer<Boolean>() {
+            public Boolean answer() throws Throwable {
+                TileObject tile = (TileObject) EasyMock.getCurrentArguments()[0];
+                InputStream in = tile.getBlob().getInputStream();
+                try {
+                    stored.put(key(tile), IOUtils.toByteArray(in));
+                } finally {
+                    in.close();
+                }
+                created.put(key(tile), tile.getCreated());
+                puts.incrementAndGet();
+                return true;
+            }
+        }).anyTimes();
+        replay(storageBroker);
+        return storageBroker;
+    }
+
+    /**
+     * Checks the levels above the deepest one average its black and white pixels
+     */
+    private void assertPyramidBuilt(WMSLayer tl, TileRange tr, Map<List<Long>, byte[]> stored)
+            throws IOException {
+        for (long z = tr.getZoomStart(); z < tr.getZoomStop(); z++) {
+            long[] bounds = tl.getGridSubset(tr.getGridSetId()).getCoverage((int) z);
+            for (long x = bounds[0]; x <= bounds[2]; x++) {
+                for (long y = bounds[1]; y <= bounds[3]; y++) {
+                    byte[] contents = stored.get(Arrays.asList(x, y, z));
+                    assertNotNull(contents);
+                    // averaging the black and white pixels, where there are tiles below
+                    BufferedImage built = ImageIO.read(new ByteArrayInputStream(contents));
+                    boolean gray = false;
+                    for (int i = 0; i < built.getWidth(); i += 8) {
+                        for (int j = 0; j < built.getHeight(); j += 8) {
+                            int rgb = built.getRGB(i, j);
+                            if (rgb >>> 24 != 0) {
+                                assertEquals(0xFF808080, rgb);
+                                gray = true;
+                            }
+                        }
+                    }
+                    assertTrue(gray);
+                }
+            }
+        }
+    }
+
+    public void testDownsample() {
+        BufferedImage image = new BufferedImage(2, 2, BufferedImage.TYPE_INT_ARGB);
+        image.setRGB(0, 0, 0xFFFF0000);
+        image.setRGB(1, 0, 0xFFFF0000);
+        // the transparent pixels leave the color alone
+        BufferedImage result = PyramidTask.downsample(image);
+        assertEquals(1, result.getWidth());
+        assertEquals(0x80FF0000, result.getRGB(0, 0));
+    }
+
+    private static List<Long> key(TileObject tile) {
+        return key(tile.getXYZ());
+    }
+
+    private static List<Long> key(long[] xyz) {
+        return Arrays.asList(xyz[0], xyz[1], xyz[2]);
+    }
+
     private static class Tuple<T extends Comparable<T>> implements Comparable<Tuple<T>> {
 
         private T[] members;
@@ -19,6 +19,7 @@ package org.geowebcache.storage;
 
 import java.io.File;
 import java.io.InputStream;
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.Map;
 
@@ -33,6 +34,7 @@ import org.geowebcache.io.Resource;
 import org.geowebcache.mime.ImageMime;
 import org.geowebcache.mime.MimeType;
 import org.geowebcache.storage.blobstore.file.FileBlobStore;
+import org.geowebcache.storage.blobstore.file.FilePathGenerator;
 
 public class BlobStoreTest extends TestCase {
     public static final String TEST_BLOB_DIR_NAME = "gwcTestBlobs";
@@ -67,6 +69,92 @@ public class BlobStoreTest extends TestCase {
         }
     }
 
+    public void testTouch() throws Exception {
+        FileBlobStore fbs = setup();
+
+        byte[] contents = "1 2 3 4 5 6 test".getBytes();
+        long[] xyz = { 1L, 2L, 3L };
+        TileObject to = TileObject.createCompleteTileObject("test:touch", xyz, "EPSG:4326",
+                "image/png", null, new ByteArrayResource(contents));
+        to.setCreated(1000000000000L);
+        fbs.put(to);
+
+        TileObject touched = TileObject.createQueryTileObject("test:touch", xyz, "EPSG:4326",
+                "image/png", null);
+        touched.setCreated(1300000000000L);
+        assertTrue(fbs.touch(touched));
+
+        TileObject to2 = TileObject.createQueryTileObject("test:touch", xyz, "EPSG:4326",
+                "image/png", null);
+        assertTrue(fbs.get(to2));
+        assertEquals(1300000000000L, to2.getCreated());
+        assertEquals(contents.length, to2.getBlobSize());
+
+        long[] missing = { 2L, 2L, 3L };
+        TileObject to3 = TileObject.createQueryTileObject("test:touch", missing, "EPSG:4326",
+                "image/png", null);
+        to3.setCreated(1300000000000L);
+        assertFalse(fbs.touch(to3));
+    }
+
+    public void testTileHit() throws Exception {
+        FileBlobStore fbs = setup();
+
+        byte[] contents = "1 2 3 4 5 6 test".getBytes();
+        long[] xyz = { 1L, 2L, 3L };
+        TileObject to = TileObject.createCompleteTileObject("test:hit", xyz, "EPSG:4326",
+                "image/png", null, new ByteArrayResource(contents));
+        fbs.put(to);
+
+        TileObject to2 = TileObject.createQueryTileObject("test:hit", xyz, "EPSG:4326",
+                "image/png", null);
+        assertTrue(fbs.get(to2));
+        assertEquals(contents.length, to2.getBlobSize());
+        assertEquals(contents.length, to2.getBlob().getSize());
+        assertEquals(to2.getCreated(), to2.getBlob().getLastModified());
+        InputStream is = to2.getBlob().getInputStream();
+        try {
+            assertTrue(Arrays.equals(contents, IOUtils.toByteArray(is)));
+        } finally {
+            is.close();
+        }
+
+        fbs.delete(to2);
+        TileObject to3 = TileObject.createQueryTileObject("test:hit", xyz, "EPSG:4326",
+                "image/png", null);
+        assertFalse(fbs.get(to3));
+
+        if (!StorageBrokerTest.RUN_PERFORMANCE_TESTS) {
+            return;
+        }
+        fbs.put(to);
+        final int iterations = 100000;
+        long start = System.currentTimeMillis();
+        for (int i = 0; i < iterations; i++) {
+            TileObject query = TileObject.createQueryTileObject("test:hit", xyz, "EPSG:4326",
+                    "image/png", null);
+            fbs.get(query);
+            query.getBlob().getSize();
+        }
+        long diff = System.currentTimeMillis() - start;
+        System.out.println(iterations + " tile hits in " + diff + "ms ("
+                + (iterations * 1000 / Math.max(diff, 1)) + " hits/second)");
+    }
+
+    public void testZeroLengthTileHit() throws Exception {
+        FileBlobStore fbs = setup();
+        File root = new File(StorageBrokerTest.findTempDir(), TEST_BLOB_DIR_NAME);
+        long[] xyz = { 1, 2, 3 };
+        TileObject to = TileObject.createQueryTileObject("test:empty", xyz, "EPSG:4326",
+                "image/png", null);
+        File file = new FilePathGenerator(root.getAbsolutePath()).tilePath(to, ImageMime.png);
+        file.getParentFile().mkdirs();
+        assertTrue(file.createNewFile());
+
+        // an existing file is a hit, whatever its length
+        assertTrue(fbs.get(to));
+    }
+
     public void testTileDelete() throws Exception {
         FileBlobStore fbs = setup();
 
@@ -176,6 +264,395 @@ public class BlobStoreTest extends TestCase {
         assertNull(res);
     }
 
+    public void testTileRangeDeleteParallel() throws Exception {
+        FileBlobStore fbs = setup();
+        fbs.setTruncateThreads(4);
+
+        Resource bytes = new ByteArrayResource("1 2 3 4 5 6 test".getBytes());
+        Map<String, String> parameters = new HashMap<String, String>();
+        MimeType mime = ImageMime.png;
+        SRS srs = SRS.getEPSG4326();
+        String layerName = "test:parallel";
+
+        // at zoom level 7 each intermediate directory holds 16x16 tiles
+        int zoomLevel = 7;
+        for (int x = 0; x < 48; x++) {
+            for (int y = 0; y < 2; y++) {
+                long[] xyz = { x, y, zoomLevel };
+                fbs.put(TileObject.createCompleteTileObject(layerName, xyz, srs.toString(),
+                        mime.getFormat(), parameters, bytes));
+                fbs.put(TileObject.createCompleteTileObject(layerName, xyz, srs.toString(),
+                        ImageMime.jpeg.getFormat(), parameters, bytes));
+            }
+        }
+
+        BlobStoreListener listener = EasyMock.createNiceMock(BlobStoreListener.class);
+        listener.tileDeleted(EasyMock.eq(layerName), EasyMock.eq(srs.toString()),
+                EasyMock.eq(mime.getFormat()), (String) EasyMock.isNull(), EasyMock.anyLong(),
+                EasyMock.anyLong(), EasyMock.eq(zoomLevel), EasyMock.anyLong());
+        EasyMock.expectLastCall().times(2 * 20);
+        EasyMock.replay(listener);
+        fbs.addListener(listener);
+
+        // covers the first intermediate directory, and part of the second one
+        long[][] rangeBounds = { { 0, 0, 19, 15, zoomLevel } };
+        TileRange trObj = new TileRange(layerName, srs.toString(), zoomLevel, zoomLevel,
+                rangeBounds, mime, parameters);
+        fbs.delete(trObj);
+
+        EasyMock.verify(listener);
+
+        for (int x = 0; x < 48; x++) {
+            for (int y = 0; y < 2; y++) {
+                long[] xyz = { x, y, zoomLevel };
+                TileObject png = TileObject.createQueryTileObject(layerName, xyz,
+                        srs.toString(), mime.getFormat(), parameters);
+                assertEquals(x >= 20, fbs.get(png));
+                TileObject jpeg = TileObject.createQueryTileObject(layerName, xyz,
+                        srs.toString(), ImageMime.jpeg.getFormat(), parameters);
+                assertTrue(fbs.get(jpeg));
+            }
+        }
+    }
+
+    public void testTileRangeDeleteLargeRange() throws Exception {
+        FileBlobStore fbs = setup();
+
+        Resource bytes = new ByteArrayResource("1 2 3 4 5 6 test".getBytes());
+        Map<String, String> parameters = new HashMap<String, String>();
+        MimeType mime = ImageMime.png;
+        SRS srs = SRS.getEPSG4326();
+        String layerName = "test:large";
+
+        int zoomLevel = 7;
+        long[][] tiles = { { 0, 0 }, { 17, 3 }, { 199, 99 }, { 200, 99 }, { 300, 0 } };
+        for (long[] tile : tiles) {
+            long[] xyz = { tile[0], tile[1], zoomLevel };
+            fbs.put(TileObject.createCompleteTileObject(layerName, xyz, srs.toString(),
+                    mime.getFormat(), parameters, bytes));
+        }
+
+        // too many tiles to compute their paths, the intermediate directories get scanned
+        long[][] rangeBounds = { { 0, 0, 199, 99, zoomLevel } };
+        assertTrue(200 * 100 > FileBlobStore.TARGETED_TRUNCATE_MAX_TILES);
+        TileRange trObj = new TileRange(layerName, srs.toString(), zoomLevel, zoomLevel,
+                rangeBounds, mime, parameters);
+        fbs.delete(trObj);
+
+        for (long[] tile : tiles) {
+            long[] xyz = { tile[0], tile[1], zoomLevel };
+            TileObject to = TileObject.createQueryTileObject(layerName, xyz, srs.toString(),
+                    mime.getFormat(), parameters);
+            assertEquals(!trObj.contains(xyz), fbs.get(to));
+        }
+    }
+
+    public void testTileRangeDeleteZeroLength() throws Exception {
+        FileBlobStore fbs = setup();
+        File root = new File(StorageBrokerTest.findTempDir(), TEST_BLOB_DIR_NAME);
+        FilePathGenerator generator = new FilePathGenerator(root.getAbsolutePath());
+
+        String layerName = "test:empty";
+        int zoomLevel = 5;
+        File[] files = new File[3];
+        for (int i = 0; i < files.length; i++) {
+            long[] xyz = { i, 1, zoomLevel };
+            TileObject tile = TileObject.createQueryTileObject(layerName, xyz, "EPSG:4326",
+                    "image/png", null);
+            files[i] = generator.tilePath(tile, ImageMime.png);
+            files[i].getParentFile().mkdirs();
+            assertTrue(files[i].createNewFile());
+        }
+
+        // small enough to compute the tile paths, zero length tiles go as in a directory scan
+        long[][] rangeBounds = { null, null, null, null, null, { 0, 1, 2, 1, zoomLevel } };
+        fbs.delete(new TileRange(layerName, "EPSG:4326", zoomLevel, zoomLevel, rangeBounds,
+                ImageMime.png, (String) null));
+        for (File file : files) {
+            assertFalse(file.exists());
+        }
+    }
+
+    public void testLayerDeleteParallel() throws Exception {
+        System.setProperty(FileBlobStore.GWC_DELETE_THREADS, "3");
+        System.setProperty(FileBlobStore.GWC_DELETE_MAX_FILES_PER_SECOND, "1000");
+        FileBlobStore fbs;
+        try {
+            fbs = setup();
+        } finally {
+            System.clearProperty(FileBlobStore.GWC_DELETE_THREADS);
+            System.clearProperty(FileBlobStore.GWC_DELETE_MAX_FILES_PER_SECOND);
+        }
+
+        Resource bytes = new ByteArrayResource("1 2 3 4 5 6 test".getBytes());
+        Map<String, String> parameters = new HashMap<String, String>();
+        String layerName = "test:deleteMe";
+        for (int z = 0; z < 5; z++) {
+            for (int x = 0; x < 10; x++) {
+                long[] xyz = { x, 0, z };
+                fbs.put(TileObject.createCompleteTileObject(layerName, xyz, "EPSG:4326",
+                        "image/png", parameters, bytes));
+            }
+        }
+
+        assertTrue(fbs.delete(layerName));
+
+        File root = new File(StorageBrokerTest.findTempDir(), TEST_BLOB_DIR_NAME);
+        assertFalse(new File(root, "test_deleteMe").exists());
+        File stagingArea = new File(root, "_gwc_in_progress_deletes_");
+        // 50 files at 1000 files per second
+        long timeout = System.currentTimeMillis() + 10000;
+        while (stagingArea.list().length > 0 && System.currentTimeMillis() < timeout) {
+            Thread.sleep(20);
+        }
+        assertEquals(0, stagingArea.list().length);
+        fbs.destroy();
+    }
+
+    public void testDeduplicate() throws Exception {
+        FileBlobStore fbs = setup();
+        fbs.setDeduplicate(true);
+
+        final String layerName = "test:dedup";
+        final byte[] shared = "1 2 3 4 5 6 test".getBytes();
+        final int referenceSize = 48;
+
+        BlobStoreListener listener = EasyMock.createMock(BlobStoreListener.class);
+        // the first copy stores the payload, the second one just a reference to it
+        listener.tileStored(layerName, "EPSG:4326", "image/png", null, 0, 0, 1, referenceSize
+                + shared.length);
+        listener.tileStored(layerName, "EPSG:4326", "image/png", null, 1, 0, 1, referenceSize);
+        listener.tileStored(layerName, "EPSG:4326", "image/png", null, 2, 0, 1, referenceSize + 5);
+        listener.tileDeleted(layerName, "EPSG:4326", "image/png", null, 0, 0, 1, referenceSize);
+        listener.tileDeleted(layerName, "EPSG:4326", "image/png", null, 1, 0, 1, referenceSize
+                + shared.length);
+        EasyMock.replay(listener);
+        fbs.addListener(listener);
+
+        for (int x = 0; x < 3; x++) {
+            byte[] contents = x < 2 ? shared : "other".getBytes();
+            long[] xyz = { x, 0, 1 };
+            fbs.put(TileObject.createCompleteTileObject(layerName, xyz, "EPSG:4326", "image/png",
+                    null, new ByteArrayResource(contents)));
+        }
+        File root = new File(StorageBrokerTest.findTempDir(), TEST_BLOB_DIR_NAME);
+        File content = new File(root, "_gwc_content_");
+        // two payloads, their reference counts are in the journal until a checkpoint
+        assertEquals(2, FileUtils.listFiles(content, null, true).size());
+        assertTrue(new File(root, "_gwc_content_.journal").exists());
+
+        for (int x = 0; x < 3; x++) {
+            long[] xyz = { x, 0, 1 };
+            TileObject to = TileObject.createQueryTileObject(layerName, xyz, "EPSG:4326",
+                    "image/png", null);
+            assertTrue(fbs.get(to));
+            InputStream is = to.getBlob().getInputStream();
+            try {
+                byte[] expected = x < 2 ? shared : "other".getBytes();
+                assertTrue(Arrays.equals(expected, IOUtils.toByteArray(is)));
+            } finally {
+                is.close();
+            }
+        }
+
+        for (int x = 0; x < 2; x++) {
+            long[] xyz = { x, 0, 1 };
+            assertTrue(fbs.delete(TileObject.createQueryTileObject(layerName, xyz, "EPSG:4326",
+                    "image/png", null)));
+        }
+        EasyMock.verify(listener);
+        fbs.removeListener(listener);
+
+        // the shared payload is gone along with its last reference
+        assertEquals(1, FileUtils.listFiles(content, null, true).size());
+
+        long[][] rangeBounds = { { 0, 0, 3, 3, 1 } };
+        fbs.delete(new TileRange(layerName, "EPSG:4326", 1, 1, rangeBounds, ImageMime.png,
+                (String) null));
+        assertEquals(0, FileUtils.listFiles(content, null, true).size());
+    }
+
+    public void testDeduplicateReferenceCountsSurvive() throws Exception {
+        FileBlobStore fbs = setup();
+        fbs.setDeduplicate(true);
+
+        final String layerName = "test:dedup";
+        final byte[] shared = "1 2 3 4 5 6 test".getBytes();
+        for (int x = 0; x < 3; x++) {
+            long[] xyz = { x, 0, 1 };
+            fbs.put(TileObject.createCompleteTileObject(layerName, xyz, "EPSG:4326", "image/png",
+                    null, new ByteArrayResource(shared)));
+        }
+        // the counts are checkpointed on destroy
+        fbs.destroy();
+        File root = new File(StorageBrokerTest.findTempDir(), TEST_BLOB_DIR_NAME);
+        File content = new File(root, "_gwc_content_");
+        assertFalse(new File(root, "_gwc_content_.journal").exists());
+        assertEquals(2, FileUtils.listFiles(content, null, true).size());
+
+        // and replayed from the journal when the store is not destroyed, the removed reference
+        // being written along with the added one
+        fbs = new FileBlobStore(root.getAbsolutePath());
+        assertTrue(fbs.delete(TileObject.createQueryTileObject(layerName, new long[] { 0, 0, 1 },
+                "EPSG:4326", "image/png", null)));
+        fbs.put(TileObject.createCompleteTileObject(layerName, new long[] { 3, 0, 1 },
+                "EPSG:4326", "image/png", null, new ByteArrayResource(shared)));
+        fbs = new FileBlobStore(root.getAbsolutePath());
+        assertFalse(new File(root, "_gwc_content_.journal").exists());
+        for (int x = 1; x < 4; x++) {
+            assertEquals(2, FileUtils.listFiles(content, null, true).size());
+            assertTrue(fbs.delete(TileObject.createQueryTileObject(layerName, new long[] { x, 0,
+                    1 }, "EPSG:4326", "image/png", null)));
+        }
+        assertEquals(0, FileUtils.listFiles(content, null, true).size());
+        fbs.destroy();
+    }
+
+    public void testDeduplicateConcurrentPuts() throws Exception {
+        final FileBlobStore fbs = setup();
+        fbs.setDeduplicate(true);
+
+        final String layerName = "test:dedup";
+        final byte[][] payloads = { "shared".getBytes(), "other".getBytes() };
+        // keeps the shared payload referenced while the other tile swaps it in and out
+        long[] keeper = { 0, 0, 1 };
+        fbs.put(TileObject.createCompleteTileObject(layerName, keeper, "EPSG:4326",
+                "image/png", null, new ByteArrayResource(payloads[0])));
+
+        final long[] swapped = { 1, 0, 1 };
+        Thread[] threads = new Thread[4];
+        final Exception[] errors = new Exception[threads.length];
+        for (int i = 0; i < threads.length; i++) {
+            final int thread = i;
+            threads[i] = new Thread() {
+                public void run() {
+                    try {
+                        for (int j = 0; j < 50; j++) {
+                            byte[] contents = payloads[(thread + j) % 2];
+                            fbs.put(TileObject.createCompleteTileObject(layerName, swapped,
+                                    "EPSG:4326", "image/png", null,
+                                    new ByteArrayResource(contents)));
+                        }
+                    } catch (Exception e) {
+                        errors[thread] = e;
+                    }
+                }
+            };
+            threads[i].start();
+        }
+        for (int i = 0; i < threads.length; i++) {
+            threads[i].join();
+            if (errors[i] != null) {
+                throw errors[i];
+            }
+        }
+
+        // the references released by the swaps don't take the shared payload away
+        TileObject to = TileObject.createQueryTileObject(layerName, keeper, "EPSG:4326",
+                "image/png", null);
+        assertTrue(fbs.get(to));
+        InputStream is = to.getBlob().getInputStream();
+        try {
+            assertTrue(Arrays.equals(payloads[0], IOUtils.toByteArray(is)));
+        } finally {
+            is.close();
+        }
+
+        long[][] rangeBounds = { { 0, 0, 1, 0, 1 } };
+        fbs.delete(new TileRange(layerName, "EPSG:4326", 1, 1, rangeBounds, ImageMime.png,
+                (String) null));
+        File root = new File(StorageBrokerTest.findTempDir(), TEST_BLOB_DIR_NAME);
+        assertEquals(0, FileUtils.listFiles(new File(root, "_gwc_content_"), null, true).size());
+    }
+
+    public void testExistenceIndex() throws Exception {
+        FileBlobStore fbs = setup();
+        fbs.setExistenceIndex(true);
+
+        final String layerName = "test:exists";
+        Resource bytes = new ByteArrayResource("1 2 3 4 5 6 test".getBytes());
+        // a bitmap and a Bloom filter indexed zoom level
+        long[][] tiles = { { 3, 2, 4 }, { 1000, 2000, 14 } };
+        for (long[] xyz : tiles) {
+            assertFalse(fbs.get(TileObject.createQueryTileObject(layerName, xyz, "EPSG:4326",
+                    "image/png", null)));
+            fbs.put(TileObject.createCompleteTileObject(layerName, xyz, "EPSG:4326",
+                    "image/png", null, bytes));
+            assertTrue(fbs.get(TileObject.createQueryTileObject(layerName, xyz, "EPSG:4326",
+                    "image/png", null)));
+        }
+
+        // a tile written behind the store back is not seen, misses don't hit the file system
+        File root = new File(StorageBrokerTest.findTempDir(), TEST_BLOB_DIR_NAME);
+        File stored = new File(root, "test_exists/EPSG_4326_04/0_0/03_02.png");
+        assertTrue(stored.exists());
+        FileUtils.copyFile(stored, new File(stored.getParentFile(), "02_02.png"));
+        long[] sneaked = { 2, 2, 4 };
+        assertFalse(fbs.get(TileObject.createQueryTileObject(layerName, sneaked, "EPSG:4326",
+                "image/png", null)));
+
+        // deletes are tracked too
+        assertTrue(fbs.delete(TileObject.createQueryTileObject(layerName, tiles[0],
+                "EPSG:4326", "image/png", null)));
+        assertFalse(fbs.get(TileObject.createQueryTileObject(layerName, tiles[0], "EPSG:4326",
+                "image/png", null)));
+
+        // an existing cache gets scanned, and the index saved and loaded back
+        fbs.destroy();
+        fbs = new FileBlobStore(root.getAbsolutePath());
+        // persisting alone doesn't enable the index, the tile written behind is found
+        fbs.setPersistExistenceIndex(false);
+        assertTrue(fbs.get(TileObject.createQueryTileObject(layerName, sneaked, "EPSG:4326",
+                "image/png", null)));
+        fbs.destroy();
+        fbs = new FileBlobStore(root.getAbsolutePath());
+        fbs.setPersistExistenceIndex(true);
+        fbs.setExistenceIndex(true);
+        for (int i = 0; i < 2; i++) {
+            assertTrue(fbs.get(TileObject.createQueryTileObject(layerName, sneaked, "EPSG:4326",
+                    "image/png", null)));
+            assertTrue(fbs.get(TileObject.createQueryTileObject(layerName, tiles[1],
+                    "EPSG:4326", "image/png", null)));
+            waitForScan(fbs, layerName, root);
+        }
+        fbs.destroy();
+        assertEquals(2, new File(root, "_gwc_existence_").list().length);
+
+        fbs = new FileBlobStore(root.getAbsolutePath());
+        fbs.setExistenceIndex(true);
+        fbs.setPersistExistenceIndex(true);
+        assertTrue(fbs.get(TileObject.createQueryTileObject(layerName, tiles[1], "EPSG:4326",
+                "image/png", null)));
+        assertFalse(fbs.get(TileObject.createQueryTileObject(layerName, tiles[0], "EPSG:4326",
+                "image/png", null)));
+        // loaded indexes are removed until saved again
+        assertEquals(0, new File(root, "_gwc_existence_").list().length);
+        fbs.destroy();
+    }
+
+    /**
+     * Waits until the existence index stops seeing the tiles written behind the store back
+     */
+    private void waitForScan(FileBlobStore fbs, String layerName, File root) throws Exception {
+        FilePathGenerator generator = new FilePathGenerator(root.getAbsolutePath());
+        long timeout = System.currentTimeMillis() + 10000;
+        for (int i = 0; System.currentTimeMillis() < timeout; i++) {
+            // a different tile each time, within the same intermediate directory
+            long[] xyz = { 1000 + i % 24, 2001 + i / 24, 14 };
+            TileObject tile = TileObject.createQueryTileObject(layerName, xyz, "EPSG:4326",
+                    "image/png", null);
+            File sentinel = generator.tilePath(tile, ImageMime.png);
+            FileUtils.writeStringToFile(sentinel, "sentinel");
+            boolean found = fbs.get(tile);
+            sentinel.delete();
+            if (!found) {
+                return;
+            }
+            Thread.sleep(20);
+        }
+        fail("The existence index was not built");
+    }
+
     public void testRenameLayer() throws Exception {
         FileBlobStore fbs = setup();
         Resource bytes = new ByteArrayResource("1 2 3 4 5 6 test".getBytes());
@@ -255,4 +732,31 @@ public class BlobStoreTest extends TestCase {
         assertEquals("value 1_1", fbs.getLayerMetadata(layerName, key1));
         assertNull(fbs.getLayerMetadata(layerName, key2));
     }
+
+    public void testLayerMetadataBatch() throws Exception {
+        FileBlobStore fbs = setup();
+
+        final String layerName = "TestLayer";
+        Map<String, String> values = new HashMap<String, String>();
+        values.put("key1", "value 1");
+        values.put("key2", "ø & =");
+        fbs.putLayerMetadata(layerName, values);
+        assertEquals("value 1", fbs.getLayerMetadata(layerName, "key1"));
+        assertEquals("ø & =", fbs.getLayerMetadata(layerName, "key2"));
+
+        // the file is replaced as a whole, and read back by a new store
+        File root = new File(StorageBrokerTest.findTempDir(), TEST_BLOB_DIR_NAME);
+        assertEquals(0, new File(root, "tmp").list().length);
+        values.put("key1", null);
+        values.put("key3", "value 3");
+        fbs.putLayerMetadata(layerName, values);
+        FileBlobStore reopened = new FileBlobStore(root.getAbsolutePath());
+        assertNull(reopened.getLayerMetadata(layerName, "key1"));
+        assertEquals("ø & =", reopened.getLayerMetadata(layerName, "key2"));
+        assertEquals("value 3", reopened.getLayerMetadata(layerName, "key3"));
+
+        // deleting the layer drops the cached values
+        fbs.delete(layerName);
+        assertNull(fbs.getLayerMetadata(layerName, "key2"));
+    }
 }
@@ -1,11 +1,19 @@
 package org.geowebcache.storage;
 
 import java.io.File;
+import java.io.InputStream;
+import java.util.Arrays;
 
 import junit.framework.TestCase;
 
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+import org.easymock.Capture;
+import org.easymock.EasyMock;
+import org.easymock.IAnswer;
 import org.geowebcache.io.ByteArrayResource;
 import org.geowebcache.io.Resource;
+import org.geowebcache.mime.ImageMime;
 import org.geowebcache.storage.blobstore.file.FileBlobStore;
 
 public class StorageBrokerTest extends TestCase {
@@ -66,6 +74,84 @@ public class StorageBrokerTest extends TestCase {
                 + THREAD_COUNT + " threads in parallel" );
     }
     
+    public void testWriteBehind() throws Exception {
+        File blobDir = new File(findTempDir(), "gwcTestWriteBehind");
+        FileUtils.deleteDirectory(blobDir);
+        BlobStore blobStore = new FileBlobStore(blobDir.getAbsolutePath());
+        StorageBroker sb = new DefaultStorageBroker(blobStore, 2, 10);
+        try {
+            // the same buffer gets reused for every tile, as the tile layers do
+            byte[] buffer = new byte[4];
+            for (int i = 0; i < 50; i++) {
+                Arrays.fill(buffer, (byte) i);
+                long[] xyz = { i, 0, 6 };
+                sb.put(TileObject.createCompleteTileObject("test", xyz, "EPSG:4326",
+                        "image/png", null, new ByteArrayResource(buffer)));
+            }
+            // visible right away, whether written or not
+            for (int i = 0; i < 50; i++) {
+                long[] xyz = { i, 0, 6 };
+                TileObject tile = TileObject.createQueryTileObject("test", xyz, "EPSG:4326",
+                        "image/png", null);
+                assertTrue(sb.get(tile));
+                assertEquals(i, getContents(tile)[0]);
+            }
+
+            // truncation waits for the queued tiles
+            long[][] rangeBounds = { { 0, 0, 24, 0, 6 } };
+            sb.delete(new TileRange("test", "EPSG:4326", 6, 6, rangeBounds, ImageMime.png,
+                    (String) null));
+        } finally {
+            sb.destroy();
+        }
+
+        for (int i = 0; i < 50; i++) {
+            long[] xyz = { i, 0, 6 };
+            TileObject tile = TileObject.createQueryTileObject("test", xyz, "EPSG:4326",
+                    "image/png", null);
+            assertEquals(i >= 25, blobStore.get(tile));
+            if (i >= 25) {
+                assertEquals(i, getContents(tile)[0]);
+            }
+        }
+        ((FileBlobStore) blobStore).destroy();
+        FileUtils.deleteDirectory(blobDir);
+    }
+
+    public void testTouchPlainBlobStore() throws Exception {
+        BlobStore blobStore = EasyMock.createMock(BlobStore.class);
+        EasyMock.expect(blobStore.get((TileObject) EasyMock.anyObject())).andAnswer(
+                new IAnswer<Boolean>() {
+                    public Boolean answer() throws Throwable {
+                        TileObject tile = (TileObject) EasyMock.getCurrentArguments()[0];
+                        tile.setBlob(new ByteArrayResource("tile".getBytes()));
+                        return true;
+                    }
+                });
+        Capture<TileObject> written = new Capture<TileObject>();
+        blobStore.put(EasyMock.capture(written));
+        EasyMock.replay(blobStore);
+
+        // not a TouchableBlobStore, the tile is written back with the new creation time
+        long[] xyz = { 1, 2, 3 };
+        TileObject tile = TileObject.createQueryTileObject("test", xyz, "EPSG:4326", "image/png",
+                null);
+        tile.setCreated(1300000000000L);
+        assertTrue(new DefaultStorageBroker(blobStore, 0, 1).touch(tile));
+        EasyMock.verify(blobStore);
+        assertEquals(1300000000000L, written.getValue().getCreated());
+        assertEquals("tile", new String(getContents(written.getValue())));
+    }
+
+    private byte[] getContents(TileObject tile) throws Exception {
+        InputStream in = tile.getBlob().getInputStream();
+        try {
+            return IOUtils.toByteArray(in);
+        } finally {
+            in.close();
+        }
+    }
+
     private StorageBroker resetAndPrepStorageBroker() throws Exception {
         System.out.println("Deleting old test database.");
 
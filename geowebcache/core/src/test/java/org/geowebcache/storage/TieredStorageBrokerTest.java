@@ -0,0 +1,140 @@
+/**
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package org.geowebcache.storage;
+
+import java.io.File;
+import java.io.InputStream;
+
+import junit.framework.TestCase;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+import org.geowebcache.io.ByteArrayResource;
+import org.geowebcache.mime.ImageMime;
+import org.geowebcache.storage.blobstore.file.FileBlobStore;
+
+public class TieredStorageBrokerTest extends TestCase {
+
+    private File base;
+
+    private FileBlobStore hot;
+
+    private FileBlobStore cold;
+
+    private TieredStorageBroker broker;
+
+    @Override
+    protected void setUp() throws Exception {
+        base = new File(StorageBrokerTest.findTempDir(), "gwcTestTiers");
+        FileUtils.deleteDirectory(base);
+        hot = new FileBlobStore(new File(base, "hot").getAbsolutePath());
+        cold = new FileBlobStore(new File(base, "cold").getAbsolutePath());
+        broker = new TieredStorageBroker(hot, cold, 20, 2);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        broker.destroy();
+        hot.destroy();
+        cold.destroy();
+        FileUtils.deleteDirectory(base);
+    }
+
+    private TileObject query(long x) {
+        long[] xyz = { x, 0, 8 };
+        return TileObject.createQueryTileObject("test", xyz, "EPSG:4326", "image/png", null);
+    }
+
+    private String get(BlobStore store, long x) throws Exception {
+        TileObject tile = query(x);
+        return store.get(tile) ? toString(tile) : null;
+    }
+
+    private String toString(TileObject tile) throws Exception {
+        InputStream in = tile.getBlob().getInputStream();
+        try {
+            return new String(IOUtils.toByteArray(in));
+        } finally {
+            in.close();
+        }
+    }
+
+    public void testTiers() throws Exception {
+        for (long x = 0; x < 40; x++) {
+            long[] xyz = { x, 0, 8 };
+            broker.put(TileObject.createCompleteTileObject("test", xyz, "EPSG:4326",
+                    "image/png", null, new ByteArrayResource(("tile" + x).getBytes())));
+        }
+        broker.demote();
+        assertTrue(broker.getHotTiles() <= 20);
+
+        // the least recently used page went to the capacity tier
+        assertNull(get(hot, 0));
+        assertEquals("tile0", get(cold, 0));
+        assertEquals("tile39", get(hot, 39));
+        for (long x = 0; x < 40; x++) {
+            TileObject tile = query(x);
+            assertTrue(broker.get(tile));
+            assertEquals("tile" + x, toString(tile));
+        }
+
+        // the second hit promotes the tile
+        TileObject tile = query(0);
+        assertTrue(broker.get(tile));
+        assertEquals("tile0", toString(tile));
+        assertEquals("tile0", get(hot, 0));
+        assertNull(get(cold, 0));
+
+        long[][] rangeBounds = { { 0, 0, 39, 0, 8 } };
+        broker.delete(new TileRange("test", "EPSG:4326", 8, 8, rangeBounds, ImageMime.png,
+                (String) null));
+        for (long x = 0; x < 40; x++) {
+            assertFalse(broker.get(query(x)));
+        }
+    }
+
+    public void testCapacityTierCopyLeftBehind() throws Exception {
+        long[] xyz = { 3, 0, 8 };
+        // the capacity tier copy of a tile rewritten by a previous run
+        cold.put(TileObject.createCompleteTileObject("test", xyz, "EPSG:4326", "image/png", null,
+                new ByteArrayResource("old".getBytes())));
+        hot.put(TileObject.createCompleteTileObject("test", xyz, "EPSG:4326", "image/png", null,
+                new ByteArrayResource("new".getBytes())));
+
+        TileObject tile = query(3);
+        assertTrue(broker.get(tile));
+        assertEquals("new", toString(tile));
+        assertNull(get(cold, 3));
+    }
+
+    public void testPutRemovesKnownCapacityTierCopy() throws Exception {
+        for (long x = 0; x < 40; x++) {
+            long[] xyz = { x, 0, 8 };
+            broker.put(TileObject.createCompleteTileObject("test", xyz, "EPSG:4326",
+                    "image/png", null, new ByteArrayResource(("tile" + x).getBytes())));
+        }
+        broker.demote();
+        assertEquals("tile0", get(cold, 0));
+
+        long[] xyz = { 0, 0, 8 };
+        broker.put(TileObject.createCompleteTileObject("test", xyz, "EPSG:4326", "image/png",
+                null, new ByteArrayResource("updated".getBytes())));
+        assertNull(get(cold, 0));
+        TileObject tile = query(0);
+        assertTrue(broker.get(tile));
+        assertEquals("updated", toString(tile));
+    }
+}
@@ -0,0 +1,161 @@
+/**
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package org.geowebcache.storage.blobstore.file;
+
+import java.io.File;
+import java.io.InputStream;
+
+import junit.framework.TestCase;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+import org.easymock.classextension.EasyMock;
+import org.geowebcache.io.ByteArrayResource;
+import org.geowebcache.mime.ImageMime;
+import org.geowebcache.storage.BlobStoreListener;
+import org.geowebcache.storage.StorageBrokerTest;
+import org.geowebcache.storage.TileObject;
+import org.geowebcache.storage.TileRange;
+
+public class StripedFileBlobStoreTest extends TestCase {
+
+    private static final String LAYER = "test:striped";
+
+    private File base;
+
+    private String[] roots;
+
+    @Override
+    protected void setUp() throws Exception {
+        base = new File(StorageBrokerTest.findTempDir(), "gwcTestStripes");
+        FileUtils.deleteDirectory(base);
+        roots = new String[3];
+        for (int i = 0; i < roots.length; i++) {
+            roots[i] = new File(base, "disk" + i).getAbsolutePath();
+        }
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        FileUtils.deleteDirectory(base);
+    }
+
+    private void putTiles(StripedFileBlobStore store) throws Exception {
+        for (int z = 4; z < 8; z++) {
+            for (long x = 0; x < 16; x++) {
+                long[] xyz = { x, x / 2, z };
+                byte[] contents = (x + "_" + z).getBytes();
+                store.put(TileObject.createCompleteTileObject(LAYER, xyz, "EPSG:4326",
+                        "image/png", null, new ByteArrayResource(contents)));
+            }
+        }
+    }
+
+    private void assertTiles(StripedFileBlobStore store, boolean exist) throws Exception {
+        for (int z = 4; z < 8; z++) {
+            for (long x = 0; x < 16; x++) {
+                long[] xyz = { x, x / 2, z };
+                TileObject tile = TileObject.createQueryTileObject(LAYER, xyz, "EPSG:4326",
+                        "image/png", null);
+                assertEquals(exist, store.get(tile));
+                if (exist) {
+                    InputStream in = tile.getBlob().getInputStream();
+                    try {
+                        assertEquals(x + "_" + z, new String(IOUtils.toByteArray(in)));
+                    } finally {
+                        in.close();
+                    }
+                }
+            }
+        }
+    }
+
+    private int countTiles(String root) {
+        File layer = new File(root, "test_striped");
+        if (!layer.exists()) {
+            return 0;
+        }
+        return FileUtils.listFiles(layer, new String[] { "png" }, true).size();
+    }
+
+    public void testPutGetTruncate() throws Exception {
+        StripedFileBlobStore store = new StripedFileBlobStore(roots);
+        try {
+            putTiles(store);
+            assertTiles(store, true);
+
+            int total = 0;
+            for (String root : roots) {
+                int count = countTiles(root);
+                // spread over all the disks
+                assertTrue(count > 0);
+                total += count;
+            }
+            assertEquals(64, total);
+
+            long[][] rangeBounds = new long[4][];
+            for (int z = 4; z < 8; z++) {
+                rangeBounds[z - 4] = new long[] { 0, 0, 15, 15, z };
+            }
+            store.delete(new TileRange(LAYER, "EPSG:4326", 4, 7, rangeBounds, ImageMime.png,
+                    (String) null));
+            assertTiles(store, false);
+        } finally {
+            store.destroy();
+        }
+    }
+
+    public void testLayerEventsSentOnce() throws Exception {
+        StripedFileBlobStore store = new StripedFileBlobStore(roots);
+        try {
+            BlobStoreListener listener = EasyMock.createNiceMock(BlobStoreListener.class);
+            listener.layerRenamed(LAYER, "renamed");
+            listener.layerDeleted("renamed");
+            EasyMock.replay(listener);
+            putTiles(store);
+            store.addListener(listener);
+
+            assertTrue(store.rename(LAYER, "renamed"));
+            assertTrue(store.delete("renamed"));
+            EasyMock.verify(listener);
+        } finally {
+            store.destroy();
+        }
+    }
+
+    public void testRebalance() throws Exception {
+        String[] initial = { roots[0], roots[1] };
+        StripedFileBlobStore store = new StripedFileBlobStore(initial);
+        putTiles(store);
+        store.destroy();
+        assertEquals(0, countTiles(roots[2]));
+
+        StripedFileBlobStoreRebalancer rebalancer = new StripedFileBlobStoreRebalancer(roots);
+        rebalancer.rebalance();
+        assertTrue(rebalancer.getMovedFiles() > 0);
+        assertTrue(countTiles(roots[2]) > 0);
+        // adding a root only moves tiles to the new root
+        assertEquals(64, countTiles(roots[0]) + countTiles(roots[1]) + countTiles(roots[2]));
+        assertEquals(countTiles(roots[2]), rebalancer.getMovedFiles());
+
+        store = new StripedFileBlobStore(roots);
+        try {
+            assertTiles(store, true);
+        } finally {
+            store.destroy();
+        }
+    }
+}
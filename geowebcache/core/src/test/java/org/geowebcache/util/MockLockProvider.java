@@ -22,7 +22,7 @@ public class MockLockProvider extends MemoryLockProvider {
     public Map<String, String> keys = new ConcurrentHashMap<String, String>();
 
     public Lock getLock(final String lockKey) {
-        super.getLock(lockKey);
+        final Lock lock = super.getLock(lockKey);
         acquires.incrementAndGet();
         assertFalse(keys.containsKey(lockKey));
         keys.put(lockKey, lockKey);
@@ -32,6 +32,7 @@ public class MockLockProvider extends MemoryLockProvider {
                 releases.incrementAndGet();
                 assertTrue(keys.containsKey(lockKey));
                 keys.remove(lockKey);
+                lock.release();
             }
             
         };
@@ -24,4 +24,39 @@ package org.geowebcache.diskquota.jdbc;
  */
 public class H2Dialect extends SQLDialect {
 
+    /**
+     * Uses the H2 MERGE command. Since MERGE replaces all the listed columns the values of an
+     * existing page are preserved by outer joining the page with itself
+     */
+    @Override
+    public String upsertTilePageFillFactor(String schema, String keyParam,
+            String tileSetIdParam, String zParam, String xParam, String yParam,
+            String creationParam, String frequencyParam, String lastAccessParam,
+            String fillFactorParam, String numHitsParam, String fillFactorDeltaParam) {
+        StringBuilder sb = new StringBuilder("MERGE INTO ");
+        if (schema != null) {
+            sb.append(schema).append(".");
+        }
+        sb.append("TILEPAGE (KEY, TILESET_ID, PAGE_Z, PAGE_X, PAGE_Y, CREATION_TIME_MINUTES, "
+                + "FREQUENCY_OF_USE, LAST_ACCESS_TIME_MINUTES, FILL_FACTOR, NUM_HITS) KEY(KEY) ");
+        sb.append("SELECT :").append(keyParam).append(", ");
+        sb.append(":").append(tileSetIdParam).append(", ");
+        sb.append(":").append(zParam).append(", ");
+        sb.append(":").append(xParam).append(", ");
+        sb.append(":").append(yParam).append(", ");
+        sb.append("COALESCE(P.CREATION_TIME_MINUTES, :").append(creationParam).append("), ");
+        sb.append("COALESCE(P.FREQUENCY_OF_USE, :").append(frequencyParam).append("), ");
+        sb.append("COALESCE(P.LAST_ACCESS_TIME_MINUTES, :").append(lastAccessParam).append("), ");
+        sb.append("CASE WHEN P.KEY IS NULL THEN :").append(fillFactorParam).append(" ELSE ");
+        appendFillFactorDelta(sb, "P.FILL_FACTOR", fillFactorDeltaParam);
+        sb.append(" END, ");
+        sb.append("COALESCE(P.NUM_HITS, :").append(numHitsParam).append(") ");
+        sb.append("FROM (SELECT 1) D LEFT OUTER JOIN ");
+        if (schema != null) {
+            sb.append(schema).append(".");
+        }
+        sb.append("TILEPAGE P ON P.KEY = :").append(keyParam);
+
+        return sb.toString();
+    }
 }
@@ -19,9 +19,12 @@ package org.geowebcache.diskquota.jdbc;
 import java.io.Closeable;
 import java.math.BigDecimal;
 import java.math.BigInteger;
+import java.math.RoundingMode;
 import java.sql.ResultSet;
 import java.sql.SQLException;
+import java.sql.Statement;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.Comparator;
@@ -108,6 +111,11 @@ public class JDBCQuotaStore implements QuotaStore {
      */
     int maxLoops = 100;
 
+    /**
+     * Max number of keys used in a single IN query (Oracle does not allow more than 1000)
+     */
+    int maxKeysPerQuery = 500;
+
     /**
      * The executor used for asynch requests
      */
@@ -440,13 +448,11 @@ public class JDBCQuotaStore implements QuotaStore {
                 getOrCreateTileSet(tileSet);
                 updateQuotas(tileSet, quotaDiff);
 
-                if (tileCountDiffs != null) {
+                if (tileCountDiffs != null && !tileCountDiffs.isEmpty()) {
                     // sort the payloads by page id as a deadlock avoidance measure, out
                     // of order updates may result in deadlock with the addHitsAndSetAccessTime method
                     List<PageStatsPayload> sorted = sortPayloads(tileCountDiffs);
-                    for (PageStatsPayload payload : sorted) {
-                        upsertTilePageFillFactor(payload);
-                    }
+                    upsertTilePageFillFactors(sorted);
                 }
             }
 
@@ -465,6 +471,30 @@ public class JDBCQuotaStore implements QuotaStore {
                 jt.update(updateQuota, params);
             }
 
+            private void upsertTilePageFillFactors(List<PageStatsPayload> payloads) {
+                // the fill factor deltas are applied by the database, so there is no need to
+                // read the pages first and all the changes can go in a single batch
+                Map<String, ?>[] params = getFillFactorParams(tileSet, payloads);
+                String upsert = dialect.upsertTilePageFillFactor(schema, "key", "tileSetId",
+                        "pageZ", "pageX", "pageY", "creationTime", "frequencyOfUse",
+                        "lastAccessTime", "fillFactor", "numHits", "fillFactorDelta");
+                if (upsert != null) {
+                    jt.batchUpdate(upsert, params);
+                    return;
+                }
+
+                // no upsert support, update the existing pages in batch and create the missing
+                // ones with the race-free, one page at a time approach
+                String update = dialect.updatePageStatsFillFactorDelta(schema, "key",
+                        "fillFactorDelta");
+                int[] modified = jt.batchUpdate(update, params);
+                for (int i = 0; i < modified.length; i++) {
+                    if (modified[i] == 0) {
+                        upsertTilePageFillFactor(payloads.get(i));
+                    }
+                }
+            }
+
             private void upsertTilePageFillFactor(PageStatsPayload payload) {
                 if (log.isDebugEnabled()) {
                     log.info("Applying page stats payload " + payload);
@@ -523,6 +553,36 @@ public class JDBCQuotaStore implements QuotaStore {
         });
     }
 
+    /**
+     * Builds the batch parameters used to apply the tile count diffs. Each set of parameters
+     * contains both the fill factor delta, to be applied on existing pages, and the full page
+     * stats to be used if the page has to be created
+     * 
+     * @param tileSet
+     * @param payloads
+     * @return
+     */
+    @SuppressWarnings("unchecked")
+    private Map<String, ?>[] getFillFactorParams(TileSet tileSet, List<PageStatsPayload> payloads) {
+        Map<String, ?>[] result = new Map[payloads.size()];
+        for (int i = 0; i < result.length; i++) {
+            PageStatsPayload payload = payloads.get(i);
+            TilePage page = payload.getPage();
+            BigInteger tilesPerPage = calculator.getTilesPerPage(tileSet, page.getZoomLevel());
+
+            // same rounding as PageStats.addTiles
+            BigDecimal fillFactorDelta = new BigDecimal(payload.getNumTiles()).divide(
+                    new BigDecimal(tilesPerPage), 7, RoundingMode.CEILING);
+            PageStats stats = new PageStats(0);
+            stats.addTiles(payload.getNumTiles(), tilesPerPage);
+
+            Map<String, Object> params = getPageStatsParams(page, stats);
+            params.put("fillFactorDelta", fillFactorDelta.doubleValue());
+            result[i] = params;
+        }
+        return result;
+    }
+
     /**
      * Sorts the payloads by page key
      * @param tileCountDiffs
@@ -573,9 +633,21 @@ public class JDBCQuotaStore implements QuotaStore {
         }
 
         // for the moment we don't have the page in the db, we have to create it
-        String insert = dialect.contionalTilePageInsertStatement(schema, "key", "tileSetId",
-                "pageZ", "pageX", "pageY", "creationTime", "frequencyOfUse", "lastAccessTime",
+        String insert = getConditionalInsertStatement();
+        Map<String, Object> params = getPageStatsParams(page, stats);
+
+        // try the insert, mind, someone else might have done it as well, in such
+        // case the insert will fail and return 0 record modified
+        return jt.update(insert, params);
+    }
+
+    private String getConditionalInsertStatement() {
+        return dialect.contionalTilePageInsertStatement(schema, "key", "tileSetId", "pageZ",
+                "pageX", "pageY", "creationTime", "frequencyOfUse", "lastAccessTime",
                 "fillFactor", "numHits");
+    }
+
+    private Map<String, Object> getPageStatsParams(TilePage page, PageStats stats) {
         Map<String, Object> params = new HashMap<String, Object>();
         params.put("key", page.getKey());
         params.put("tileSetId", page.getTileSetId());
@@ -587,27 +659,38 @@ public class JDBCQuotaStore implements QuotaStore {
         params.put("lastAccessTime", stats.getLastAccessTimeMinutes());
         params.put("fillFactor", stats.getFillFactor());
         params.put("numHits", new BigDecimal(stats.getNumHits()));
-
-        // try the insert, mind, someone else might have done it as well, in such
-        // case the insert will fail and return 0 record modified
-        return jt.update(insert, params);
+        return params;
     }
 
     private PageStats getPageStats(String pageStatsKey) {
         String getPageStats = dialect.getPageStats(schema, "key");
-        return jt.queryForOptionalObject(getPageStats, new ParameterizedRowMapper<PageStats>() {
-
-            public PageStats mapRow(ResultSet rs, int rowNum) throws SQLException {
-                PageStats ps = new PageStats(0);
-                // FREQUENCY_OF_USE, LAST_ACCESS_TIME, FILL_FACTOR, NUM_HITS FROM
-                ps.setFrequencyOfUsePerMinute(rs.getFloat(1));
-                ps.setLastAccessMinutes(rs.getInt(2));
-                ps.setFillFactor(rs.getFloat(3));
-                ps.setNumHits(rs.getBigDecimal(4).toBigInteger());
+        return jt.queryForOptionalObject(getPageStats, new PageStatsRowMapper(0),
+                Collections.singletonMap("key", pageStatsKey));
+    }
 
-                return ps;
-            }
-        }, Collections.singletonMap("key", pageStatsKey));
+    /**
+     * Loads the stats of the specified pages, using as few queries as possible
+     * 
+     * @param pageStatsKeys
+     * @return a map from page key to page stats, missing pages won't be part of the map
+     */
+    private Map<String, PageStats> getPageStats(Collection<String> pageStatsKeys) {
+        final Map<String, PageStats> result = new HashMap<String, PageStats>();
+        final String getPageStats = dialect.getPageStatsByKeys(schema, "keys");
+        final PageStatsRowMapper mapper = new PageStatsRowMapper(1);
+        List<String> keys = new ArrayList<String>(pageStatsKeys);
+        for (int i = 0; i < keys.size(); i += maxKeysPerQuery) {
+            List<String> chunk = keys.subList(i, Math.min(keys.size(), i + maxKeysPerQuery));
+            Map<String, Object> params = Collections.singletonMap("keys", (Object) chunk);
+            jt.getNamedParameterJdbcOperations().query(getPageStats, params,
+                    new RowCallbackHandler() {
+
+                        public void processRow(ResultSet rs) throws SQLException {
+                            result.put(rs.getString(1), mapper.mapRow(rs, 0));
+                        }
+                    });
+        }
+        return result;
     }
 
     @SuppressWarnings("unchecked")
@@ -620,33 +703,162 @@ public class JDBCQuotaStore implements QuotaStore {
 
                     public Object doInTransaction(TransactionStatus status) {
                         List<PageStats> result = new ArrayList<PageStats>();
-                        if (statsUpdates != null) {
+                        if (statsUpdates != null && !statsUpdates.isEmpty()) {
                             // sort the payloads by page id as a deadlock avoidance measure, out
                             // of order updates may result in deadlock with the addHitsAndSetAccessTime method
                             List<PageStatsPayload> sorted = sortPayloads(statsUpdates);
+                            Set<String> checkedTileSets = new HashSet<String>();
                             for (PageStatsPayload payload : sorted) {
                                 // verify the stats are referring to an existing tile set id
                                 TileSet tset = payload.getTileSet();
                                 if (tset == null) {
                                     String tileSetId = payload.getPage().getTileSetId();
-                                    tset = getTileSetByIdInternal(tileSetId);
-                                    if (tset == null) {
-                                        log.warn("Could not locate tileset with id " + tileSetId
-                                                + ", skipping page stats update: " + payload);
+                                    if (checkedTileSets.add(tileSetId)) {
+                                        tset = getTileSetByIdInternal(tileSetId);
+                                        if (tset == null) {
+                                            log.warn("Could not locate tileset with id "
+                                                    + tileSetId + ", skipping page stats update: "
+                                                    + payload);
+                                        }
                                     }
-                                } else {
+                                } else if (checkedTileSets.add(tset.getId())) {
                                     getOrCreateTileSet(tset);
                                 }
-
-                                // update the stats
-                                PageStats stats = upsertTilePageHitAccessTime(payload);
-                                result.add(stats);
                             }
+
+                            // update the stats
+                            result.addAll(upsertTilePagesHitAccessTime(sorted));
                         }
 
                         return result;
                     }
 
+                    /**
+                     * Reads all the pages in one go, computes the new stats, and writes them back
+                     * in two batches, one for the new pages and one for the existing ones. The
+                     * updates are guarded by the old values, the pages that have been modified by
+                     * someone else in the meantime are updated again one by one
+                     */
+                    private List<PageStats> upsertTilePagesHitAccessTime(
+                            List<PageStatsPayload> payloads) {
+                        Set<String> keys = new HashSet<String>();
+                        for (PageStatsPayload payload : payloads) {
+                            keys.add(payload.getPage().getKey());
+                        }
+                        Map<String, PageStats> current = getPageStats(keys);
+
+                        final int size = payloads.size();
+                        PageStats[] result = new PageStats[size];
+                        List<Map<String, Object>> inserts = new ArrayList<Map<String, Object>>();
+                        List<Integer> insertIndexes = new ArrayList<Integer>();
+                        List<Map<String, Object>> updates = new ArrayList<Map<String, Object>>();
+                        List<Integer> updateIndexes = new ArrayList<Integer>();
+                        for (int i = 0; i < size; i++) {
+                            PageStatsPayload payload = payloads.get(i);
+                            TilePage page = payload.getPage();
+                            PageStats stats = current.get(page.getKey());
+                            if (stats != null) {
+                                Map<String, Object> params = new HashMap<String, Object>();
+                                params.put("key", page.getKey());
+                                params.put("oldHits", new BigDecimal(stats.getNumHits()));
+                                params.put("oldFrequency", stats.getFrequencyOfUsePerMinute());
+                                params.put("oldAccessTime", stats.getLastAccessTimeMinutes());
+                                updatePageStats(payload, page, stats);
+                                params.put("newHits", new BigDecimal(stats.getNumHits()));
+                                params.put("newFrequency", stats.getFrequencyOfUsePerMinute());
+                                params.put("newAccessTime", stats.getLastAccessTimeMinutes());
+                                updates.add(params);
+                                updateIndexes.add(i);
+                            } else {
+                                // the same page might show up again later in the list, in that
+                                // case it will be updated after being inserted
+                                stats = new PageStats(0);
+                                updatePageStats(payload, page, stats);
+                                current.put(page.getKey(), stats);
+                                inserts.add(getPageStatsParams(page, stats));
+                                insertIndexes.add(i);
+                            }
+                            result[i] = copy(stats);
+                        }
+
+                        List<Integer> failed = new ArrayList<Integer>();
+                        if (!inserts.isEmpty()) {
+                            int[] modified = jt.batchUpdate(getConditionalInsertStatement(),
+                                    inserts.toArray(new Map[inserts.size()]));
+                            collectFailed(modified, insertIndexes, payloads, result, failed);
+                        }
+                        if (!updates.isEmpty()) {
+                            String update = dialect.updatePageStats(schema, "key", "newHits",
+                                    "oldHits", "newFrequency", "oldFrequency", "newAccessTime",
+                                    "oldAccessTime");
+                            int[] modified = jt.batchUpdate(update,
+                                    updates.toArray(new Map[updates.size()]));
+                            collectFailed(modified, updateIndexes, payloads, result, failed);
+                        }
+
+                        // someone else modified the pages in the meantime, do them again
+                        Collections.sort(failed);
+                        for (Integer i : failed) {
+                            result[i] = upsertTilePageHitAccessTime(payloads.get(i));
+                        }
+
+                        return Arrays.asList(result);
+                    }
+
+                    /**
+                     * Collects the indexes of the statements that did not modify any row. Some
+                     * drivers only report {@link Statement#SUCCESS_NO_INFO}, for those the pages
+                     * are read back and compared with the stats the batch was supposed to write.
+                     * The rows we modified are locked by the current transaction, so the check is
+                     * not affected by concurrent updates
+                     */
+                    private void collectFailed(int[] modified, List<Integer> indexes,
+                            List<PageStatsPayload> payloads, PageStats[] expected,
+                            List<Integer> failed) {
+                        Map<String, Integer> unknown = new HashMap<String, Integer>();
+                        List<Integer> unknownIndexes = new ArrayList<Integer>();
+                        for (int i = 0; i < modified.length; i++) {
+                            int index = indexes.get(i);
+                            if (modified[i] == 0) {
+                                failed.add(index);
+                            } else if (modified[i] == Statement.SUCCESS_NO_INFO) {
+                                // the same page can be updated more than once in a batch, the
+                                // last update is the one that should be found in the table
+                                unknown.put(payloads.get(index).getPage().getKey(), index);
+                                unknownIndexes.add(index);
+                            }
+                        }
+                        if (unknown.isEmpty()) {
+                            return;
+                        }
+
+                        Map<String, PageStats> stored = getPageStats(unknown.keySet());
+                        for (Integer index : unknownIndexes) {
+                            String key = payloads.get(index).getPage().getKey();
+                            PageStats actual = stored.get(key);
+                            if (actual == null || !sameStats(actual, expected[unknown.get(key)])) {
+                                failed.add(index);
+                            }
+                        }
+                    }
+
+                    private boolean sameStats(PageStats actual, PageStats expected) {
+                        return actual.getNumHits().equals(expected.getNumHits())
+                                && actual.getLastAccessTimeMinutes() == expected
+                                        .getLastAccessTimeMinutes()
+                                && Float.compare(actual.getFrequencyOfUsePerMinute(),
+                                        expected.getFrequencyOfUsePerMinute()) == 0;
+                    }
+
+                    private PageStats copy(PageStats stats) {
+                        PageStats copy = new PageStats(stats.getPageId());
+                        copy.setFrequencyOfUsePerMinute(stats.getFrequencyOfUsePerMinute());
+                        copy.setLastAccessMinutes(stats.getLastAccessTimeMinutes());
+                        copy.setFillFactor(stats.getFillFactor());
+                        copy.setNumHits(stats.getNumHits());
+                        return copy;
+                    }
+
                     private PageStats upsertTilePageHitAccessTime(PageStatsPayload payload) {
                         TilePage page = payload.getPage();
 
@@ -808,6 +1020,32 @@ public class JDBCQuotaStore implements QuotaStore {
         }
     }
 
+    /**
+     * Maps a result set into {@link PageStats} objects
+     */
+    static class PageStatsRowMapper implements ParameterizedRowMapper<PageStats> {
+
+        private final int offset;
+
+        /**
+         * @param offset the number of columns preceding the page stats ones
+         */
+        PageStatsRowMapper(int offset) {
+            this.offset = offset;
+        }
+
+        public PageStats mapRow(ResultSet rs, int rowNum) throws SQLException {
+            PageStats ps = new PageStats(0);
+            // FREQUENCY_OF_USE, LAST_ACCESS_TIME, FILL_FACTOR, NUM_HITS FROM
+            ps.setFrequencyOfUsePerMinute(rs.getFloat(offset + 1));
+            ps.setLastAccessMinutes(rs.getInt(offset + 2));
+            ps.setFillFactor(rs.getFloat(offset + 3));
+            ps.setNumHits(rs.getBigDecimal(offset + 4).toBigInteger());
+
+            return ps;
+        }
+    }
+
     /**
      * Maps a result set into {@link TileSet} objects
      * 
@@ -22,7 +22,7 @@ import java.util.List;
 /**
  * Oracle dialect for the quota store, compared to the basic one creates index organized tables
  * and uses the Oracle specific syntax to get the pages with the oldest access time and lowest
- * access frequency
+ * access frequency, and to upsert the page fill factors
  * 
  * @author Andrea Aime - GeoSolutions
  */
@@ -68,6 +68,36 @@ public class OracleDialect extends SQLDialect {
         sb.append("FROM DUAL");
     }
     
+    @Override
+    public String upsertTilePageFillFactor(String schema, String keyParam,
+            String tileSetIdParam, String zParam, String xParam, String yParam,
+            String creationParam, String frequencyParam, String lastAccessParam,
+            String fillFactorParam, String numHitsParam, String fillFactorDeltaParam) {
+        StringBuilder sb = new StringBuilder("MERGE INTO ");
+        if (schema != null) {
+            sb.append(schema).append(".");
+        }
+        sb.append("TILEPAGE P USING (SELECT :").append(keyParam).append(" AS KEY FROM DUAL) S");
+        sb.append(" ON (P.KEY = S.KEY)");
+        sb.append(" WHEN MATCHED THEN UPDATE SET P.FILL_FACTOR = ");
+        appendFillFactorDelta(sb, "P.FILL_FACTOR", fillFactorDeltaParam);
+        sb.append(" WHEN NOT MATCHED THEN INSERT (KEY, TILESET_ID, PAGE_Z, PAGE_X, PAGE_Y, "
+                + "CREATION_TIME_MINUTES, FREQUENCY_OF_USE, LAST_ACCESS_TIME_MINUTES, "
+                + "FILL_FACTOR, NUM_HITS) VALUES (");
+        sb.append(":").append(keyParam).append(", ");
+        sb.append(":").append(tileSetIdParam).append(", ");
+        sb.append(":").append(zParam).append(", ");
+        sb.append(":").append(xParam).append(", ");
+        sb.append(":").append(yParam).append(", ");
+        sb.append(":").append(creationParam).append(", ");
+        sb.append(":").append(frequencyParam).append(", ");
+        sb.append(":").append(lastAccessParam).append(", ");
+        sb.append(":").append(fillFactorParam).append(", ");
+        sb.append(":").append(numHitsParam).append(")");
+
+        return sb.toString();
+    }
+
     public String getLeastFrequentlyUsedPage(String schema, List<String> layerParamNames) {
         StringBuilder sb = new StringBuilder("SELECT * FROM (");
         sb.append("SELECT TILESET_ID, PAGE_X, PAGE_Y, PAGE_Z, CREATION_TIME_MINUTES FROM ");
@@ -23,4 +23,33 @@ package org.geowebcache.diskquota.jdbc;
  */
 public class PostgreSQLDialect extends SQLDialect {
 
+    /**
+     * Uses INSERT ... ON CONFLICT, requires PostgreSQL 9.5 or newer
+     */
+    @Override
+    public String upsertTilePageFillFactor(String schema, String keyParam,
+            String tileSetIdParam, String zParam, String xParam, String yParam,
+            String creationParam, String frequencyParam, String lastAccessParam,
+            String fillFactorParam, String numHitsParam, String fillFactorDeltaParam) {
+        StringBuilder sb = new StringBuilder("INSERT INTO ");
+        if (schema != null) {
+            sb.append(schema).append(".");
+        }
+        sb.append("TILEPAGE AS P (KEY, TILESET_ID, PAGE_Z, PAGE_X, PAGE_Y, CREATION_TIME_MINUTES, "
+                + "FREQUENCY_OF_USE, LAST_ACCESS_TIME_MINUTES, FILL_FACTOR, NUM_HITS) VALUES (");
+        sb.append(":").append(keyParam).append(", ");
+        sb.append(":").append(tileSetIdParam).append(", ");
+        sb.append(":").append(zParam).append(", ");
+        sb.append(":").append(xParam).append(", ");
+        sb.append(":").append(yParam).append(", ");
+        sb.append(":").append(creationParam).append(", ");
+        sb.append(":").append(frequencyParam).append(", ");
+        sb.append(":").append(lastAccessParam).append(", ");
+        sb.append(":").append(fillFactorParam).append(", ");
+        sb.append(":").append(numHitsParam).append(") ");
+        sb.append("ON CONFLICT (KEY) DO UPDATE SET FILL_FACTOR = ");
+        appendFillFactorDelta(sb, "P.FILL_FACTOR", fillFactorDeltaParam);
+
+        return sb.toString();
+    }
 }
@@ -322,6 +322,79 @@ public class SQLDialect {
         return sb.toString();
     }
 
+    /**
+     * Loads the stats of several pages in one go, the keys parameter is expected to be a
+     * collection of page keys that will be expanded into the IN list
+     *
+     * @param schema
+     * @param keysParam
+     * @return
+     */
+    public String getPageStatsByKeys(String schema, String keysParam) {
+        StringBuilder sb = new StringBuilder(
+                "SELECT KEY, FREQUENCY_OF_USE, LAST_ACCESS_TIME_MINUTES, FILL_FACTOR, NUM_HITS FROM ");
+        if (schema != null) {
+            sb.append(schema).append(".");
+        }
+        sb.append("TILEPAGE WHERE KEY IN (:").append(keysParam).append(")");
+
+        return sb.toString();
+    }
+
+    /**
+     * Adds a delta to the fill factor of an existing page, keeping the result between 0 and 1.
+     * Updates nothing if the page does not exist
+     *
+     * @param schema
+     * @param keyParam
+     * @param fillFactorDeltaParam
+     * @return
+     */
+    public String updatePageStatsFillFactorDelta(String schema, String keyParam,
+            String fillFactorDeltaParam) {
+        StringBuilder sb = new StringBuilder("UPDATE ");
+        if (schema != null) {
+            sb.append(schema).append(".");
+        }
+        sb.append("TILEPAGE SET FILL_FACTOR = ");
+        appendFillFactorDelta(sb, "FILL_FACTOR", fillFactorDeltaParam);
+        sb.append(" WHERE KEY = :").append(keyParam);
+
+        return sb.toString();
+    }
+
+    /**
+     * Returns a single statement that either creates the page with the provided values, or adds
+     * the fill factor delta to the existing page (keeping the result between 0 and 1). The basic
+     * dialect returns null, meaning the database has no such support and the store will fall back
+     * on {@link #updatePageStatsFillFactorDelta} and
+     * {@link #contionalTilePageInsertStatement}
+     *
+     * @return the upsert statement, or null if not supported
+     */
+    public String upsertTilePageFillFactor(String schema, String keyParam,
+            String tileSetIdParam, String zParam, String xParam, String yParam,
+            String creationParam, String frequencyParam, String lastAccessParam,
+            String fillFactorParam, String numHitsParam, String fillFactorDeltaParam) {
+        return null;
+    }
+
+    /**
+     * Appends an expression adding the delta parameter to the fill factor expression, clamping
+     * the result between 0 and 1
+     *
+     * @param sb
+     * @param fillFactor
+     * @param fillFactorDeltaParam
+     */
+    protected void appendFillFactorDelta(StringBuilder sb, String fillFactor,
+            String fillFactorDeltaParam) {
+        String sum = fillFactor + " + :" + fillFactorDeltaParam;
+        sb.append("CASE WHEN ").append(sum).append(" > 1 THEN 1");
+        sb.append(" WHEN ").append(sum).append(" < 0 THEN 0");
+        sb.append(" ELSE ").append(sum).append(" END");
+    }
+
     /**
      * Updates the fill factor in a page provided the old fill factor is still the one we read from
      * the db, otherwise updates nothing
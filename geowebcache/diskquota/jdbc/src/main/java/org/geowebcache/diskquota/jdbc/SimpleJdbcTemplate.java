@@ -70,4 +70,15 @@ public class SimpleJdbcTemplate extends org.springframework.jdbc.core.simple.Sim
         }
     }
 
+    @Override
+    public int[] batchUpdate(String sql, Map<String, ?>[] batchValues) throws DataAccessException {
+        try {
+            return super.batchUpdate(sql, batchValues);
+        } catch (DataAccessException e) {
+            // report the first set of params, it's the one used to parse the statement
+            Map params = batchValues.length > 0 ? batchValues[0] : null;
+            throw new ParametricDataAccessException(sql, params, e);
+        }
+    }
+
 }
@@ -18,6 +18,19 @@ public class H2QuotaStoreTest extends JDBCQuotaStoreTest {
         return fixture;
     }
 
+    /**
+     * Runs the batch tests against the standard SQL dialect too, that has no upsert support
+     */
+    public void testTileCountsBatchStandardDialect() throws Exception {
+        store.setDialect(new SQLDialect());
+        testTileCountsBatch();
+    }
+
+    public void testHitsBatchStandardDialect() throws Exception {
+        store.setDialect(new SQLDialect());
+        testHitsBatch();
+    }
+
     @Override
     protected String getFixtureId() {
         return "h2";
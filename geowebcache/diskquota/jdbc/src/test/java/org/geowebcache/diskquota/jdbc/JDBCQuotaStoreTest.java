@@ -553,6 +553,89 @@ public abstract class JDBCQuotaStoreTest extends OnlineTestCase {
         assertEquals(0f, pageStats.getFillFactor());
     }
 
+    public void testTileCountsBatch() throws Exception {
+        String tileSetId = testTileSet.getId();
+        BigInteger tilesPerPage = tilePageCalculator.getTilesPerPage(testTileSet, 3);
+
+        // a bunch of new pages, plus a page showing up several times in the same batch
+        List<PageStatsPayload> payloads = new ArrayList<PageStatsPayload>();
+        for (int i = 0; i < 4; i++) {
+            PageStatsPayload payload = new PageStatsPayload(new TilePage(tileSetId, i, 0, 3));
+            payload.setNumTiles(1);
+            payloads.add(payload);
+        }
+        for (int i = 0; i < 3; i++) {
+            PageStatsPayload payload = new PageStatsPayload(new TilePage(tileSetId, 0, 0, 3));
+            payload.setNumTiles(1);
+            payloads.add(payload);
+        }
+        store.addToQuotaAndTileCounts(testTileSet, new Quota(1, StorageUnit.MiB), payloads);
+
+        float single = 1f / tilesPerPage.floatValue();
+        assertEquals(4 * single, getFillFactor(new TilePage(tileSetId, 0, 0, 3)), 1e-6f);
+        for (int i = 1; i < 4; i++) {
+            assertEquals(single, getFillFactor(new TilePage(tileSetId, i, 0, 3)), 1e-6f);
+        }
+
+        // now remove more tiles than we have, and fill another page beyond its capacity
+        PageStatsPayload remove = new PageStatsPayload(new TilePage(tileSetId, 1, 0, 3));
+        remove.setNumTiles(-10);
+        PageStatsPayload fill = new PageStatsPayload(new TilePage(tileSetId, 2, 0, 3));
+        fill.setNumTiles(tilesPerPage.intValue() * 2);
+        store.addToQuotaAndTileCounts(testTileSet, new Quota(1, StorageUnit.MiB),
+                Arrays.asList(remove, fill));
+
+        assertEquals(0f, getFillFactor(new TilePage(tileSetId, 1, 0, 3)), 1e-6f);
+        assertEquals(1f, getFillFactor(new TilePage(tileSetId, 2, 0, 3)), 1e-6f);
+        assertEquals(2, store.getUsedQuotaByTileSetId(tileSetId).getBytes()
+                .divide(BigInteger.valueOf(1024 * 1024)).intValue());
+    }
+
+    public void testHitsBatch() throws Exception {
+        final MockSystemUtils sysUtils = new MockSystemUtils();
+        sysUtils.setCurrentTimeMinutes(10);
+        sysUtils.setCurrentTimeMillis(10 * 60 * 1000);
+        SystemUtils.set(sysUtils);
+
+        String tileSetId = testTileSet.getId();
+        TilePage page1 = new TilePage(tileSetId, 0, 0, 3);
+        TilePage page2 = new TilePage(tileSetId, 1, 0, 3);
+        PageStatsPayload fill = new PageStatsPayload(page1);
+        fill.setNumTiles(1);
+        store.addToQuotaAndTileCounts(testTileSet, new Quota(1, StorageUnit.MiB),
+                Collections.singleton(fill));
+
+        // an existing page and a new one, both hit twice in the same batch
+        List<PageStatsPayload> payloads = new ArrayList<PageStatsPayload>();
+        for (TilePage page : Arrays.asList(page1, page2, page1, page2)) {
+            PageStatsPayload payload = new PageStatsPayload(page, testTileSet);
+            payload.setNumHits(10);
+            payload.setLastAccessTime(sysUtils.currentTimeMillis());
+            payloads.add(payload);
+        }
+        List<PageStats> stats = store.addHitsAndSetAccesTime(payloads).get();
+        assertEquals(4, stats.size());
+        // results are sorted by page key
+        Collections.sort(payloads, new java.util.Comparator<PageStatsPayload>() {
+            public int compare(PageStatsPayload p1, PageStatsPayload p2) {
+                return p1.getPage().getKey().compareTo(p2.getPage().getKey());
+            }
+        });
+        assertEquals(10, stats.get(0).getNumHits().intValue());
+        assertEquals(20, stats.get(1).getNumHits().intValue());
+        assertEquals(10, stats.get(2).getNumHits().intValue());
+        assertEquals(20, stats.get(3).getNumHits().intValue());
+
+        // a second round reads back what the first one wrote
+        stats = store.addHitsAndSetAccesTime(payloads.subList(0, 1)).get();
+        assertEquals(30, stats.get(0).getNumHits().intValue());
+    }
+
+    protected float getFillFactor(TilePage page) {
+        return store.jt.queryForObject("SELECT FILL_FACTOR FROM TILEPAGE WHERE KEY = ?",
+                Float.class, page.getKey());
+    }
+
     public void testGetLeastFrequentlyUsedPage() throws Exception {
         final String layerName = testTileSet.getLayerName();
         Set<String> layerNames = Collections.singleton(layerName);
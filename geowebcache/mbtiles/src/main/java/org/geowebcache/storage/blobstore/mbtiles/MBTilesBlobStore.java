@@ -0,0 +1,546 @@
+/**
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package org.geowebcache.storage.blobstore.mbtiles;
+
+import static org.geowebcache.storage.blobstore.file.FilePathUtils.filteredGridSetId;
+import static org.geowebcache.storage.blobstore.file.FilePathUtils.filteredLayerName;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.sql.SQLException;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.geowebcache.config.ConfigurationException;
+import org.geowebcache.io.ByteArrayResource;
+import org.geowebcache.io.Resource;
+import org.geowebcache.mime.MimeException;
+import org.geowebcache.mime.MimeType;
+import org.geowebcache.storage.BlobStoreListener;
+import org.geowebcache.storage.BlobStoreListenerList;
+import org.geowebcache.storage.DefaultStorageFinder;
+import org.geowebcache.storage.StorageException;
+import org.geowebcache.storage.StorageObject.Status;
+import org.geowebcache.storage.TileObject;
+import org.geowebcache.storage.TileRange;
+import org.geowebcache.storage.TouchableBlobStore;
+import org.geowebcache.storage.blobstore.file.FilePathGenerator;
+
+/**
+ * A {@link BlobStore} keeping tiles in MBTiles (SQLite) files instead of one file per tile.
+ * <p>
+ * Tiles are sharded in files laid out as
+ * {@code <root>/<layer>/<gridset>/<parametersId>/<extension>_<first zoom level>.mbtiles}, where
+ * the parameters id is {@code default} for tiles without parameters, and each file holds
+ * {@link #setZoomLevelsPerFile(int) zoomLevelsPerFile} zoom levels. Layer and gridset deletes
+ * remove whole directories, and each file is a self contained copy of part of the cache that can
+ * be moved between servers or backed up as is.
+ * </p>
+ * <p>
+ * The same {@link BlobStoreListener} events as the file blob store are sent, so disk quota keeps
+ * working, with tile sizes being the payload sizes.
+ * </p>
+ */
+public class MBTilesBlobStore implements TouchableBlobStore {
+
+    private static Log log = LogFactory.getLog(MBTilesBlobStore.class);
+
+    static final String DEFAULT_PARAMETERS_ID = "default";
+
+    static final String FILE_EXTENSION = ".mbtiles";
+
+    private final File root;
+
+    private final BlobStoreListenerList listeners = new BlobStoreListenerList();
+
+    private final Map<File, MBTilesFile> files = new ConcurrentHashMap<File, MBTilesFile>();
+
+    /**
+     * Tile operations take the read lock, removing or renaming files takes the write one, as open
+     * files have to be closed first
+     */
+    private final ReadWriteLock lock = new ReentrantReadWriteLock();
+
+    /**
+     * Serializes the access to each layer metadata file
+     */
+    private final ConcurrentMap<File, Object> metadataLocks = new ConcurrentHashMap<File, Object>();
+
+    private int zoomLevelsPerFile = 5;
+
+    private int maxConnectionsPerFile = 4;
+
+    public MBTilesBlobStore(DefaultStorageFinder defStoreFinder) throws StorageException,
+            ConfigurationException {
+        this(defStoreFinder.getDefaultPath());
+    }
+
+    public MBTilesBlobStore(String rootPath) throws StorageException {
+        root = new File(rootPath);
+        root.mkdirs();
+        if (!root.exists() || !root.isDirectory() || !root.canWrite()) {
+            throw new StorageException(rootPath + " is not writable directory.");
+        }
+    }
+
+    /**
+     * Sets how many zoom levels are stored in each MBTiles file, defaults to 5. Must not be
+     * changed once tiles have been stored
+     */
+    public void setZoomLevelsPerFile(int zoomLevelsPerFile) {
+        if (zoomLevelsPerFile < 1) {
+            throw new IllegalArgumentException("zoomLevelsPerFile must be positive");
+        }
+        this.zoomLevelsPerFile = zoomLevelsPerFile;
+    }
+
+    /**
+     * Sets the size of the connection pool of each MBTiles file, defaults to 4
+     */
+    public void setMaxConnectionsPerFile(int maxConnectionsPerFile) {
+        this.maxConnectionsPerFile = maxConnectionsPerFile;
+    }
+
+    private File getLayerDir(String layerName) {
+        return new File(root, filteredLayerName(layerName));
+    }
+
+    private File getGridSetDir(String layerName, String gridSetId) {
+        return new File(getLayerDir(layerName), filteredGridSetId(gridSetId));
+    }
+
+    private static String getParametersId(TileObject stObj) {
+        String parametersId = stObj.getParametersId();
+        Map<String, String> parameters = stObj.getParameters();
+        if (parametersId == null && parameters != null && !parameters.isEmpty()) {
+            parametersId = FilePathGenerator.getParametersId(parameters);
+            stObj.setParametersId(parametersId);
+        }
+        return parametersId;
+    }
+
+    private File getTileFile(String layerName, String gridSetId, String parametersId,
+            String extension, int zoomLevel) {
+        File parametersDir = new File(getGridSetDir(layerName, gridSetId),
+                parametersId == null ? DEFAULT_PARAMETERS_ID : parametersId);
+        int firstZoomLevel = zoomLevel - (zoomLevel % zoomLevelsPerFile);
+        return new File(parametersDir, extension + "_" + firstZoomLevel + FILE_EXTENSION);
+    }
+
+    /**
+     * @return the open file, or {@code null} if it does not exist and {@code create} is false
+     */
+    private MBTilesFile getFile(File file, String format, boolean create) throws StorageException {
+        MBTilesFile mbtiles = files.get(file);
+        if (mbtiles != null) {
+            return mbtiles;
+        }
+        if (!create && !file.exists()) {
+            return null;
+        }
+        synchronized (files) {
+            mbtiles = files.get(file);
+            if (mbtiles == null) {
+                mbtiles = new MBTilesFile(file, maxConnectionsPerFile);
+                try {
+                    mbtiles.initMetadata(new String[][] { { "name", file.getName() },
+                            { "format", format }, { "type", "baselayer" }, { "version", "1.1" } });
+                } catch (SQLException e) {
+                    mbtiles.close();
+                    throw new StorageException("Unable to initialize " + file.getAbsolutePath()
+                            + ": " + e.getMessage());
+                }
+                files.put(file, mbtiles);
+            }
+            return mbtiles;
+        }
+    }
+
+    private MBTilesFile getFile(TileObject stObj, boolean create) throws StorageException {
+        final String extension;
+        try {
+            extension = MimeType.createFromFormat(stObj.getBlobFormat()).getFileExtension();
+        } catch (MimeException e) {
+            throw new StorageException(e.getMessage());
+        }
+        File file = getTileFile(stObj.getLayerName(), stObj.getGridSetId(),
+                getParametersId(stObj), extension, (int) stObj.getXYZ()[2]);
+        return getFile(file, extension, create);
+    }
+
+    /**
+     * Closes the open files under the given directory, must be called holding the write lock
+     */
+    private void closeFiles(File directory) {
+        String prefix = directory.getAbsolutePath() + File.separator;
+        for (Iterator<Map.Entry<File, MBTilesFile>> it = files.entrySet().iterator(); it
+                .hasNext();) {
+            Map.Entry<File, MBTilesFile> entry = it.next();
+            if (entry.getKey().getAbsolutePath().startsWith(prefix)) {
+                entry.getValue().close();
+                it.remove();
+            }
+        }
+    }
+
+    /**
+     * @see org.geowebcache.storage.BlobStore#get(org.geowebcache.storage.TileObject)
+     */
+    public boolean get(TileObject stObj) throws StorageException {
+        lock.readLock().lock();
+        try {
+            MBTilesFile file = getFile(stObj, false);
+            MBTilesFile.Tile tile = null;
+            if (file != null) {
+                long[] xyz = stObj.getXYZ();
+                tile = file.get(xyz[0], xyz[1], (int) xyz[2]);
+            }
+            if (tile == null) {
+                stObj.setStatus(Status.MISS);
+                return false;
+            }
+            stObj.setBlob(new ByteArrayResource(tile.data));
+            stObj.setCreated(tile.lastModified);
+            return true;
+        } catch (SQLException e) {
+            throw new StorageException("Failed to read tile " + stObj + ": " + e.getMessage());
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * @see org.geowebcache.storage.BlobStore#put(org.geowebcache.storage.TileObject)
+     */
+    public void put(TileObject stObj) throws StorageException {
+        final long[] xyz = stObj.getXYZ();
+        final MBTilesFile.Tile tile = new MBTilesFile.Tile(xyz[0], xyz[1], (int) xyz[2]);
+        tile.data = getContents(stObj.getBlob());
+        tile.lastModified = stObj.getCreated() > 0 ? stObj.getCreated() : System
+                .currentTimeMillis();
+
+        lock.readLock().lock();
+        try {
+            getFile(stObj, true).put(tile);
+        } catch (SQLException e) {
+            throw new StorageException("Failed to store tile " + stObj + ": " + e.getMessage());
+        } finally {
+            lock.readLock().unlock();
+        }
+
+        stObj.setBlobSize(tile.data.length);
+        if (tile.oldSize >= 0) {
+            listeners.sendTileUpdated(stObj, tile.oldSize);
+        } else {
+            listeners.sendTileStored(stObj);
+        }
+    }
+
+    /**
+     * @see org.geowebcache.storage.TouchableBlobStore#touch(org.geowebcache.storage.TileObject)
+     */
+    public boolean touch(TileObject stObj) throws StorageException {
+        lock.readLock().lock();
+        try {
+            MBTilesFile file = getFile(stObj, false);
+            if (file == null) {
+                return false;
+            }
+            long[] xyz = stObj.getXYZ();
+            return file.touch(xyz[0], xyz[1], (int) xyz[2], stObj.getCreated());
+        } catch (SQLException e) {
+            throw new StorageException("Failed to update tile " + stObj + ": " + e.getMessage());
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    private static byte[] getContents(Resource blob) throws StorageException {
+        if (blob instanceof ByteArrayResource) {
+            byte[] contents = ((ByteArrayResource) blob).getContents();
+            return contents == null ? new byte[0] : contents;
+        }
+        try {
+            InputStream in = blob.getInputStream();
+            try {
+                return IOUtils.toByteArray(in);
+            } finally {
+                in.close();
+            }
+        } catch (IOException e) {
+            throw new StorageException("Failed to read the tile contents: " + e.getMessage());
+        }
+    }
+
+    /**
+     * @see org.geowebcache.storage.BlobStore#delete(org.geowebcache.storage.TileObject)
+     */
+    public boolean delete(TileObject stObj) throws StorageException {
+        final long oldSize;
+        lock.readLock().lock();
+        try {
+            MBTilesFile file = getFile(stObj, false);
+            if (file == null) {
+                return false;
+            }
+            long[] xyz = stObj.getXYZ();
+            oldSize = file.delete(xyz[0], xyz[1], (int) xyz[2]);
+        } catch (SQLException e) {
+            throw new StorageException("Failed to delete tile " + stObj + ": " + e.getMessage());
+        } finally {
+            lock.readLock().unlock();
+        }
+        if (oldSize < 0) {
+            return false;
+        }
+        stObj.setBlobSize((int) oldSize);
+        listeners.sendTileDeleted(stObj);
+        return true;
+    }
+
+    /**
+     * @see org.geowebcache.storage.BlobStore#delete(org.geowebcache.storage.TileRange)
+     */
+    public boolean delete(final TileRange trObj) throws StorageException {
+        final String layerName = trObj.getLayerName();
+        final String gridSetId = trObj.getGridSetId();
+        final String blobFormat = trObj.getMimeType().getFormat();
+        final String parametersId = trObj.getParametersId();
+        final String extension = trObj.getMimeType().getFileExtension();
+        final MBTilesFile.TileFilter filter = new MBTilesFile.TileFilter() {
+            public boolean accept(long x, long y, int z) {
+                return trObj.contains(x, y, z);
+            }
+        };
+
+        long count = 0;
+        lock.readLock().lock();
+        try {
+            for (int z = trObj.getZoomStart(); z <= trObj.getZoomStop(); z++) {
+                File tileFile = getTileFile(layerName, gridSetId, parametersId, extension, z);
+                MBTilesFile file = getFile(tileFile, extension, false);
+                if (file == null) {
+                    continue;
+                }
+                List<MBTilesFile.Tile> deleted = file.delete(z, getRangeBounds(trObj, z), filter);
+                for (MBTilesFile.Tile tile : deleted) {
+                    listeners.sendTileDeleted(layerName, gridSetId, blobFormat, parametersId,
+                            tile.x, tile.y, z, tile.oldSize);
+                }
+                count += deleted.size();
+            }
+        } catch (SQLException e) {
+            throw new StorageException("Failed to truncate " + layerName + ": " + e.getMessage());
+        } finally {
+            lock.readLock().unlock();
+        }
+        log.info("Truncated " + count + " tiles");
+        return true;
+    }
+
+    private static long[] getRangeBounds(TileRange trObj, int z) {
+        try {
+            return trObj.rangeBounds(z);
+        } catch (RuntimeException e) {
+            // unbounded range, or no bounds for this zoom level
+            return new long[] { 0, 0, Long.MAX_VALUE, Long.MAX_VALUE, z };
+        }
+    }
+
+    /**
+     * @see org.geowebcache.storage.BlobStore#delete(java.lang.String)
+     */
+    public boolean delete(String layerName) throws StorageException {
+        boolean deleted = deleteDirectory(getLayerDir(layerName));
+        listeners.sendLayerDeleted(layerName);
+        return deleted;
+    }
+
+    /**
+     * @see org.geowebcache.storage.BlobStore#deleteByGridsetId(java.lang.String, java.lang.String)
+     */
+    public boolean deleteByGridsetId(String layerName, String gridSetId)
+            throws StorageException {
+        boolean deleted = deleteDirectory(getGridSetDir(layerName, gridSetId));
+        listeners.sendGridSubsetDeleted(layerName, gridSetId);
+        return deleted;
+    }
+
+    private boolean deleteDirectory(File directory) throws StorageException {
+        lock.writeLock().lock();
+        try {
+            if (!directory.exists()) {
+                return false;
+            }
+            closeFiles(directory);
+            FileUtils.deleteDirectory(directory);
+            return true;
+        } catch (IOException e) {
+            throw new StorageException("Unable to delete " + directory.getAbsolutePath() + ": "
+                    + e.getMessage());
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * @see org.geowebcache.storage.BlobStore#rename(java.lang.String, java.lang.String)
+     */
+    public boolean rename(String oldLayerName, String newLayerName) throws StorageException {
+        final File oldLayerDir = getLayerDir(oldLayerName);
+        final File newLayerDir = getLayerDir(newLayerName);
+        lock.writeLock().lock();
+        try {
+            if (newLayerDir.exists()) {
+                throw new StorageException("Can't rename layer directory " + oldLayerDir + " to "
+                        + newLayerDir + ". Target directory already exists");
+            }
+            if (oldLayerDir.exists()) {
+                closeFiles(oldLayerDir);
+                if (!oldLayerDir.renameTo(newLayerDir)) {
+                    throw new StorageException("Couldn't rename layer directory " + oldLayerDir
+                            + " to " + newLayerDir);
+                }
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+        listeners.sendLayerRenamed(oldLayerName, newLayerName);
+        return true;
+    }
+
+    /**
+     * @see org.geowebcache.storage.BlobStore#clear()
+     */
+    public void clear() throws StorageException {
+        lock.writeLock().lock();
+        try {
+            closeFiles(root);
+            FileUtils.cleanDirectory(root);
+        } catch (IOException e) {
+            throw new StorageException("Unable to clear " + root.getAbsolutePath() + ": "
+                    + e.getMessage());
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * @see org.geowebcache.storage.BlobStore#destroy()
+     */
+    public void destroy() {
+        lock.writeLock().lock();
+        try {
+            closeFiles(root);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    public void addListener(BlobStoreListener listener) {
+        listeners.addListener(listener);
+    }
+
+    public boolean removeListener(BlobStoreListener listener) {
+        return listeners.removeListener(listener);
+    }
+
+    /**
+     * @see org.geowebcache.storage.BlobStore#getLayerMetadata(java.lang.String, java.lang.String)
+     */
+    public String getLayerMetadata(String layerName, String key) {
+        return getLayerMetadata(getMetadataFile(layerName)).getProperty(key);
+    }
+
+    /**
+     * @see org.geowebcache.storage.BlobStore#putLayerMetadata(java.lang.String, java.lang.String,
+     *      java.lang.String)
+     */
+    public void putLayerMetadata(String layerName, String key, String value) {
+        final File metadataFile = getMetadataFile(layerName);
+        lock.readLock().lock();
+        try {
+            synchronized (metadataLock(metadataFile)) {
+                Properties metadata = getLayerMetadata(metadataFile);
+                if (value == null) {
+                    metadata.remove(key);
+                } else {
+                    metadata.setProperty(key, value);
+                }
+                metadataFile.getParentFile().mkdirs();
+                OutputStream out = new FileOutputStream(metadataFile);
+                try {
+                    metadata.store(out, "auto generated file, do not edit by hand");
+                } finally {
+                    out.close();
+                }
+            }
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    private Properties getLayerMetadata(File metadataFile) {
+        Properties properties = new Properties();
+        synchronized (metadataLock(metadataFile)) {
+            if (metadataFile.exists()) {
+                try {
+                    InputStream in = new FileInputStream(metadataFile);
+                    try {
+                        properties.load(in);
+                    } finally {
+                        in.close();
+                    }
+                } catch (IOException e) {
+                    throw new RuntimeException(e);
+                }
+            }
+        }
+        return properties;
+    }
+
+    private Object metadataLock(File metadataFile) {
+        Object fileLock = metadataLocks.get(metadataFile);
+        if (fileLock == null) {
+            fileLock = new Object();
+            Object existing = metadataLocks.putIfAbsent(metadataFile, fileLock);
+            if (existing != null) {
+                fileLock = existing;
+            }
+        }
+        return fileLock;
+    }
+
+    private File getMetadataFile(String layerName) {
+        return new File(getLayerDir(layerName), "metadata.properties");
+    }
+}
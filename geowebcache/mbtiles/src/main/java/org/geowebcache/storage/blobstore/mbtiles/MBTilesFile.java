@@ -0,0 +1,479 @@
+/**
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package org.geowebcache.storage.blobstore.mbtiles;
+
+import java.io.File;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.commons.dbcp.BasicDataSource;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.geowebcache.storage.StorageException;
+
+/**
+ * A single MBTiles file, holding the tiles of a layer, gridset, parameters, format and range of
+ * zoom levels.
+ * <p>
+ * The file is accessed through a small connection pool with prepared statement reuse, and is
+ * switched to WAL mode so that readers do not block the writer. Writes are serialized, and the
+ * ones queued by concurrent threads while a transaction is running are committed together in the
+ * next one, so that seeding does not pay a transaction per tile.
+ * </p>
+ * <p>
+ * Besides the standard {@code zoom_level, tile_column, tile_row, tile_data} columns the
+ * {@code tiles} table holds the tile {@code last_modified} time. GeoWebCache tile rows are counted
+ * from the bottom of the grid, same as in the MBTiles specification.
+ * </p>
+ */
+class MBTilesFile {
+
+    private static Log log = LogFactory.getLog(MBTilesFile.class);
+
+    private static final String SELECT_SIZE = "SELECT length(tile_data) FROM tiles "
+            + "WHERE zoom_level = ? AND tile_column = ? AND tile_row = ?";
+
+    private static final String SELECT_TILE = "SELECT tile_data, last_modified FROM tiles "
+            + "WHERE zoom_level = ? AND tile_column = ? AND tile_row = ?";
+
+    private static final String INSERT_TILE = "INSERT OR REPLACE INTO tiles "
+            + "(zoom_level, tile_column, tile_row, tile_data, last_modified) VALUES (?, ?, ?, ?, ?)";
+
+    private static final String TOUCH_TILE = "UPDATE tiles SET last_modified = ? "
+            + "WHERE zoom_level = ? AND tile_column = ? AND tile_row = ?";
+
+    private static final String DELETE_TILE = "DELETE FROM tiles "
+            + "WHERE zoom_level = ? AND tile_column = ? AND tile_row = ?";
+
+    private static final String SELECT_RANGE = "SELECT rowid, tile_column, tile_row, "
+            + "length(tile_data) FROM tiles WHERE zoom_level = ? AND tile_column BETWEEN ? AND ? "
+            + "AND tile_row BETWEEN ? AND ? AND rowid > ? ORDER BY rowid LIMIT ?";
+
+    private static final String DELETE_BY_ROWID = "DELETE FROM tiles WHERE rowid = ?";
+
+    /**
+     * Maximum number of tiles read per query while truncating
+     */
+    static final int RANGE_PAGE_SIZE = 10000;
+
+    /**
+     * A tile stored or removed from the file
+     */
+    static class Tile {
+        final long x;
+
+        final long y;
+
+        final int z;
+
+        byte[] data;
+
+        long lastModified;
+
+        /**
+         * Size of the tile previously stored at the same position, {@code -1} if there was none
+         */
+        long oldSize = -1;
+
+        boolean done;
+
+        SQLException error;
+
+        Tile(long x, long y, int z) {
+            this.x = x;
+            this.y = y;
+            this.z = z;
+        }
+    }
+
+    /**
+     * Decides which of the tiles within the bounds a range truncation removes
+     */
+    interface TileFilter {
+        boolean accept(long x, long y, int z);
+    }
+
+    private final File file;
+
+    private final BasicDataSource dataSource;
+
+    private final Object writeLock = new Object();
+
+    private final List<Tile> pendingWrites = new ArrayList<Tile>();
+
+    MBTilesFile(final File file, final int maxConnections) throws StorageException {
+        this.file = file;
+        File parent = file.getParentFile();
+        if (!parent.exists() && !parent.mkdirs() && !parent.exists()) {
+            throw new StorageException("Unable to create directory " + parent.getAbsolutePath());
+        }
+
+        dataSource = new BasicDataSource();
+        dataSource.setDriverClassName("org.sqlite.JDBC");
+        dataSource.setUrl("jdbc:sqlite:" + file.getAbsolutePath());
+        dataSource.addConnectionProperty("synchronous", "NORMAL");
+        dataSource.setMaxActive(maxConnections);
+        dataSource.setMaxIdle(maxConnections);
+        dataSource.setPoolPreparedStatements(true);
+
+        try {
+            createSchema();
+        } catch (SQLException e) {
+            close();
+            throw new StorageException("Unable to initialize " + file.getAbsolutePath() + ": "
+                    + e.getMessage());
+        }
+    }
+
+    private void createSchema() throws SQLException {
+        synchronized (writeLock) {
+            Connection cx = dataSource.getConnection();
+            try {
+                Statement st = cx.createStatement();
+                try {
+                    // WAL mode is persistent, setting it once is enough
+                    st.executeQuery("PRAGMA journal_mode=WAL").close();
+                    st.execute("CREATE TABLE IF NOT EXISTS metadata (name TEXT, value TEXT)");
+                    st.execute("CREATE TABLE IF NOT EXISTS tiles (zoom_level INTEGER, "
+                            + "tile_column INTEGER, tile_row INTEGER, tile_data BLOB, "
+                            + "last_modified INTEGER)");
+                    st.execute("CREATE UNIQUE INDEX IF NOT EXISTS tile_index ON tiles "
+                            + "(zoom_level, tile_column, tile_row)");
+                } finally {
+                    st.close();
+                }
+            } finally {
+                cx.close();
+            }
+        }
+    }
+
+    File getFile() {
+        return file;
+    }
+
+    /**
+     * Sets the metadata entries if missing, used to describe newly created files
+     */
+    void initMetadata(String[][] entries) throws SQLException {
+        synchronized (writeLock) {
+            Connection cx = dataSource.getConnection();
+            try {
+                PreparedStatement count = cx
+                        .prepareStatement("SELECT count(*) FROM metadata WHERE name = ?");
+                PreparedStatement insert = cx
+                        .prepareStatement("INSERT INTO metadata (name, value) VALUES (?, ?)");
+                try {
+                    for (String[] entry : entries) {
+                        count.setString(1, entry[0]);
+                        ResultSet rs = count.executeQuery();
+                        boolean found;
+                        try {
+                            found = rs.next() && rs.getInt(1) > 0;
+                        } finally {
+                            rs.close();
+                        }
+                        if (!found) {
+                            insert.setString(1, entry[0]);
+                            insert.setString(2, entry[1]);
+                            insert.executeUpdate();
+                        }
+                    }
+                } finally {
+                    count.close();
+                    insert.close();
+                }
+            } finally {
+                cx.close();
+            }
+        }
+    }
+
+    /**
+     * @return the tile, or {@code null} if not found
+     */
+    Tile get(long x, long y, int z) throws SQLException {
+        Connection cx = dataSource.getConnection();
+        try {
+            PreparedStatement ps = cx.prepareStatement(SELECT_TILE);
+            try {
+                ps.setInt(1, z);
+                ps.setLong(2, x);
+                ps.setLong(3, y);
+                ResultSet rs = ps.executeQuery();
+                try {
+                    if (!rs.next()) {
+                        return null;
+                    }
+                    Tile tile = new Tile(x, y, z);
+                    tile.data = rs.getBytes(1);
+                    tile.lastModified = rs.getLong(2);
+                    return tile;
+                } finally {
+                    rs.close();
+                }
+            } finally {
+                ps.close();
+            }
+        } finally {
+            cx.close();
+        }
+    }
+
+    /**
+     * Stores the tile, filling in its {@link Tile#oldSize}. The tile might be written by another
+     * thread as part of the same transaction as its own
+     */
+    void put(Tile tile) throws SQLException {
+        synchronized (pendingWrites) {
+            pendingWrites.add(tile);
+        }
+        synchronized (writeLock) {
+            if (!tile.done) {
+                writePending();
+            }
+        }
+        if (tile.error != null) {
+            throw tile.error;
+        }
+    }
+
+    /**
+     * Writes the tiles queued by the threads waiting for the write lock, must be called while
+     * holding it
+     */
+    private void writePending() {
+        List<Tile> batch;
+        synchronized (pendingWrites) {
+            if (pendingWrites.isEmpty()) {
+                return;
+            }
+            batch = new ArrayList<Tile>(pendingWrites);
+            pendingWrites.clear();
+        }
+        write(batch);
+    }
+
+    /**
+     * Writes a batch of tiles in a single transaction, must be called while holding the write lock
+     */
+    void write(List<Tile> batch) {
+        SQLException error = null;
+        try {
+            Connection cx = dataSource.getConnection();
+            try {
+                cx.setAutoCommit(false);
+                try {
+                    PreparedStatement size = cx.prepareStatement(SELECT_SIZE);
+                    PreparedStatement insert = cx.prepareStatement(INSERT_TILE);
+                    try {
+                        // the same tile may be put twice in a batch, the first one being the
+                        // previous tile of the second
+                        Map<String, Tile> batchTiles = new HashMap<String, Tile>();
+                        for (Tile tile : batch) {
+                            Tile previous = batchTiles.put(tile.z + "/" + tile.x + "/" + tile.y,
+                                    tile);
+                            tile.oldSize = previous == null ? getSize(size, tile)
+                                    : previous.data.length;
+                            insert.setInt(1, tile.z);
+                            insert.setLong(2, tile.x);
+                            insert.setLong(3, tile.y);
+                            insert.setBytes(4, tile.data);
+                            insert.setLong(5, tile.lastModified);
+                            insert.addBatch();
+                        }
+                        insert.executeBatch();
+                    } finally {
+                        size.close();
+                        insert.close();
+                    }
+                    cx.commit();
+                } catch (SQLException e) {
+                    cx.rollback();
+                    throw e;
+                } finally {
+                    cx.setAutoCommit(true);
+                }
+            } finally {
+                cx.close();
+            }
+        } catch (SQLException e) {
+            log.debug("Failed to write " + batch.size() + " tiles to " + file, e);
+            error = e;
+        }
+        for (Tile tile : batch) {
+            tile.error = error;
+            tile.done = true;
+        }
+    }
+
+    private long getSize(PreparedStatement size, Tile tile) throws SQLException {
+        size.setInt(1, tile.z);
+        size.setLong(2, tile.x);
+        size.setLong(3, tile.y);
+        ResultSet rs = size.executeQuery();
+        try {
+            return rs.next() ? rs.getLong(1) : -1;
+        } finally {
+            rs.close();
+        }
+    }
+
+    /**
+     * Updates the last modification time of a tile, leaving its data alone
+     *
+     * @return {@code false} if the tile was not found
+     */
+    boolean touch(long x, long y, int z, long lastModified) throws SQLException {
+        synchronized (writeLock) {
+            // the tile may be queued by a concurrent put, which would then write it with its
+            // old modification time
+            writePending();
+            Connection cx = dataSource.getConnection();
+            try {
+                PreparedStatement touch = cx.prepareStatement(TOUCH_TILE);
+                try {
+                    touch.setLong(1, lastModified);
+                    touch.setInt(2, z);
+                    touch.setLong(3, x);
+                    touch.setLong(4, y);
+                    return touch.executeUpdate() > 0;
+                } finally {
+                    touch.close();
+                }
+            } finally {
+                cx.close();
+            }
+        }
+    }
+
+    /**
+     * Removes a tile
+     *
+     * @return the size of the removed tile, or {@code -1} if not found
+     */
+    long delete(long x, long y, int z) throws SQLException {
+        synchronized (writeLock) {
+            Connection cx = dataSource.getConnection();
+            try {
+                PreparedStatement size = cx.prepareStatement(SELECT_SIZE);
+                PreparedStatement delete = cx.prepareStatement(DELETE_TILE);
+                try {
+                    Tile tile = new Tile(x, y, z);
+                    long oldSize = getSize(size, tile);
+                    if (oldSize >= 0) {
+                        delete.setInt(1, z);
+                        delete.setLong(2, x);
+                        delete.setLong(3, y);
+                        delete.executeUpdate();
+                    }
+                    return oldSize;
+                } finally {
+                    size.close();
+                    delete.close();
+                }
+            } finally {
+                cx.close();
+            }
+        }
+    }
+
+    /**
+     * Removes the tiles of a zoom level within the given bounds that are accepted by the filter,
+     * one page of tiles per transaction
+     *
+     * @return the removed tiles, without data and with their size in {@link Tile#oldSize}
+     */
+    List<Tile> delete(int z, long[] bounds, TileFilter filter) throws SQLException {
+        List<Tile> deleted = new ArrayList<Tile>();
+        long lastRowId = -1;
+        boolean more = true;
+        while (more) {
+            synchronized (writeLock) {
+                Connection cx = dataSource.getConnection();
+                try {
+                    cx.setAutoCommit(false);
+                    try {
+                        PreparedStatement select = cx.prepareStatement(SELECT_RANGE);
+                        PreparedStatement delete = cx.prepareStatement(DELETE_BY_ROWID);
+                        List<Tile> page = new ArrayList<Tile>();
+                        try {
+                            select.setInt(1, z);
+                            select.setLong(2, bounds[0]);
+                            select.setLong(3, bounds[2]);
+                            select.setLong(4, bounds[1]);
+                            select.setLong(5, bounds[3]);
+                            select.setLong(6, lastRowId);
+                            select.setInt(7, RANGE_PAGE_SIZE);
+                            ResultSet rs = select.executeQuery();
+                            int read = 0;
+                            try {
+                                while (rs.next()) {
+                                    read++;
+                                    lastRowId = rs.getLong(1);
+                                    Tile tile = new Tile(rs.getLong(2), rs.getLong(3), z);
+                                    if (filter.accept(tile.x, tile.y, z)) {
+                                        tile.oldSize = rs.getLong(4);
+                                        page.add(tile);
+                                        delete.setLong(1, lastRowId);
+                                        delete.addBatch();
+                                    }
+                                }
+                            } finally {
+                                rs.close();
+                            }
+                            more = read == RANGE_PAGE_SIZE;
+                            if (!page.isEmpty()) {
+                                delete.executeBatch();
+                            }
+                        } finally {
+                            select.close();
+                            delete.close();
+                        }
+                        cx.commit();
+                        deleted.addAll(page);
+                    } catch (SQLException e) {
+                        cx.rollback();
+                        throw e;
+                    } finally {
+                        cx.setAutoCommit(true);
+                    }
+                } finally {
+                    cx.close();
+                }
+            }
+        }
+        return deleted;
+    }
+
+    /**
+     * Closes the connection pool, the file can be removed afterwards
+     */
+    void close() {
+        try {
+            dataSource.close();
+        } catch (SQLException e) {
+            log.warn("Error closing " + file.getAbsolutePath(), e);
+        }
+    }
+}
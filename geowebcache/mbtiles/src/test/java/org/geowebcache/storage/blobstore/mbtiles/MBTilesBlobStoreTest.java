@@ -0,0 +1,242 @@
+/**
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package org.geowebcache.storage.blobstore.mbtiles;
+
+import java.io.File;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import junit.framework.TestCase;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+import org.easymock.classextension.EasyMock;
+import org.geowebcache.io.ByteArrayResource;
+import org.geowebcache.io.Resource;
+import org.geowebcache.mime.ImageMime;
+import org.geowebcache.storage.BlobStoreListener;
+import org.geowebcache.storage.StorageException;
+import org.geowebcache.storage.TileObject;
+import org.geowebcache.storage.TileRange;
+
+public class MBTilesBlobStoreTest extends TestCase {
+
+    private static final String GRIDSET = "EPSG:4326";
+
+    private static final String LAYER = "test:layer";
+
+    private File root;
+
+    private MBTilesBlobStore store;
+
+    @Override
+    protected void setUp() throws Exception {
+        root = new File("target", "mbtiles-blobstore");
+        FileUtils.deleteDirectory(root);
+        store = new MBTilesBlobStore(root.getAbsolutePath());
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        store.destroy();
+        FileUtils.deleteDirectory(root);
+    }
+
+    private TileObject put(long x, long y, int z, String format, Map<String, String> parameters,
+            String contents) throws StorageException {
+        Resource blob = new ByteArrayResource(contents.getBytes());
+        long[] xyz = { x, y, z };
+        TileObject to = TileObject.createCompleteTileObject(LAYER, xyz, GRIDSET, format,
+                parameters, blob);
+        store.put(to);
+        return to;
+    }
+
+    private String get(long x, long y, int z, String format, Map<String, String> parameters)
+            throws Exception {
+        long[] xyz = { x, y, z };
+        TileObject to = TileObject.createQueryTileObject(LAYER, xyz, GRIDSET, format,
+                parameters);
+        if (!store.get(to)) {
+            return null;
+        }
+        InputStream in = to.getBlob().getInputStream();
+        try {
+            return new String(IOUtils.toByteArray(in));
+        } finally {
+            in.close();
+        }
+    }
+
+    public void testPutGetDelete() throws Exception {
+        Map<String, String> parameters = new HashMap<String, String>();
+        parameters.put("STYLES", "alt");
+
+        put(3, 4, 5, "image/png", null, "default");
+        put(3, 4, 5, "image/png", parameters, "alt");
+        put(3, 4, 5, "image/jpeg", null, "jpeg");
+
+        assertEquals("default", get(3, 4, 5, "image/png", null));
+        assertEquals("alt", get(3, 4, 5, "image/png", parameters));
+        assertEquals("jpeg", get(3, 4, 5, "image/jpeg", null));
+        assertNull(get(4, 4, 5, "image/png", null));
+        assertNull(get(3, 4, 12, "image/png", null));
+
+        // overwrite
+        put(3, 4, 5, "image/png", null, "updated");
+        assertEquals("updated", get(3, 4, 5, "image/png", null));
+
+        long[] xyz = { 3, 4, 5 };
+        TileObject to = TileObject.createQueryTileObject(LAYER, xyz, GRIDSET, "image/png", null);
+        assertTrue(store.delete(to));
+        assertFalse(store.delete(to));
+        assertNull(get(3, 4, 5, "image/png", null));
+        assertEquals("alt", get(3, 4, 5, "image/png", parameters));
+
+        // one file per layer/gridset/parameters/format and zoom level group
+        File gridset = new File(new File(root, "test_layer"), "EPSG_4326");
+        assertTrue(new File(gridset, "default/png_5.mbtiles").exists());
+        assertTrue(new File(gridset, "default/jpeg_5.mbtiles").exists());
+        assertFalse(new File(gridset, "default/png_10.mbtiles").exists());
+    }
+
+    public void testListenerEvents() throws Exception {
+        BlobStoreListener listener = EasyMock.createMock(BlobStoreListener.class);
+        listener.tileStored(LAYER, GRIDSET, "image/png", null, 1, 2, 3, 5);
+        listener.tileUpdated(LAYER, GRIDSET, "image/png", null, 1, 2, 3, 7, 5);
+        listener.tileDeleted(LAYER, GRIDSET, "image/png", null, 1, 2, 3, 7);
+        EasyMock.replay(listener);
+        store.addListener(listener);
+
+        put(1, 2, 3, "image/png", null, "first");
+        put(1, 2, 3, "image/png", null, "updated");
+        long[] xyz = { 1, 2, 3 };
+        store.delete(TileObject.createQueryTileObject(LAYER, xyz, GRIDSET, "image/png", null));
+
+        EasyMock.verify(listener);
+    }
+
+    public void testTileRangeDelete() throws Exception {
+        for (int z = 3; z < 8; z++) {
+            for (long x = 0; x < 10; x++) {
+                for (long y = 0; y < 4; y++) {
+                    put(x, y, z, "image/png", null, x + "_" + y + "_" + z);
+                }
+            }
+        }
+
+        long[][] rangeBounds = { { 2, 1, 5, 2, 4 }, { 20, 20, 21, 21, 5 }, { 0, 0, 9, 3, 6 } };
+        TileRange range = new TileRange(LAYER, GRIDSET, 4, 6, rangeBounds, ImageMime.png,
+                (String) null);
+        store.delete(range);
+
+        for (int z = 3; z < 8; z++) {
+            for (long x = 0; x < 10; x++) {
+                for (long y = 0; y < 4; y++) {
+                    boolean deleted = (z == 4 && range.contains(x, y, z)) || z == 6;
+                    String expected = deleted ? null : x + "_" + y + "_" + z;
+                    assertEquals(expected, get(x, y, z, "image/png", null));
+                }
+            }
+        }
+    }
+
+    public void testConcurrentPuts() throws Exception {
+        ExecutorService executor = Executors.newFixedThreadPool(8);
+        try {
+            List<Future<Object>> futures = new ArrayList<Future<Object>>();
+            for (int i = 0; i < 400; i++) {
+                final int x = i;
+                futures.add(executor.submit(new Callable<Object>() {
+                    public Object call() throws Exception {
+                        put(x, x % 7, 9, "image/png", null, "tile" + x);
+                        return null;
+                    }
+                }));
+            }
+            for (Future<Object> future : futures) {
+                future.get();
+            }
+        } finally {
+            executor.shutdown();
+        }
+        for (int i = 0; i < 400; i++) {
+            assertEquals("tile" + i, get(i, i % 7, 9, "image/png", null));
+        }
+    }
+
+    public void testSameTileTwiceInBatch() throws Exception {
+        MBTilesFile file = new MBTilesFile(new File(root, "batch.mbtiles"), 2);
+        try {
+            List<MBTilesFile.Tile> batch = new ArrayList<MBTilesFile.Tile>();
+            for (String contents : new String[] { "first", "second!" }) {
+                MBTilesFile.Tile tile = new MBTilesFile.Tile(1, 2, 3);
+                tile.data = contents.getBytes();
+                batch.add(tile);
+            }
+            file.write(batch);
+            // the second put replaces the first one, rather than looking new as well
+            assertNull(batch.get(0).error);
+            assertEquals(-1, batch.get(0).oldSize);
+            assertEquals("first".length(), batch.get(1).oldSize);
+            assertEquals("second!", new String(file.get(1, 2, 3).data));
+        } finally {
+            file.close();
+        }
+    }
+
+    public void testDeleteGridsetAndLayer() throws Exception {
+        BlobStoreListener listener = EasyMock.createNiceMock(BlobStoreListener.class);
+        listener.gridSubsetDeleted(LAYER, GRIDSET);
+        listener.layerDeleted(LAYER);
+        EasyMock.replay(listener);
+        store.addListener(listener);
+
+        put(1, 1, 1, "image/png", null, "tile");
+        assertTrue(store.deleteByGridsetId(LAYER, GRIDSET));
+        assertNull(get(1, 1, 1, "image/png", null));
+
+        put(1, 1, 1, "image/png", null, "tile");
+        assertEquals("tile", get(1, 1, 1, "image/png", null));
+        assertTrue(store.delete(LAYER));
+        assertNull(get(1, 1, 1, "image/png", null));
+        assertFalse(new File(root, "test_layer").exists());
+
+        EasyMock.verify(listener);
+    }
+
+    public void testRename() throws Exception {
+        put(1, 1, 1, "image/png", null, "tile");
+        store.putLayerMetadata(LAYER, "key", "value");
+        assertTrue(store.rename(LAYER, "renamed"));
+        assertNull(get(1, 1, 1, "image/png", null));
+        assertNull(store.getLayerMetadata(LAYER, "key"));
+        assertEquals("value", store.getLayerMetadata("renamed", "key"));
+
+        long[] xyz = { 1, 1, 1 };
+        TileObject to = TileObject.createQueryTileObject("renamed", xyz, GRIDSET, "image/png",
+                Collections.<String, String> emptyMap());
+        assertTrue(store.get(to));
+    }
+}
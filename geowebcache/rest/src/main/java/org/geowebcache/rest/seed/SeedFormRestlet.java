@@ -279,6 +279,8 @@ public class SeedFormRestlet extends GWCRestlet {
         keysValues.put("Truncate - remove tiles", "truncate");
         keysValues.put("Seed - generate missing tiles", "seed");
         keysValues.put("Reseed - regenerate all tiles", "reseed");
+        keysValues.put("Optimize - recompress stored PNG tiles", "optimize");
+        keysValues.put("Pyramid - seed the deepest level, build the others from it", "pyramid");
 
         makePullDown(doc, "type", keysValues, "Seed - generate missing tiles");
         doc.append("</td></tr>\n");